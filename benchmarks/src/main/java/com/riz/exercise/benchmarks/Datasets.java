@@ -0,0 +1,101 @@
+package com.riz.exercise.benchmarks;
+
+import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.model.Subscriber;
+
+import java.util.*;
+
+/**
+ * Synthetic, reproducible (fixed seed) server instances and subscribers
+ */
+final class Datasets {
+
+    static final long SEED = 20161201L;
+
+    private Datasets() {
+    }
+
+    /**
+     * @return <code>count</code> server instances, keyed <code>NA0</code> to <code>NA{count - 1}</code>, all OK
+     */
+    static List<SFDCServerInstance> instances(int count) {
+        return instances(0, count);
+    }
+
+    static List<SFDCServerInstance> instances(int first, int count) {
+        List<SFDCServerInstance> instances = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            SFDCServerInstance instance = new SFDCServerInstance();
+            instance.setKey("NA" + i);
+            instance.setLocation(i % 2 == 0 ? "NA" : "EU");
+            instance.setEnvironment(i % 3 == 0 ? "sandbox" : "production");
+            instance.setReleaseVersion("Winter '17 Patch 15");
+            instance.setStatus("OK");
+            instances.add(instance);
+        }
+        return instances;
+    }
+
+    /**
+     * @return A copy of the given server instances in which a <code>ratio</code> of them, at random, have a different
+     *         status
+     */
+    static List<SFDCServerInstance> churn(List<SFDCServerInstance> instances, double ratio, Random random) {
+        List<SFDCServerInstance> churned = new ArrayList<>(instances.size());
+        for (SFDCServerInstance instance : instances) {
+            SFDCServerInstance copy = new SFDCServerInstance();
+            copy.setKey(instance.getKey());
+            copy.setLocation(instance.getLocation());
+            copy.setEnvironment(instance.getEnvironment());
+            copy.setReleaseVersion(instance.getReleaseVersion());
+            copy.setStatus(instance.getStatus());
+            churned.add(copy);
+        }
+        List<Integer> indexes = new ArrayList<>(instances.size());
+        for (int i = 0; i < instances.size(); i++) {
+            indexes.add(i);
+        }
+        Collections.shuffle(indexes, random);
+        int changes = (int) Math.round(instances.size() * ratio);
+        for (int i = 0; i < changes; i++) {
+            churned.get(indexes.get(i)).setStatus("MINOR_INCIDENT_CORE");
+        }
+        return churned;
+    }
+
+    /**
+     * @return The server instances whose status differs between the two lists
+     */
+    static List<SFDCServerInstance> changed(List<SFDCServerInstance> before, List<SFDCServerInstance> after) {
+        List<SFDCServerInstance> changed = new ArrayList<>();
+        for (int i = 0; i < before.size(); i++) {
+            if (!before.get(i).getStatus().equals(after.get(i).getStatus())) {
+                changed.add(after.get(i));
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return <code>count</code> subscribers, each subscribing to 1 to 5 server instances picked at random among the
+     *         given number of instances
+     */
+    static List<Subscriber> subscribers(int count, int instanceCount, Random random) {
+        List<Subscriber> subscribers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int servers = 1 + random.nextInt(5);
+            Set<String> keys = new LinkedHashSet<>();
+            while (keys.size() < Math.min(servers, instanceCount)) {
+                keys.add("NA" + random.nextInt(instanceCount));
+            }
+            Subscriber subscriber = new Subscriber();
+            subscriber.setId(Integer.toHexString(i));
+            subscriber.setFirstname("First" + i);
+            subscriber.setLastname("Last" + i);
+            subscriber.setEmail("user" + i + "@example.com");
+            subscriber.setServers(new ArrayList<>(keys));
+            subscribers.add(subscriber);
+        }
+        return subscribers;
+    }
+}
@@ -0,0 +1,55 @@
+package com.riz.exercise.benchmarks;
+
+import com.riz.exercise.jobs.ServerInstanceDiff;
+import com.riz.exercise.jobs.ServerInstanceDiffEngine;
+import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.persistence.ServerInstanceCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diffing a Trust api payload against the local instances, journaling and writing the changes: what
+ * {@link ServerInstanceDiffEngine#apply(java.util.Collection)} does on every poll whose payload changed.
+ * <p>
+ * Each invocation alternates between the base payload and one in which a <code>churn</code> ratio of the instances
+ * changed status, so that every invocation sees that many changes (none for a churn of 0).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class DiffBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    int instances;
+
+    @Param({"0.0", "0.01", "0.1", "0.5"})
+    double churn;
+
+    private ServerInstanceDiffEngine engine;
+    private List<SFDCServerInstance> base;
+    private List<SFDCServerInstance> churned;
+    private boolean flip;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        base = Datasets.instances(instances);
+        churned = Datasets.churn(base, churn, new Random(Datasets.SEED));
+        engine = new ServerInstanceDiffEngine();
+        ServerInstanceCache cache = InMemoryRepositories.serverInstanceCache(base);
+        InMemoryRepositories.inject(engine, "serverInstanceCache", cache);
+        InMemoryRepositories.inject(engine, "serverInstanceRepository", InMemoryRepositories.serverInstances(cache));
+        InMemoryRepositories.inject(engine, "changeJournal", new InMemoryChangeJournal(100000));
+    }
+
+    @Benchmark
+    public ServerInstanceDiff apply() {
+        flip = !flip;
+        return engine.apply(flip ? churned : base);
+    }
+}
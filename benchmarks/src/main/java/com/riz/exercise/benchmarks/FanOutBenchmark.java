@@ -0,0 +1,96 @@
+package com.riz.exercise.benchmarks;
+
+import com.riz.exercise.jobs.NotifierJob;
+import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.model.Subscriber;
+import com.riz.exercise.persistence.SubscriptionIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fanning a set of changed server instances out to their subscribers through the subscription index: what
+ * <code>NotifierJob.getSubscriberServerMap</code> does for every batch of journaled changes.
+ * <p>
+ * Every subscriber subscribes to 1 to 5 instances at random; <code>churn</code> is the ratio of instances changed.
+ * <code>index</code> is the application's (<code>bitmap</code>), or the hash multimap it replaced
+ * (<code>multimap</code>, see {@link MultimapSubscriptions}). The heap retained by the subscribers and the index is
+ * printed on setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class FanOutBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int subscribers;
+
+    @Param({"100", "1000", "10000"})
+    int instances;
+
+    @Param({"0.01", "0.1"})
+    double churn;
+
+    @Param({"bitmap", "multimap"})
+    String index;
+
+    private NotifierJob job;
+    private MultimapSubscriptions multimap;
+    private MethodHandle getSubscriberServerMap;
+    private List<SFDCServerInstance> changed;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        Random random = new Random(Datasets.SEED);
+        List<SFDCServerInstance> base = Datasets.instances(instances);
+        changed = Datasets.changed(base, Datasets.churn(base, churn, random));
+
+        long before = retainedHeap();
+        List<Subscriber> dataset = Datasets.subscribers(subscribers, instances, random);
+        if (index.equals("multimap")) {
+            multimap = new MultimapSubscriptions(dataset);
+        } else {
+            SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
+            InMemoryRepositories.inject(subscriptionIndex, "subscriberRepository", InMemoryRepositories.subscribers(dataset));
+            subscriptionIndex.rebuild();
+            // The index holds its own copies of the subscribers, and the data store's aren't held on to once read
+            InMemoryRepositories.inject(subscriptionIndex, "subscriberRepository", InMemoryRepositories.subscribers(Collections.emptyList()));
+
+            job = new NotifierJob();
+            InMemoryRepositories.inject(job, "subscriptionIndex", subscriptionIndex);
+            Method method = NotifierJob.class.getDeclaredMethod("getSubscriberServerMap", List.class, int.class);
+            method.setAccessible(true);
+            getSubscriberServerMap = MethodHandles.lookup().unreflect(method);
+        }
+        // Only what the index itself holds on to is retained
+        dataset = null;
+        System.out.printf("%n# Heap retained by the subscribers and their %s index: %,d KB%n", index, (retainedHeap() - before) / 1024);
+    }
+
+    /**
+     * @return Heap in use once garbage is collected, as far as a few requests to collect it get
+     */
+    private static long retainedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    @Benchmark
+    public Object fanOut() throws Throwable {
+        return multimap != null ? multimap.getSubscriberServerMap(changed) : getSubscriberServerMap.invoke(job, changed, 0);
+    }
+}
@@ -0,0 +1,77 @@
+package com.riz.exercise.benchmarks;
+
+import com.google.common.collect.Range;
+import com.riz.exercise.model.StatusChangeEvent;
+import com.riz.exercise.persistence.ChangeJournal;
+
+import java.util.*;
+
+/**
+ * A change journal kept in memory. Only the latest <code>capacity</code> events are retained, so that a long
+ * benchmark run doesn't measure an ever-growing heap.
+ */
+class InMemoryChangeJournal implements ChangeJournal {
+
+    private final int capacity;
+    private final Deque<StatusChangeEvent> events = new ArrayDeque<>();
+    private final Map<String, Long> cursors = new HashMap<>();
+    private final Map<String, Range<Long>> batches = new HashMap<>();
+    private long lastSequence;
+
+    InMemoryChangeJournal(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void append(List<StatusChangeEvent> appended) {
+        for (StatusChangeEvent event : appended) {
+            event.setSequence(++lastSequence);
+            events.addLast(event);
+            if (events.size() > capacity) {
+                events.removeFirst();
+            }
+        }
+    }
+
+    @Override
+    public List<StatusChangeEvent> readAfter(long sequence, int limit) {
+        List<StatusChangeEvent> read = new ArrayList<>();
+        for (StatusChangeEvent event : events) {
+            if (event.getSequence() > sequence && read.size() < limit) {
+                read.add(event);
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public long getCursor(String consumer) {
+        return cursors.getOrDefault(consumer, 0L);
+    }
+
+    @Override
+    public void saveCursor(String consumer, long sequence) {
+        cursors.put(consumer, sequence);
+    }
+
+    @Override
+    public Map<String, Long> getCursors() {
+        return new HashMap<>(cursors);
+    }
+
+    @Override
+    public void deleteCursor(String consumer) {
+        cursors.remove(consumer);
+        batches.remove(consumer);
+    }
+
+    @Override
+    public void saveBatch(String consumer, long first, long last) {
+        batches.put(consumer, Range.closed(first, last));
+    }
+
+    @Override
+    public Range<Long> getBatch(String consumer) {
+        return batches.get(consumer);
+    }
+}
@@ -0,0 +1,105 @@
+package com.riz.exercise.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.model.Subscriber;
+import com.riz.exercise.persistence.ServerInstanceCache;
+import com.riz.exercise.persistence.ServerInstanceRepository;
+import com.riz.exercise.persistence.SubscriberRepository;
+import org.springframework.data.mongodb.core.MongoOperations;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-ins for the mongo repositories, implementing only the methods the benchmarked code calls, so that
+ * the benchmarks measure the application's own work and not the data store's
+ */
+final class InMemoryRepositories {
+
+    private InMemoryRepositories() {
+    }
+
+    /**
+     * @return A cache of the given server instances, as if they were the <code>serverInstances</code> collection
+     */
+    static ServerInstanceCache serverInstanceCache(List<SFDCServerInstance> initial) {
+        ServerInstanceCache cache = new ServerInstanceCache();
+        // The cache's version stamp, bumped by its own writes only
+        AtomicLong version = new AtomicLong();
+        inject(cache, "mongoOperations", proxy(MongoOperations.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "findAll":
+                    return args[0] == SFDCServerInstance.class ? new ArrayList<>(initial) : unsupported(proxy, method.getName(), args);
+                case "findById":
+                    return new BasicDBObject("version", version.get());
+                case "findAndModify":
+                    return new BasicDBObject("version", version.incrementAndGet());
+                default:
+                    return unsupported(proxy, method.getName(), args);
+            }
+        }));
+        cache.start();
+        return cache;
+    }
+
+    /**
+     * @return A repository supporting <code>bulkUpsertByKey</code> only, which writes through to the given cache and
+     *         nowhere else
+     */
+    static ServerInstanceRepository serverInstances(ServerInstanceCache cache) {
+        return proxy(ServerInstanceRepository.class, (proxy, method, args) -> {
+            if (method.getName().equals("bulkUpsertByKey")) {
+                @SuppressWarnings("unchecked") Collection<SFDCServerInstance> upserts = (Collection<SFDCServerInstance>) args[0];
+                @SuppressWarnings("unchecked") Collection<String> removedKeys = (Collection<String>) args[1];
+                cache.putAll(upserts, removedKeys);
+                return null;
+            }
+            return unsupported(proxy, method.getName(), args);
+        });
+    }
+
+    /**
+     * @return A repository supporting <code>findAll</code> only
+     */
+    static SubscriberRepository subscribers(List<Subscriber> subscribers) {
+        return proxy(SubscriberRepository.class, (proxy, method, args) ->
+                method.getName().equals("findAll") && (args == null || args.length == 0)
+                        ? new ArrayList<>(subscribers)
+                        : unsupported(proxy, method.getName(), args));
+    }
+
+    /**
+     * Sets a (typically private, <code>@Autowired</code>) field, as Spring would
+     */
+    static void inject(Object target, String fieldName, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot set " + fieldName + " on " + target.getClass().getName(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object unsupported(Object proxy, String method, Object[] args) {
+        switch (method) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "InMemoryRepository";
+            default:
+                throw new UnsupportedOperationException(method);
+        }
+    }
+}
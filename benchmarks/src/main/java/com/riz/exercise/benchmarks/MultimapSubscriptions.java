@@ -0,0 +1,38 @@
+package com.riz.exercise.benchmarks;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.SetMultimap;
+import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.model.Subscriber;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The subscription index as it was before subscribers were held in bitmaps: a hash multimap of server instance key to
+ * subscriber id, fanned out to an <code>ArrayListMultimap</code> one changed instance and one subscriber at a time.
+ * Kept as the baseline of {@link FanOutBenchmark}.
+ */
+final class MultimapSubscriptions {
+
+    private final Map<String, Subscriber> subscribersById = new HashMap<>();
+    private final SetMultimap<String, String> subscriberIdsByServer = HashMultimap.create();
+
+    MultimapSubscriptions(List<Subscriber> subscribers) {
+        for (Subscriber subscriber : subscribers) {
+            subscribersById.put(subscriber.getId(), subscriber);
+            subscriber.getServers().stream().forEach(server -> subscriberIdsByServer.put(server, subscriber.getId()));
+        }
+    }
+
+    Multimap<Subscriber, SFDCServerInstance> getSubscriberServerMap(List<SFDCServerInstance> serverInstances) {
+        Multimap<Subscriber, SFDCServerInstance> subscriberServerMap = ArrayListMultimap.create();
+        serverInstances.stream().forEach(si -> subscriberIdsByServer.get(si.getKey()).stream()
+                .map(subscribersById::get)
+                .forEach(s -> subscriberServerMap.put(s, si)));
+        return subscriberServerMap;
+    }
+}
@@ -0,0 +1,56 @@
+package com.riz.exercise.benchmarks;
+
+import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.notification.NotificationRenderer;
+import com.riz.exercise.notification.RenderedNotification;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a notification email body (plain text and HTML) listing <code>servers</code> changed instances.
+ * <p>
+ * With <code>cacheHit</code> every invocation renders the same set of changes, whose status block is cached after the
+ * first; without, invocations cycle through more distinct sets than the renderer caches, so every status block is
+ * rendered from scratch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RenderBenchmark {
+
+    private static final int DISTINCT_SETS = 4096;
+
+    @Param({"1", "10", "100"})
+    int servers;
+
+    @Param({"true", "false"})
+    boolean cacheHit;
+
+    private NotificationRenderer renderer;
+    private List<List<SFDCServerInstance>> sets;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        renderer = new NotificationRenderer();
+        renderer.start();
+        sets = new ArrayList<>();
+        for (int i = 0; i < (cacheHit ? 1 : DISTINCT_SETS); i++) {
+            sets.add(Datasets.instances(i * servers, servers));
+        }
+    }
+
+    @Benchmark
+    public RenderedNotification render() {
+        List<SFDCServerInstance> set = sets.get(next);
+        next = (next + 1) % sets.size();
+        return renderer.render("Alice Andrews", set);
+    }
+}
@@ -0,0 +1,89 @@
+package com.riz.exercise.benchmarks;
+
+import com.icegreen.greenmail.store.FolderException;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.riz.exercise.notification.SmtpConnection;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a batch of <code>batchSize</code> emails to an in-process GreenMail SMTP server: with <code>perMessage</code>
+ * through {@link JavaMailSenderImpl#send(MimeMessage)}, which connects for every email (as the notifier job used to),
+ * otherwise through a {@link SmtpConnection} kept open across batches for up to <code>maxMessagesPerConnection</code>
+ * emails, as the email dispatcher's workers do.
+ * <p>
+ * The server is on the loopback interface and does no authentication or STARTTLS, so the numbers only show the
+ * connection overhead saved, not what a real relay achieves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SmtpBenchmark {
+
+    @Param({"10", "50"})
+    int batchSize;
+
+    @Param({"0", "100", "1000"})
+    int maxMessagesPerConnection;
+
+    private GreenMail greenMail;
+    private JavaMailSenderImpl mailSender;
+    private SmtpConnection connection;
+    private MimeMessage[] batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws MessagingException {
+        greenMail = new GreenMail(ServerSetupTest.SMTP);
+        greenMail.start();
+        mailSender = new JavaMailSenderImpl();
+        mailSender.setHost("localhost");
+        mailSender.setPort(ServerSetupTest.SMTP.getPort());
+        connection = maxMessagesPerConnection > 0 ? new SmtpConnection(mailSender, maxMessagesPerConnection) : null;
+        batch = new MimeMessage[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            batch[i] = mailSender.createMimeMessage();
+            MimeMessageHelper helper = new MimeMessageHelper(batch[i], true);
+            helper.setFrom("notifier@trust.com");
+            helper.setTo("user" + i + "@b.com");
+            helper.setSubject("SFDC Server Instance Status Change Alert");
+            helper.setText("There has been a change of status in 3 SFDC server instances you are subscribing to.");
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void purge() throws FolderException {
+        // The server keeps every email it receives
+        greenMail.purgeEmailFromAllMailboxes();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (connection != null) {
+            connection.close();
+        }
+        greenMail.stop();
+    }
+
+    /**
+     * A <code>maxMessagesPerConnection</code> of 0 sends each email on a connection of its own
+     */
+    @Benchmark
+    public void send() {
+        if (connection == null) {
+            for (MimeMessage mail : batch) {
+                mailSender.send(mail);
+            }
+        } else {
+            connection.send(batch);
+        }
+    }
+}
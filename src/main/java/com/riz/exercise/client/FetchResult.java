@@ -0,0 +1,74 @@
+package com.riz.exercise.client;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * The outcome of a single poll of the Trust api, along with the validators (<code>ETag</code>,
+ * <code>Last-Modified</code> and content hash) of the response it was read from.
+ *
+ * @see TrustApiClient#fetchServerInstances(String, java.util.function.Consumer)
+ */
+public class FetchResult {
+
+    public enum Outcome {
+        /** The server answered <code>304 Not Modified</code>; no instances were read */
+        NOT_MODIFIED,
+        /** The response body hashed the same as the last acknowledged one */
+        UNCHANGED,
+        /** The response body differs from the last acknowledged one */
+        MODIFIED
+    }
+
+    private final Outcome outcome;
+    private final int count;
+    private final String etag;
+    private final String lastModified;
+    private final String contentHash;
+
+    FetchResult(Outcome outcome, int count, String etag, String lastModified, String contentHash) {
+        this.outcome = outcome;
+        this.count = count;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public boolean isModified() {
+        return outcome == Outcome.MODIFIED;
+    }
+
+    /**
+     * @return The number of server instances read from the response
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this.getClass())
+                        .add("outcome", this.outcome)
+                        .add("count", this.count)
+                        .add("etag", this.etag)
+                        .add("lastModified", this.lastModified)
+                        .add("contentHash", this.contentHash)
+                        .omitNullValues()
+                        .toString();
+    }
+}
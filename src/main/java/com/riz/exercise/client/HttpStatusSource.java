@@ -0,0 +1,80 @@
+package com.riz.exercise.client;
+
+import com.google.common.base.MoreObjects;
+import com.riz.exercise.model.SFDCServerInstance;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.function.Consumer;
+
+/**
+ * A status feed read over http by a {@link StatusParser}, with its own poll interval and timeout. Polls are conditional
+ * the same way as the Trust api's instances are (see {@link TrustApiClient}).
+ */
+public class HttpStatusSource implements StatusSource {
+
+    private final String name;
+    private final String endPointUrl;
+    private final StatusParser parser;
+    private final long intervalMillis;
+    private final int timeoutMillis;
+    private final TrustApiClient trustApiClient;
+    private final RestTemplate restTemplate;
+
+    private volatile FetchResult lastAcknowledged;
+
+    public HttpStatusSource(String name, String endPointUrl, StatusParser parser, long intervalMillis, int timeoutMillis,
+                            TrustApiClient trustApiClient) {
+        this.name = name;
+        this.endPointUrl = endPointUrl;
+        this.parser = parser;
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.trustApiClient = trustApiClient;
+        this.restTemplate = TrustApiClient.restTemplate(timeoutMillis);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    @Override
+    public boolean owns(String key) {
+        return key.startsWith(name + KEY_SEPARATOR);
+    }
+
+    @Override
+    public FetchResult fetch(Consumer<SFDCServerInstance> consumer) {
+        return trustApiClient.fetch(restTemplate, endPointUrl, lastAcknowledged, parser, true, entry -> {
+            entry.setKey(name + KEY_SEPARATOR + entry.getKey());
+            consumer.accept(entry);
+        });
+    }
+
+    @Override
+    public void acknowledge(FetchResult result) {
+        if (result.isModified()) {
+            lastAcknowledged = result;
+        }
+    }
+
+    @Override
+    public void reset() {
+        lastAcknowledged = null;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("name", name)
+                .add("endPointUrl", endPointUrl)
+                .add("intervalMillis", intervalMillis)
+                .add("timeoutMillis", timeoutMillis)
+                .toString();
+    }
+}
@@ -0,0 +1,23 @@
+package com.riz.exercise.client;
+
+import com.riz.exercise.model.SFDCServerInstance;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Reads the payload of a {@link StatusSource} into status entries, keyed by their id within the source
+ *
+ * @see StatusParsers
+ */
+@FunctionalInterface
+public interface StatusParser {
+
+    /**
+     * @param body The payload. Owned by the caller, which may still need to read past what the parser reads.
+     * @param consumer Receives each status entry as it is read
+     * @return The number of status entries read
+     */
+    int parse(InputStream body, Consumer<SFDCServerInstance> consumer) throws IOException;
+}
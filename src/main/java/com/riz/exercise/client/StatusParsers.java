@@ -0,0 +1,124 @@
+package com.riz.exercise.client;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.riz.exercise.model.SFDCServerInstance;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * {@link StatusParser}s for the feeds a {@link StatusSource} can be configured with. Each entry is read into an
+ * {@link SFDCServerInstance}: its id as key, what it affects as location, and its state as status.
+ * <ul>
+ *     <li><code>incidents</code>: the Trust api's <code>/v1/incidents</code>. An incident is <code>MAJOR_INCIDENT</code>
+ *     or <code>MINOR_INCIDENT</code> (by the severity of its worst impact not yet ended), or <code>RESOLVED</code>.</li>
+ *     <li><code>maintenances</code>: the Trust api's <code>/v1/maintenances</code>. A maintenance is
+ *     <code>SCHEDULED</code>, <code>IN_PROGRESS</code> or <code>COMPLETED</code> (by its planned times), unless the
+ *     feed gives its event status.</li>
+ *     <li><code>statuspage</code>: a status page's <code>/api/v2/components.json</code>, one entry per component.</li>
+ * </ul>
+ * These feeds are small, so they are read whole rather than streamed.
+ */
+public final class StatusParsers {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private StatusParsers() {
+    }
+
+    /**
+     * @return The parser of the given name, or null if there is none
+     */
+    public static StatusParser named(String name, Clock clock) {
+        switch (name) {
+            case "incidents":
+                return StatusParsers::parseIncidents;
+            case "maintenances":
+                return (body, consumer) -> parseMaintenances(body, consumer, clock);
+            case "statuspage":
+                return StatusParsers::parseStatusPageComponents;
+            default:
+                return null;
+        }
+    }
+
+    static int parseIncidents(InputStream body, Consumer<SFDCServerInstance> consumer) throws IOException {
+        List<JsonNode> incidents = readArray(OBJECT_MAPPER.readTree(body), "incidents");
+        for (JsonNode incident : incidents) {
+            String worstSeverity = null;
+            for (JsonNode impact : incident.path("IncidentImpacts")) {
+                if (!impact.path("endTime").isTextual()) {
+                    String severity = impact.path("severity").asText("minor");
+                    if (worstSeverity == null || "major".equalsIgnoreCase(severity)) {
+                        worstSeverity = severity;
+                    }
+                }
+            }
+            consumer.accept(entry(incident.path("id").asText(), joined(incident.path("instanceKeys")),
+                    worstSeverity == null ? "RESOLVED" : worstSeverity.toUpperCase(Locale.ROOT) + "_INCIDENT"));
+        }
+        return incidents.size();
+    }
+
+    static int parseMaintenances(InputStream body, Consumer<SFDCServerInstance> consumer, Clock clock) throws IOException {
+        List<JsonNode> maintenances = readArray(OBJECT_MAPPER.readTree(body), "maintenances");
+        Instant now = clock.instant();
+        for (JsonNode maintenance : maintenances) {
+            String status;
+            JsonNode eventStatus = maintenance.path("message").path("eventStatus");
+            if (eventStatus.isTextual()) {
+                status = eventStatus.asText().toUpperCase(Locale.ROOT);
+            } else if (maintenance.path("plannedStartTime").isTextual() && now.isBefore(Instant.parse(maintenance.path("plannedStartTime").asText()))) {
+                status = "SCHEDULED";
+            } else if (maintenance.path("plannedEndTime").isTextual() && now.isBefore(Instant.parse(maintenance.path("plannedEndTime").asText()))) {
+                status = "IN_PROGRESS";
+            } else {
+                status = "COMPLETED";
+            }
+            consumer.accept(entry(maintenance.path("id").asText(), joined(maintenance.path("instanceKeys")), status));
+        }
+        return maintenances.size();
+    }
+
+    static int parseStatusPageComponents(InputStream body, Consumer<SFDCServerInstance> consumer) throws IOException {
+        JsonNode components = OBJECT_MAPPER.readTree(body).path("components");
+        List<JsonNode> entries = readArray(components, "status page components");
+        for (JsonNode component : entries) {
+            consumer.accept(entry(component.path("id").asText(), component.path("name").asText(null),
+                    component.path("status").asText("").toUpperCase(Locale.ROOT)));
+        }
+        return entries.size();
+    }
+
+    private static List<JsonNode> readArray(JsonNode node, String what) throws JsonParseException {
+        if (node == null || !node.isArray()) {
+            throw new JsonParseException(null, "Expected an array of " + what);
+        }
+        List<JsonNode> elements = new ArrayList<>();
+        node.forEach(elements::add);
+        return elements;
+    }
+
+    private static SFDCServerInstance entry(String id, String location, String status) {
+        SFDCServerInstance entry = new SFDCServerInstance();
+        entry.setKey(id);
+        entry.setLocation(location);
+        entry.setStatus(status);
+        return entry;
+    }
+
+    private static String joined(JsonNode keys) {
+        List<String> joined = new ArrayList<>();
+        keys.forEach(key -> joined.add(key.asText()));
+        return joined.isEmpty() ? null : String.join(",", joined);
+    }
+}
@@ -0,0 +1,53 @@
+package com.riz.exercise.client;
+
+import com.riz.exercise.model.SFDCServerInstance;
+
+import java.util.function.Consumer;
+
+/**
+ * A status feed polled by the notifier job: the Trust api's instances (see {@link TrustInstancesSource}), or any other
+ * feed configured in {@link StatusSources}.
+ * <p>
+ * Entries of all sources are stored alongside each other in the <code>serverInstances</code> collection, and diffed,
+ * journaled and notified the same way. The Trust api's instances keep their own keys (e.g.: <code>NA16</code>); the
+ * entries of any other source are keyed <code>source:id</code> (e.g.: <code>incidents:1234</code>).
+ */
+public interface StatusSource {
+
+    /**
+     * Separates the name of a source from the id of an entry in its keys
+     */
+    String KEY_SEPARATOR = ":";
+
+    /**
+     * @return The name of the source, which prefixes the keys of its entries
+     */
+    String getName();
+
+    /**
+     * @return The shortest time between two polls of the source; 0 to poll it on every run of the notifier job
+     */
+    long getIntervalMillis();
+
+    /**
+     * @return true if the given key is that of an entry of this source
+     */
+    boolean owns(String key);
+
+    /**
+     * Conditionally fetches the source's entries, as {@link TrustApiClient#fetchServerInstances} does
+     *
+     * @param consumer Receives each entry, keyed as stored
+     */
+    FetchResult fetch(Consumer<SFDCServerInstance> consumer);
+
+    /**
+     * @see TrustApiClient#acknowledge(FetchResult)
+     */
+    void acknowledge(FetchResult result);
+
+    /**
+     * @see TrustApiClient#reset()
+     */
+    void reset();
+}
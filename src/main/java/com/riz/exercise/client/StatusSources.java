@@ -0,0 +1,117 @@
+package com.riz.exercise.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * The status sources polled besides the Trust api's instances, configured by name in
+ * <code>com.riz.exercise.application.sources</code>, each with its own properties:
+ * <pre>
+ * com.riz.exercise.application.sources=incidents
+ * com.riz.exercise.application.sources.incidents.url=https://api.status.salesforce.com/v1/incidents
+ * com.riz.exercise.application.sources.incidents.parser=incidents
+ * com.riz.exercise.application.sources.incidents.intervalMillis=300000
+ * com.riz.exercise.application.sources.incidents.timeoutMillis=10000
+ * </pre>
+ * <code>parser</code> is one of {@link StatusParsers} or <code>instances</code> (the Trust api's instances format), and
+ * defaults to the name of the source. A source is polled by the first run of the notifier job at least
+ * <code>intervalMillis</code> (default 0) after its last poll.
+ */
+@Component
+public class StatusSources {
+
+    static final String PREFIX = "com.riz.exercise.application.sources";
+    /**
+     * Subscribing to <code>source:*</code> subscribes to all of a source's entries
+     */
+    public static final String ALL_ENTRIES = "*";
+
+    @Autowired private Environment environment;
+    @Autowired private TrustApiClient trustApiClient;
+
+    @Value("${" + PREFIX + ":}")
+    private String[] names = new String[0];
+
+    private List<StatusSource> sources = new ArrayList<>();
+    private final Map<String, Long> lastPolled = new ConcurrentHashMap<>();
+    private Clock clock = Clock.systemUTC();
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @PostConstruct
+    public void start() {
+        List<StatusSource> configured = new ArrayList<>();
+        for (String name : names) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (name.contains(StatusSource.KEY_SEPARATOR) || name.equals(TrustInstancesSource.NAME)) {
+                throw new IllegalStateException("Invalid status source name: " + name);
+            }
+            String parserName = environment.getProperty(PREFIX + "." + name + ".parser", name);
+            StatusParser parser = parserName.equals(TrustInstancesSource.NAME) ? trustApiClient::parseServerInstances : StatusParsers.named(parserName, clock);
+            if (parser == null) {
+                throw new IllegalStateException("Unknown parser " + parserName + " for status source " + name);
+            }
+            configured.add(new HttpStatusSource(name,
+                    environment.getRequiredProperty(PREFIX + "." + name + ".url"),
+                    parser,
+                    environment.getProperty(PREFIX + "." + name + ".intervalMillis", Long.class, 0L),
+                    environment.getProperty(PREFIX + "." + name + ".timeoutMillis", Integer.class, 10000),
+                    trustApiClient));
+        }
+        sources = configured;
+        sources.stream().forEach(source -> logger.info("Polling status source {}", source));
+    }
+
+    /**
+     * @return All configured sources
+     */
+    public List<StatusSource> getSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * @return The sources due a poll: those never polled, or last polled at least their interval ago
+     */
+    public List<StatusSource> due() {
+        long now = clock.millis();
+        return sources.stream()
+                .filter(source -> !lastPolled.containsKey(source.getName()) || now - lastPolled.get(source.getName()) >= source.getIntervalMillis())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Records that a source was polled, successfully or not
+     */
+    public void polled(StatusSource source) {
+        lastPolled.put(source.getName(), clock.millis());
+    }
+
+    /**
+     * Forgets the validators of the last acknowledged fetch of every source, so that their next polls are processed in
+     * full
+     */
+    public void reset() {
+        sources.stream().forEach(StatusSource::reset);
+    }
+
+    /**
+     * @return The name of the source of the entry with the given key, or null for the Trust api's instances
+     */
+    public static String sourceOf(String key) {
+        int separator = key.indexOf(StatusSource.KEY_SEPARATOR);
+        return separator < 0 ? null : key.substring(0, separator);
+    }
+}
@@ -0,0 +1,233 @@
+package com.riz.exercise.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.riz.exercise.events.ServerInstanceUpdatedEvent;
+import com.riz.exercise.model.SFDCServerInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.function.Consumer;
+
+/**
+ * Client for salesforce.com's Trust REST api.
+ * <p>
+ * In streaming mode (the default) the response body is read straight off the connection with Jackson's token stream
+ * and each server instance is handed to the caller as soon as it has been read, so heap use stays flat however large
+ * the payload grows. Fields that are not persisted are skipped without being materialized.
+ * <p>
+ * Polls are conditional: the <code>ETag</code> and <code>Last-Modified</code> validators and a hash of the body of the
+ * last {@link #acknowledge(FetchResult) acknowledged} response are remembered, and sent back as
+ * <code>If-None-Match</code>/<code>If-Modified-Since</code>. A <code>304</code>, or a body that hashes the same, is
+ * reported as such so the caller can skip the rest of its pipeline.
+ */
+@Component
+public class TrustApiClient {
+
+    @Value("${com.riz.exercise.application.trust.streaming:true}")
+    private boolean streaming = true;
+    @Value("${com.riz.exercise.application.trust.timeoutMillis:30000}")
+    private int timeoutMillis = 30000;
+
+    RestTemplate restTemplate = new RestTemplate();
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final HashFunction hashFunction = Hashing.murmur3_128();
+
+    private volatile FetchResult lastAcknowledged;
+
+    @PostConstruct
+    public void start() {
+        restTemplate = restTemplate(timeoutMillis);
+    }
+
+    /**
+     * @return A client whose connections and reads time out after the given time
+     */
+    public static RestTemplate restTemplate(int timeoutMillis) {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(timeoutMillis);
+        requestFactory.setReadTimeout(timeoutMillis);
+        return new RestTemplate(requestFactory);
+    }
+
+    /**
+     * Fetch all server instances from salesforce.com via their REST service
+     * <p>
+     * In streaming mode the body can only be hashed once it has been read in full, so instances are handed to the
+     * consumer even when the outcome turns out to be {@link FetchResult.Outcome#UNCHANGED}; the caller is expected to
+     * discard them. Otherwise the body is hashed before it is deserialized and an unchanged one is never parsed.
+     *
+     * @param endPointUrl The Trust api instances end point
+     * @param consumer Receives each server instance as translated from the REST service's JSON, in payload order
+     * @return Whether the instances changed since the last acknowledged fetch, and how many were read
+     */
+    public FetchResult fetchServerInstances(String endPointUrl, Consumer<SFDCServerInstance> consumer) {
+        return fetch(restTemplate, endPointUrl, lastAcknowledged, this::parseServerInstances, streaming, consumer);
+    }
+
+    /**
+     * Conditionally fetches a status payload, as {@link #fetchServerInstances(String, Consumer)} does, for any
+     * {@link StatusSource}: the caller keeps the validators of the last acknowledged fetch.
+     *
+     * @param previous The last acknowledged fetch from the same end point, or null
+     * @param parser Reads the payload into status entries
+     * @param streaming Parse the body as it is read, rather than once it has been read and found changed
+     */
+    public FetchResult fetch(RestTemplate restTemplate, String endPointUrl, FetchResult previous, StatusParser parser,
+                             boolean streaming, Consumer<SFDCServerInstance> consumer) {
+        return restTemplate.execute(endPointUrl, HttpMethod.GET,
+                request -> {
+                    request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+                    if (previous != null && previous.getEtag() != null) {
+                        request.getHeaders().setIfNoneMatch(previous.getEtag());
+                    }
+                    if (previous != null && previous.getLastModified() != null) {
+                        request.getHeaders().set(HttpHeaders.IF_MODIFIED_SINCE, previous.getLastModified());
+                    }
+                },
+                response -> readResponse(response, previous, parser, streaming, consumer));
+    }
+
+    /**
+     * Remembers the validators of a fetch whose instances have been fully processed, so that the next poll can be
+     * skipped if nothing changed since. Only acknowledge once processing succeeded, otherwise a failed poll would never
+     * be retried.
+     */
+    public void acknowledge(FetchResult result) {
+        if (result.isModified()) {
+            lastAcknowledged = result;
+        }
+    }
+
+    /**
+     * Forgets the validators of the last acknowledged fetch, so that the next poll is processed in full
+     */
+    public void reset() {
+        lastAcknowledged = null;
+    }
+
+    /**
+     * A server instance was changed locally: the next poll has to be processed in full to reconcile it, even if the
+     * remote payload hasn't changed
+     */
+    @EventListener
+    public void onServerInstanceUpdated(ServerInstanceUpdatedEvent event) {
+        reset();
+    }
+
+    private FetchResult readResponse(ClientHttpResponse response, FetchResult previous, StatusParser parser, boolean streaming,
+                                     Consumer<SFDCServerInstance> consumer) throws IOException {
+        if (response.getStatusCode() == HttpStatus.NOT_MODIFIED && previous != null) {
+            return new FetchResult(FetchResult.Outcome.NOT_MODIFIED, 0, previous.getEtag(), previous.getLastModified(), previous.getContentHash());
+        }
+
+        String etag = response.getHeaders().getETag();
+        String lastModified = response.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED);
+        String previousHash = previous != null ? previous.getContentHash() : null;
+
+        String contentHash;
+        int count;
+        if (streaming) {
+            HashingInputStream body = new HashingInputStream(hashFunction, response.getBody());
+            count = parser.parse(body, consumer);
+            // Drain anything after the closing bracket so the hash covers the whole body
+            ByteStreams.copy(body, ByteStreams.nullOutputStream());
+            contentHash = body.hash().toString();
+        } else {
+            byte[] body = ByteStreams.toByteArray(response.getBody());
+            contentHash = hashFunction.hashBytes(body).toString();
+            if (contentHash.equals(previousHash)) {
+                return new FetchResult(FetchResult.Outcome.UNCHANGED, 0, etag, lastModified, contentHash);
+            }
+            count = parser.parse(new ByteArrayInputStream(body), consumer);
+        }
+
+        FetchResult.Outcome outcome = contentHash.equals(previousHash) ? FetchResult.Outcome.UNCHANGED : FetchResult.Outcome.MODIFIED;
+        return new FetchResult(outcome, count, etag, lastModified, contentHash);
+    }
+
+    /**
+     * Reads a JSON array of server instances one instance at a time
+     *
+     * @param body The JSON payload
+     * @param consumer Receives each server instance as soon as it has been read
+     * @return The number of server instances read
+     */
+    public int parseServerInstances(InputStream body, Consumer<SFDCServerInstance> consumer) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            // The caller owns the stream and may still need to read past the end of the array
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "Expected an array of server instances");
+            }
+
+            int count = 0;
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+                consumer.accept(readServerInstance(parser));
+                count++;
+            }
+            if (token != JsonToken.END_ARRAY) {
+                throw new JsonParseException(parser, "Expected a server instance object but found " + token);
+            }
+            return count;
+        }
+    }
+
+    private SFDCServerInstance readServerInstance(JsonParser parser) throws IOException {
+        SFDCServerInstance serverInstance = new SFDCServerInstance();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            switch (fieldName) {
+                case "key":
+                    serverInstance.setKey(readText(parser));
+                    break;
+                case "location":
+                    serverInstance.setLocation(readText(parser));
+                    break;
+                case "environment":
+                    serverInstance.setEnvironment(readText(parser));
+                    break;
+                case "releaseVersion":
+                    serverInstance.setReleaseVersion(readText(parser));
+                    break;
+                case "status":
+                    serverInstance.setStatus(readText(parser));
+                    break;
+                default:
+                    // Not persisted: skip over the value (including any nested objects/arrays) without reading it
+                    parser.skipChildren();
+            }
+        }
+        return serverInstance;
+    }
+
+    private static String readText(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken().isScalarValue()) {
+            return parser.getValueAsString();
+        }
+        parser.skipChildren();
+        return null;
+    }
+}
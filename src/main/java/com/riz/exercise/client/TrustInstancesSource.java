@@ -0,0 +1,52 @@
+package com.riz.exercise.client;
+
+import com.riz.exercise.model.SFDCServerInstance;
+
+import java.util.function.Consumer;
+
+/**
+ * The Trust api's instances, polled on every run of the notifier job through the {@link TrustApiClient}. Its entries
+ * are keyed by instance key alone.
+ */
+public class TrustInstancesSource implements StatusSource {
+
+    public static final String NAME = "instances";
+
+    private final TrustApiClient trustApiClient;
+    private final String endPointUrl;
+
+    public TrustInstancesSource(TrustApiClient trustApiClient, String endPointUrl) {
+        this.trustApiClient = trustApiClient;
+        this.endPointUrl = endPointUrl;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public long getIntervalMillis() {
+        return 0;
+    }
+
+    @Override
+    public boolean owns(String key) {
+        return !key.contains(KEY_SEPARATOR);
+    }
+
+    @Override
+    public FetchResult fetch(Consumer<SFDCServerInstance> consumer) {
+        return trustApiClient.fetchServerInstances(endPointUrl, consumer);
+    }
+
+    @Override
+    public void acknowledge(FetchResult result) {
+        trustApiClient.acknowledge(result);
+    }
+
+    @Override
+    public void reset() {
+        trustApiClient.reset();
+    }
+}
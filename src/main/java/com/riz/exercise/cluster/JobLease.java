@@ -0,0 +1,54 @@
+package com.riz.exercise.cluster;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * A lease acquired by this node on a named job. See {@link JobLockService}.
+ */
+public class JobLease {
+
+    private final String name;
+    private final String owner;
+    private final long token;
+    private final boolean takeover;
+
+    public JobLease(String name, String owner, long token, boolean takeover) {
+        this.name = name;
+        this.owner = owner;
+        this.token = token;
+        this.takeover = takeover;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return Fencing token: strictly greater than that of any earlier lease on the same job, by any node
+     */
+    public long getToken() {
+        return token;
+    }
+
+    /**
+     * @return true if this node did not hold the previous lease on the job, i.e.: another node may have run it since
+     *         this node last did, and any state this node keeps in memory about it may be stale
+     */
+    public boolean isTakeover() {
+        return takeover;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("name", name)
+                .add("owner", owner)
+                .add("token", token)
+                .add("takeover", takeover)
+                .toString();
+    }
+}
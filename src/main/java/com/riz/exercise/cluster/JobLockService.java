@@ -0,0 +1,121 @@
+package com.riz.exercise.cluster;
+
+import com.riz.exercise.model.JobLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.UUID;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Coordinates jobs across the nodes of a cluster with leases stored in the <code>jobLocks</code> collection, so that
+ * each job (e.g.: polling the Trust api) is run by at most one node at a time.
+ * <p>
+ * A lease is acquired with a single atomic <code>findAndModify</code>, which succeeds if the lease is free, expired or
+ * already held by this node, and fails on the unique <code>_id</code> otherwise. Every acquisition increments the
+ * lease's fencing token, and a holder checks its token is still current ({@link #checkValid(JobLease)}) right before
+ * each write it makes under the lease, so that a node which stalled past the expiry of its lease (e.g.: a long GC
+ * pause) does not overwrite the work of the node that took over.
+ */
+@Component
+public class JobLockService {
+
+    @Autowired private MongoOperations mongoOperations;
+
+    @Value("${com.riz.exercise.application.cluster.nodeId:}")
+    private String nodeId = "";
+    @Value("${com.riz.exercise.application.cluster.leaseMillis:1200000}")
+    private long leaseMillis = 1200000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @PostConstruct
+    public void start() {
+        if (nodeId.isEmpty()) {
+            nodeId = hostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        }
+        logger.info("Cluster node id: {}", nodeId);
+    }
+
+    /**
+     * @return This node's id, unique across the cluster
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Acquires or renews this node's lease on a job, for the configured lease duration.
+     *
+     * @param name Job name
+     * @return The lease, or null if another node holds an unexpired lease on the job
+     */
+    public JobLease tryAcquire(String name) {
+        Date now = new Date();
+        Update update = new Update()
+                .set("owner", nodeId)
+                .set("expiresAt", new Date(now.getTime() + leaseMillis))
+                .inc("token", 1);
+        JobLock previous;
+        try {
+            previous = mongoOperations.findAndModify(
+                    query(where("_id").is(name).orOperator(where("owner").is(nodeId), where("expiresAt").lt(now))),
+                    update, FindAndModifyOptions.options().returnNew(false).upsert(true), JobLock.class);
+        } catch (DuplicateKeyException e) {
+            // The upsert found no free lease and tried to insert one: another node holds it
+            return null;
+        }
+        JobLease lease = previous == null
+                ? new JobLease(name, nodeId, 1, true)
+                : new JobLease(name, nodeId, previous.getToken() + 1, !nodeId.equals(previous.getOwner()));
+        if (lease.isTakeover()) {
+            logger.info("Acquired {} (previous owner: {})", lease, previous != null ? previous.getOwner() : null);
+        }
+        return lease;
+    }
+
+    /**
+     * @throws LeaseLostException if the lease has expired, or a newer lease on the job has been acquired
+     */
+    public void checkValid(JobLease lease) {
+        Criteria current = where("_id").is(lease.getName())
+                .and("owner").is(lease.getOwner())
+                .and("token").is(lease.getToken())
+                .and("expiresAt").gt(new Date());
+        if (!mongoOperations.exists(query(current), JobLock.class)) {
+            throw new LeaseLostException(lease);
+        }
+    }
+
+    /**
+     * Gives up a lease before it expires so that any node can acquire it straight away. Does nothing if the lease has
+     * already been taken over.
+     */
+    public void release(JobLease lease) {
+        mongoOperations.updateFirst(
+                query(where("_id").is(lease.getName()).and("owner").is(lease.getOwner()).and("token").is(lease.getToken())),
+                new Update().set("expiresAt", new Date()), JobLock.class);
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "node";
+        }
+    }
+}
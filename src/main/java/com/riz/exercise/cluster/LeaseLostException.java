@@ -0,0 +1,13 @@
+package com.riz.exercise.cluster;
+
+/**
+ * Thrown when a node no longer holds a lease it is about to write under: it expired and may have been taken over
+ */
+public class LeaseLostException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public LeaseLostException(JobLease lease) {
+        super("Lease lost: " + lease);
+    }
+}
@@ -0,0 +1,43 @@
+package com.riz.exercise.controllers;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.data.util.CloseableIterator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes documents to a response as a JSON array as they are read off a mongo cursor, so that however many there are,
+ * only the cursor's current batch is ever held in memory
+ */
+class JsonArrayStreamer {
+
+    // Documents written between flushes, so the client receives them as they are read
+    private static final int FLUSH_INTERVAL = 100;
+
+    // Not flushed after each document written, but every FLUSH_INTERVAL
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    /**
+     * Writes all the documents and closes the cursor
+     */
+    <T> void write(CloseableIterator<T> cursor, OutputStream out) throws IOException {
+        try (CloseableIterator<T> documents = cursor;
+             JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            generator.writeStartArray();
+            int written = 0;
+            while (documents.hasNext()) {
+                objectMapper.writeValue(generator, documents.next());
+                if (++written % FLUSH_INTERVAL == 0) {
+                    generator.flush();
+                }
+            }
+            generator.writeEndArray();
+        }
+    }
+}
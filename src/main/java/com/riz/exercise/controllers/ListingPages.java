@@ -0,0 +1,18 @@
+package com.riz.exercise.controllers;
+
+/**
+ * Page size limits shared by the listing pages, so that the memory a listing request takes stays bounded however
+ * large the collection
+ */
+final class ListingPages {
+
+    static final int DEFAULT_SIZE = 50;
+    static final int MAX_SIZE = 500;
+
+    private ListingPages() {
+    }
+
+    static int clampSize(int size) {
+        return Math.max(1, Math.min(size, MAX_SIZE));
+    }
+}
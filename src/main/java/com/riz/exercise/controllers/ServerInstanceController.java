@@ -1,15 +1,24 @@
 package com.riz.exercise.controllers;
 
+import com.riz.exercise.events.ServerInstanceUpdatedEvent;
 import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.persistence.ServerInstanceCache;
 import com.riz.exercise.persistence.ServerInstanceRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
-import org.springframework.web.bind.annotation.ModelAttribute;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.util.Comparator;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
 
@@ -22,13 +31,52 @@ public class ServerInstanceController {
 
     @Autowired
     private ServerInstanceRepository serverInstanceRepository;
+    @Autowired
+    private ServerInstanceCache serverInstanceCache;
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    private final JsonArrayStreamer jsonArrayStreamer = new JsonArrayStreamer();
 
+    /**
+     * Lists a page of server instances: page number <code>page</code> or, given <code>after</code> (the key of the last
+     * one listed), those that follow it. Either way at most {@link ListingPages#MAX_SIZE} are read. Pages are cut from
+     * the {@link ServerInstanceCache} when it holds every server instance, and queried from the data store otherwise.
+     */
     @RequestMapping("/servers")
-    public String servers(Model model) {
-        model.addAttribute("serverList", serverInstanceRepository.findAll());
+    public String servers(@RequestParam(required = false) String after,
+                          @RequestParam(defaultValue = "0") int page,
+                          @RequestParam(defaultValue = "" + ListingPages.DEFAULT_SIZE) int size,
+                          Model model) {
+        size = ListingPages.clampSize(size);
+        if (after != null) {
+            String afterKey = after.isEmpty() ? null : after;
+            List<SFDCServerInstance> servers = serverInstanceCache.isComplete()
+                    ? cachedListing().stream().filter(si -> afterKey == null || si.getKey().compareTo(afterKey) > 0).limit(size).collect(Collectors.toList())
+                    : serverInstanceRepository.findListingAfter(afterKey, size);
+            model.addAttribute("serverList", servers);
+            model.addAttribute("nextAfter", servers.size() == size ? servers.get(size - 1).getKey() : null);
+        } else {
+            Pageable pageable = new PageRequest(Math.max(page, 0), size);
+            Page<SFDCServerInstance> listing = serverInstanceCache.isComplete()
+                    ? cachedPage(pageable)
+                    : serverInstanceRepository.findListingPage(pageable);
+            model.addAttribute("serverList", listing.getContent());
+            model.addAttribute("page", listing);
+        }
+        model.addAttribute("size", size);
         return "servers";
     }
 
+    /**
+     * All server instances as a JSON array, written as they are read from the data store
+     */
+    @RequestMapping(value = "/servers/stream", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public StreamingResponseBody streamServers() {
+        return out -> jsonArrayStreamer.write(serverInstanceRepository.streamListing(), out);
+    }
+
     @RequestMapping(value = "/updateServerStatus", method = RequestMethod.POST)
     public String updateServerStatus(@ModelAttribute SFDCServerInstance serverInstance) {
         if (!isNullOrEmpty(serverInstance.getKey())) {
@@ -38,10 +86,26 @@ public class ServerInstanceController {
             if (existingServers.size() > 0) {
                 SFDCServerInstance serverInstanceToUpdate = existingServers.get(0);
                 serverInstanceToUpdate.setStatus(serverInstance.getStatus());
+                // Saving writes through to the server instance cache
                 serverInstanceRepository.save(serverInstanceToUpdate);
+                // Let the Trust api client know, so the next poll reconciles the change even if the remote is unchanged
+                eventPublisher.publishEvent(new ServerInstanceUpdatedEvent(serverInstanceToUpdate));
             }
         }
 
         return "redirect:servers";
     }
+
+    private List<SFDCServerInstance> cachedListing() {
+        return serverInstanceCache.getAll().values().stream()
+                .sorted(Comparator.comparing(SFDCServerInstance::getKey))
+                .collect(Collectors.toList());
+    }
+
+    private Page<SFDCServerInstance> cachedPage(Pageable pageable) {
+        List<SFDCServerInstance> servers = cachedListing();
+        int from = Math.min(pageable.getOffset(), servers.size());
+        int to = Math.min(from + pageable.getPageSize(), servers.size());
+        return new PageImpl<>(servers.subList(from, to), pageable, servers.size());
+    }
 }
@@ -0,0 +1,68 @@
+package com.riz.exercise.controllers;
+
+import com.riz.exercise.model.StatusPeriod;
+import com.riz.exercise.persistence.StatusHistory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The status history of the server instances, as JSON. Each query covers the range from <code>from</code> to
+ * <code>to</code> (ISO 8601 date times), by default the last {@link #DEFAULT_RANGE_DAYS} days.
+ */
+@Controller
+public class StatusHistoryController {
+
+    static final int DEFAULT_RANGE_DAYS = 30;
+
+    @Autowired
+    private StatusHistory statusHistory;
+
+    /**
+     * The statuses a server instance went through
+     */
+    @RequestMapping(value = "/history/timeline", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public List<StatusPeriod> timeline(@RequestParam String key,
+                                       @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                       @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to) {
+        long until = to == null ? System.currentTimeMillis() : to.getTime();
+        return statusHistory.timeline(key, from == null ? defaultFrom(until) : from.getTime(), until);
+    }
+
+    /**
+     * The outages of a server instance, with their durations
+     */
+    @RequestMapping(value = "/history/outages", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public List<StatusPeriod> outages(@RequestParam String key,
+                                      @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                      @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to) {
+        long until = to == null ? System.currentTimeMillis() : to.getTime();
+        return statusHistory.outages(key, from == null ? defaultFrom(until) : from.getTime(), until);
+    }
+
+    /**
+     * The availability of every server instance, as a percentage, by key
+     */
+    @RequestMapping(value = "/history/availability", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public SortedMap<String, Double> availability(@RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                  @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to) {
+        long until = to == null ? System.currentTimeMillis() : to.getTime();
+        return statusHistory.availability(from == null ? defaultFrom(until) : from.getTime(), until);
+    }
+
+    private static long defaultFrom(long until) {
+        return until - TimeUnit.DAYS.toMillis(DEFAULT_RANGE_DAYS);
+    }
+}
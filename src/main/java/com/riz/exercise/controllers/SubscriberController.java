@@ -1,14 +1,19 @@
 package com.riz.exercise.controllers;
 
 import com.riz.exercise.model.Subscriber;
+import com.riz.exercise.notification.WebhookDispatcher;
 import com.riz.exercise.persistence.SubscriberRepository;
+import com.riz.exercise.persistence.SubscriptionIndex;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
-import org.springframework.web.bind.annotation.ModelAttribute;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.util.Date;
 import java.util.List;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
@@ -22,25 +27,63 @@ public class SubscriberController {
 
     @Autowired
     private SubscriberRepository subscriberRepository;
+    @Autowired
+    private SubscriptionIndex subscriptionIndex;
+    @Autowired
+    private WebhookDispatcher webhookDispatcher;
+
+    private final JsonArrayStreamer jsonArrayStreamer = new JsonArrayStreamer();
 
+    /**
+     * Lists a page of subscribers: page number <code>page</code> or, given <code>after</code> (the id of the last
+     * one listed), those that follow it. Either way at most {@link ListingPages#MAX_SIZE} are read.
+     */
     @RequestMapping("/subscribers")
-    public String subscribers(Model model) {
-        model.addAttribute("subscriberList", subscriberRepository.findAll());
+    public String subscribers(@RequestParam(required = false) String after,
+                              @RequestParam(defaultValue = "0") int page,
+                              @RequestParam(defaultValue = "" + ListingPages.DEFAULT_SIZE) int size,
+                              Model model) {
+        size = ListingPages.clampSize(size);
+        if (after != null) {
+            List<Subscriber> subscribers = subscriberRepository.findListingAfter(after.isEmpty() ? null : after, size);
+            model.addAttribute("subscriberList", subscribers);
+            model.addAttribute("nextAfter", subscribers.size() == size ? subscribers.get(size - 1).getId() : null);
+        } else {
+            Page<Subscriber> listing = subscriberRepository.findListingPage(new PageRequest(Math.max(page, 0), size));
+            model.addAttribute("subscriberList", listing.getContent());
+            model.addAttribute("page", listing);
+        }
+        model.addAttribute("size", size);
         return "subscribers";
     }
 
+    /**
+     * All subscribers as a JSON array, written as they are read from the data store
+     */
+    @RequestMapping(value = "/subscribers/stream", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public StreamingResponseBody streamSubscribers() {
+        return out -> jsonArrayStreamer.write(subscriberRepository.streamListing(), out);
+    }
+
     @RequestMapping(value = "/addSubscriber", method = RequestMethod.POST)
     public String addSubscriber(@ModelAttribute Subscriber subscriber) {
         if ((!isNullOrEmpty(subscriber.getFirstname()) || !isNullOrEmpty(subscriber.getLastname())) &&  // First or Last name required
                 !isNullOrEmpty(subscriber.getEmail()) && // Email required
-                subscriber.getServers().size() > 0) { // At least 1 server required
+                subscriber.getServers().size() > 0 && // At least 1 server required
+                (subscriber.getWebhooks() == null || subscriber.getWebhooks().stream().allMatch(webhookDispatcher::isAllowedEndpoint)) && // Public http(s) webhooks only
+                (subscriber.getChannels() == null || !subscriber.getChannels().contains(Subscriber.Channel.WEBHOOK) ||
+                        subscriber.getWebhooks() != null && !subscriber.getWebhooks().isEmpty())) { // A webhook to notify through
 
-            List<Subscriber> existingSubscribers = subscriberRepository.findByEmail(subscriber.getEmail());
+            List<Subscriber> existingSubscribers = subscriberRepository.findIdByEmail(subscriber.getEmail());
             if (existingSubscribers.size() > 0) {
                 subscriber.setId(existingSubscribers.get(0).getId());
             }
 
-            subscriberRepository.save(subscriber);
+            // Keep the in-memory subscription index in step with the data store: this node's right away, other nodes'
+            // when they next refresh theirs
+            subscriber.setModifiedAt(new Date());
+            subscriptionIndex.put(subscriberRepository.save(subscriber));
         }
 
         return "redirect:subscribers";
@@ -0,0 +1,20 @@
+package com.riz.exercise.events;
+
+import com.riz.exercise.model.SFDCServerInstance;
+
+/**
+ * Published when a server instance is written to the data store outside of the notifier job's own diff, e.g.: a
+ * status updated by hand on the servers page. Lets components holding server instance state in memory stay in step.
+ */
+public class ServerInstanceUpdatedEvent {
+
+    private final SFDCServerInstance serverInstance;
+
+    public ServerInstanceUpdatedEvent(SFDCServerInstance serverInstance) {
+        this.serverInstance = serverInstance;
+    }
+
+    public SFDCServerInstance getServerInstance() {
+        return serverInstance;
+    }
+}
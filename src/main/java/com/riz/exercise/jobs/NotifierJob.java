@@ -4,209 +4,557 @@ package com.riz.exercise.jobs;
  * Created by rizjoj on 12/1/16.
  */
 
-import com.google.common.base.Joiner;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Range;
+import com.google.common.hash.Hashing;
+import com.riz.exercise.cluster.JobLease;
+import com.riz.exercise.cluster.JobLockService;
+import com.riz.exercise.cluster.LeaseLostException;
+import com.riz.exercise.client.FetchResult;
+import com.riz.exercise.client.StatusSource;
+import com.riz.exercise.client.StatusSources;
+import com.riz.exercise.client.TrustApiClient;
+import com.riz.exercise.client.TrustInstancesSource;
 import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.model.StatusChangeEvent;
 import com.riz.exercise.model.Subscriber;
-import com.riz.exercise.persistence.ServerInstanceRepository;
-import com.riz.exercise.persistence.SubscriberRepository;
+import com.riz.exercise.notification.DigestCoalescer;
+import com.riz.exercise.notification.EmailComposer;
+import com.riz.exercise.notification.EmailDispatcher;
+import com.riz.exercise.notification.NotificationOutbox;
+import com.riz.exercise.notification.WebhookDispatcher;
+import com.riz.exercise.notification.WebhookNotification;
+import com.riz.exercise.persistence.ChangeJournal;
+import com.riz.exercise.persistence.StatusHistory;
+import com.riz.exercise.persistence.SubscriptionIndex;
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  *  Service class that contacts salesforce.com's REST api at a given frequency (e.g.: every 15 minutes) and notifies
- *  subscribers by email about status changes for those specific server instances that the user have subscribed to
+ *  subscribers by email, or through their webhooks, about status changes for those specific server instances that the
+ *  user have subscribed to
  */
 @Service
 public class NotifierJob {
 
-    @Autowired private JavaMailSender javaMailSender;
-    @Autowired private ServerInstanceRepository serverInstanceRepository;
-    @Autowired private SubscriberRepository subscriberRepository;
+    @Autowired private EmailComposer emailComposer;
+    @Autowired private EmailDispatcher emailDispatcher;
+    @Autowired private WebhookDispatcher webhookDispatcher;
+    @Autowired private NotificationOutbox notificationOutbox;
+    @Autowired private DigestCoalescer digestCoalescer;
+    @Autowired private TrustApiClient trustApiClient;
+    @Autowired private StatusSources statusSources;
+    @Autowired private ServerInstanceDiffEngine serverInstanceDiffEngine;
+    @Autowired private SubscriptionIndex subscriptionIndex;
+    @Autowired private CounterService counterService;
+    @Autowired private GaugeService gaugeService;
+    @Autowired private ChangeJournal changeJournal;
+    @Autowired private JobLockService jobLockService;
+    @Autowired private PipelineExecutor pipelineExecutor;
+    @Autowired private StatusHistory statusHistory;
 
-    @Value("${com.riz.exercise.application.email.sender}")
-    private String emailSender;
-    @Value("${com.riz.exercise.application.email.subject}")
-    private String emailSubject;
     @Value("${com.riz.exercise.application.serviceEndPointUrl}")
     private String serviceEndPointUrl;
+    @Value("${com.riz.exercise.application.journal.batchSize:1000}")
+    private int journalBatchSize = 1000;
+    @Value("${com.riz.exercise.application.cluster.notificationShards:1}")
+    private int notificationShards = 1;
 
-    RestTemplate restTemplate = new RestTemplate();
+    static final String JOURNAL_CONSUMER = "notifier";
+    // The journal consumer names of the notification shards, for any number of shards
+    private static final Pattern SHARD_CONSUMER = Pattern.compile(JOURNAL_CONSUMER + "(-\\d+-of-\\d+)?");
+    static final String POLL_LOCK = "notifier-poll";
+    static final String NOTIFICATION_LOCK = "notifier-notify";
+    static final String HISTORY_CONSUMER = "history";
+    static final String HISTORY_LOCK = "notifier-history";
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
 
 
     /**
-     * Main method.
+     * Main method. Safe to run on several nodes at once: only the node holding the poll lease runs steps 1 and 2, and
+     * each shard of subscribers is notified by one node only (see {@link JobLockService}).
      *
-     * 1. Fetch SFDC server instances from local store
-     * 2. Fetch SFDC server instances remotely via REST api call
-     * 3. Update local store server instances with those fetched remotely and determine the delta
+     * 1. Fetch SFDC server instances remotely via REST api call, diffing each against the locally stored server
+     *    instances as it is read. Skip to step 3 if the remote payload hasn't changed since the last poll
+     * 2. Journal the delta and bulk write it to the local store
+     * 3. Read the status changes journaled since the last processed one
      * 4. Find the corresponding subscribers for those server instances with changed statuses
-     * 5. Notify via email these subscribers with the statuses of the changed server instances
+     * 5. Enqueue a notification to each of these subscribers of the statuses of the changed server instances in the
+     *    durable {@link NotificationOutbox}, for each of their channels, which coalesces emails into digests if so
+     *    configured and relays them to the {@link EmailDispatcher} and the {@link WebhookDispatcher} (or, with the
+     *    outbox disabled, queue an email straight away by way of the {@link DigestCoalescer}, and a post to each of
+     *    their webhooks)
+     * 6. Record the status changes journaled since the last recorded one in the {@link StatusHistory}, on one node
+     *
+     * The time taken by each stage is recorded in a <code>timer.notifier.stage.*</code> metric, and that of the whole
+     * run in <code>timer.notifier.execute</code>.
+     *
+     * Stages run one after the other unless the {@link PipelineExecutor} is concurrent, in which case the local
+     * instances are read while the remote ones are requested, notification shards are processed side by side, and each
+     * batch's emails are composed and queued by several workers.
      */
     @Scheduled(cron = "${com.riz.exercise.application.scheduler.cron}")
     public void execute() {
+        timed("timer.notifier.execute", () -> {
+            doExecute();
+            return null;
+        });
+    }
+
+    private void doExecute() {
         logger.info("Job started");
-        Map<String, SFDCServerInstance> savedServerInstancesMap = getExistingServerInstances();
-        List<SFDCServerInstance> currentServerInstances = getCurrentServerInstances(serviceEndPointUrl);
-        List<SFDCServerInstance> updatedServerInstances = upsertChangedInstances(currentServerInstances, savedServerInstancesMap);
-        Multimap<Subscriber, SFDCServerInstance> subscriberServerMap = getSubscriberServerMap(updatedServerInstances);
-        sendEmails(subscriberServerMap);
+        // The poll lease is renewed, not released, so the same node keeps polling from one run to the next
+        JobLease pollLease = jobLockService.tryAcquire(POLL_LOCK);
+        if (pollLease != null) {
+            poll(pollLease);
+        } else {
+            // Its writes reach this node's server instance cache through the cache's version check
+            logger.info("Another node is polling");
+        }
+        // Even when nothing changed remotely, there may be changes left unprocessed by a previous run
+        processJournal();
+        if (statusHistory.isEnabled()) {
+            recordHistory();
+        }
         logger.info("Job completed");
     }
 
-    /**
-     * Fetches all server instances previously stored in the data store
-     *
-     * @return A Map; key = Server Instance name (e.g.: <code>NA16</code>), value = <code>SFDCServerInstance</code>
-     *         object
-     */
-    private Map<String, SFDCServerInstance> getExistingServerInstances() {
-        List<SFDCServerInstance> serverInstances = serverInstanceRepository.findAll();
-        logger.info("Fetched {} instances from local repository", serverInstances.size());
-        return Maps.uniqueIndex(serverInstances, si -> si.getKey());
+    private void poll(JobLease lease) {
+        if (lease.isTakeover()) {
+            // Another node may have polled and written since this node last did
+            serverInstanceDiffEngine.reload();
+            trustApiClient.reset();
+            statusSources.reset();
+        }
+        List<StatusSource> sources = new ArrayList<>();
+        sources.add(new TrustInstancesSource(trustApiClient, serviceEndPointUrl));
+        sources.addAll(statusSources.due());
+
+        // The local instances are only read from the data store on first use, or after a reload. When concurrent, the
+        // remote requests are under way meanwhile and the first remote entry read waits for them.
+        Supplier<ServerInstanceDiffEngine.Session> localFetch = pipelineExecutor.fork(() -> timed("timer.notifier.stage.localFetch", serverInstanceDiffEngine::newSession));
+        List<SourcePoll> polls = sources.stream().map(source -> new SourcePoll(source, localFetch)).collect(Collectors.toList());
+        timed("timer.notifier.stage.remoteFetch", () -> {
+            pipelineExecutor.forEachFetch(polls, SourcePoll::run);
+            return null;
+        });
+        ServerInstanceDiffEngine.Session session = localFetch.get();
+
+        List<SourcePoll> modified = polls.stream().filter(SourcePoll::isModified).collect(Collectors.toList());
+        if (!modified.isEmpty()) {
+            counterService.increment("notifier.poll.modified");
+            modified.stream().forEach(SourcePoll::commit);
+            jobLockService.checkValid(lease);
+            // All sources are diffed, journaled and written together
+            ServerInstanceDiff diff = timed("timer.notifier.stage.diff", session::complete);
+            modified.stream().forEach(SourcePoll::acknowledge);
+            if (!diff.getRemoved().isEmpty()) {
+                logger.info("Decommissioned instances removed locally: {}", diff.getRemoved().stream().map(SFDCServerInstance::getKey).collect(Collectors.toList()));
+            }
+        } else {
+            // Nothing changed remotely since the last poll: the session is abandoned and nothing is written
+            logger.info("Remote instances unchanged");
+        }
     }
 
     /**
-     * Fetch all server instances from salesforce.com via their REST service
-     *
-     * @return An array of SFDCServerInstance objects as translated from the REST service's JSON
+     * A poll of one status source, feeding a part of the poll's diff session of its own
      */
-    private List<SFDCServerInstance> getCurrentServerInstances(String endPointUrl) {
-        SFDCServerInstance[] serverInstancesArray = restTemplate.getForObject(endPointUrl, SFDCServerInstance[].class);
-        logger.info("Fetched {} instances from remote call", serverInstancesArray.length);
-        return Arrays.asList(serverInstancesArray);
+    private class SourcePoll implements Consumer<SFDCServerInstance> {
+
+        private final StatusSource source;
+        private final Supplier<ServerInstanceDiffEngine.Session> localFetch;
+        private ServerInstanceDiffEngine.Part part;
+        private FetchResult result;
+
+        SourcePoll(StatusSource source, Supplier<ServerInstanceDiffEngine.Session> localFetch) {
+            this.source = source;
+            this.localFetch = localFetch;
+        }
+
+        @Override
+        public void accept(SFDCServerInstance entry) {
+            if (part == null) {
+                part = localFetch.get().newPart(source::owns);
+            }
+            part.accept(entry);
+        }
+
+        /**
+         * Fetches the source. A source that can't be fetched is left out of this poll, and doesn't hold back the others.
+         */
+        void run() {
+            try {
+                result = source.fetch(this);
+            } catch (RuntimeException e) {
+                counterService.increment("notifier.poll.failed");
+                logger.error("Could not poll status source {}", source.getName(), e);
+                return;
+            } finally {
+                if (!(source instanceof TrustInstancesSource)) {
+                    statusSources.polled(source);
+                }
+            }
+            if (result.isModified()) {
+                logger.info("Fetched {} entries from status source {}", result.getCount(), source.getName());
+            } else {
+                counterService.increment(result.getOutcome() == FetchResult.Outcome.NOT_MODIFIED
+                        ? "notifier.poll.skipped.notModified" : "notifier.poll.skipped.unchanged");
+                logger.info("Status source {} unchanged ({})", source.getName(), result.getOutcome());
+            }
+        }
+
+        boolean isModified() {
+            return result != null && result.isModified();
+        }
+
+        void commit() {
+            // A payload without any entries has nothing to commit: it removes nothing either
+            if (part != null) {
+                part.commit();
+            }
+        }
+
+        void acknowledge() {
+            source.acknowledge(result);
+        }
     }
 
     /**
-     * Compares the previously saved and current server instance lists. Updates those server instances whose statuses
-     * have changed. Also updates any server instances new in the current list that were not previously present in the
-     * existing list.
-     *
-     * @param remoteServerInstances The list of server instances as represented on salesforce.com via their REST service
-     * @param localServerInstancesMap The list of server instances from our saved datastore
-     * @return A list of server instances whose statuses have changed (doesn't include new server instances added)
+     * Notifies subscribers of all status changes journaled since the last one processed, for each shard of
+     * subscribers whose lease this node can acquire. Shards are tried in a random order so that the nodes of a cluster
+     * share them out, and their leases are released once done.
      */
-    private List<SFDCServerInstance> upsertChangedInstances(List<SFDCServerInstance> remoteServerInstances, Map<String, SFDCServerInstance> localServerInstancesMap) {
-        remoteServerInstances.stream().forEach(remoteInstance -> {
-            SFDCServerInstance localServerInstance = localServerInstancesMap.get(remoteInstance.getKey());
-            // Insert (No localServerInstance found)
-            if (localServerInstance == null) {
-                serverInstanceRepository.save(remoteInstance);
-                logger.debug("New instance:{} status:{} saved locally", remoteInstance.getKey(), remoteInstance.getStatus());
+    void processJournal() {
+        int first = ThreadLocalRandom.current().nextInt(notificationShards);
+        List<Integer> shards = new ArrayList<>();
+        for (int i = 0; i < notificationShards; i++) {
+            shards.add((first + i) % notificationShards);
+        }
+        pipelineExecutor.forEachShard(shards, shard -> {
+            JobLease lease = jobLockService.tryAcquire(NOTIFICATION_LOCK + "-" + shard);
+            if (lease == null) {
                 return;
             }
-            // Update (localServerInstance found)
-            if (!localServerInstance.equals(remoteInstance)) {
-                // Map the mongo id to indicate an existing record is to be updated
-                remoteInstance.id = localServerInstance.id;
-                serverInstanceRepository.save(remoteInstance);
-                logger.debug("Updated instance: {} status from {} to {}", remoteInstance.getKey(), localServerInstance.getStatus(), remoteInstance.getStatus());
+            try {
+                processJournal(shard, lease);
+            } catch (LeaseLostException e) {
+                logger.warn("Stopped notifying shard {}: {}", shard, e.getMessage());
+            } finally {
+                jobLockService.release(lease);
             }
         });
+    }
+
+    /**
+     * Notifies the subscribers of one shard of all status changes journaled since the last one processed for the
+     * shard, a batch at a time, moving the shard's journal cursor forward after each batch. Several changes to the
+     * same server instance within a batch are notified once, with the latest status. The subscription index is
+     * refreshed before each batch is fanned out, so that subscribers saved through any node are notified.
+     * <p>
+     * Each batch is recorded before it is notified, and a batch left unfinished is read again, as the same batch,
+     * before any event appended since: the outbox then recognises the notifications it already holds for it.
+     */
+    private void processJournal(int shard, JobLease lease) {
+        String consumer = journalConsumer(shard, notificationShards);
+        long cursor = resumeFrom(consumer);
+        List<StatusChangeEvent> events;
+        while (!(events = readBatch(consumer, cursor)).isEmpty()) {
+            Map<String, SFDCServerInstance> changedServerInstances = new LinkedHashMap<>();
+            Map<String, Long> detectedAt = new HashMap<>();
+            Map<String, String> statusBefore = new HashMap<>();
+            events.stream()
+                    .filter(NotifierJob::isNotified)
+                    .forEach(e -> {
+                        changedServerInstances.put(e.getKey(), e.toServerInstance());
+                        detectedAt.putIfAbsent(e.getKey(), e.getTimestamp().getTime());
+                        statusBefore.putIfAbsent(e.getKey(), e.getOldStatus());
+                    });
+
+            Multimap<Subscriber, SFDCServerInstance> subscriberServerMap = timed("timer.notifier.stage.fanOut", () -> {
+                // Subscribers may have been saved through other nodes since
+                subscriptionIndex.refresh();
+                return getSubscriberServerMap(new ArrayList<>(changedServerInstances.values()), shard);
+            });
+            jobLockService.checkValid(lease);
+            String batch = String.valueOf(events.get(events.size() - 1).getSequence());
+            timed("timer.notifier.stage.emailQueue", () -> {
+                sendNotifications(subscriberServerMap, detectedAt, statusBefore, batch);
+                return null;
+            });
 
-        List<SFDCServerInstance> updatedInstances = remoteServerInstances.stream().filter(si -> si.id != null).collect(Collectors.toList());
-        logger.info("{} local instances updated", updatedInstances.size());
-        return updatedInstances;
+            cursor = events.get(events.size() - 1).getSequence();
+            changeJournal.saveCursor(consumer, cursor);
+            logger.info("Processed journal up to event {} for {}: {} changed instances, {} subscribers notified", cursor, consumer, changedServerInstances.size(), subscriberServerMap.keySet().size());
+        }
+    }
+
+    /**
+     * @return The journal consumer name of a shard, for a number of shards
+     */
+    static String journalConsumer(int shard, int shards) {
+        return shards == 1 ? JOURNAL_CONSUMER : JOURNAL_CONSUMER + "-" + shard + "-of-" + shards;
+    }
+
+    /**
+     * Where a shard resumes reading the journal from: its own cursor, unless the number of shards changed since the
+     * cursors of another sharding were saved. Every subscriber was then notified up to the slowest of those retired
+     * cursors, and the shard starts from there if its own cursor (new, or left from an earlier time with this many
+     * shards) is behind it. The retired cursors are deleted once every shard has a cursor of its own.
+     */
+    private long resumeFrom(String consumer) {
+        Map<String, Long> cursors = changeJournal.getCursors();
+        long cursor = cursors.getOrDefault(consumer, 0L);
+        Set<String> current = IntStream.range(0, notificationShards)
+                .mapToObj(shard -> journalConsumer(shard, notificationShards))
+                .collect(Collectors.toSet());
+        Map<String, Long> retired = cursors.entrySet().stream()
+                .filter(c -> SHARD_CONSUMER.matcher(c.getKey()).matches() && !current.contains(c.getKey()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        if (retired.isEmpty()) {
+            return cursor;
+        }
+        long resharded = Math.max(cursor, Collections.min(retired.values()));
+        changeJournal.saveCursor(consumer, resharded);
+        cursors.put(consumer, resharded);
+        logger.info("Notification shards changed to {}: {} resumes from event {}", notificationShards, consumer, resharded);
+        if (cursors.keySet().containsAll(current)) {
+            retired.keySet().forEach(changeJournal::deleteCursor);
+            logger.info("Retired the journal cursors of {}", retired.keySet());
+        }
+        return resharded;
+    }
+
+    /**
+     * @return The events of the batch the consumer last started, if it stopped before moving its cursor past them,
+     *         otherwise the next batch of events, recorded before it is returned
+     */
+    private List<StatusChangeEvent> readBatch(String consumer, long cursor) {
+        Range<Long> unfinished = changeJournal.getBatch(consumer);
+        if (unfinished != null && unfinished.upperEndpoint() > cursor) {
+            List<StatusChangeEvent> events = changeJournal.readAfter(cursor, (int) (unfinished.upperEndpoint() - cursor)).stream()
+                    .filter(e -> unfinished.contains(e.getSequence()))
+                    .collect(Collectors.toList());
+            if (!events.isEmpty()) {
+                logger.info("Resuming unfinished batch of events {} to {} for {}", unfinished.lowerEndpoint(), unfinished.upperEndpoint(), consumer);
+                return events;
+            }
+        }
+        List<StatusChangeEvent> events = changeJournal.readAfter(cursor, journalBatchSize);
+        if (!events.isEmpty()) {
+            changeJournal.saveBatch(consumer, events.get(0).getSequence(), events.get(events.size() - 1).getSequence());
+        }
+        return events;
+    }
+
+    /**
+     * Records all status changes journaled since the last one recorded in the status history, unless another node
+     * holds the history lease
+     */
+    void recordHistory() {
+        JobLease lease = jobLockService.tryAcquire(HISTORY_LOCK);
+        if (lease == null) {
+            return;
+        }
+        try {
+            long cursor = changeJournal.getCursor(HISTORY_CONSUMER);
+            List<StatusChangeEvent> events;
+            while (!(events = changeJournal.readAfter(cursor, journalBatchSize)).isEmpty()) {
+                jobLockService.checkValid(lease);
+                List<StatusChangeEvent> batch = events;
+                timed("timer.notifier.stage.history", () -> {
+                    statusHistory.record(batch);
+                    return null;
+                });
+                cursor = events.get(events.size() - 1).getSequence();
+                changeJournal.saveCursor(HISTORY_CONSUMER, cursor);
+            }
+        } catch (LeaseLostException e) {
+            logger.warn("Stopped recording status history: {}", e.getMessage());
+        } finally {
+            jobLockService.release(lease);
+        }
+    }
+
+    /**
+     * Runs a stage of the job, recording how long it took in a timer metric, whether it succeeds or not
+     */
+    private <T> T timed(String metric, Supplier<T> stage) {
+        long start = System.currentTimeMillis();
+        try {
+            return stage.get();
+        } finally {
+            gaugeService.submit(metric, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * @return The notification shard (0 to <code>shards - 1</code>) a subscriber belongs to
+     */
+    static int shardOf(Subscriber subscriber, int shards) {
+        return Math.floorMod(Hashing.murmur3_32().hashString(subscriber.getId(), StandardCharsets.UTF_8).asInt(), shards);
+    }
+
+    /**
+     * @return true for status changes, and for entries appearing in a status source other than the Trust api's
+     *         instances (e.g.: a new incident). New server instances are not news, nor are the entries
+     *         {@link StatusChangeEvent.Type#LISTED listed} by the first poll of a source.
+     */
+    static boolean isNotified(StatusChangeEvent event) {
+        return event.getType() == StatusChangeEvent.Type.CHANGED
+                || (event.getType() == StatusChangeEvent.Type.INSERTED && StatusSources.sourceOf(event.getKey()) != null);
     }
 
     /**
      * Gets a map relating users/subscribers with the server instances that have changes.
      * <p>
-     * For each server instance name, our local datastore is looked up and for all the users subscribing to that
-     * specific server instance name.
+     * A changed server instance is subscribed to by its name or, for an entry of a status source other than the Trust
+     * api's instances, by all of the source's entries (e.g.: <code>incidents:*</code>). The subscribers to notify are
+     * looked up in the in-memory subscription index as the union of the bitmaps of these subscriptions, and each of
+     * them is then listed the changed server instances its own subscriptions match. This costs a few hash lookups per
+     * subscriber notified, rather than a pass over a table the size of all subscribers.
      *
      * @param serverInstances
+     * @param shard Notification shard: only the subscribers in this shard are included
      * @return A map; key = <code>Subscriber</code>, value = <code>List<SFDCServerInstance></code> server instances,
      *         subscribed by the user, whose statuses have changed
      */
-    private Multimap<Subscriber, SFDCServerInstance> getSubscriberServerMap(List<SFDCServerInstance> serverInstances) {
-        Multimap<Subscriber, SFDCServerInstance> subscriberServerMap = ArrayListMultimap.create();
-        serverInstances.stream().forEach(si -> {
-            List<Subscriber> subscribers = subscriberRepository.findByServers(si.getKey());
-            subscribers.stream().forEach(s -> subscriberServerMap.put(s, si));
-        });
+    private Multimap<Subscriber, SFDCServerInstance> getSubscriberServerMap(List<SFDCServerInstance> serverInstances, int shard) {
+        // The indexes of the changed server instances matched by each subscription
+        Map<String, RoaringBitmap> changedBySubscription = new HashMap<>();
+        for (int i = 0; i < serverInstances.size(); i++) {
+            String key = serverInstances.get(i).getKey();
+            changedBySubscription.computeIfAbsent(key, k -> new RoaringBitmap()).add(i);
+            String source = StatusSources.sourceOf(key);
+            if (source != null) {
+                changedBySubscription.computeIfAbsent(source + StatusSource.KEY_SEPARATOR + StatusSources.ALL_ENTRIES, k -> new RoaringBitmap()).add(i);
+            }
+        }
+        List<Subscriber> subscribers = subscriptionIndex.getSubscribers(subscriptionIndex.getSubscriberOrdinals(changedBySubscription.keySet()));
+
+        Multimap<Subscriber, SFDCServerInstance> subscriberServerMap = ArrayListMultimap.create(subscribers.size(), 1);
+        for (Subscriber subscriber : subscribers) {
+            if (notificationShards > 1 && shardOf(subscriber, notificationShards) != shard) {
+                continue;
+            }
+            RoaringBitmap changed = null;
+            for (String server : subscriber.getServers()) {
+                RoaringBitmap matched = changedBySubscription.get(server);
+                if (matched != null) {
+                    // Ordered by changed server instance, each listed once however many subscriptions match it
+                    changed = changed == null ? matched : RoaringBitmap.or(changed, matched);
+                }
+            }
+            if (changed != null) {
+                changed.forEach((int i) -> subscriberServerMap.put(subscriber, serverInstances.get(i)));
+            }
+        }
         return subscriberServerMap;
     }
 
     /**
-     * Generates and sends and email to each user who has subscribed to one or more server instances whose status has
-     * changed
+     * Enqueues a notification in the {@link NotificationOutbox} for each user who has subscribed to one or more server
+     * instances whose status has changed. The batch is enqueued at most once per subscriber and channel, however often
+     * it is processed.
+     * <p>
+     * With the outbox disabled, generates and queues an email to each of them instead, by way of the
+     * {@link DigestCoalescer}, and a post to each of the webhooks of those notified through webhooks. Emails are sent
+     * asynchronously by the {@link EmailDispatcher}, and webhooks posted by the {@link WebhookDispatcher}; this returns
+     * once those not held back in a digest are all queued.
      *
      * @param subscriberServerMap A map; key = <code>Subscriber</code>, value = <code>List<SFDCServerInstance></code>
      *        server instances subscribed by the user, whose statuses have changed
+     * @param detectedAt When the status change of each server instance was detected (epoch millis), by key
+     * @param statusBefore The status of each server instance before it changed, by key
+     * @param batch Identifies the batch of journaled changes: the sequence of its last event
      */
-    private void sendEmails(Multimap<Subscriber, SFDCServerInstance> subscriberServerMap) {
-        subscriberServerMap.keySet().stream().forEach(subscriber -> sendEmail(subscriber, subscriberServerMap.get(subscriber)));
+    private void sendNotifications(Multimap<Subscriber, SFDCServerInstance> subscriberServerMap, Map<String, Long> detectedAt,
+                                   Map<String, String> statusBefore, String batch) {
+        if (notificationOutbox.isEnabled()) {
+            pipelineExecutor.forEach(subscriberServerMap.keySet(), subscriber ->
+                    notificationOutbox.enqueue(subscriber, subscriberServerMap.get(subscriber), statusBefore, detectedAt, batch));
+            return;
+        }
+        pipelineExecutor.forEach(subscriberServerMap.keySet(), subscriber -> {
+            Set<Subscriber.Channel> channels = subscriber.deliveryChannels();
+            if (channels.contains(Subscriber.Channel.EMAIL)) {
+                digestCoalescer.offer(subscriber, subscriberServerMap.get(subscriber), statusBefore, detectedAt, this::sendEmail);
+            }
+            if (channels.contains(Subscriber.Channel.WEBHOOK)) {
+                postWebhooks(subscriber, subscriberServerMap.get(subscriber), detectedAt);
+            }
+        });
     }
 
     /**
-     * Generates and sends an email to the user's email id listing those server instances who statuses have changed
-     * and what their current status is.
-     * <p>
-     * @see #sendEmails(Multimap)
+     * Queues a post to each of the user's webhooks listing those server instances whose statuses have changed and what
+     * their current status is
      *
-     * @param subscriber The user who the email should be sent to
+     * @param subscriber The user whose webhooks should be posted to
      * @param servers The server instances this user subscribes to whose statuses have changed
+     * @param detectedAt When the status change of each server instance was detected (epoch millis), by key
      */
-    private void sendEmail(Subscriber subscriber, Collection<SFDCServerInstance> servers) {
-        MimeMessage mail = javaMailSender.createMimeMessage();
-        String subscriberFullName = subscriber.getFirstname() + " " + subscriber.getLastname();
-        String emailMessageText = "";
+    private void postWebhooks(Subscriber subscriber, Collection<SFDCServerInstance> servers, Map<String, Long> detectedAt) {
+        long earliest = servers.stream().mapToLong(si -> detectedAt.getOrDefault(si.getKey(), 0L)).filter(t -> t > 0).min().orElse(0);
+        WebhookNotification notification = new WebhookNotification(null, subscriber.getId(), new ArrayList<>(servers), earliest);
         try {
-            MimeMessageHelper helper = new MimeMessageHelper(mail, true);
-            helper.setReplyTo(emailSender);
-            helper.setFrom(emailSender);
-            helper.setSubject(emailSubject);
-            helper.setTo(subscriber.getEmail());
-
-            emailMessageText = generateEmailMessage(subscriberFullName, servers);
-            helper.setText(emailMessageText);
-        } catch (MessagingException e) {
-            e.printStackTrace();
-        } finally {
-            logger.debug("Sending email message to '{}'<{}>:\n{}", subscriberFullName, subscriber.getEmail(), emailMessageText);
-            javaMailSender.send(mail);
+            for (String url : new LinkedHashSet<>(subscriber.getWebhooks())) {
+                webhookDispatcher.submit(url, notification);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while queueing webhook notifications to subscriber {}", subscriber.getId());
         }
     }
 
     /**
-     * Helper method to return the email message string for a given user and all the server instance names that user
-     * should be informed about
+     * Generates and queues an email to the user's email id listing those server instances who statuses have changed
+     * and what their current status is. An email that can't be composed (e.g.: for an invalid address) is dropped.
+     * <p>
+     * @see #sendNotifications(Multimap, Map, Map, String)
      *
-     * @param name Full user name
-     * @param servers A collection of server instances
-     * @return String representing the email message body
+     * @param subscriber The user who the email should be sent to
+     * @param servers The server instances this user subscribes to whose statuses have changed
+     * @param detectedAt When the earliest of these status changes was detected (epoch millis), or 0 if unknown
      */
-    private String generateEmailMessage(String name, Collection<SFDCServerInstance> servers) {
-        List<String> messages = new ArrayList<String>() {{
-            add("Hello " + name + ",");
-            add("");
-            add("There has been a change of status in " + servers.size() + " SFDC server instances you are subscribing to.");
-            add("");
-            add("Here are the current statuses of those servers that have changed:");
-            add("");
-            servers.stream().forEach(s -> add(s.getKey() + " -> " + s.getStatus()));
-            add("");
-            add("Thank you.");
-        }};
-
-        return Joiner.on("\r\n").join(messages);
+    private void sendEmail(Subscriber subscriber, Collection<SFDCServerInstance> servers, long detectedAt) {
+        String subscriberFullName = subscriber.getFirstname() + " " + subscriber.getLastname();
+        MimeMessage mail;
+        try {
+            mail = emailComposer.compose(subscriberFullName, subscriber.getEmail(), servers, null);
+        } catch (MessagingException e) {
+            counterService.increment("email.dropped");
+            logger.error("Could not compose email message to <{}>", subscriber.getEmail(), e);
+            return;
+        }
+        logger.debug("Queueing email message to '{}'<{}> about {}", subscriberFullName, subscriber.getEmail(), servers.stream().map(SFDCServerInstance::getKey).collect(Collectors.toList()));
+        try {
+            emailDispatcher.submit(mail, detectedAt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while queueing email message to <{}>", subscriber.getEmail());
+        }
     }
 }
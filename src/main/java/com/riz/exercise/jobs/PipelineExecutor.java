@@ -0,0 +1,159 @@
+package com.riz.exercise.jobs;
+
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs the stages of the {@link NotifierJob} pipeline, either one after the other on the job's scheduler thread (the
+ * default), or, with <code>pipeline.concurrent</code> set, concurrently on two bounded pools of
+ * <code>pipeline.parallelism</code> threads each:
+ * <ul>
+ *     <li>shards, for independent units of work that fan out in turn (e.g.: notification shards)</li>
+ *     <li>workers, for everything else; work submitted to them never waits on other work submitted to them</li>
+ * </ul>
+ * Either way each method returns only once the work it was handed is done, and rethrows the first exception it threw.
+ * <p>
+ * Fetches from remote services spend their time waiting, and always run side by side on a pool of their own, whatever
+ * the mode.
+ */
+@Component
+public class PipelineExecutor {
+
+    @Value("${com.riz.exercise.application.pipeline.concurrent:false}")
+    private boolean concurrent = false;
+    @Value("${com.riz.exercise.application.pipeline.parallelism:8}")
+    private int parallelism = 8;
+
+    private ExecutorService shardPool;
+    private ExecutorService workerPool;
+    private ExecutorService fetchPool;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @PostConstruct
+    public void start() {
+        fetchPool = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setNameFormat("notifier-fetch-%d").setDaemon(true).build());
+        if (concurrent) {
+            shardPool = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setNameFormat("notifier-shard-%d").setDaemon(true).build());
+            workerPool = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder().setNameFormat("notifier-worker-%d").setDaemon(true).build());
+            logger.info("Notifier pipeline runs concurrently, {} threads wide", parallelism);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        fetchPool.shutdownNow();
+        if (concurrent) {
+            shardPool.shutdownNow();
+            workerPool.shutdownNow();
+        }
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Starts a stage on a worker, so the caller can get on with another stage in the meantime. Runs it straight away
+     * when not concurrent.
+     *
+     * @return Waits for the stage to complete and returns its result, or rethrows its exception
+     */
+    public <T> Supplier<T> fork(Supplier<T> stage) {
+        if (!concurrent) {
+            T result = stage.get();
+            return () -> result;
+        }
+        CompletableFuture<T> future = CompletableFuture.supplyAsync(stage, workerPool);
+        return () -> join(future);
+    }
+
+    /**
+     * Runs an action for each of the given items, split into at most <code>parallelism</code> runs of consecutive
+     * items each run by a worker
+     */
+    public <T> void forEach(Collection<T> items, Consumer<T> action) {
+        if (!concurrent || items.size() <= 1) {
+            items.stream().forEach(action);
+            return;
+        }
+        int runSize = (items.size() + parallelism - 1) / parallelism;
+        List<CompletableFuture<Void>> runs = new ArrayList<>();
+        for (List<T> run : Iterables.partition(items, runSize)) {
+            runs.add(CompletableFuture.runAsync(() -> run.stream().forEach(action), workerPool));
+        }
+        joinAll(runs);
+    }
+
+    /**
+     * Runs an action for each of the given shards, each on a shard thread of its own as far as there are enough
+     */
+    public <T> void forEachShard(Collection<T> shards, Consumer<T> action) {
+        if (!concurrent || shards.size() <= 1) {
+            shards.stream().forEach(action);
+            return;
+        }
+        List<CompletableFuture<Void>> runs = new ArrayList<>();
+        shards.stream().forEach(shard -> runs.add(CompletableFuture.runAsync(() -> action.accept(shard), shardPool)));
+        joinAll(runs);
+    }
+
+    /**
+     * Runs a fetch for each of the given remote sources, side by side
+     */
+    public <T> void forEachFetch(Collection<T> sources, Consumer<T> fetch) {
+        if (sources.size() <= 1) {
+            sources.stream().forEach(fetch);
+            return;
+        }
+        List<CompletableFuture<Void>> runs = new ArrayList<>();
+        sources.stream().forEach(source -> runs.add(CompletableFuture.runAsync(() -> fetch.accept(source), fetchPool)));
+        joinAll(runs);
+    }
+
+    private static void joinAll(List<CompletableFuture<Void>> futures) {
+        RuntimeException first = null;
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                join(future);
+            } catch (RuntimeException e) {
+                if (first == null) {
+                    first = e;
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
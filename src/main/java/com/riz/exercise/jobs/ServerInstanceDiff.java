@@ -0,0 +1,59 @@
+package com.riz.exercise.jobs;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.riz.exercise.model.SFDCServerInstance;
+
+import java.util.List;
+
+/**
+ * The outcome of comparing the server instances fetched remotely against those previously stored locally.
+ *
+ * @see ServerInstanceDiffEngine
+ */
+public class ServerInstanceDiff {
+
+    private final List<SFDCServerInstance> inserted;
+    private final List<SFDCServerInstance> changed;
+    private final List<SFDCServerInstance> removed;
+
+    public ServerInstanceDiff(List<SFDCServerInstance> inserted, List<SFDCServerInstance> changed, List<SFDCServerInstance> removed) {
+        this.inserted = ImmutableList.copyOf(inserted);
+        this.changed = ImmutableList.copyOf(changed);
+        this.removed = ImmutableList.copyOf(removed);
+    }
+
+    /**
+     * @return Server instances not previously stored locally
+     */
+    public List<SFDCServerInstance> getInserted() {
+        return inserted;
+    }
+
+    /**
+     * @return Server instances whose status differs from the one stored locally
+     */
+    public List<SFDCServerInstance> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return Server instances stored locally that are no longer reported remotely, i.e.: decommissioned
+     */
+    public List<SFDCServerInstance> getRemoved() {
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return inserted.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this.getClass())
+                        .add("inserted", this.inserted.size())
+                        .add("changed", this.changed.size())
+                        .add("removed", this.removed.size())
+                        .toString();
+    }
+}
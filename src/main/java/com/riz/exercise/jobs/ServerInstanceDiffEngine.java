@@ -0,0 +1,240 @@
+package com.riz.exercise.jobs;
+
+import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.model.StatusChangeEvent;
+import com.riz.exercise.persistence.ChangeJournal;
+import com.riz.exercise.persistence.ServerInstanceCache;
+import com.riz.exercise.persistence.ServerInstanceRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Compares the server instances fetched remotely against those stored locally, keyed by
+ * {@link SFDCServerInstance#getKey()}, and writes the differences back to the data store in a single bulk write.
+ * <p>
+ * Local server instances are read from the {@link ServerInstanceCache}, which the bulk write goes through, so that a
+ * poll does not reload the whole collection.
+ * <p>
+ * Every insert, status change and removal is appended to the {@link ChangeJournal} before it is written to the
+ * <code>serverInstances</code> collection. Should the job crash in between, the next poll diffs against the unchanged
+ * collection and journals the same changes again: consumers may see an event twice, but never miss one.
+ */
+@Component
+public class ServerInstanceDiffEngine {
+
+    @Autowired private ServerInstanceRepository serverInstanceRepository;
+    @Autowired private ServerInstanceCache serverInstanceCache;
+    @Autowired private ChangeJournal changeJournal;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Diffs the remote server instances against the local ones and bulk writes all inserts, updates and removals to
+     * the data store.
+     *
+     * @param remoteServerInstances The server instances as represented on salesforce.com via their REST service
+     * @return The inserted, changed and removed server instances
+     */
+    public ServerInstanceDiff apply(Collection<SFDCServerInstance> remoteServerInstances) {
+        Session session = newSession();
+        remoteServerInstances.stream().forEach(session);
+        return session.complete();
+    }
+
+    /**
+     * Starts an incremental diff. Remote server instances are compared against the local ones one at a time as they
+     * are handed to the session, so the remote payload never needs to be held in memory as a whole. Nothing is written
+     * until {@link Session#complete()}; an abandoned session leaves the data store untouched.
+     */
+    public Session newSession() {
+        return new Session(serverInstanceCache.getAll());
+    }
+
+    /**
+     * Discards the cached local server instances so that they are reloaded from the data store on next use
+     */
+    public void reload() {
+        serverInstanceCache.invalidateAll();
+    }
+
+    /**
+     * @return Number of local server instances cached, 0 until they are first loaded
+     */
+    public int size() {
+        return (int) serverInstanceCache.size();
+    }
+
+    /**
+     * Writes the outcome of a session, through the cache
+     */
+    private synchronized ServerInstanceDiff complete(Session session) {
+        Map<String, SFDCServerInstance> localServerInstancesMap = session.localServerInstancesMap;
+        List<Part> parts = session.committedParts();
+
+        List<SFDCServerInstance> inserted = new ArrayList<>();
+        List<SFDCServerInstance> changed = new ArrayList<>();
+        List<SFDCServerInstance> upserts = new ArrayList<>();
+        List<SFDCServerInstance> removed = new ArrayList<>();
+        parts.stream().forEach(part -> {
+            inserted.addAll(part.inserted);
+            changed.addAll(part.changed);
+            upserts.addAll(part.upserts);
+            // An empty payload is far more likely a remote hiccup than every instance being decommissioned at once
+            if (!part.remoteKeys.isEmpty()) {
+                localServerInstancesMap.values().stream()
+                        .filter(si -> part.scope.test(si.getKey()) && !part.remoteKeys.contains(si.getKey()))
+                        .forEach(removed::add);
+            }
+        });
+
+        Date now = new Date();
+        List<StatusChangeEvent> events = new ArrayList<>();
+        parts.stream().forEach(part -> {
+            StatusChangeEvent.Type type = part.isFirstListing() ? StatusChangeEvent.Type.LISTED : StatusChangeEvent.Type.INSERTED;
+            part.inserted.stream().forEach(si -> events.add(new StatusChangeEvent(type, si.getKey(), null, si.getStatus(), si.getReleaseVersion(), now)));
+        });
+        changed.stream().forEach(si -> events.add(new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, si.getKey(),
+                localServerInstancesMap.get(si.getKey()).getStatus(), si.getStatus(), si.getReleaseVersion(), now)));
+        removed.stream().forEach(si -> events.add(new StatusChangeEvent(StatusChangeEvent.Type.REMOVED, si.getKey(), si.getStatus(), null, si.getReleaseVersion(), now)));
+        changeJournal.append(events);
+
+        List<String> removedKeys = new ArrayList<>();
+        removed.stream().forEach(si -> removedKeys.add(si.getKey()));
+        serverInstanceRepository.bulkUpsertByKey(upserts, removedKeys);
+
+        ServerInstanceDiff diff = new ServerInstanceDiff(inserted, changed, removed);
+        logger.info("Local instances diffed: {}", diff);
+        return diff;
+    }
+
+    private static boolean isIdentical(SFDCServerInstance a, SFDCServerInstance b) {
+        return a.equals(b)
+                && Objects.equals(a.getLocation(), b.getLocation())
+                && Objects.equals(a.getEnvironment(), b.getEnvironment())
+                && Objects.equals(a.getReleaseVersion(), b.getReleaseVersion());
+    }
+
+    /**
+     * An incremental diff of remote server instances against the local ones, as cached when the session started.
+     * <p>
+     * Remote server instances handed to the session itself are diffed against all local ones. Those fetched from
+     * several sources are each handed to a {@link Part} of their own, scoped to the keys of their source, so that the
+     * sources can be read concurrently and a source that turns out unchanged can be left out.
+     *
+     * @see #newSession()
+     */
+    public class Session implements Consumer<SFDCServerInstance> {
+
+        private final Map<String, SFDCServerInstance> localServerInstancesMap;
+        private final Part all;
+        private final List<Part> parts = new ArrayList<>();
+
+        private Session(Map<String, SFDCServerInstance> localServerInstancesMap) {
+            this.localServerInstancesMap = localServerInstancesMap;
+            this.all = new Part(this, key -> true);
+        }
+
+        /**
+         * Compares a single remote server instance against the local ones
+         */
+        @Override
+        public void accept(SFDCServerInstance remoteInstance) {
+            all.accept(remoteInstance);
+        }
+
+        /**
+         * Starts a part of the session for the server instances of one source, each of which is to be handed to the
+         * part. Nothing the part saw is written unless it is {@link Part#commit() committed}.
+         *
+         * @param scope Tells the keys of the source's server instances: local ones in scope that the part doesn't see
+         *        are removed
+         */
+        public Part newPart(Predicate<String> scope) {
+            return new Part(this, scope);
+        }
+
+        /**
+         * Bulk writes all inserts, updates and removals seen by this session to the data store.
+         *
+         * @return The inserted, changed and removed server instances
+         */
+        public ServerInstanceDiff complete() {
+            return ServerInstanceDiffEngine.this.complete(this);
+        }
+
+        private synchronized void commit(Part part) {
+            parts.add(part);
+        }
+
+        private synchronized List<Part> committedParts() {
+            List<Part> committed = new ArrayList<>(parts);
+            committed.add(all);
+            return committed;
+        }
+    }
+
+    /**
+     * The part of a {@link Session} diffing the server instances of one source. Parts of the same session may be
+     * handed server instances from different threads, but each part from one thread at a time.
+     */
+    public class Part implements Consumer<SFDCServerInstance> {
+
+        private final Session session;
+        private final Predicate<String> scope;
+        private final List<SFDCServerInstance> inserted = new ArrayList<>();
+        private final List<SFDCServerInstance> changed = new ArrayList<>();
+        private final List<SFDCServerInstance> upserts = new ArrayList<>();
+        private final Set<String> remoteKeys = new HashSet<>();
+
+        private Part(Session session, Predicate<String> scope) {
+            this.session = session;
+            this.scope = scope;
+        }
+
+        /**
+         * Compares a single remote server instance against the local ones
+         */
+        @Override
+        public void accept(SFDCServerInstance remoteInstance) {
+            remoteKeys.add(remoteInstance.getKey());
+            SFDCServerInstance localServerInstance = session.localServerInstancesMap.get(remoteInstance.getKey());
+            // Insert (No localServerInstance found)
+            if (localServerInstance == null) {
+                inserted.add(remoteInstance);
+                upserts.add(remoteInstance);
+                logger.debug("New instance:{} status:{}", remoteInstance.getKey(), remoteInstance.getStatus());
+                return;
+            }
+            // Update (localServerInstance found)
+            if (!localServerInstance.equals(remoteInstance)) {
+                changed.add(remoteInstance);
+                logger.debug("Updated instance: {} status from {} to {}", remoteInstance.getKey(), localServerInstance.getStatus(), remoteInstance.getStatus());
+            }
+            // Persist version/location changes too, they just aren't worth a notification
+            if (!isIdentical(localServerInstance, remoteInstance)) {
+                upserts.add(remoteInstance);
+            }
+        }
+
+        /**
+         * Includes what this part saw in the session's outcome
+         */
+        public void commit() {
+            session.commit(this);
+        }
+
+        /**
+         * @return true if none of the source's server instances were stored yet: this is the first poll of the source
+         *         that got any
+         */
+        boolean isFirstListing() {
+            return !inserted.isEmpty() && session.localServerInstancesMap.keySet().stream().noneMatch(scope);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.riz.exercise.metrics;
+
+import com.riz.exercise.jobs.ServerInstanceDiffEngine;
+import com.riz.exercise.notification.DomainThrottle;
+import com.riz.exercise.notification.EmailDispatcher;
+import com.riz.exercise.notification.NotificationOutbox;
+import com.riz.exercise.notification.WebhookDispatcher;
+import com.riz.exercise.persistence.SubscriptionIndex;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Point in time gauges of the notifier's in-memory state, and of the notification outbox, read whenever the
+ * <code>/metrics</code> endpoint is. The limits of each recipient domain are reported while it is backed off or has
+ * emails in flight, as <code>gauge.email.throttle.&lt;domain&gt;.*</code>. Webhook connections are reported as leased to
+ * a post, kept alive and available, and posts waiting for one, as <code>gauge.webhook.connections.*</code>.
+ */
+@Component
+public class NotifierPublicMetrics implements PublicMetrics {
+
+    @Autowired private ServerInstanceDiffEngine serverInstanceDiffEngine;
+    @Autowired private SubscriptionIndex subscriptionIndex;
+    @Autowired private EmailDispatcher emailDispatcher;
+    @Autowired private WebhookDispatcher webhookDispatcher;
+    @Autowired private NotificationOutbox notificationOutbox;
+    @Autowired private DomainThrottle domainThrottle;
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("gauge.notifier.instances", serverInstanceDiffEngine.size()));
+        metrics.add(new Metric<>("gauge.notifier.subscribers", subscriptionIndex.size()));
+        metrics.add(new Metric<>("gauge.email.queue.depth", emailDispatcher.getQueueDepth()));
+        metrics.add(new Metric<>("gauge.webhook.queue.depth", webhookDispatcher.getQueueDepth()));
+        PoolStats connections = webhookDispatcher.getConnectionStats();
+        metrics.add(new Metric<>("gauge.webhook.connections.leased", connections.getLeased()));
+        metrics.add(new Metric<>("gauge.webhook.connections.available", connections.getAvailable()));
+        metrics.add(new Metric<>("gauge.webhook.connections.pending", connections.getPending()));
+        if (notificationOutbox.isEnabled()) {
+            metrics.add(new Metric<>("gauge.outbox.depth", notificationOutbox.getDepth()));
+            metrics.add(new Metric<>("gauge.outbox.lagMillis", notificationOutbox.getLagMillis()));
+            metrics.add(new Metric<>("gauge.outbox.failed", notificationOutbox.getFailedCount()));
+        }
+        if (domainThrottle.isEnabled()) {
+            List<DomainThrottle.Limits> domains = domainThrottle.getLimits();
+            metrics.add(new Metric<>("gauge.email.throttle.domains", domains.size()));
+            metrics.add(new Metric<>("gauge.email.throttle.backedOff", domains.stream().filter(DomainThrottle.Limits::isBackedOff).count()));
+            domains.stream()
+                    .filter(limits -> limits.isBackedOff() || limits.getInFlight() > 0)
+                    .forEach(limits -> {
+                        String prefix = "gauge.email.throttle." + (limits.getDomain().isEmpty() ? "unknown" : limits.getDomain());
+                        metrics.add(new Metric<>(prefix + ".permitsPerSecond", limits.getPermitsPerSecond()));
+                        metrics.add(new Metric<>(prefix + ".concurrency", limits.getConcurrency()));
+                        metrics.add(new Metric<>(prefix + ".inFlight", limits.getInFlight()));
+                    });
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,55 @@
+package com.riz.exercise.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * A lease on a named job (e.g.: polling the Trust api) held by one node of the cluster until <code>expiresAt</code>.
+ * <code>token</code> is incremented on every acquisition, and serves as a fencing token.
+ */
+@Document(collection = "jobLocks")
+public class JobLock {
+
+    @Id
+    private String id;
+    private String owner;
+    private long token;
+    private Date expiresAt;
+
+    public JobLock() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public void setToken(long token) {
+        this.token = token;
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Date expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
@@ -0,0 +1,53 @@
+package com.riz.exercise.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A named position in the change journal: the sequence of the last event a consumer has processed, along with the
+ * batch of events it last started processing, or the last sequence allocated to an event
+ */
+@Document(collection = "journalCursors")
+public class JournalCursor {
+
+    @Id
+    private String id;
+    private long sequence;
+    private long batchFirst;
+    private long batchLast;
+
+    public JournalCursor() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public long getBatchFirst() {
+        return batchFirst;
+    }
+
+    public void setBatchFirst(long batchFirst) {
+        this.batchFirst = batchFirst;
+    }
+
+    public long getBatchLast() {
+        return batchLast;
+    }
+
+    public void setBatchLast(long batchLast) {
+        this.batchLast = batchLast;
+    }
+}
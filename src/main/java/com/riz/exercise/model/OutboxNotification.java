@@ -0,0 +1,255 @@
+package com.riz.exercise.model;
+
+import com.google.common.base.MoreObjects;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A notification to a subscriber held in the <code>notificationOutbox</code> collection until it is delivered: the
+ * server instances whose status changed, each with the status it had before, coalesced while the notification is
+ * pending.
+ * <p>
+ * A notification goes out through one channel: an email, or a post to one of the subscriber's webhooks, its
+ * <code>webhook</code>. Notifications enqueued before there were channels are emails.
+ * <p>
+ * Its id is its idempotency key: the subscriber's id and the journal position of the batch of changes that opened it,
+ * and for a webhook a hash of its url.
+ * The keys of all batches merged into it are kept in <code>batches</code>, so that a batch processed again (e.g.: after
+ * a crash before the journal cursor was saved) is recognized and not notified twice.
+ */
+@Document(collection = "notificationOutbox")
+public class OutboxNotification {
+
+    public enum Status { PENDING, SENDING, DELIVERED, FAILED }
+
+    @Id
+    private String id;
+    private String subscriberId;
+    private String name;
+    private String email;
+    private Subscriber.Channel channel = Subscriber.Channel.EMAIL;
+    private String webhook;
+    private List<Change> changes = new ArrayList<>();
+    private List<String> batches = new ArrayList<>();
+    private Status status;
+    private int attempts;
+    // Created, due for delivery (or its next attempt), claimed by a relay until, delivered
+    private Date createdAt;
+    private Date dueAt;
+    private Date claimedUntil;
+    private Date deliveredAt;
+    private String lastError;
+    // Incremented on every write, so that a merge into a notification a relay has meanwhile claimed is detected
+    private long version;
+
+    public OutboxNotification() {
+    }
+
+    /**
+     * @return The changes that are still changes: those of server instances not back to their status before
+     */
+    public List<SFDCServerInstance> changedServers() {
+        return changes.stream()
+                .filter(c -> c.getStatusBefore() == null || !c.getStatusBefore().equals(c.getServer().getStatus()))
+                .map(Change::getServer)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return When the earliest of the changes still notified was detected (epoch millis), or 0 if unknown
+     */
+    public long detectedAt() {
+        return changes.stream()
+                .filter(c -> c.getStatusBefore() == null || !c.getStatusBefore().equals(c.getServer().getStatus()))
+                .mapToLong(Change::getDetectedAt).filter(t -> t > 0).min().orElse(0);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getSubscriberId() {
+        return subscriberId;
+    }
+
+    public void setSubscriberId(String subscriberId) {
+        this.subscriberId = subscriberId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public Subscriber.Channel getChannel() {
+        return channel;
+    }
+
+    public void setChannel(Subscriber.Channel channel) {
+        this.channel = channel;
+    }
+
+    public String getWebhook() {
+        return webhook;
+    }
+
+    public void setWebhook(String webhook) {
+        this.webhook = webhook;
+    }
+
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    public void setChanges(List<Change> changes) {
+        this.changes = changes;
+    }
+
+    public List<String> getBatches() {
+        return batches;
+    }
+
+    public void setBatches(List<String> batches) {
+        this.batches = batches;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Date createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Date getDueAt() {
+        return dueAt;
+    }
+
+    public void setDueAt(Date dueAt) {
+        this.dueAt = dueAt;
+    }
+
+    public Date getClaimedUntil() {
+        return claimedUntil;
+    }
+
+    public void setClaimedUntil(Date claimedUntil) {
+        this.claimedUntil = claimedUntil;
+    }
+
+    public Date getDeliveredAt() {
+        return deliveredAt;
+    }
+
+    public void setDeliveredAt(Date deliveredAt) {
+        this.deliveredAt = deliveredAt;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("id", id)
+                .add("email", email)
+                .add("channel", channel)
+                .add("webhook", webhook)
+                .add("changes", changes.size())
+                .add("status", status)
+                .add("attempts", attempts)
+                .toString();
+    }
+
+    /**
+     * A server instance whose status changed: its status before the first change notified, and its latest
+     */
+    public static class Change {
+
+        private String statusBefore;
+        private SFDCServerInstance server;
+        private long detectedAt;
+
+        public Change() {
+        }
+
+        public Change(String statusBefore, SFDCServerInstance server, long detectedAt) {
+            this.statusBefore = statusBefore;
+            this.server = server;
+            this.detectedAt = detectedAt;
+        }
+
+        public String getStatusBefore() {
+            return statusBefore;
+        }
+
+        public void setStatusBefore(String statusBefore) {
+            this.statusBefore = statusBefore;
+        }
+
+        public SFDCServerInstance getServer() {
+            return server;
+        }
+
+        public void setServer(SFDCServerInstance server) {
+            this.server = server;
+        }
+
+        public long getDetectedAt() {
+            return detectedAt;
+        }
+
+        public void setDetectedAt(long detectedAt) {
+            this.detectedAt = detectedAt;
+        }
+    }
+}
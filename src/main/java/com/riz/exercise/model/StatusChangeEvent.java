@@ -0,0 +1,134 @@
+package com.riz.exercise.model;
+
+import com.google.common.base.MoreObjects;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * An entry of the append-only change journal: a server instance that appeared, changed status or disappeared.
+ * Events are numbered by a journal-wide, strictly increasing <code>sequence</code> that consumers keep their position by.
+ */
+@Document(collection = "statusChangeEvents")
+public class StatusChangeEvent {
+
+    /**
+     * LISTED is an instance found by the first poll of its source, that was there before the source was polled, as
+     * opposed to one INSERTED since
+     */
+    public enum Type { INSERTED, CHANGED, REMOVED, LISTED }
+
+    @Id
+    private String id;
+    @Indexed(unique = true)
+    private long sequence;
+    private Type type;
+    private String key;
+    private String oldStatus;
+    private String newStatus;
+    private String releaseVersion;
+    private Date timestamp;
+
+    public StatusChangeEvent() {
+    }
+
+    public StatusChangeEvent(Type type, String key, String oldStatus, String newStatus, String releaseVersion, Date timestamp) {
+        this.type = type;
+        this.key = key;
+        this.oldStatus = oldStatus;
+        this.newStatus = newStatus;
+        this.releaseVersion = releaseVersion;
+        this.timestamp = timestamp;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public String getOldStatus() {
+        return oldStatus;
+    }
+
+    public void setOldStatus(String oldStatus) {
+        this.oldStatus = oldStatus;
+    }
+
+    public String getNewStatus() {
+        return newStatus;
+    }
+
+    public void setNewStatus(String newStatus) {
+        this.newStatus = newStatus;
+    }
+
+    public String getReleaseVersion() {
+        return releaseVersion;
+    }
+
+    public void setReleaseVersion(String releaseVersion) {
+        this.releaseVersion = releaseVersion;
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return The server instance as it was right after this event
+     */
+    public SFDCServerInstance toServerInstance() {
+        SFDCServerInstance serverInstance = new SFDCServerInstance();
+        serverInstance.setKey(key);
+        serverInstance.setStatus(newStatus);
+        serverInstance.setReleaseVersion(releaseVersion);
+        return serverInstance;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this.getClass())
+                        .add("sequence", this.sequence)
+                        .add("type", this.type)
+                        .add("key", this.key)
+                        .add("oldStatus", this.oldStatus)
+                        .add("newStatus", this.newStatus)
+                        .add("releaseVersion", this.releaseVersion)
+                        .add("timestamp", this.timestamp)
+                        .omitNullValues()
+                        .toString();
+    }
+}
@@ -0,0 +1,255 @@
+package com.riz.exercise.model;
+
+import com.google.common.base.MoreObjects;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A month (UTC) of a server instance's status history, in the <code>statusHistory</code> collection: the status it had
+ * at the start of the month, and every status transition since.
+ * <p>
+ * Transitions are encoded compactly: each status is replaced by its index in the bucket's own dictionary of
+ * <code>statuses</code> (a handful per bucket), and each time by the milliseconds since the previous transition (or the
+ * start of the month), both written as unsigned varints in the <code>transitions</code> byte array, typically 4 to 5
+ * bytes a transition. A null status stands for the server instance not being listed (removed, or not yet seen).
+ * <p>
+ * The time spent in each status from the start of the month to the last transition is kept alongside, in
+ * <code>millisByStatus</code>, so that a month within a queried range can be summed up without decoding it.
+ */
+@Document(collection = "statusHistory")
+public class StatusHistoryBucket {
+
+    @Id
+    private String id;
+    private String key;
+    private Date start;
+    private Date end;
+    private String initialStatus;
+    private List<String> statuses = new ArrayList<>();
+    private List<Long> millisByStatus = new ArrayList<>();
+    private byte[] transitions = new byte[0];
+    private int count;
+    // Epoch millis of the last transition, or of the start of the month if none
+    private long lastAt;
+    private String lastStatus;
+    // Sequence of the last journaled event recorded, so that events read again are not recorded twice
+    private long lastSequence;
+
+    public StatusHistoryBucket() {
+    }
+
+    /**
+     * @param initialStatus The status of the server instance at the start of the month, or null if it wasn't listed
+     */
+    public StatusHistoryBucket(String key, YearMonth month, String initialStatus) {
+        this.id = idOf(key, month);
+        this.key = key;
+        this.start = Date.from(month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant());
+        this.end = Date.from(month.plusMonths(1).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant());
+        this.initialStatus = initialStatus;
+        this.lastAt = start.getTime();
+        this.lastStatus = initialStatus;
+    }
+
+    public static String idOf(String key, YearMonth month) {
+        return key + "@" + month;
+    }
+
+    /**
+     * Receives the transitions of a bucket, in the order they happened
+     */
+    @FunctionalInterface
+    public interface TransitionConsumer {
+        void accept(long at, String status);
+    }
+
+    /**
+     * Records a status transition. A transition timed before the previous one (e.g.: recorded by a node whose clock is
+     * behind) is taken to have happened at the same time.
+     *
+     * @param at When the transition happened (epoch millis), within the month
+     * @param status The new status, or null if the server instance is no longer listed
+     * @param sequence Sequence of the journaled event
+     */
+    public void append(long at, String status, long sequence) {
+        at = Math.max(at, lastAt);
+        long delta = at - lastAt;
+        int before = codeOf(lastStatus);
+        millisByStatus.set(before, millisByStatus.get(before) + delta);
+        int code = codeOf(status);
+
+        byte[] encoded = new byte[20];
+        int length = writeVarint(delta, encoded, 0);
+        length = writeVarint(code, encoded, length);
+        byte[] appended = Arrays.copyOf(transitions, transitions.length + length);
+        System.arraycopy(encoded, 0, appended, transitions.length, length);
+        transitions = appended;
+
+        count++;
+        lastAt = at;
+        lastStatus = status;
+        lastSequence = sequence;
+    }
+
+    /**
+     * Decodes the transitions
+     */
+    public void forEachTransition(TransitionConsumer consumer) {
+        long at = start.getTime();
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = transitions[position++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            int code = 0;
+            shift = 0;
+            do {
+                b = transitions[position++];
+                code |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            at += delta;
+            consumer.accept(at, statuses.get(code));
+        }
+    }
+
+    private int codeOf(String status) {
+        for (int i = 0; i < statuses.size(); i++) {
+            if (Objects.equals(statuses.get(i), status)) {
+                return i;
+            }
+        }
+        statuses.add(status);
+        millisByStatus.add(0L);
+        return statuses.size() - 1;
+    }
+
+    private static int writeVarint(long value, byte[] out, int position) {
+        while ((value & ~0x7FL) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    public void setStart(Date start) {
+        this.start = start;
+    }
+
+    public Date getEnd() {
+        return end;
+    }
+
+    public void setEnd(Date end) {
+        this.end = end;
+    }
+
+    public String getInitialStatus() {
+        return initialStatus;
+    }
+
+    public void setInitialStatus(String initialStatus) {
+        this.initialStatus = initialStatus;
+    }
+
+    public List<String> getStatuses() {
+        return statuses;
+    }
+
+    public void setStatuses(List<String> statuses) {
+        this.statuses = statuses;
+    }
+
+    public List<Long> getMillisByStatus() {
+        return millisByStatus;
+    }
+
+    public void setMillisByStatus(List<Long> millisByStatus) {
+        this.millisByStatus = millisByStatus;
+    }
+
+    public byte[] getTransitions() {
+        return transitions;
+    }
+
+    public void setTransitions(byte[] transitions) {
+        this.transitions = transitions;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public long getLastAt() {
+        return lastAt;
+    }
+
+    public void setLastAt(long lastAt) {
+        this.lastAt = lastAt;
+    }
+
+    public String getLastStatus() {
+        return lastStatus;
+    }
+
+    public void setLastStatus(String lastStatus) {
+        this.lastStatus = lastStatus;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this.getClass())
+                .add("id", this.id)
+                .add("initialStatus", this.initialStatus)
+                .add("statuses", this.statuses)
+                .add("count", this.count)
+                .add("lastStatus", this.lastStatus)
+                .toString();
+    }
+}
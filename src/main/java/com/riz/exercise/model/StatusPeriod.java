@@ -0,0 +1,46 @@
+package com.riz.exercise.model;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.Date;
+
+/**
+ * A stretch of time a server instance spent in a status, read from its status history
+ */
+public class StatusPeriod {
+
+    private final String status;
+    private final Date from;
+    private final Date to;
+
+    public StatusPeriod(String status, Date from, Date to) {
+        this.status = status;
+        this.from = from;
+        this.to = to;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Date getFrom() {
+        return from;
+    }
+
+    public Date getTo() {
+        return to;
+    }
+
+    public long getDurationMillis() {
+        return to.getTime() - from.getTime();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this.getClass())
+                .add("status", this.status)
+                .add("from", this.from)
+                .add("to", this.to)
+                .toString();
+    }
+}
@@ -5,7 +5,10 @@ import com.google.common.base.MoreObjects;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by rizjoj on 12/1/16.
@@ -14,16 +17,39 @@ import java.util.List;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Subscriber {
 
+    /**
+     * The ways a subscriber can be notified
+     */
+    public enum Channel { EMAIL, WEBHOOK }
+
     @Id
     private String id;
     private String firstname;
     private String lastname;
     private String email;
     private List<String> servers;
+    // Endpoints changes are posted to, as JSON
+    private List<String> webhooks;
+    // The channels chosen, null for the default
+    private Set<Channel> channels;
+    // When the subscriber was last saved, by which nodes pick up each other's writes (see SubscriptionIndex#refresh())
+    private Date modifiedAt;
 
     public Subscriber() {
     }
 
+    /**
+     * @return The channels the subscriber is notified through: those chosen or, if none were, email and, once an
+     *         endpoint is registered, webhooks. Webhooks are left out without an endpoint to post to.
+     */
+    public Set<Channel> deliveryChannels() {
+        Set<Channel> chosen = channels == null || channels.isEmpty() ? EnumSet.allOf(Channel.class) : EnumSet.copyOf(channels);
+        if (webhooks == null || webhooks.isEmpty()) {
+            chosen.remove(Channel.WEBHOOK);
+        }
+        return chosen;
+    }
+
     public String getId() {
         return id;
     }
@@ -64,12 +90,38 @@ public class Subscriber {
         this.servers = servers;
     }
 
+    public List<String> getWebhooks() {
+        return webhooks;
+    }
+
+    public void setWebhooks(List<String> webhooks) {
+        this.webhooks = webhooks;
+    }
+
+    public Set<Channel> getChannels() {
+        return channels;
+    }
+
+    public void setChannels(Set<Channel> channels) {
+        this.channels = channels;
+    }
+
+    public Date getModifiedAt() {
+        return modifiedAt;
+    }
+
+    public void setModifiedAt(Date modifiedAt) {
+        this.modifiedAt = modifiedAt;
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this.getClass())
                         .add("name", this.firstname + " " + this.lastname)
                         .add("email", this.email)
                         .add("servers", this.servers)
+                        .add("webhooks", this.webhooks)
+                        .add("channels", this.channels)
                         .omitNullValues()
                         .toString();
     }
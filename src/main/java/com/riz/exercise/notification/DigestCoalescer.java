@@ -0,0 +1,202 @@
+package com.riz.exercise.notification;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.model.Subscriber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Coalesces the status changes notified to each subscriber into digests, so that a flapping server instance (e.g.:
+ * <code>OK</code> to <code>MINOR_INCIDENT_CORE</code> and back over consecutive polls) costs a subscriber one email per
+ * window rather than one per poll.
+ * <p>
+ * The first change offered for a subscriber opens a digest, which is delivered <code>windowMillis</code> later, or as
+ * soon as it holds <code>maxChanges</code> server instances, whichever comes first. Repeat changes of a server instance
+ * within a digest collapse into its latest status, and a server instance back to the status it had when the digest was
+ * opened is left out of it altogether (a digest left with nothing is not delivered at all).
+ * <p>
+ * With a <code>windowMillis</code> of 0 (the default) changes are delivered as they are offered. Digests are held in
+ * memory only: those open when the application stops are delivered on shutdown, but are lost in a crash. This is
+ * only used with the {@link NotificationOutbox} disabled: the outbox coalesces digests itself, durably.
+ * <p>
+ * Digests delivered are counted in the <code>email.digest.delivered</code> metric, those left empty in
+ * <code>email.digest.suppressed</code>, and changes collapsed into an earlier one in <code>email.digest.collapsed</code>.
+ */
+@Component
+public class DigestCoalescer {
+
+    @Autowired private CounterService counterService;
+
+    @Value("${com.riz.exercise.application.email.digest.windowMillis:0}")
+    private long windowMillis = 0;
+    @Value("${com.riz.exercise.application.email.digest.maxChanges:20}")
+    private int maxChanges = 20;
+
+    // Open digests by subscriber id, guarded by this
+    private final Map<String, Digest> digests = new HashMap<>();
+    private ScheduledExecutorService flushScheduler;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Sends a digest, e.g.: as an email
+     */
+    @FunctionalInterface
+    public interface Delivery {
+
+        /**
+         * @param subscriber The subscriber the digest is for
+         * @param servers The server instances whose status changed, with their latest status
+         * @param detectedAt When the earliest of these status changes was detected (epoch millis), or 0 if unknown
+         */
+        void deliver(Subscriber subscriber, Collection<SFDCServerInstance> servers, long detectedAt);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (windowMillis > 0) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("email-digest-%d").setDaemon(true).build());
+            logger.info("Email digests coalesced over {}ms, up to {} server instances", windowMillis, maxChanges);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+        }
+        flushAll();
+    }
+
+    /**
+     * Adds status changes to a subscriber's digest, opening one if the subscriber has none, and delivers the digest if
+     * it is full. Delivers the changes straight away if digests are disabled.
+     *
+     * @param subscriber The subscriber to notify
+     * @param servers The server instances subscribed by the subscriber whose status changed, with their new status
+     * @param statusBefore The status of each server instance before it changed, by key
+     * @param detectedAt When the status change of each server instance was detected (epoch millis), by key
+     * @param delivery How the digest is to be sent
+     */
+    public void offer(Subscriber subscriber, Collection<SFDCServerInstance> servers, Map<String, String> statusBefore,
+                      Map<String, Long> detectedAt, Delivery delivery) {
+        if (windowMillis <= 0) {
+            long earliest = servers.stream().mapToLong(si -> detectedAt.getOrDefault(si.getKey(), 0L)).filter(t -> t > 0).min().orElse(0);
+            delivery.deliver(subscriber, servers, earliest);
+            return;
+        }
+
+        Digest full = null;
+        synchronized (this) {
+            Digest digest = digests.get(subscriber.getId());
+            if (digest == null) {
+                Digest opened = new Digest(delivery);
+                digests.put(subscriber.getId(), opened);
+                flushScheduler.schedule(() -> flush(subscriber.getId(), opened), windowMillis, TimeUnit.MILLISECONDS);
+                digest = opened;
+            }
+            // The subscriber's details as of the latest change
+            digest.subscriber = subscriber;
+            for (SFDCServerInstance si : servers) {
+                Change change = digest.changes.get(si.getKey());
+                if (change == null) {
+                    digest.changes.put(si.getKey(), new Change(statusBefore.get(si.getKey()), si, detectedAt.getOrDefault(si.getKey(), 0L)));
+                } else {
+                    change.latest = si;
+                    counterService.increment("email.digest.collapsed");
+                }
+            }
+            if (digest.changes.size() >= maxChanges) {
+                digests.remove(subscriber.getId());
+                full = digest;
+            }
+        }
+        if (full != null) {
+            deliver(full);
+        }
+    }
+
+    /**
+     * Delivers all open digests
+     */
+    public void flushAll() {
+        List<Digest> open;
+        synchronized (this) {
+            open = new ArrayList<>(digests.values());
+            digests.clear();
+        }
+        open.stream().forEach(this::deliver);
+    }
+
+    /**
+     * @return Number of subscribers with an open digest
+     */
+    public synchronized int size() {
+        return digests.size();
+    }
+
+    private void flush(String subscriberId, Digest digest) {
+        synchronized (this) {
+            // Already delivered for being full, or on shutdown
+            if (!digests.remove(subscriberId, digest)) {
+                return;
+            }
+        }
+        try {
+            deliver(digest);
+        } catch (RuntimeException e) {
+            logger.error("Could not deliver email digest to <{}>", digest.subscriber.getEmail(), e);
+        }
+    }
+
+    private void deliver(Digest digest) {
+        List<Change> changes = digest.changes.values().stream()
+                .filter(c -> c.statusBefore == null || !c.statusBefore.equals(c.latest.getStatus()))
+                .collect(Collectors.toList());
+        if (changes.isEmpty()) {
+            counterService.increment("email.digest.suppressed");
+            logger.debug("Email digest to <{}> suppressed: all server instances are back to their status", digest.subscriber.getEmail());
+            return;
+        }
+        counterService.increment("email.digest.delivered");
+        long earliest = changes.stream().mapToLong(c -> c.detectedAt).filter(t -> t > 0).min().orElse(0);
+        digest.delivery.deliver(digest.subscriber, changes.stream().map(c -> c.latest).collect(Collectors.toList()), earliest);
+    }
+
+    private static class Digest {
+
+        private final Delivery delivery;
+        private final Map<String, Change> changes = new LinkedHashMap<>();
+        private Subscriber subscriber;
+
+        Digest(Delivery delivery) {
+            this.delivery = delivery;
+        }
+    }
+
+    private static class Change {
+
+        private final String statusBefore;
+        private final long detectedAt;
+        private SFDCServerInstance latest;
+
+        Change(String statusBefore, SFDCServerInstance latest, long detectedAt) {
+            this.statusBefore = statusBefore;
+            this.latest = latest;
+            this.detectedAt = detectedAt;
+        }
+    }
+}
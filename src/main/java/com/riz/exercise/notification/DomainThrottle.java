@@ -0,0 +1,318 @@
+package com.riz.exercise.notification;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Throttles the emails sent to each recipient domain, so that a large fan-out to one mail provider (e.g.: everyone on
+ * a corporate domain) doesn't trip its rate limits.
+ * <p>
+ * Each domain has a token bucket of <code>permitsPerSecond</code> emails a second, and a limit on the number of sends
+ * to it in flight at once, starting at <code>initialConcurrency</code>. Both adapt to the domain's replies (additive
+ * increase, multiplicative decrease): a send the SMTP server throttles with a <code>4xx</code> reply (e.g.:
+ * <code>421</code>, <code>450</code>, <code>451</code>) halves them, down to <code>minPermitsPerSecond</code> and 1
+ * send in flight; a send accepted raises the rate by a tenth of <code>permitsPerSecond</code> and the concurrency by one
+ * send per window of sends, back up to <code>permitsPerSecond</code> and <code>maxConcurrency</code>. Throttled sends
+ * in flight together halve the limits once.
+ * <p>
+ * Any domain's limits can be set apart from the defaults, e.g.:
+ * <pre>
+ * com.riz.exercise.application.email.throttle.domains.example.com.permitsPerSecond=5
+ * com.riz.exercise.application.email.throttle.domains.example.com.maxConcurrency=2
+ * </pre>
+ * A domain's limits are forgotten once nothing has been sent to it for <code>idleMinutes</code>.
+ * <p>
+ * Time spent waiting for a domain's limits, or deferred by them, is recorded in
+ * <code>histogram.email.throttle.waitMillis</code>, and
+ * throttled sends counted in <code>email.throttled</code>.
+ */
+@Component
+public class DomainThrottle {
+
+    static final String PREFIX = "com.riz.exercise.application.email.throttle";
+
+    @Autowired private Environment environment;
+    @Autowired private CounterService counterService;
+    @Autowired private GaugeService gaugeService;
+
+    @Value("${" + PREFIX + ".enabled:true}")
+    private boolean enabled = true;
+    @Value("${" + PREFIX + ".permitsPerSecond:20}")
+    private double permitsPerSecond = 20;
+    @Value("${" + PREFIX + ".minPermitsPerSecond:1}")
+    private double minPermitsPerSecond = 1;
+    @Value("${" + PREFIX + ".initialConcurrency:1}")
+    private int initialConcurrency = 1;
+    @Value("${" + PREFIX + ".maxConcurrency:4}")
+    private int maxConcurrency = 4;
+    @Value("${" + PREFIX + ".idleMinutes:60}")
+    private long idleMinutes = 60;
+
+    private LoadingCache<String, Domain> domains;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * How a send to a domain went
+     */
+    public enum Feedback {
+        /** Every email was accepted */
+        ACCEPTED,
+        /** At least one email was turned away with a <code>4xx</code> reply */
+        THROTTLED,
+        /** Failed for some other reason, which says nothing about the domain's limits */
+        FAILED
+    }
+
+    @PostConstruct
+    public void start() {
+        domains = CacheBuilder.newBuilder()
+                .expireAfterAccess(idleMinutes, TimeUnit.MINUTES)
+                .build(CacheLoader.from(this::newDomain));
+        if (enabled) {
+            logger.info("Emails throttled to {}/s and {} sends in flight per recipient domain", permitsPerSecond, maxConcurrency);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Waits until emails can be sent to a domain: for a send in flight to it to complete if it has as many as it is
+     * allowed, then for the rate limit. The permit must be released once the emails are sent.
+     *
+     * @param domain The recipients' domain, see {@link #domainOf(MimeMessage)}
+     * @param emails The number of emails about to be sent
+     */
+    public Permit acquire(String domain, int emails) throws InterruptedException {
+        Domain limits = domains.getUnchecked(domain);
+        long start = System.nanoTime();
+        limits.enter();
+        limits.rateLimiter.acquire(emails);
+        gaugeService.submit("histogram.email.throttle.waitMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return new Permit(limits, System.nanoTime());
+    }
+
+    /**
+     * Takes a place in flight to a domain and its rate limit's permits for the emails, if both are free right away.
+     * The permit must be released once the emails are sent.
+     *
+     * @param domain The recipients' domain, see {@link #domainOf(MimeMessage)}
+     * @param emails The number of emails about to be sent
+     * @return null if the domain is at its limits, in which case nothing was taken
+     */
+    public Permit tryAcquire(String domain, int emails) {
+        Domain limits = domains.getUnchecked(domain);
+        if (!limits.tryEnter()) {
+            return null;
+        }
+        if (!limits.rateLimiter.tryAcquire(emails)) {
+            // Says nothing about the domain's limits: just gives the place in flight back
+            limits.exit(Feedback.FAILED, System.nanoTime());
+            return null;
+        }
+        return new Permit(limits, System.nanoTime());
+    }
+
+    /**
+     * @return About how long a domain's rate limit takes to earn the permits for the emails, for those turned down by
+     *         {@link #tryAcquire(String, int)} to be tried again
+     */
+    public long retryAfterMillis(String domain, int emails) {
+        return Math.max(1, (long) Math.ceil(emails * 1000 / domains.getUnchecked(domain).rateLimiter.getRate()));
+    }
+
+    /**
+     * @return The largest number of emails to a domain that should be sent at once: about a second's worth at its
+     *         current rate, so that a send never bursts far past it
+     */
+    public int maxBurst(String domain) {
+        return Math.max(1, (int) domains.getUnchecked(domain).rateLimiter.getRate());
+    }
+
+    /**
+     * @return The limits of every domain emails were sent to lately
+     */
+    public List<Limits> getLimits() {
+        return domains.asMap().values().stream().map(Domain::limits).collect(Collectors.toList());
+    }
+
+    /**
+     * @return The lower cased domain of the email's first recipient, or an empty string if it has none
+     */
+    public static String domainOf(MimeMessage mail) {
+        try {
+            Address[] recipients = mail.getRecipients(Message.RecipientType.TO);
+            if (recipients == null || recipients.length == 0 || !(recipients[0] instanceof InternetAddress)) {
+                return "";
+            }
+            String address = ((InternetAddress) recipients[0]).getAddress();
+            int at = address == null ? -1 : address.lastIndexOf('@');
+            return at < 0 ? "" : address.substring(at + 1).toLowerCase(Locale.ROOT);
+        } catch (MessagingException e) {
+            return "";
+        }
+    }
+
+    private Domain newDomain(String name) {
+        double rate = environment.getProperty(PREFIX + ".domains." + name + ".permitsPerSecond", Double.class, permitsPerSecond);
+        int concurrency = environment.getProperty(PREFIX + ".domains." + name + ".maxConcurrency", Integer.class, maxConcurrency);
+        return new Domain(name, rate, Math.min(minPermitsPerSecond, rate), Math.min(initialConcurrency, concurrency), concurrency);
+    }
+
+    /**
+     * Entitles its holder to a send to a domain
+     */
+    public final class Permit {
+
+        private final Domain domain;
+        private final long acquiredAt;
+        private boolean released;
+
+        private Permit(Domain domain, long acquiredAt) {
+            this.domain = domain;
+            this.acquiredAt = acquiredAt;
+        }
+
+        /**
+         * Frees the send's place in flight, and adapts the domain's limits to how it went. Does nothing if already
+         * released.
+         */
+        public void release(Feedback feedback) {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (feedback == Feedback.THROTTLED) {
+                counterService.increment("email.throttled");
+            }
+            domain.exit(feedback, acquiredAt);
+        }
+    }
+
+    /**
+     * A domain's current limits, as adapted to its replies
+     */
+    public static class Limits {
+
+        private final String domain;
+        private final double permitsPerSecond;
+        private final int concurrency;
+        private final int inFlight;
+        private final boolean backedOff;
+
+        Limits(String domain, double permitsPerSecond, int concurrency, int inFlight, boolean backedOff) {
+            this.domain = domain;
+            this.permitsPerSecond = permitsPerSecond;
+            this.concurrency = concurrency;
+            this.inFlight = inFlight;
+            this.backedOff = backedOff;
+        }
+
+        public String getDomain() {
+            return domain;
+        }
+
+        public double getPermitsPerSecond() {
+            return permitsPerSecond;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * @return true while the domain's rate is below its configured rate, having been throttled
+         */
+        public boolean isBackedOff() {
+            return backedOff;
+        }
+    }
+
+    private class Domain {
+
+        private final String name;
+        private final RateLimiter rateLimiter;
+        private final double maxRate;
+        private final double minRate;
+        private final int maxConcurrency;
+        // Guarded by this
+        private double window;
+        private int inFlight;
+        private long lastDecreaseAt;
+
+        Domain(String name, double maxRate, double minRate, int initialConcurrency, int maxConcurrency) {
+            this.name = name;
+            this.rateLimiter = RateLimiter.create(maxRate);
+            this.maxRate = maxRate;
+            this.minRate = minRate;
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+            this.window = Math.max(1, initialConcurrency);
+            this.lastDecreaseAt = System.nanoTime();
+        }
+
+        synchronized void enter() throws InterruptedException {
+            while (inFlight >= (int) window) {
+                wait();
+            }
+            inFlight++;
+        }
+
+        synchronized boolean tryEnter() {
+            if (inFlight >= (int) window) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+
+        synchronized void exit(Feedback feedback, long acquiredAt) {
+            inFlight--;
+            if (feedback == Feedback.THROTTLED) {
+                // Sends in flight when the limits were last halved were made under the old limits: don't halve again
+                if (acquiredAt - lastDecreaseAt > 0) {
+                    lastDecreaseAt = System.nanoTime();
+                    window = Math.max(1, window / 2);
+                    rateLimiter.setRate(Math.max(minRate, rateLimiter.getRate() / 2));
+                    logger.warn("Throttled by {}: backing off to {}/s and {} sends in flight", name, rateLimiter.getRate(), (int) window);
+                }
+            } else if (feedback == Feedback.ACCEPTED) {
+                window = Math.min(maxConcurrency, window + 1 / window);
+                if (rateLimiter.getRate() < maxRate) {
+                    rateLimiter.setRate(Math.min(maxRate, rateLimiter.getRate() + maxRate / 10));
+                }
+            }
+            notifyAll();
+        }
+
+        synchronized Limits limits() {
+            return new Limits(name, rateLimiter.getRate(), (int) window, inFlight, rateLimiter.getRate() < maxRate);
+        }
+    }
+}
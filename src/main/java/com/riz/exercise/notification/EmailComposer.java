@@ -0,0 +1,58 @@
+package com.riz.exercise.notification;
+
+import com.riz.exercise.model.SFDCServerInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.stereotype.Component;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.util.Collection;
+
+/**
+ * Composes notification emails: sender, subject and recipient from the application's settings, body rendered by the
+ * {@link NotificationRenderer}
+ */
+@Component
+public class EmailComposer {
+
+    /**
+     * Header carrying a notification's idempotency key, by which a notification delivered twice (e.g.: resent after a
+     * crash before its delivery was recorded) can be told apart by its recipient's mail filters
+     */
+    public static final String NOTIFICATION_ID_HEADER = "X-Notification-Id";
+
+    @Autowired private JavaMailSender javaMailSender;
+    @Autowired private NotificationRenderer notificationRenderer;
+
+    @Value("${com.riz.exercise.application.email.sender}")
+    private String emailSender;
+    @Value("${com.riz.exercise.application.email.subject}")
+    private String emailSubject;
+
+    /**
+     * @param name Full name of the recipient
+     * @param email Email address of the recipient
+     * @param servers The changed server instances, in the order they should be listed
+     * @param notificationId The notification's idempotency key, or null if it has none
+     * @return An email ready to be sent
+     * @throws MessagingException If the email can't be composed, e.g.: for an invalid address
+     */
+    public MimeMessage compose(String name, String email, Collection<SFDCServerInstance> servers, String notificationId) throws MessagingException {
+        MimeMessage mail = javaMailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(mail, true);
+        helper.setReplyTo(emailSender);
+        helper.setFrom(emailSender);
+        helper.setSubject(emailSubject);
+        helper.setTo(email);
+
+        RenderedNotification emailMessage = notificationRenderer.render(name, servers);
+        helper.setText(emailMessage.getText(), emailMessage.getHtml());
+        if (notificationId != null) {
+            mail.setHeader(NOTIFICATION_ID_HEADER, notificationId);
+        }
+        return mail;
+    }
+}
@@ -0,0 +1,521 @@
+package com.riz.exercise.notification;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.mail.MailAuthenticationException;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailPreparationException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Sends emails asynchronously, off the notifier job's scheduler thread.
+ * <p>
+ * Messages are queued on a bounded queue drained by a pool of worker threads. Each worker takes up to
+ * <code>batchSize</code> queued messages at a time and sends them over its own {@link SmtpConnection}, which stays open
+ * (authenticated, and past STARTTLS) across batches until <code>maxMessagesPerConnection</code> messages have been sent
+ * over it or the queue runs dry. Messages that fail
+ * for a transient reason (connection failures, <code>4xx</code> replies) are retried with exponential backoff. When the
+ * queue is full {@link #submit(MimeMessage)} blocks, pushing back on the producer rather than buffering without bound.
+ * <p>
+ * Each batch is sent a recipient domain at a time, within the limits the {@link DomainThrottle} sets each domain. A
+ * worker doesn't wait on a domain at its limits: it sends the rest of the batch, and defers the emails to that domain
+ * until its rate limit has earned their permits, so a throttled domain holds up only its own emails. Once stopping,
+ * workers wait on the domains' limits instead, to send what is still queued.
+ * <p>
+ * Batch send times are recorded in the <code>timer.email.send</code> metric, and the time from a status change being
+ * detected to the email about it being accepted by the SMTP server in <code>histogram.email.detectionToDelivery</code>.
+ */
+@Component
+public class EmailDispatcher {
+
+    @Autowired private JavaMailSender javaMailSender;
+    @Autowired private CounterService counterService;
+    @Autowired private GaugeService gaugeService;
+    @Autowired private DomainThrottle domainThrottle;
+
+    @Value("${com.riz.exercise.application.email.dispatch.workers:4}")
+    private int workers = 4;
+    @Value("${com.riz.exercise.application.email.dispatch.queueCapacity:1000}")
+    private int queueCapacity = 1000;
+    @Value("${com.riz.exercise.application.email.dispatch.batchSize:50}")
+    private int batchSize = 50;
+    @Value("${com.riz.exercise.application.email.dispatch.maxMessagesPerConnection:100}")
+    private int maxMessagesPerConnection = 100;
+    @Value("${com.riz.exercise.application.email.dispatch.maxAttempts:3}")
+    private int maxAttempts = 3;
+    @Value("${com.riz.exercise.application.email.dispatch.initialBackoffMillis:1000}")
+    private long initialBackoffMillis = 1000;
+
+    private BlockingQueue<PendingEmail> queue;
+    private ExecutorService workerPool;
+    private ScheduledExecutorService retryScheduler;
+    // Emails waiting to be retried, each until it is queued again or given up on
+    private final Set<PendingEmail> retrying = ConcurrentHashMap.newKeySet();
+    // Emails waiting for their domain's limits, each until it is queued again
+    private final Set<PendingEmail> deferred = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        workerPool = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder().setNameFormat("email-dispatch-%d").setDaemon(true).build());
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("email-retry-%d").setDaemon(true).build());
+        running = true;
+        for (int i = 0; i < workers; i++) {
+            workerPool.execute(this::work);
+        }
+        logger.info("Email dispatcher started with {} workers and a queue of {}", workers, queueCapacity);
+    }
+
+    /**
+     * Stops accepting retries and gives the workers a grace period to send whatever is still queued, including emails
+     * deferred by their domain's limits. Emails waiting to be retried, and any still queued once the grace period is
+     * over, are given up on.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        retryScheduler.shutdownNow();
+        retrying.stream().filter(retrying::remove).forEach(pending -> drop(pending, pending.getLastFailure()));
+        deferred.stream().filter(deferred::remove).forEach(this::requeueOrDrop);
+        workerPool.shutdown();
+        if (!workerPool.awaitTermination(30, TimeUnit.SECONDS)) {
+            logger.warn("Email dispatcher stopped with {} emails still queued", queue.size());
+            workerPool.shutdownNow();
+            List<PendingEmail> unsent = new ArrayList<>();
+            queue.drainTo(unsent);
+            unsent.stream().forEach(pending -> drop(pending, new MailSendException("Email dispatcher stopped")));
+        }
+    }
+
+    /**
+     * Queues an email for sending. Blocks while the queue is full.
+     *
+     * @param mail A fully prepared email message
+     */
+    public void submit(MimeMessage mail) throws InterruptedException {
+        submit(mail, 0);
+    }
+
+    /**
+     * Queues an email for sending. Blocks while the queue is full.
+     *
+     * @param mail A fully prepared email message
+     * @param detectedAt When the earliest status change the email is about was detected (epoch millis), or 0 if
+     *        unknown
+     */
+    public void submit(MimeMessage mail, long detectedAt) throws InterruptedException {
+        submit(mail, detectedAt, failure -> {
+        });
+    }
+
+    /**
+     * Queues an email for sending. Blocks while the queue is full.
+     *
+     * @param mail A fully prepared email message
+     * @param detectedAt When the earliest status change the email is about was detected (epoch millis), or 0 if
+     *        unknown
+     * @param outcome Told once the email is accepted by the SMTP server, or given up on
+     */
+    public void submit(MimeMessage mail, long detectedAt, Outcome outcome) throws InterruptedException {
+        submit(mail, detectedAt, maxAttempts, outcome);
+    }
+
+    /**
+     * Queues an email for sending. Blocks while the queue is full.
+     *
+     * @param mail A fully prepared email message
+     * @param detectedAt When the earliest status change the email is about was detected (epoch millis), or 0 if
+     *        unknown
+     * @param maxAttempts Most times the email is sent before it is given up on: 1 for callers retrying it themselves
+     * @param outcome Told once the email is accepted by the SMTP server, or given up on
+     */
+    public void submit(MimeMessage mail, long detectedAt, int maxAttempts, Outcome outcome) throws InterruptedException {
+        queue.put(new PendingEmail(mail, detectedAt, maxAttempts, outcome));
+    }
+
+    /**
+     * What became of a submitted email (or webhook notification, see {@link WebhookDispatcher}). Called on a worker
+     * thread, so it should return promptly.
+     */
+    @FunctionalInterface
+    public interface Outcome {
+
+        /**
+         * @param failure null if the email was accepted by the SMTP server (or the notification by its endpoint),
+         *        otherwise the cause of the last attempt failing, once it is given up on
+         */
+        void completed(Exception failure);
+    }
+
+    /**
+     * @return Number of emails queued and not yet picked up by a worker
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void work() {
+        SmtpConnection connection = newConnection();
+        List<PendingEmail> batch = new ArrayList<>(batchSize);
+        try {
+            while (running || !queue.isEmpty()) {
+                try {
+                    PendingEmail first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        // Idle: don't hold on to a connection the server will eventually time out
+                        if (connection != null) {
+                            connection.close();
+                        }
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    dispatch(connection, batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException e) {
+                    // Never let a worker die: the pool would silently shrink
+                    logger.error("Unexpected error sending {} emails", batch.size(), e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * @return A connection of this worker's own, or null if the mail sender doesn't expose its SMTP settings, in which
+     *         case every batch goes through {@link JavaMailSender#send(MimeMessage...)} on a connection of its own
+     */
+    private SmtpConnection newConnection() {
+        if (javaMailSender instanceof JavaMailSenderImpl) {
+            return new SmtpConnection((JavaMailSenderImpl) javaMailSender, maxMessagesPerConnection);
+        }
+        return null;
+    }
+
+    private void dispatch(SmtpConnection connection, List<PendingEmail> batch) throws InterruptedException {
+        if (!domainThrottle.isEnabled()) {
+            send(connection, batch);
+            return;
+        }
+        Map<String, List<PendingEmail>> byDomain = batch.stream()
+                .collect(Collectors.groupingBy(PendingEmail::getDomain, LinkedHashMap::new, Collectors.toList()));
+        Set<PendingEmail> unsent = new LinkedHashSet<>(batch);
+        try {
+            for (Map.Entry<String, List<PendingEmail>> domain : byDomain.entrySet()) {
+                for (List<PendingEmail> emails : Lists.partition(domain.getValue(), domainThrottle.maxBurst(domain.getKey()))) {
+                    DomainThrottle.Permit permit = running
+                            ? domainThrottle.tryAcquire(domain.getKey(), emails.size())
+                            : domainThrottle.acquire(domain.getKey(), emails.size());
+                    if (permit == null) {
+                        // At its limits: send to the other domains meanwhile, and come back to this one later
+                        List<PendingEmail> rest = domain.getValue().stream().filter(unsent::remove).collect(Collectors.toList());
+                        defer(rest, domainThrottle.retryAfterMillis(domain.getKey(), emails.size()));
+                        break;
+                    }
+                    unsent.removeAll(emails);
+                    waited(emails);
+                    DomainThrottle.Feedback feedback = DomainThrottle.Feedback.FAILED;
+                    try {
+                        feedback = send(connection, emails);
+                    } finally {
+                        permit.release(feedback);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped while waiting on a domain's limits: the emails not sent yet won't be
+            unsent.stream().forEach(pending -> drop(pending, new MailSendException("Email dispatcher stopped")));
+            throw e;
+        }
+    }
+
+    private void defer(List<PendingEmail> emails, long delayMillis) {
+        long now = System.currentTimeMillis();
+        emails.stream().forEach(pending -> {
+            counterService.increment("email.deferred");
+            pending.deferred(now);
+            deferred.add(pending);
+            try {
+                retryScheduler.schedule(() -> {
+                    if (deferred.remove(pending)) {
+                        requeueOrDrop(pending);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopping
+                if (deferred.remove(pending)) {
+                    requeueOrDrop(pending);
+                }
+            }
+        });
+    }
+
+    private void requeueOrDrop(PendingEmail pending) {
+        // Never blocks: neither the retry scheduler nor a stopping dispatcher can wait for the workers
+        if (!queue.offer(pending)) {
+            drop(pending, new MailSendException("Email dispatcher queue full"));
+        }
+    }
+
+    /**
+     * Records how long the emails were deferred by their domain's limits, if they were
+     */
+    private void waited(List<PendingEmail> emails) {
+        long now = System.currentTimeMillis();
+        emails.stream().filter(pending -> pending.getDeferredSince() > 0).forEach(pending -> {
+            gaugeService.submit("histogram.email.throttle.waitMillis", now - pending.getDeferredSince());
+            pending.deferred(0);
+        });
+    }
+
+    /**
+     * @return How the send went, for the {@link DomainThrottle}
+     */
+    private DomainThrottle.Feedback send(SmtpConnection connection, List<PendingEmail> batch) {
+        MimeMessage[] messages = batch.stream().map(PendingEmail::getMail).toArray(MimeMessage[]::new);
+        long start = System.currentTimeMillis();
+        try {
+            if (connection != null) {
+                connection.send(messages);
+            } else {
+                javaMailSender.send(messages);
+            }
+            logger.debug("Sent {} emails", messages.length);
+            delivered(batch);
+            return DomainThrottle.Feedback.ACCEPTED;
+        } catch (MailSendException e) {
+            Map<Object, Exception> failedMessages = e.getFailedMessages();
+            if (failedMessages.isEmpty()) {
+                // Connection level failure: nothing was sent
+                batch.stream().forEach(pending -> retryOrDrop(pending, e));
+                return isThrottled(e) ? DomainThrottle.Feedback.THROTTLED : DomainThrottle.Feedback.FAILED;
+            } else {
+                List<PendingEmail> sent = new ArrayList<>();
+                batch.stream().forEach(pending -> {
+                    if (failedMessages.containsKey(pending.getMail())) {
+                        retryOrDrop(pending, failedMessages.get(pending.getMail()));
+                    } else {
+                        sent.add(pending);
+                    }
+                });
+                delivered(sent);
+                return failedMessages.values().stream().anyMatch(EmailDispatcher::isThrottled) ? DomainThrottle.Feedback.THROTTLED : DomainThrottle.Feedback.FAILED;
+            }
+        } catch (MailException e) {
+            batch.stream().forEach(pending -> retryOrDrop(pending, e));
+            return DomainThrottle.Feedback.FAILED;
+        } finally {
+            gaugeService.submit("timer.email.send", System.currentTimeMillis() - start);
+        }
+    }
+
+    private void delivered(List<PendingEmail> sent) {
+        long now = System.currentTimeMillis();
+        sent.stream().forEach(pending -> {
+            counterService.increment("email.sent");
+            if (pending.getDetectedAt() > 0) {
+                gaugeService.submit("histogram.email.detectionToDelivery", now - pending.getDetectedAt());
+            }
+            pending.complete(null);
+        });
+    }
+
+    private void retryOrDrop(PendingEmail pending, Exception cause) {
+        int attempt = pending.failed(cause);
+        if (!isTransient(cause) || attempt >= pending.getMaxAttempts() || !running) {
+            drop(pending, cause);
+            return;
+        }
+
+        counterService.increment("email.retried");
+
+        long backoffMillis = initialBackoffMillis << (attempt - 1);
+        logger.warn("Email failed on attempt {}, retrying in {}ms: {}", attempt, backoffMillis, cause.getMessage());
+        retrying.add(pending);
+        try {
+            retryScheduler.schedule(() -> requeue(pending), backoffMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopping
+            if (retrying.remove(pending)) {
+                drop(pending, cause);
+            }
+        }
+    }
+
+    private void requeue(PendingEmail pending) {
+        // Already given up on if the dispatcher stopped meanwhile
+        if (!retrying.remove(pending)) {
+            return;
+        }
+        if (queue.offer(pending)) {
+            return;
+        }
+        if (!running) {
+            drop(pending, pending.getLastFailure());
+            return;
+        }
+        // Don't block the retry scheduler on a full queue, try again a little later instead
+        retrying.add(pending);
+        try {
+            retryScheduler.schedule(() -> requeue(pending), initialBackoffMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (retrying.remove(pending)) {
+                drop(pending, pending.getLastFailure());
+            }
+        }
+    }
+
+    private void drop(PendingEmail pending, Exception cause) {
+        counterService.increment("email.dropped");
+        logger.error("Giving up on email after {} attempt(s)", pending.getAttempts(), cause);
+        pending.complete(cause);
+    }
+
+    /**
+     * @return false for failures that will fail again however often they are retried: bad credentials, malformed
+     *         messages and permanent (<code>5xx</code>) SMTP replies
+     */
+    static boolean isTransient(Throwable cause) {
+        if (cause instanceof MailAuthenticationException || cause instanceof MailParseException || cause instanceof MailPreparationException) {
+            return false;
+        }
+        int returnCode = smtpReturnCode(cause);
+        return returnCode == -1 || returnCode >= 400 && returnCode < 500;
+    }
+
+    /**
+     * @return true for a temporary (<code>4xx</code>) SMTP reply, by which a server turns away mail it is sent too fast
+     */
+    static boolean isThrottled(Throwable cause) {
+        int returnCode = smtpReturnCode(cause);
+        return returnCode >= 400 && returnCode < 500;
+    }
+
+    /**
+     * @return The SMTP reply code of the failure, or -1 if it has none
+     */
+    private static int smtpReturnCode(Throwable cause) {
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            int returnCode = -1;
+            if (t instanceof SMTPSendFailedException) {
+                returnCode = ((SMTPSendFailedException) t).getReturnCode();
+            } else if (t instanceof SMTPAddressFailedException) {
+                returnCode = ((SMTPAddressFailedException) t).getReturnCode();
+            } else if (t instanceof SMTPSenderFailedException) {
+                returnCode = ((SMTPSenderFailedException) t).getReturnCode();
+            }
+            if (returnCode != -1) {
+                return returnCode;
+            }
+        }
+        return -1;
+    }
+
+    private static class PendingEmail {
+        private final MimeMessage mail;
+        private final long detectedAt;
+        private final int maxAttempts;
+        private final Outcome outcome;
+        private final String domain;
+        private int attempts;
+        private Exception lastFailure;
+        private long deferredSince;
+
+        PendingEmail(MimeMessage mail, long detectedAt, int maxAttempts, Outcome outcome) {
+            this.mail = mail;
+            this.detectedAt = detectedAt;
+            this.maxAttempts = maxAttempts;
+            this.outcome = outcome;
+            this.domain = DomainThrottle.domainOf(mail);
+        }
+
+        MimeMessage getMail() {
+            return mail;
+        }
+
+        long getDetectedAt() {
+            return detectedAt;
+        }
+
+        String getDomain() {
+            return domain;
+        }
+
+        int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        int getAttempts() {
+            return attempts;
+        }
+
+        Exception getLastFailure() {
+            return lastFailure;
+        }
+
+        long getDeferredSince() {
+            return deferredSince;
+        }
+
+        /**
+         * @param now When the email was deferred by its domain's limits, or 0 once it is sent. An email deferred again
+         *        is still deferred since the first time.
+         */
+        void deferred(long now) {
+            if (now == 0 || deferredSince == 0) {
+                deferredSince = now;
+            }
+        }
+
+        /**
+         * @return The number of attempts made, this failed one included
+         */
+        int failed(Exception cause) {
+            lastFailure = cause;
+            return ++attempts;
+        }
+
+        void complete(Exception failure) {
+            try {
+                outcome.completed(failure);
+            } catch (RuntimeException e) {
+                LoggerFactory.getLogger(EmailDispatcher.class).error("Email outcome could not be recorded", e);
+            }
+        }
+    }
+}
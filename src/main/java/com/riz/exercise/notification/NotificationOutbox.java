@@ -0,0 +1,408 @@
+package com.riz.exercise.notification;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.riz.exercise.model.OutboxNotification;
+import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.model.Subscriber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Durable outbox of notifications, in the <code>notificationOutbox</code> collection (see {@link OutboxNotification}).
+ * <p>
+ * The notifier job {@link #enqueue enqueues} a notification per subscriber for each batch of journaled changes before
+ * it moves its journal cursor past them, so a crash or an SMTP outage never loses a notification: the batch is
+ * processed again, and a batch already enqueued is recognized by its idempotency key and skipped. A subscriber is
+ * enqueued a notification for each of their {@link Subscriber#deliveryChannels() channels}: an email, and one for each
+ * of their webhooks.
+ * <p>
+ * A relay on a thread of its own claims due notifications (atomically, so that several nodes can relay side by side),
+ * hands them to the {@link EmailDispatcher} or the {@link WebhookDispatcher}, and records their delivery once the SMTP
+ * server or the endpoint has accepted them. A
+ * notification that can't be delivered is retried with exponential backoff from <code>initialBackoffMillis</code> up to
+ * <code>maxBackoffMillis</code>, and marked <code>FAILED</code> after <code>maxAttempts</code>, or straight away if it
+ * can never be delivered (e.g.: an invalid address). A notification claimed by a relay that dies with it is claimed
+ * again <code>claimMillis</code> later; the outcome of a notification claimed again meanwhile is not recorded by the
+ * relay that lost its claim, which is counted in <code>outbox.claimLost</code>. Each attempt is a single send or post:
+ * the dispatchers don't retry notifications of their own, the outbox does. The relay takes at most
+ * <code>batchSize</code> notifications per
+ * <code>pollMillis</code>, and waits for room on the dispatcher's queue, which throttles sending without slowing the
+ * notifier job.
+ * <p>
+ * Digests (see {@link DigestCoalescer}) are coalesced in the outbox itself: changes for a subscriber with a
+ * notification pending and not yet attempted are merged into it, and a notification is only due
+ * <code>email.digest.windowMillis</code> after it was opened, or as soon as it lists <code>email.digest.maxChanges</code>
+ * server instances. Webhooks are due straight away: only emails are coalesced.
+ * <p>
+ * Delivery is recorded after the SMTP server accepts an email, so a relay dying in between sends it again: each email
+ * carries its notification's id in an {@link EmailComposer#NOTIFICATION_ID_HEADER} header by which duplicates can be
+ * told apart, as does each webhook notification in its <code>id</code>. Delivered notifications are kept for <code>retentionHours</code>.
+ * <p>
+ * {@link #getDepth()} and {@link #getLagMillis()} report the notifications waiting and how long the oldest has been
+ * waiting; each delivery's time from enqueued to delivered is recorded in <code>histogram.outbox.deliveryLag</code>.
+ */
+@Component
+public class NotificationOutbox {
+
+    @Autowired private MongoOperations mongoOperations;
+    @Autowired private EmailComposer emailComposer;
+    @Autowired private EmailDispatcher emailDispatcher;
+    @Autowired private WebhookDispatcher webhookDispatcher;
+    @Autowired private CounterService counterService;
+    @Autowired private GaugeService gaugeService;
+
+    @Value("${com.riz.exercise.application.outbox.enabled:true}")
+    private boolean enabled = true;
+    @Value("${com.riz.exercise.application.outbox.pollMillis:1000}")
+    private long pollMillis = 1000;
+    @Value("${com.riz.exercise.application.outbox.batchSize:100}")
+    private int batchSize = 100;
+    @Value("${com.riz.exercise.application.outbox.maxAttempts:10}")
+    private int maxAttempts = 10;
+    @Value("${com.riz.exercise.application.outbox.initialBackoffMillis:60000}")
+    private long initialBackoffMillis = 60000;
+    @Value("${com.riz.exercise.application.outbox.maxBackoffMillis:3600000}")
+    private long maxBackoffMillis = 3600000;
+    @Value("${com.riz.exercise.application.outbox.claimMillis:600000}")
+    private long claimMillis = 600000;
+    @Value("${com.riz.exercise.application.email.digest.windowMillis:0}")
+    private long windowMillis = 0;
+    @Value("${com.riz.exercise.application.email.digest.maxChanges:20}")
+    private int maxChanges = 20;
+
+    // A merge losing the race against a relay claiming the notification (or another merge) is retried this many times
+    private static final int MAX_MERGE_ATTEMPTS = 3;
+
+    private ScheduledExecutorService relayScheduler;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            relayScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("outbox-relay-%d").setDaemon(true).build());
+            relayScheduler.scheduleWithFixedDelay(this::relayAll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+            logger.info("Notifications relayed from the outbox every {}ms, up to {} at a time", pollMillis, batchSize);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (relayScheduler != null) {
+            relayScheduler.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds status changes to the outbox for a subscriber, for each of their channels: for email, merged into the
+     * subscriber's open digest if there is one, in a notification of their own otherwise. Does nothing for a channel
+     * this batch was already enqueued on for this subscriber.
+     *
+     * @param subscriber The subscriber to notify
+     * @param servers The server instances subscribed by the subscriber whose status changed, with their new status
+     * @param statusBefore The status of each server instance before it changed, by key
+     * @param detectedAt When the status change of each server instance was detected (epoch millis), by key
+     * @param batch Identifies the batch of journaled changes these are part of, the same however often it is processed
+     */
+    public void enqueue(Subscriber subscriber, Collection<SFDCServerInstance> servers, Map<String, String> statusBefore,
+                        Map<String, Long> detectedAt, String batch) {
+        List<OutboxNotification.Change> changes = servers.stream()
+                .map(si -> new OutboxNotification.Change(statusBefore.get(si.getKey()), si, detectedAt.getOrDefault(si.getKey(), 0L)))
+                .collect(Collectors.toList());
+        Set<Subscriber.Channel> channels = subscriber.deliveryChannels();
+        if (channels.contains(Subscriber.Channel.EMAIL)) {
+            enqueue(subscriber, changes, subscriber.getId() + "@" + batch, null);
+        }
+        if (channels.contains(Subscriber.Channel.WEBHOOK)) {
+            subscriber.getWebhooks().stream().distinct().forEach(url -> enqueue(subscriber, changes,
+                    subscriber.getId() + "@" + batch + "#" + Hashing.murmur3_32().hashString(url, StandardCharsets.UTF_8), url));
+        }
+    }
+
+    /**
+     * @param webhook The url to post the notification to, null to email it
+     */
+    private void enqueue(Subscriber subscriber, List<OutboxNotification.Change> changes, String id, String webhook) {
+        if (mongoOperations.exists(query(where("batches").is(id)), OutboxNotification.class)) {
+            counterService.increment("outbox.duplicate");
+            logger.debug("Notification {} already enqueued", id);
+            return;
+        }
+
+        if (webhook == null && windowMillis > 0) {
+            for (int attempt = 0; attempt < MAX_MERGE_ATTEMPTS; attempt++) {
+                // Notifications enqueued before there were channels have none, and are emails
+                OutboxNotification open = mongoOperations.findOne(query(where("subscriberId").is(subscriber.getId())
+                        .and("channel").ne(Subscriber.Channel.WEBHOOK)
+                        .and("status").is(OutboxNotification.Status.PENDING).and("attempts").is(0)), OutboxNotification.class);
+                if (open == null) {
+                    break;
+                }
+                if (merge(open, subscriber, changes, id)) {
+                    return;
+                }
+            }
+        }
+
+        Date now = new Date();
+        OutboxNotification notification = new OutboxNotification();
+        notification.setId(id);
+        notification.setSubscriberId(subscriber.getId());
+        notification.setName(fullName(subscriber));
+        notification.setEmail(subscriber.getEmail());
+        notification.setChannel(webhook == null ? Subscriber.Channel.EMAIL : Subscriber.Channel.WEBHOOK);
+        notification.setWebhook(webhook);
+        notification.setChanges(changes);
+        notification.setBatches(new ArrayList<>(Collections.singletonList(id)));
+        notification.setStatus(OutboxNotification.Status.PENDING);
+        notification.setCreatedAt(now);
+        notification.setDueAt(webhook != null || changes.size() >= maxChanges ? now : new Date(now.getTime() + windowMillis));
+        try {
+            mongoOperations.insert(notification);
+            counterService.increment("outbox.enqueued");
+        } catch (DuplicateKeyException e) {
+            counterService.increment("outbox.duplicate");
+            logger.debug("Notification {} already enqueued", id);
+        }
+    }
+
+    /**
+     * Merges changes into an open digest, unless a relay claimed it (or another merge updated it) since it was read
+     *
+     * @return true if merged
+     */
+    private boolean merge(OutboxNotification open, Subscriber subscriber, List<OutboxNotification.Change> changes, String id) {
+        Map<String, OutboxNotification.Change> merged = new LinkedHashMap<>();
+        open.getChanges().stream().forEach(c -> merged.put(c.getServer().getKey(), c));
+        int collapsed = 0;
+        for (OutboxNotification.Change change : changes) {
+            OutboxNotification.Change existing = merged.get(change.getServer().getKey());
+            if (existing == null) {
+                merged.put(change.getServer().getKey(), change);
+            } else {
+                // The status before the first change and the time it was detected stand
+                existing.setServer(change.getServer());
+                collapsed++;
+            }
+        }
+        Update update = new Update()
+                .set("changes", new ArrayList<>(merged.values()))
+                // The subscriber's details as of the latest change
+                .set("name", fullName(subscriber))
+                .set("email", subscriber.getEmail())
+                .push("batches", id)
+                .inc("version", 1);
+        if (merged.size() >= maxChanges) {
+            update.set("dueAt", new Date());
+        }
+        boolean updated = mongoOperations.updateFirst(query(where("_id").is(open.getId())
+                        .and("status").is(OutboxNotification.Status.PENDING).and("version").is(open.getVersion())),
+                update, OutboxNotification.class).getN() == 1;
+        if (updated) {
+            for (int i = 0; i < collapsed; i++) {
+                counterService.increment("email.digest.collapsed");
+            }
+            counterService.increment("outbox.merged");
+        }
+        return updated;
+    }
+
+    /**
+     * Claims and hands to the {@link EmailDispatcher} or the {@link WebhookDispatcher} up to <code>batchSize</code> due
+     * notifications
+     *
+     * @return The number of notifications claimed
+     */
+    public int relay() {
+        int relayed = 0;
+        OutboxNotification notification;
+        while (relayed < batchSize && !Thread.currentThread().isInterrupted() && (notification = claim()) != null) {
+            relayed++;
+            deliver(notification);
+        }
+        return relayed;
+    }
+
+    private void relayAll() {
+        try {
+            relay();
+        } catch (RuntimeException e) {
+            // Never let the relay die: the scheduler would silently stop running it
+            logger.error("Could not relay notifications from the outbox", e);
+        }
+    }
+
+    private OutboxNotification claim() {
+        Date now = new Date();
+        Query due = query(new Criteria().orOperator(
+                where("status").is(OutboxNotification.Status.PENDING).and("dueAt").lte(now),
+                // Claimed by a relay that never recorded the outcome
+                where("status").is(OutboxNotification.Status.SENDING).and("claimedUntil").lt(now)))
+                .with(new Sort(Sort.Direction.ASC, "dueAt"));
+        return mongoOperations.findAndModify(due,
+                new Update().set("status", OutboxNotification.Status.SENDING)
+                        .set("claimedUntil", new Date(now.getTime() + claimMillis))
+                        .inc("attempts", 1)
+                        .inc("version", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                OutboxNotification.class);
+    }
+
+    private void deliver(OutboxNotification notification) {
+        List<SFDCServerInstance> servers = notification.changedServers();
+        if (servers.isEmpty()) {
+            counterService.increment("email.digest.suppressed");
+            logger.debug("Notification {} suppressed: all server instances are back to their status", notification.getId());
+            delivered(notification);
+            return;
+        }
+        if (notification.getChannel() == Subscriber.Channel.WEBHOOK) {
+            try {
+                // Retried by the outbox, with its own backoff
+                webhookDispatcher.submit(notification.getWebhook(),
+                        new WebhookNotification(notification.getId(), notification.getSubscriberId(), servers, notification.detectedAt()),
+                        1, failure -> completed(notification, failure, WebhookDispatcher.isTransient(failure)));
+            } catch (InterruptedException e) {
+                // Left claimed: it is claimed again once the claim expires
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        MimeMessage mail;
+        try {
+            mail = emailComposer.compose(notification.getName(), notification.getEmail(), servers, notification.getId());
+        } catch (MessagingException e) {
+            failed(notification, e, false);
+            return;
+        }
+        try {
+            emailDispatcher.submit(mail, notification.detectedAt(), 1, failure -> completed(notification, failure, EmailDispatcher.isTransient(failure)));
+        } catch (InterruptedException e) {
+            // Left claimed: it is claimed again once the claim expires
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records the outcome of a delivery
+     *
+     * @param failure null if delivered
+     * @param isTransient Whether the failure may not happen again
+     */
+    private void completed(OutboxNotification notification, Exception failure, boolean isTransient) {
+        if (failure == null) {
+            if (delivered(notification)) {
+                counterService.increment("outbox.delivered");
+            }
+        } else {
+            failed(notification, failure, isTransient);
+        }
+    }
+
+    /**
+     * @return false if the notification was claimed again since, and the delivery not recorded
+     */
+    private boolean delivered(OutboxNotification notification) {
+        Date now = new Date();
+        if (!record(notification, new Update().set("status", OutboxNotification.Status.DELIVERED).set("deliveredAt", now))) {
+            return false;
+        }
+        gaugeService.submit("histogram.outbox.deliveryLag", now.getTime() - notification.getCreatedAt().getTime());
+        return true;
+    }
+
+    private void failed(OutboxNotification notification, Exception cause, boolean isTransient) {
+        int attempts = notification.getAttempts();
+        Update update = new Update().set("lastError", String.valueOf(cause.getMessage()));
+        if (!isTransient || attempts >= maxAttempts) {
+            if (record(notification, update.set("status", OutboxNotification.Status.FAILED))) {
+                counterService.increment("outbox.failed");
+                logger.error("Giving up on notification {} after {} attempt(s)", notification.getId(), attempts, cause);
+            }
+        } else {
+            long backoffMillis = Math.min(initialBackoffMillis << Math.min(attempts - 1, 30), maxBackoffMillis);
+            if (record(notification, update.set("status", OutboxNotification.Status.PENDING).set("dueAt", new Date(System.currentTimeMillis() + backoffMillis)))) {
+                counterService.increment("outbox.retried");
+                logger.warn("Notification {} failed on attempt {}, retrying in {}ms: {}", notification.getId(), attempts, backoffMillis, cause.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of an attempt, unless the notification was claimed again since it was claimed for it (its
+     * claim expired while it was waiting to be sent): the outcome of the newer claim's attempt stands
+     *
+     * @return true if recorded
+     */
+    private boolean record(OutboxNotification notification, Update outcome) {
+        boolean recorded = mongoOperations.updateFirst(query(where("_id").is(notification.getId()).and("version").is(notification.getVersion())),
+                outcome.unset("claimedUntil").inc("version", 1), OutboxNotification.class).getN() == 1;
+        if (!recorded) {
+            counterService.increment("outbox.claimLost");
+            logger.warn("Outcome of notification {} not recorded: it was claimed again since attempt {}", notification.getId(), notification.getAttempts());
+        }
+        return recorded;
+    }
+
+    /**
+     * @return Number of notifications not yet delivered nor given up on
+     */
+    public long getDepth() {
+        return mongoOperations.count(undelivered(), OutboxNotification.class);
+    }
+
+    /**
+     * @return How long the oldest notification not yet delivered nor given up on has been waiting (millis), 0 if there
+     *         is none
+     */
+    public long getLagMillis() {
+        OutboxNotification oldest = mongoOperations.findOne(undelivered().with(new Sort(Sort.Direction.ASC, "createdAt")), OutboxNotification.class);
+        return oldest == null ? 0 : System.currentTimeMillis() - oldest.getCreatedAt().getTime();
+    }
+
+    /**
+     * @return Number of notifications given up on
+     */
+    public long getFailedCount() {
+        return mongoOperations.count(query(where("status").is(OutboxNotification.Status.FAILED)), OutboxNotification.class);
+    }
+
+    private static Query undelivered() {
+        return query(where("status").in(OutboxNotification.Status.PENDING, OutboxNotification.Status.SENDING));
+    }
+
+    private static String fullName(Subscriber subscriber) {
+        return subscriber.getFirstname() + " " + subscriber.getLastname();
+    }
+}
@@ -0,0 +1,105 @@
+package com.riz.exercise.notification;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+import com.riz.exercise.model.SFDCServerInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.UnaryOperator;
+
+import static org.springframework.web.util.HtmlUtils.htmlEscape;
+
+/**
+ * Renders notification email bodies, in plain text and HTML, from the templates in the <code>email</code> classpath
+ * folder. Templates are parsed once, at startup.
+ * <p>
+ * The block listing the changed server instances and their statuses is the same for every subscriber to the same set
+ * of changes, so it is rendered once per distinct set of changed server instances and cached; only the greeting is
+ * rendered per recipient.
+ */
+@Component
+public class NotificationRenderer {
+
+    @Value("${com.riz.exercise.application.email.template.cacheSize:1000}")
+    private int cacheSize = 1000;
+
+    private Variant text;
+    private Variant html;
+    private Cache<List<SFDCServerInstance>, RenderedNotification> statusChangesCache;
+
+    @PostConstruct
+    public void start() throws IOException {
+        // Email bodies need CRLF line endings whatever the line endings of the template files
+        text = new Variant("txt", source -> source.replace("\r\n", "\n").replace("\n", "\r\n"));
+        html = new Variant("html", source -> source);
+        statusChangesCache = CacheBuilder.newBuilder().maximumSize(cacheSize).recordStats().build();
+    }
+
+    /**
+     * @param name Full name of the recipient
+     * @param servers The changed server instances, in the order they should be listed
+     * @return The email body, as plain text and HTML
+     */
+    public RenderedNotification render(String name, Collection<SFDCServerInstance> servers) {
+        RenderedNotification statusChanges = getStatusChanges(ImmutableList.copyOf(servers));
+        return new RenderedNotification(
+                text.notification.render(ImmutableMap.of("name", name, "statusChanges", statusChanges.getText())),
+                html.notification.render(ImmutableMap.of("name", htmlEscape(name), "statusChanges", statusChanges.getHtml())));
+    }
+
+    /**
+     * @return Number of distinct sets of changed server instances whose status block is currently cached
+     */
+    public long getCachedStatusChanges() {
+        return statusChangesCache.size();
+    }
+
+    private RenderedNotification getStatusChanges(List<SFDCServerInstance> servers) {
+        try {
+            // SFDCServerInstance equality is on key and status: exactly what the status block shows
+            return statusChangesCache.get(servers, () -> new RenderedNotification(
+                    text.renderStatusChanges(servers, s -> s),
+                    html.renderStatusChanges(servers, s -> htmlEscape(s))));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to render status changes", e.getCause());
+        }
+    }
+
+    /**
+     * The parsed templates of one email body variant
+     */
+    private static class Variant {
+        private final NotificationTemplate notification;
+        private final NotificationTemplate statusChanges;
+        private final NotificationTemplate serverStatus;
+
+        Variant(String extension, UnaryOperator<String> normalizer) throws IOException {
+            notification = load("notification." + extension, normalizer);
+            statusChanges = load("status-changes." + extension, normalizer);
+            serverStatus = load("server-status." + extension, normalizer);
+        }
+
+        String renderStatusChanges(List<SFDCServerInstance> servers, UnaryOperator<String> escaper) {
+            StringBuilder serverStatuses = new StringBuilder();
+            servers.stream().forEach(s -> serverStatus.render(
+                    ImmutableMap.of("key", escaper.apply(String.valueOf(s.getKey())), "status", escaper.apply(String.valueOf(s.getStatus()))),
+                    serverStatuses));
+            return statusChanges.render(ImmutableMap.of("count", String.valueOf(servers.size()), "servers", serverStatuses.toString()));
+        }
+
+        private static NotificationTemplate load(String name, UnaryOperator<String> normalizer) throws IOException {
+            String source = Resources.toString(Resources.getResource("email/" + name), Charsets.UTF_8);
+            return NotificationTemplate.parse(name, normalizer.apply(source));
+        }
+    }
+}
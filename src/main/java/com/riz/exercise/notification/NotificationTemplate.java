@@ -0,0 +1,83 @@
+package com.riz.exercise.notification;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A template parsed once into literal text and <code>${name}</code> placeholders, so that rendering is nothing more
+ * than appending segments to a buffer.
+ */
+public class NotificationTemplate {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{(\\w+)\\}");
+
+    private final String name;
+    private final List<Segment> segments;
+
+    private NotificationTemplate(String name, List<Segment> segments) {
+        this.name = name;
+        this.segments = ImmutableList.copyOf(segments);
+    }
+
+    /**
+     * @param name Template name, for error messages
+     * @param source Template text with <code>${name}</code> placeholders
+     */
+    public static NotificationTemplate parse(String name, String source) {
+        List<Segment> segments = new ArrayList<>();
+        Matcher matcher = PLACEHOLDER.matcher(source);
+        int literalStart = 0;
+        while (matcher.find()) {
+            if (matcher.start() > literalStart) {
+                segments.add(new Segment(source.substring(literalStart, matcher.start()), false));
+            }
+            segments.add(new Segment(matcher.group(1), true));
+            literalStart = matcher.end();
+        }
+        if (literalStart < source.length()) {
+            segments.add(new Segment(source.substring(literalStart), false));
+        }
+        return new NotificationTemplate(name, segments);
+    }
+
+    /**
+     * Appends the template to a buffer, with each placeholder replaced by its value as is (i.e.: values must already
+     * be escaped as the template's format requires)
+     *
+     * @throws IllegalArgumentException If a placeholder has no value
+     */
+    public StringBuilder render(Map<String, String> values, StringBuilder buffer) {
+        for (Segment segment : segments) {
+            if (!segment.placeholder) {
+                buffer.append(segment.text);
+                continue;
+            }
+            String value = values.get(segment.text);
+            if (value == null) {
+                throw new IllegalArgumentException("No value for ${" + segment.text + "} in template " + name);
+            }
+            buffer.append(value);
+        }
+        return buffer;
+    }
+
+    public String render(Map<String, String> values) {
+        return render(values, new StringBuilder()).toString();
+    }
+
+    private static class Segment {
+        /** Literal text, or the placeholder name */
+        private final String text;
+        private final boolean placeholder;
+
+        Segment(String text, boolean placeholder) {
+            this.text = text;
+            this.placeholder = placeholder;
+        }
+    }
+}
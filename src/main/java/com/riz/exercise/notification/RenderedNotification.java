@@ -0,0 +1,23 @@
+package com.riz.exercise.notification;
+
+/**
+ * The plain text and HTML variants of a notification email body
+ */
+public class RenderedNotification {
+
+    private final String text;
+    private final String html;
+
+    public RenderedNotification(String text, String html) {
+        this.text = text;
+        this.html = html;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getHtml() {
+        return html;
+    }
+}
@@ -0,0 +1,158 @@
+package com.riz.exercise.notification;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.mail.MailAuthenticationException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single, reusable SMTP connection.
+ * <p>
+ * Unlike {@link JavaMailSenderImpl#send(MimeMessage...)}, which opens (and authenticates, and negotiates STARTTLS
+ * for) a new connection on every call, the connection is kept open across calls to {@link #send(MimeMessage...)} until
+ * <code>maxMessagesPerConnection</code> messages have been sent over it, a message fails in a way that drops the
+ * connection, or it is {@link #close() closed}. Not thread safe: meant to be owned by a single sending thread.
+ */
+public class SmtpConnection implements AutoCloseable {
+
+    private final JavaMailSenderImpl mailSender;
+    private final int maxMessagesPerConnection;
+
+    private Transport transport;
+    private int sentOnConnection;
+    private int connectCount;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * @param mailSender Supplies the mail session, SMTP server and credentials
+     * @param maxMessagesPerConnection Messages to send before the connection is recycled. Many SMTP servers cap the
+     *        number of messages accepted per connection.
+     */
+    public SmtpConnection(JavaMailSenderImpl mailSender, int maxMessagesPerConnection) {
+        this.mailSender = mailSender;
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+    }
+
+    /**
+     * Sends messages over the connection, (re)connecting as needed.
+     *
+     * @throws MailAuthenticationException If the SMTP server rejects the credentials before any message is sent
+     * @throws MailSendException Listing every message that could not be sent; all others were sent. Messages left
+     *         unsent by the credentials being rejected on reconnecting are listed with a
+     *         {@link MailAuthenticationException}.
+     */
+    public void send(MimeMessage... messages) {
+        Map<Object, Exception> failedMessages = new LinkedHashMap<>();
+        for (int i = 0; i < messages.length; i++) {
+            MimeMessage message = messages[i];
+            try {
+                connect();
+            } catch (AuthenticationFailedException e) {
+                if (i == 0) {
+                    throw new MailAuthenticationException(e);
+                }
+                // The messages sent before must not be reported failed, or they would be sent again
+                MailAuthenticationException cause = new MailAuthenticationException(e);
+                for (int j = i; j < messages.length; j++) {
+                    failedMessages.put(messages[j], cause);
+                }
+                break;
+            } catch (MessagingException e) {
+                // Without a connection none of the remaining messages can be sent
+                for (int j = i; j < messages.length; j++) {
+                    failedMessages.put(messages[j], e);
+                }
+                break;
+            }
+
+            try {
+                prepare(message);
+                transport.sendMessage(message, message.getAllRecipients());
+                if (++sentOnConnection >= maxMessagesPerConnection) {
+                    close();
+                }
+            } catch (MessagingException e) {
+                failedMessages.put(message, e);
+                if (!transport.isConnected()) {
+                    close();
+                }
+            }
+        }
+
+        if (!failedMessages.isEmpty()) {
+            throw new MailSendException(failedMessages);
+        }
+    }
+
+    /**
+     * Closes the connection, if open. The next {@link #send(MimeMessage...)} reconnects.
+     */
+    @Override
+    public void close() {
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                logger.debug("Error closing SMTP connection", e);
+            }
+            transport = null;
+            sentOnConnection = 0;
+        }
+    }
+
+    /**
+     * @return Number of times this connection was (re)established
+     */
+    public int getConnectCount() {
+        return connectCount;
+    }
+
+    private void connect() throws MessagingException {
+        if (transport != null && transport.isConnected()) {
+            return;
+        }
+        close();
+
+        // Blank credentials mean no authentication, same as JavaMailSenderImpl
+        String username = mailSender.getUsername();
+        String password = mailSender.getPassword();
+        if ("".equals(username)) {
+            username = null;
+            if ("".equals(password)) {
+                password = null;
+            }
+        }
+
+        String protocol = mailSender.getProtocol();
+        if (protocol == null) {
+            protocol = mailSender.getSession().getProperty("mail.transport.protocol");
+        }
+        Transport newTransport = mailSender.getSession().getTransport(protocol != null ? protocol : JavaMailSenderImpl.DEFAULT_PROTOCOL);
+        newTransport.connect(mailSender.getHost(), mailSender.getPort(), username, password);
+        transport = newTransport;
+        connectCount++;
+        logger.debug("Connected to SMTP server {}:{}", mailSender.getHost(), mailSender.getPort());
+    }
+
+    private static void prepare(MimeMessage message) throws MessagingException {
+        if (message.getSentDate() == null) {
+            message.setSentDate(new Date());
+        }
+        // Same as JavaMailSenderImpl: keep any explicitly set Message-ID across saveChanges()
+        String messageId = message.getMessageID();
+        message.saveChanges();
+        if (messageId != null) {
+            message.setHeader("Message-ID", messageId);
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.riz.exercise.notification;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Posts notifications to subscribers' webhooks asynchronously, off the notifier job's scheduler thread.
+ * <p>
+ * Notifications are queued on a bounded queue drained by a pool of worker threads. Each worker takes up to
+ * <code>batchSize</code> queued notifications at a time and posts those for the same endpoint together, as one JSON
+ * object holding an array of {@link WebhookNotification}s:
+ * <pre>
+ * {"notifications": [{"id": "...", "subscriberId": "...", "servers": [{"key": "NA16", "status": "OK", ...}], "detectedAt": 1480000000000}]}
+ * </pre>
+ * Posts go through a pooled HTTP client whose connections are kept alive for up to <code>keepAliveMillis</code> between
+ * posts, at most <code>maxConnections</code> of them and <code>maxConnectionsPerTarget</code> to any one endpoint's
+ * host: a worker posting to a target already at its limit waits for one of its connections, so a slow endpoint holds up
+ * at most that many posts at a time. Connecting times out after <code>connectTimeoutMillis</code>, and waiting for a
+ * connection or a response after <code>timeoutMillis</code>.
+ * <p>
+ * A post that fails for a transient reason (connection failures, timeouts, <code>408</code>, <code>429</code> and
+ * <code>5xx</code> statuses) is retried with exponential backoff; any other status is final. When the queue is full
+ * {@link #submit} blocks, pushing back on the producer rather than buffering without bound. Retries still waiting when
+ * the dispatcher stops are given up on.
+ * <p>
+ * Endpoints are only posted to on public addresses: unless <code>allowPrivateTargets</code> is set, a host resolving to
+ * a loopback, link-local (e.g.: a cloud metadata service), private network or wildcard address is refused, both when a
+ * subscriber registers it ({@link #isAllowedEndpoint(String)}) and whenever a connection is opened to it, so that a
+ * host that later resolves elsewhere is refused too.
+ * <p>
+ * Post times are recorded in the <code>timer.webhook.post</code> metric, and the time from a status change being
+ * detected to the notification about it being accepted by its endpoint in
+ * <code>histogram.webhook.detectionToDelivery</code>.
+ */
+@Component
+public class WebhookDispatcher {
+
+    @Autowired private CounterService counterService;
+    @Autowired private GaugeService gaugeService;
+
+    @Value("${com.riz.exercise.application.webhook.workers:4}")
+    private int workers = 4;
+    @Value("${com.riz.exercise.application.webhook.queueCapacity:1000}")
+    private int queueCapacity = 1000;
+    @Value("${com.riz.exercise.application.webhook.batchSize:50}")
+    private int batchSize = 50;
+    @Value("${com.riz.exercise.application.webhook.maxConnections:50}")
+    private int maxConnections = 50;
+    @Value("${com.riz.exercise.application.webhook.maxConnectionsPerTarget:2}")
+    private int maxConnectionsPerTarget = 2;
+    @Value("${com.riz.exercise.application.webhook.connectTimeoutMillis:5000}")
+    private int connectTimeoutMillis = 5000;
+    @Value("${com.riz.exercise.application.webhook.timeoutMillis:10000}")
+    private int timeoutMillis = 10000;
+    @Value("${com.riz.exercise.application.webhook.keepAliveMillis:30000}")
+    private long keepAliveMillis = 30000;
+    @Value("${com.riz.exercise.application.webhook.maxAttempts:3}")
+    private int maxAttempts = 3;
+    @Value("${com.riz.exercise.application.webhook.initialBackoffMillis:1000}")
+    private long initialBackoffMillis = 1000;
+    @Value("${com.riz.exercise.application.webhook.allowPrivateTargets:false}")
+    private boolean allowPrivateTargets = false;
+
+    private BlockingQueue<PendingWebhook> queue;
+    private ExecutorService workerPool;
+    private ScheduledExecutorService retryScheduler;
+    // Notifications waiting to be retried
+    private final Set<PendingWebhook> retrying = ConcurrentHashMap.newKeySet();
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private volatile boolean running;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @PostConstruct
+    public void start() {
+        // The addresses connected to are those checked, whatever the host resolves to by then
+        connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                .build(), null, DefaultSchemePortResolver.INSTANCE, this::resolve, -1, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerTarget);
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeoutMillis)
+                        .setConnectionRequestTimeout(timeoutMillis)
+                        .setSocketTimeout(timeoutMillis)
+                        .build())
+                // As long as the endpoint allows, up to keepAliveMillis
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive < 0 ? keepAliveMillis : Math.min(keepAlive, keepAliveMillis);
+                })
+                .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+                // Retried here, with backoff
+                .disableAutomaticRetries()
+                .build();
+
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        workerPool = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder().setNameFormat("webhook-dispatch-%d").setDaemon(true).build());
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("webhook-retry-%d").setDaemon(true).build());
+        running = true;
+        for (int i = 0; i < workers; i++) {
+            workerPool.execute(this::work);
+        }
+        logger.info("Webhook dispatcher started with {} workers, up to {} connections per target", workers, maxConnectionsPerTarget);
+    }
+
+    /**
+     * Stops accepting retries and gives the workers a grace period to post whatever is still queued
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        retryScheduler.shutdownNow();
+        retrying.stream().filter(retrying::remove).forEach(pending -> drop(pending, pending.getLastFailure()));
+        workerPool.shutdown();
+        if (!workerPool.awaitTermination(30, TimeUnit.SECONDS)) {
+            logger.warn("Webhook dispatcher stopped with {} notifications still queued", queue.size());
+            workerPool.shutdownNow();
+        }
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the webhook client", e);
+        }
+    }
+
+    /**
+     * Queues a notification for posting. Blocks while the queue is full.
+     *
+     * @param url The endpoint to post to
+     */
+    public void submit(String url, WebhookNotification notification) throws InterruptedException {
+        submit(url, notification, failure -> {
+        });
+    }
+
+    /**
+     * Queues a notification for posting. Blocks while the queue is full.
+     *
+     * @param url The endpoint to post to
+     * @param outcome Told once the notification is accepted by the endpoint, or given up on
+     */
+    public void submit(String url, WebhookNotification notification, EmailDispatcher.Outcome outcome) throws InterruptedException {
+        submit(url, notification, maxAttempts, outcome);
+    }
+
+    /**
+     * Queues a notification for posting. Blocks while the queue is full.
+     *
+     * @param url The endpoint to post to
+     * @param maxAttempts Most times the notification is posted before it is given up on: 1 for callers retrying it
+     *        themselves
+     * @param outcome Told once the notification is accepted by the endpoint, or given up on
+     */
+    public void submit(String url, WebhookNotification notification, int maxAttempts, EmailDispatcher.Outcome outcome) throws InterruptedException {
+        queue.put(new PendingWebhook(url, notification, maxAttempts, outcome));
+    }
+
+    /**
+     * @return Number of notifications queued and not yet picked up by a worker
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return Connections to all endpoints: leased to a post, kept alive and available, and posts waiting for one
+     */
+    public PoolStats getConnectionStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return true for a {@link #isValidEndpoint(String) valid} endpoint whose host only resolves to public addresses,
+     *         or to any if <code>allowPrivateTargets</code> is set
+     */
+    public boolean isAllowedEndpoint(String url) {
+        if (!isValidEndpoint(url)) {
+            return false;
+        }
+        try {
+            resolve(URI.create(url).getHost());
+            return true;
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true for an absolute <code>http</code> or <code>https</code> url, the only endpoints notifications are
+     *         posted to
+     */
+    public static boolean isValidEndpoint(String url) {
+        try {
+            URI uri = new URI(url);
+            return ("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme())) && uri.getHost() != null;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resolves a host, for connecting to it as well as for checking it
+     *
+     * @throws UnknownHostException If it doesn't resolve, or resolves to any address but public ones while those are
+     *         all that is allowed
+     */
+    private InetAddress[] resolve(String host) throws UnknownHostException {
+        InetAddress[] addresses = SystemDefaultDnsResolver.INSTANCE.resolve(host);
+        if (!allowPrivateTargets && !Arrays.stream(addresses).allMatch(WebhookDispatcher::isPublic)) {
+            throw new PrivateTargetException(host);
+        }
+        return addresses;
+    }
+
+    /**
+     * @return false for loopback, link-local, private network (IPv4 site-local and IPv6 unique local), wildcard and
+     *         multicast addresses
+     */
+    static boolean isPublic(InetAddress address) {
+        return !(address.isLoopbackAddress() || address.isLinkLocalAddress() || address.isSiteLocalAddress()
+                || address.isAnyLocalAddress() || address.isMulticastAddress()
+                || address instanceof Inet6Address && (address.getAddress()[0] & 0xfe) == 0xfc);
+    }
+
+    private void work() {
+        List<PendingWebhook> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWebhook first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                batch.stream()
+                        .collect(Collectors.groupingBy(PendingWebhook::getUrl, LinkedHashMap::new, Collectors.toList()))
+                        .forEach(this::post);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                // Never let a worker die: the pool would silently shrink
+                logger.error("Unexpected error posting {} notifications", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Posts notifications to the same endpoint, as one batch
+     */
+    private void post(String url, List<PendingWebhook> batch) {
+        Exception failure = null;
+        long start = System.currentTimeMillis();
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(Collections.singletonMap("notifications",
+                    batch.stream().map(PendingWebhook::getNotification).collect(Collectors.toList())));
+            HttpPost post = new HttpPost(url);
+            post.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+            try (CloseableHttpResponse response = httpClient.execute(post)) {
+                // Read to the end, so that the connection goes back to the pool to be kept alive
+                EntityUtils.consume(response.getEntity());
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode < 200 || statusCode >= 300) {
+                    failure = new WebhookRejectedException(url, statusCode);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            failure = e;
+        }
+        // The post alone, not the recording of its outcome
+        gaugeService.submit("timer.webhook.post", System.currentTimeMillis() - start);
+
+        if (failure == null) {
+            logger.debug("Posted {} notifications to {}", batch.size(), url);
+            delivered(batch);
+        } else {
+            Exception cause = failure;
+            batch.stream().forEach(pending -> retryOrDrop(pending, cause));
+        }
+    }
+
+    private void delivered(List<PendingWebhook> sent) {
+        long now = System.currentTimeMillis();
+        sent.stream().forEach(pending -> {
+            counterService.increment("webhook.sent");
+            if (pending.getNotification().getDetectedAt() > 0) {
+                gaugeService.submit("histogram.webhook.detectionToDelivery", now - pending.getNotification().getDetectedAt());
+            }
+            pending.complete(null);
+        });
+    }
+
+    private void retryOrDrop(PendingWebhook pending, Exception cause) {
+        int attempt = pending.failed(cause);
+        if (!isTransient(cause) || attempt >= pending.getMaxAttempts() || !running) {
+            drop(pending, cause);
+            return;
+        }
+
+        counterService.increment("webhook.retried");
+
+        long backoffMillis = initialBackoffMillis << (attempt - 1);
+        logger.warn("Webhook {} failed on attempt {}, retrying in {}ms: {}", pending.getUrl(), attempt, backoffMillis, cause.getMessage());
+        retrying.add(pending);
+        try {
+            retryScheduler.schedule(() -> requeue(pending), backoffMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopping
+            if (retrying.remove(pending)) {
+                drop(pending, cause);
+            }
+        }
+    }
+
+    private void requeue(PendingWebhook pending) {
+        // Already given up on if the dispatcher stopped meanwhile
+        if (!retrying.remove(pending)) {
+            return;
+        }
+        if (queue.offer(pending)) {
+            return;
+        }
+        if (!running) {
+            drop(pending, pending.getLastFailure());
+            return;
+        }
+        // Don't block the retry scheduler on a full queue, try again a little later instead
+        retrying.add(pending);
+        try {
+            retryScheduler.schedule(() -> requeue(pending), initialBackoffMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (retrying.remove(pending)) {
+                drop(pending, pending.getLastFailure());
+            }
+        }
+    }
+
+    private void drop(PendingWebhook pending, Exception cause) {
+        counterService.increment("webhook.dropped");
+        logger.error("Giving up on webhook {} after {} attempt(s): {}", pending.getUrl(), pending.getAttempts(), cause.getMessage());
+        pending.complete(cause);
+    }
+
+    /**
+     * @return false for failures that will fail again however often they are retried: malformed urls and payloads, and
+     *         statuses other than <code>408</code> (request timeout), <code>429</code> (too many requests) and
+     *         <code>5xx</code>
+     */
+    static boolean isTransient(Throwable cause) {
+        if (cause instanceof PrivateTargetException) {
+            return false;
+        }
+        if (cause instanceof WebhookRejectedException) {
+            int statusCode = ((WebhookRejectedException) cause).getStatusCode();
+            return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+        }
+        return cause instanceof IOException && !(cause instanceof JsonProcessingException) && !(cause instanceof ClientProtocolException);
+    }
+
+    /**
+     * Thrown when an endpoint's host resolves to an address notifications may not be posted to
+     */
+    static class PrivateTargetException extends UnknownHostException {
+
+        private static final long serialVersionUID = 1L;
+
+        PrivateTargetException(String host) {
+            super(host + " resolves to a non-public address");
+        }
+    }
+
+    private static class PendingWebhook {
+        private final String url;
+        private final WebhookNotification notification;
+        private final int maxAttempts;
+        private final EmailDispatcher.Outcome outcome;
+        private int attempts;
+        private Exception lastFailure;
+
+        PendingWebhook(String url, WebhookNotification notification, int maxAttempts, EmailDispatcher.Outcome outcome) {
+            this.url = url;
+            this.notification = notification;
+            this.maxAttempts = maxAttempts;
+            this.outcome = outcome;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        WebhookNotification getNotification() {
+            return notification;
+        }
+
+        int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        int getAttempts() {
+            return attempts;
+        }
+
+        Exception getLastFailure() {
+            return lastFailure;
+        }
+
+        /**
+         * @return The number of attempts made, this failed one included
+         */
+        int failed(Exception cause) {
+            lastFailure = cause;
+            return ++attempts;
+        }
+
+        void complete(Exception failure) {
+            try {
+                outcome.completed(failure);
+            } catch (RuntimeException e) {
+                LoggerFactory.getLogger(WebhookDispatcher.class).error("Webhook outcome could not be recorded", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.riz.exercise.notification;
+
+import com.riz.exercise.model.SFDCServerInstance;
+
+import java.util.List;
+
+/**
+ * A notification as posted to a subscriber's webhook, one of the <code>notifications</code> of a batch
+ */
+public class WebhookNotification {
+
+    private final String id;
+    private final String subscriberId;
+    private final List<SFDCServerInstance> servers;
+    private final long detectedAt;
+
+    /**
+     * @param id The notification's idempotency key, by which a receiver can tell a notification posted twice apart, or
+     *        null if it has none
+     * @param subscriberId The subscriber notified
+     * @param servers The changed server instances, with their latest status
+     * @param detectedAt When the earliest of these status changes was detected (epoch millis), or 0 if unknown
+     */
+    public WebhookNotification(String id, String subscriberId, List<SFDCServerInstance> servers, long detectedAt) {
+        this.id = id;
+        this.subscriberId = subscriberId;
+        this.servers = servers;
+        this.detectedAt = detectedAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSubscriberId() {
+        return subscriberId;
+    }
+
+    public List<SFDCServerInstance> getServers() {
+        return servers;
+    }
+
+    public long getDetectedAt() {
+        return detectedAt;
+    }
+}
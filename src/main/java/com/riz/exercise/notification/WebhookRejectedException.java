@@ -0,0 +1,20 @@
+package com.riz.exercise.notification;
+
+/**
+ * Thrown when a webhook endpoint answers a post with anything but a <code>2xx</code> status
+ */
+public class WebhookRejectedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public WebhookRejectedException(String url, int statusCode) {
+        super("Webhook " + url + " answered " + statusCode);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,65 @@
+package com.riz.exercise.persistence;
+
+import com.google.common.collect.Range;
+import com.riz.exercise.model.StatusChangeEvent;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of server instance status changes, read incrementally by consumers that each keep a persisted
+ * cursor, so that a consumer that crashes resumes from the last event it processed.
+ */
+public interface ChangeJournal {
+
+    /**
+     * Appends events to the journal, assigning each the next sequence number
+     *
+     * @param events Events in the order they happened
+     */
+    void append(List<StatusChangeEvent> events);
+
+    /**
+     * @param sequence Sequence of the last event already read (0 to read from the start)
+     * @param limit Maximum number of events to read
+     * @return Events following the given sequence, in sequence order. Stops before an event whose append hasn't
+     *         completed yet, even if later events were already appended.
+     */
+    List<StatusChangeEvent> readAfter(long sequence, int limit);
+
+    /**
+     * @param consumer Consumer name
+     * @return Sequence of the last event the consumer has processed, 0 if none
+     */
+    long getCursor(String consumer);
+
+    /**
+     * Records that a consumer has processed all events up to and including the given sequence
+     */
+    void saveCursor(String consumer, long sequence);
+
+    /**
+     * @return The cursor of every consumer, by consumer name
+     */
+    Map<String, Long> getCursors();
+
+    /**
+     * Forgets a consumer that is gone for good, with its cursor and batch
+     */
+    void deleteCursor(String consumer);
+
+    /**
+     * Records the batch of events a consumer is about to process, before it acts on any of them, so that should it
+     * stop before saving its cursor past them it can process exactly the same events again as the same batch
+     *
+     * @param first Sequence of the batch's first event
+     * @param last Sequence of the batch's last event
+     */
+    void saveBatch(String consumer, long first, long last);
+
+    /**
+     * @param consumer Consumer name
+     * @return Sequences of the first and last event of the batch the consumer last saved, null if none
+     */
+    Range<Long> getBatch(String consumer);
+}
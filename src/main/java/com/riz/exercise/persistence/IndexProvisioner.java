@@ -0,0 +1,202 @@
+package com.riz.exercise.persistence;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.riz.exercise.model.OutboxNotification;
+import com.riz.exercise.model.SFDCServerInstance;
+import com.riz.exercise.model.StatusHistoryBucket;
+import com.riz.exercise.model.Subscriber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates, at startup, the indexes the application's queries rely on (creating an index that already exists is a
+ * no-op), then reports how mongo plans each of those queries, so that one that falls back to a collection scan is
+ * caught at startup rather than under load in production:
+ * <ul>
+ *     <li><code>serverInstances</code>: unique <code>key</code>, for {@link ServerInstanceRepository#findByKey(String)},
+ *     the diff engine's upserts and the key ordered listing</li>
+ *     <li><code>subscribers</code>: unique <code>email</code>, for {@link SubscriberRepository#findByEmail(String)};
+ *     <code>email, _id</code>, which covers {@link SubscriberRepository#findIdByEmail(String)}; and multikey
+ *     <code>servers</code>, for {@link SubscriberRepository#findByServers(String)}; and <code>modifiedAt</code>, for
+ *     {@link SubscriptionIndex#refresh()}</li>
+ *     <li><code>notificationOutbox</code>: <code>status, dueAt</code>, for claiming due notifications and counting those
+ *     undelivered; <code>status, createdAt</code>, for the oldest undelivered; <code>subscriberId, status</code>, for a
+ *     subscriber's open digest; multikey <code>batches</code>, for the idempotency check; and a TTL index on
+ *     <code>deliveredAt</code>, expiring delivered notifications after <code>outbox.retentionHours</code></li>
+ *     <li><code>statusHistory</code>: <code>key, start</code> (descending), for an instance's months of history and
+ *     each instance's latest month before a time; <code>start, end</code>, for the months of all instances within a
+ *     range (see {@link StatusHistory})</li>
+ * </ul>
+ * An index that can't be created (e.g.: a unique index over existing duplicates) is logged as an error rather than
+ * failing startup.
+ */
+@Component
+public class IndexProvisioner {
+
+    @Autowired private MongoOperations mongoOperations;
+
+    @Value("${com.riz.exercise.application.mongo.explainReport:true}")
+    private boolean explainReport = true;
+    @Value("${com.riz.exercise.application.outbox.retentionHours:168}")
+    private long outboxRetentionHours = 168;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @PostConstruct
+    public void provision() {
+        ensureIndex(SFDCServerInstance.class, new Index().on("key", Sort.Direction.ASC).unique().named("key_unique"));
+        ensureIndex(Subscriber.class, new Index().on("email", Sort.Direction.ASC).unique().named("email_unique"));
+        ensureIndex(Subscriber.class, new Index().on("email", Sort.Direction.ASC).on("_id", Sort.Direction.ASC).named("email_id"));
+        ensureIndex(Subscriber.class, new Index().on("servers", Sort.Direction.ASC).named("servers"));
+        ensureIndex(Subscriber.class, new Index().on("modifiedAt", Sort.Direction.ASC).named("modifiedAt"));
+        ensureIndex(OutboxNotification.class, new Index().on("status", Sort.Direction.ASC).on("dueAt", Sort.Direction.ASC).named("status_dueAt"));
+        ensureIndex(OutboxNotification.class, new Index().on("status", Sort.Direction.ASC).on("createdAt", Sort.Direction.ASC).named("status_createdAt"));
+        ensureIndex(OutboxNotification.class, new Index().on("subscriberId", Sort.Direction.ASC).on("status", Sort.Direction.ASC).named("subscriberId_status"));
+        ensureIndex(OutboxNotification.class, new Index().on("batches", Sort.Direction.ASC).named("batches"));
+        ensureIndex(OutboxNotification.class, new Index().on("deliveredAt", Sort.Direction.ASC).expire(outboxRetentionHours, TimeUnit.HOURS).named("deliveredAt_ttl"));
+        ensureIndex(StatusHistoryBucket.class, new Index().on("key", Sort.Direction.ASC).on("start", Sort.Direction.DESC).named("key_start"));
+        ensureIndex(StatusHistoryBucket.class, new Index().on("start", Sort.Direction.ASC).on("end", Sort.Direction.ASC).named("start_end"));
+
+        if (explainReport) {
+            report();
+        }
+    }
+
+    /**
+     * Explains every query the application runs against the indexed collections, and logs a summary of each plan: a
+     * warning for a collection scan.
+     *
+     * @return The plan summaries, by query name
+     */
+    public Map<String, QueryPlan> report() {
+        Map<String, QueryPlan> plans = new LinkedHashMap<>();
+        plans.put("serverInstances.findByKey", explain("serverInstances", new BasicDBObject("key", ""), null, null));
+        plans.put("serverInstances.findListingAfter", explain("serverInstances",
+                new BasicDBObject("key", new BasicDBObject("$gt", "")), listedServerInstanceFields(), new BasicDBObject("key", 1)));
+        plans.put("subscribers.findByEmail", explain("subscribers", new BasicDBObject("email", ""), null, null));
+        plans.put("subscribers.findIdByEmail", explain("subscribers", new BasicDBObject("email", ""), new BasicDBObject("_id", 1), null));
+        plans.put("subscribers.findByServers", explain("subscribers", new BasicDBObject("servers", ""), null, null));
+        plans.put("subscribers.findByModifiedAt", explain("subscribers",
+                new BasicDBObject("modifiedAt", new BasicDBObject("$gte", new Date())), null, null));
+        plans.put("notificationOutbox.claim", explain("notificationOutbox",
+                new BasicDBObject("status", "PENDING").append("dueAt", new BasicDBObject("$lte", new Date())), null, new BasicDBObject("dueAt", 1)));
+        plans.put("notificationOutbox.findOpenDigest", explain("notificationOutbox",
+                new BasicDBObject("subscriberId", "").append("status", "PENDING").append("attempts", 0), null, null));
+        plans.put("notificationOutbox.findByBatch", explain("notificationOutbox", new BasicDBObject("batches", ""), null, null));
+        plans.put("statusHistory.timeline", explain("statusHistory",
+                new BasicDBObject("key", "").append("start", new BasicDBObject("$lt", new Date())).append("end", new BasicDBObject("$gt", new Date())),
+                null, new BasicDBObject("start", 1)));
+        plans.put("statusHistory.availability", explain("statusHistory",
+                new BasicDBObject("start", new BasicDBObject("$gte", new Date())).append("end", new BasicDBObject("$lte", new Date())),
+                new BasicDBObject("transitions", 0), null));
+
+        plans.forEach((query, plan) -> {
+            if (plan.isCollectionScan()) {
+                logger.warn("Query plan for {}: {} (collection scan: missing index?)", query, plan);
+            } else {
+                logger.info("Query plan for {}: {}", query, plan);
+            }
+        });
+        return plans;
+    }
+
+    private void ensureIndex(Class<?> entityClass, Index index) {
+        try {
+            mongoOperations.indexOps(entityClass).ensureIndex(index);
+        } catch (DataAccessException e) {
+            logger.error("Could not create index {} on {}: {}", index.getIndexKeys(), mongoOperations.getCollectionName(entityClass), e.getMessage());
+        }
+    }
+
+    private QueryPlan explain(String collection, DBObject query, DBObject fields, DBObject sort) {
+        try {
+            return QueryPlan.of(mongoOperations.getCollection(collection).find(query, fields).sort(sort).explain());
+        } catch (RuntimeException e) {
+            logger.warn("Could not explain query {} on {}: {}", query, collection, e.getMessage());
+            return QueryPlan.of(new BasicDBObject());
+        }
+    }
+
+    private static DBObject listedServerInstanceFields() {
+        BasicDBObject fields = new BasicDBObject();
+        for (String field : new String[]{"key", "location", "environment", "releaseVersion", "status"}) {
+            fields.append(field, 1);
+        }
+        return fields.append("_id", 0);
+    }
+
+    /**
+     * The summary of a query plan: the stages of the winning plan, and whether it scans the collection or is covered
+     * by an index (i.e.: answered from the index alone, without reading any document)
+     */
+    public static class QueryPlan {
+
+        private final List<String> stages;
+
+        private QueryPlan(List<String> stages) {
+            this.stages = stages;
+        }
+
+        /**
+         * @param explain The output of an <code>explain</code>
+         */
+        static QueryPlan of(DBObject explain) {
+            List<String> stages = new ArrayList<>();
+            Object queryPlanner = explain.get("queryPlanner");
+            if (queryPlanner instanceof DBObject) {
+                collectStages((DBObject) ((DBObject) queryPlanner).get("winningPlan"), stages);
+            }
+            return new QueryPlan(stages);
+        }
+
+        private static void collectStages(DBObject plan, List<String> stages) {
+            if (plan == null) {
+                return;
+            }
+            stages.add(String.valueOf(plan.get("stage")));
+            collectStages((DBObject) plan.get("inputStage"), stages);
+            Object inputStages = plan.get("inputStages");
+            if (inputStages instanceof List) {
+                for (Object inputStage : (List<?>) inputStages) {
+                    collectStages((DBObject) inputStage, stages);
+                }
+            }
+        }
+
+        /**
+         * @return The stages of the winning plan, outermost first (e.g.: <code>[FETCH, IXSCAN]</code>)
+         */
+        public List<String> getStages() {
+            return stages;
+        }
+
+        public boolean isCollectionScan() {
+            return stages.contains("COLLSCAN");
+        }
+
+        public boolean isCovered() {
+            return stages.contains("IXSCAN") && !stages.contains("FETCH") && !isCollectionScan();
+        }
+
+        @Override
+        public String toString() {
+            return stages.isEmpty() ? "unknown" : String.join(" <- ", stages) + (isCovered() ? " (covered)" : "");
+        }
+    }
+}
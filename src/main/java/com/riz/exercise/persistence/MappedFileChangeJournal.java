@@ -0,0 +1,235 @@
+package com.riz.exercise.persistence;
+
+import com.google.common.collect.Range;
+import com.riz.exercise.model.StatusChangeEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * {@link ChangeJournal} kept in a local memory-mapped file, for running without a database (e.g.: in tests).
+ * <p>
+ * The file starts with a header holding the end of the last complete record and the last sequence number, followed by
+ * length-prefixed records. The header is only advanced once a record has been written in full, so a torn append is
+ * ignored on reopening. Consumer cursors, and the batches they last started, are kept next to the journal, in a
+ * properties file replaced atomically on every save.
+ */
+@Component
+@ConditionalOnProperty(name = "com.riz.exercise.application.journal.type", havingValue = "file")
+public class MappedFileChangeJournal implements ChangeJournal, Closeable {
+
+    private static final int HEADER_SIZE = 16;
+    private static final int DEFAULT_CAPACITY = 1 << 20;
+    private static final String BATCH_SUFFIX = ".batch";
+
+    private final Path cursorsPath;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+    private long lastSequence;
+    /** Record offsets, by sequence - 1 */
+    private final List<Integer> offsets = new ArrayList<>();
+    private final Properties cursors = new Properties();
+
+    @Autowired
+    public MappedFileChangeJournal(@Value("${com.riz.exercise.application.journal.file:journal.dat}") String path) throws IOException {
+        this(Paths.get(path), DEFAULT_CAPACITY);
+    }
+
+    public MappedFileChangeJournal(Path path, int initialCapacity) throws IOException {
+        this.cursorsPath = path.resolveSibling(path.getFileName() + ".cursors");
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), Math.max(initialCapacity, HEADER_SIZE)));
+
+        writePosition = buffer.getLong(0) == 0 ? HEADER_SIZE : (int) buffer.getLong(0);
+        lastSequence = buffer.getLong(8);
+        for (int position = HEADER_SIZE; position < writePosition; position += Integer.BYTES + buffer.getInt(position)) {
+            offsets.add(position);
+        }
+
+        if (Files.exists(cursorsPath)) {
+            try (InputStream in = Files.newInputStream(cursorsPath)) {
+                cursors.load(in);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void append(List<StatusChangeEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        int position = writePosition;
+        long sequence = lastSequence;
+        List<Integer> appendedOffsets = new ArrayList<>();
+        for (StatusChangeEvent event : events) {
+            event.setSequence(++sequence);
+            byte[] record = encode(event);
+            ensureCapacity(position + Integer.BYTES + record.length);
+            buffer.putInt(position, record.length);
+            buffer.position(position + Integer.BYTES);
+            buffer.put(record);
+            appendedOffsets.add(position);
+            position += Integer.BYTES + record.length;
+        }
+        // Commit: records first, then the header that makes them visible
+        buffer.force();
+        buffer.putLong(0, position);
+        buffer.putLong(8, sequence);
+        buffer.force();
+
+        writePosition = position;
+        lastSequence = sequence;
+        offsets.addAll(appendedOffsets);
+    }
+
+    @Override
+    public synchronized List<StatusChangeEvent> readAfter(long sequence, int limit) {
+        List<StatusChangeEvent> events = new ArrayList<>();
+        for (long i = Math.max(sequence, 0); i < offsets.size() && events.size() < limit; i++) {
+            int position = offsets.get((int) i);
+            byte[] record = new byte[buffer.getInt(position)];
+            buffer.position(position + Integer.BYTES);
+            buffer.get(record);
+            events.add(decode(record));
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized long getCursor(String consumer) {
+        return Long.parseLong(cursors.getProperty(consumer, "0"));
+    }
+
+    @Override
+    public synchronized void saveCursor(String consumer, long sequence) {
+        cursors.setProperty(consumer, Long.toString(sequence));
+        storeCursors(consumer);
+    }
+
+    @Override
+    public synchronized Map<String, Long> getCursors() {
+        return cursors.stringPropertyNames().stream()
+                .filter(name -> !name.endsWith(BATCH_SUFFIX))
+                .collect(Collectors.toMap(Function.identity(), this::getCursor));
+    }
+
+    @Override
+    public synchronized void deleteCursor(String consumer) {
+        cursors.remove(consumer);
+        cursors.remove(consumer + BATCH_SUFFIX);
+        storeCursors(consumer);
+    }
+
+    @Override
+    public synchronized void saveBatch(String consumer, long first, long last) {
+        cursors.setProperty(consumer + BATCH_SUFFIX, first + "-" + last);
+        storeCursors(consumer);
+    }
+
+    @Override
+    public synchronized Range<Long> getBatch(String consumer) {
+        String batch = cursors.getProperty(consumer + BATCH_SUFFIX);
+        if (batch == null) {
+            return null;
+        }
+        int dash = batch.indexOf('-');
+        return Range.closed(Long.parseLong(batch.substring(0, dash)), Long.parseLong(batch.substring(dash + 1)));
+    }
+
+    private void storeCursors(String consumer) {
+        try {
+            Path temp = cursorsPath.resolveSibling(cursorsPath.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                cursors.store(out, null);
+            }
+            Files.move(temp, cursorsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to save journal cursor " + consumer, e);
+        }
+    }
+
+    @PreDestroy
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= buffer.capacity()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        while (capacity < required) {
+            capacity *= 2;
+        }
+        try {
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to grow journal to " + capacity + " bytes", e);
+        }
+    }
+
+    private static byte[] encode(StatusChangeEvent event) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(event.getSequence());
+            out.writeLong(event.getTimestamp() != null ? event.getTimestamp().getTime() : 0);
+            out.writeByte(event.getType().ordinal());
+            writeNullableString(out, event.getKey());
+            writeNullableString(out, event.getOldStatus());
+            writeNullableString(out, event.getNewStatus());
+            writeNullableString(out, event.getReleaseVersion());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static StatusChangeEvent decode(byte[] record) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            StatusChangeEvent event = new StatusChangeEvent();
+            event.setSequence(in.readLong());
+            event.setTimestamp(new Date(in.readLong()));
+            event.setType(StatusChangeEvent.Type.values()[in.readByte()]);
+            event.setKey(readNullableString(in));
+            event.setOldStatus(readNullableString(in));
+            event.setNewStatus(readNullableString(in));
+            event.setReleaseVersion(readNullableString(in));
+            return event;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,131 @@
+package com.riz.exercise.persistence;
+
+import com.google.common.collect.Range;
+import com.riz.exercise.model.JournalCursor;
+import com.riz.exercise.model.StatusChangeEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * {@link ChangeJournal} stored in the <code>statusChangeEvents</code> collection, with consumer cursors in
+ * <code>journalCursors</code>. The default journal.
+ * <p>
+ * An append reserves its sequence numbers before inserting its events, so appends that overlap can be written out of
+ * order: a later append's events can be read while an earlier one's are still being inserted. Reads stop before the
+ * first sequence number missing, so that a consumer never moves its cursor past events it hasn't seen. A sequence
+ * number still missing after <code>gapTimeoutMillis</code> is taken for an append that failed, and read past.
+ */
+@Component
+@ConditionalOnProperty(name = "com.riz.exercise.application.journal.type", havingValue = "mongo", matchIfMissing = true)
+public class MongoChangeJournal implements ChangeJournal {
+
+    private static final String SEQUENCE_COLLECTION = "journalSequences";
+
+    @Autowired private MongoOperations mongoOperations;
+
+    @Value("${com.riz.exercise.application.journal.gapTimeoutMillis:60000}")
+    private long gapTimeoutMillis = 60000;
+
+    // First sequence number of each gap found reading the journal, and when it was found
+    private final Map<Long, Long> gaps = new ConcurrentHashMap<>();
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Override
+    public void append(List<StatusChangeEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        // Reserve a block of sequence numbers for all events in one round trip
+        JournalCursor lastAllocated = mongoOperations.findAndModify(
+                query(where("_id").is(StatusChangeEvent.class.getSimpleName())),
+                new Update().inc("sequence", events.size()),
+                FindAndModifyOptions.options().returnNew(true).upsert(true),
+                JournalCursor.class, SEQUENCE_COLLECTION);
+        long sequence = lastAllocated.getSequence() - events.size();
+        for (StatusChangeEvent event : events) {
+            event.setSequence(++sequence);
+        }
+        mongoOperations.insert(events, StatusChangeEvent.class);
+    }
+
+    @Override
+    public List<StatusChangeEvent> readAfter(long sequence, int limit) {
+        List<StatusChangeEvent> events = mongoOperations.find(
+                query(where("sequence").gt(sequence)).with(new Sort(Sort.Direction.ASC, "sequence")).limit(limit),
+                StatusChangeEvent.class);
+        gaps.keySet().removeIf(gap -> gap <= sequence);
+        long expected = sequence + 1;
+        for (int i = 0; i < events.size(); i++) {
+            long next = events.get(i).getSequence();
+            if (next != expected && !isAbandoned(expected, next)) {
+                return new ArrayList<>(events.subList(0, i));
+            }
+            expected = next + 1;
+        }
+        return events;
+    }
+
+    /**
+     * @return true if the sequence numbers from first up to next were reserved too long ago to still be written
+     */
+    private boolean isAbandoned(long first, long next) {
+        long now = System.currentTimeMillis();
+        if (now - gaps.computeIfAbsent(first, gap -> now) < gapTimeoutMillis) {
+            return false;
+        }
+        gaps.remove(first);
+        logger.warn("Reading past journal sequence numbers {} to {}, never written", first, next - 1);
+        return true;
+    }
+
+    @Override
+    public long getCursor(String consumer) {
+        JournalCursor cursor = mongoOperations.findById(consumer, JournalCursor.class);
+        return cursor != null ? cursor.getSequence() : 0;
+    }
+
+    @Override
+    public void saveCursor(String consumer, long sequence) {
+        mongoOperations.upsert(query(where("_id").is(consumer)), new Update().set("sequence", sequence), JournalCursor.class);
+    }
+
+    @Override
+    public Map<String, Long> getCursors() {
+        return mongoOperations.findAll(JournalCursor.class).stream()
+                .collect(Collectors.toMap(JournalCursor::getId, JournalCursor::getSequence));
+    }
+
+    @Override
+    public void deleteCursor(String consumer) {
+        mongoOperations.remove(query(where("_id").is(consumer)), JournalCursor.class);
+    }
+
+    @Override
+    public void saveBatch(String consumer, long first, long last) {
+        mongoOperations.upsert(query(where("_id").is(consumer)), new Update().set("batchFirst", first).set("batchLast", last), JournalCursor.class);
+    }
+
+    @Override
+    public Range<Long> getBatch(String consumer) {
+        JournalCursor cursor = mongoOperations.findById(consumer, JournalCursor.class);
+        return cursor != null && cursor.getBatchLast() > 0 ? Range.closed(cursor.getBatchFirst(), cursor.getBatchLast()) : null;
+    }
+}
@@ -0,0 +1,230 @@
+package com.riz.exercise.persistence;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.mongodb.BasicDBObject;
+import com.riz.exercise.model.SFDCServerInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * In-process, write-through cache of the <code>serverInstances</code> collection, keyed by server instance key, shared
+ * by the notifier job and the servers page.
+ * <p>
+ * The collection is read once, on first use, and from then on every write to it updates the cache: bulk writes by
+ * {@link ServerInstanceRepositoryImpl#bulkUpsertByKey}, and saves through {@link ServerInstanceRepository} by way of
+ * {@link ServerInstanceCacheListener}. Reads of a complete cache never touch mongo.
+ * <p>
+ * The cache holds at most <code>maxSize</code> server instances. Should the collection outgrow it, the cache is no
+ * longer complete: {@link #get(String)} then loads and caches server instances one key at a time, {@link #getAll()}
+ * reads the whole collection again, caching it once more if it fits, and {@link #isComplete()} tells callers that can
+ * to query mongo instead.
+ * <p>
+ * Every write also bumps a version stamp in mongo. Other nodes check it at most every <code>checkMillis</code> on
+ * read, and drop their cache when it has moved on.
+ */
+@Component
+public class ServerInstanceCache {
+
+    private static final String VERSION_COLLECTION = "cacheVersions";
+    private static final String VERSION_ID = "serverInstances";
+
+    @Autowired private MongoOperations mongoOperations;
+
+    @Value("${com.riz.exercise.application.cache.servers.maxSize:10000}")
+    private int maxSize = 10000;
+
+    @Value("${com.riz.exercise.application.cache.servers.checkMillis:1000}")
+    private long checkMillis = 1000;
+
+    // Absent values stand for keys looked up but not in the collection
+    private Cache<String, Optional<SFDCServerInstance>> cache;
+    private volatile boolean complete;
+    private volatile long version;
+    private volatile long checkedAt;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @PostConstruct
+    public void start() {
+        cache = CacheBuilder.newBuilder()
+                // A single segment, so that maxSize bounds the whole cache rather than each segment's share of it
+                .concurrencyLevel(1)
+                .maximumSize(maxSize)
+                .removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE && complete) {
+                        logger.warn("Server instances outgrew the cache (maxSize {}): reads will go to the data store", maxSize);
+                        complete = false;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return A copy of all server instances by key, read from mongo only if the cache isn't complete
+     */
+    public Map<String, SFDCServerInstance> getAll() {
+        checkVersion();
+        if (complete) {
+            return copy();
+        }
+        return load();
+    }
+
+    /**
+     * @return The server instance with the given key, or null if there is none
+     */
+    public SFDCServerInstance get(String key) {
+        checkVersion();
+        if (complete) {
+            Optional<SFDCServerInstance> cached = cache.getIfPresent(key);
+            return cached == null ? null : cached.orElse(null);
+        }
+        try {
+            return cache.get(key, () -> Optional.ofNullable(mongoOperations.findOne(query(where("key").is(key)), SFDCServerInstance.class))).orElse(null);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("Failed to load server instance " + key, e.getCause());
+        }
+    }
+
+    /**
+     * @return true if the cache holds every server instance, i.e.: it has been loaded, and has not been invalidated
+     *         or outgrown since
+     */
+    public boolean isComplete() {
+        checkVersion();
+        return complete;
+    }
+
+    /**
+     * @return Number of server instances cached
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    public synchronized void put(SFDCServerInstance serverInstance) {
+        cache.put(serverInstance.getKey(), Optional.of(serverInstance));
+        written();
+    }
+
+    /**
+     * Applies a write made to the collection
+     *
+     * @param upserts Server instances inserted or updated
+     * @param removedKeys Keys of server instances removed
+     */
+    public synchronized void putAll(Collection<SFDCServerInstance> upserts, Collection<String> removedKeys) {
+        upserts.stream().forEach(si -> cache.put(si.getKey(), Optional.of(si)));
+        cache.invalidateAll(removedKeys);
+        written();
+    }
+
+    /**
+     * Applies a removal from the collection whose keys aren't known (e.g.: a delete by id)
+     */
+    public synchronized void removed() {
+        invalidateAll();
+        written();
+    }
+
+    /**
+     * Discards the cache, so that the collection is read again on next use
+     */
+    public synchronized void invalidateAll() {
+        complete = false;
+        cache.invalidateAll();
+    }
+
+    private synchronized Map<String, SFDCServerInstance> load() {
+        if (complete) {
+            return copy();
+        }
+        // Read before the collection, so that a write made meanwhile is picked up by the next check
+        long loadedVersion = readVersion();
+        List<SFDCServerInstance> serverInstances = mongoOperations.findAll(SFDCServerInstance.class);
+        logger.info("Fetched {} instances from local repository", serverInstances.size());
+        Map<String, SFDCServerInstance> serverInstancesByKey = new HashMap<>();
+        serverInstances.stream().forEach(si -> serverInstancesByKey.put(si.getKey(), si));
+
+        if (serverInstancesByKey.size() > maxSize) {
+            logger.warn("{} server instances don't fit in the cache (maxSize {}): reads will go to the data store", serverInstancesByKey.size(), maxSize);
+        } else {
+            cache.invalidateAll();
+            serverInstancesByKey.forEach((key, si) -> cache.put(key, Optional.of(si)));
+            version = loadedVersion;
+            complete = true;
+        }
+        return serverInstancesByKey;
+    }
+
+    private Map<String, SFDCServerInstance> copy() {
+        Map<String, SFDCServerInstance> serverInstancesByKey = new HashMap<>();
+        cache.asMap().forEach((key, si) -> si.ifPresent(present -> serverInstancesByKey.put(key, present)));
+        return serverInstancesByKey;
+    }
+
+    /**
+     * Drops the cache if another node wrote to the collection since it was loaded
+     */
+    private void checkVersion() {
+        long now = System.currentTimeMillis();
+        if (now - checkedAt < checkMillis) {
+            return;
+        }
+        checkedAt = now;
+        long current = readVersion();
+        synchronized (this) {
+            if (current != version) {
+                logger.info("Server instances were written by another node: dropping the cache");
+                invalidateAll();
+                version = current;
+            }
+        }
+    }
+
+    /**
+     * Bumps the version stamp after a write by this node, which keeps its cache only if no other node wrote meanwhile
+     */
+    private void written() {
+        BasicDBObject stamp = mongoOperations.findAndModify(
+                query(where("_id").is(VERSION_ID)),
+                new Update().inc("version", 1),
+                FindAndModifyOptions.options().returnNew(true).upsert(true),
+                BasicDBObject.class, VERSION_COLLECTION);
+        long written = versionOf(stamp);
+        synchronized (this) {
+            if (written != version + 1) {
+                invalidateAll();
+            }
+            version = written;
+        }
+    }
+
+    private long readVersion() {
+        return versionOf(mongoOperations.findById(VERSION_ID, BasicDBObject.class, VERSION_COLLECTION));
+    }
+
+    private static long versionOf(BasicDBObject stamp) {
+        return stamp == null ? 0 : ((Number) stamp.get("version")).longValue();
+    }
+}
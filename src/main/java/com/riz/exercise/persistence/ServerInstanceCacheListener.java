@@ -0,0 +1,29 @@
+package com.riz.exercise.persistence;
+
+import com.riz.exercise.model.SFDCServerInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the {@link ServerInstanceCache} in step with server instances saved or deleted through
+ * {@link ServerInstanceRepository} (e.g.: a status updated on the servers page)
+ */
+@Component
+public class ServerInstanceCacheListener extends AbstractMongoEventListener<SFDCServerInstance> {
+
+    @Autowired private ServerInstanceCache serverInstanceCache;
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<SFDCServerInstance> event) {
+        serverInstanceCache.put(event.getSource());
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<SFDCServerInstance> event) {
+        // Only the id of a deleted document is known, not its key
+        serverInstanceCache.removed();
+    }
+}
@@ -8,6 +8,6 @@ import java.util.List;
 /**
  * Created by rizjoj on 12/1/16.
  */
-public interface ServerInstanceRepository extends MongoRepository<SFDCServerInstance, String> {
+public interface ServerInstanceRepository extends MongoRepository<SFDCServerInstance, String>, ServerInstanceRepositoryCustom {
     List<SFDCServerInstance> findByKey(String key);
 }
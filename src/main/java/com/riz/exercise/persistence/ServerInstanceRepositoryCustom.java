@@ -0,0 +1,47 @@
+package com.riz.exercise.persistence;
+
+import com.riz.exercise.model.SFDCServerInstance;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Server instance data access that goes beyond derived queries. Implemented by {@link ServerInstanceRepositoryImpl}.
+ */
+public interface ServerInstanceRepositoryCustom {
+
+    /**
+     * Writes all given changes to the <code>serverInstances</code> collection in a single unordered bulk write, and
+     * through to the {@link ServerInstanceCache}.
+     *
+     * @param upserts Server instances to insert or update, matched on their <code>key</code>
+     * @param removedKeys Keys of server instances to remove
+     */
+    void bulkUpsertByKey(Collection<SFDCServerInstance> upserts, Collection<String> removedKeys);
+
+    /**
+     * @param pageable Page number and size. Server instances are ordered by <code>key</code>
+     * @return A page of server instances, with only the fields listed on the servers page read
+     */
+    Page<SFDCServerInstance> findListingPage(Pageable pageable);
+
+    /**
+     * Keyset pagination: unlike {@link #findListingPage(Pageable)}, the cost of a page does not grow with how far into
+     * the collection it is.
+     *
+     * @param afterKey Key of the last server instance of the previous page, or null for the first page
+     * @param limit Maximum number of server instances returned
+     * @return The server instances following <code>afterKey</code> in <code>key</code> order, with only the fields
+     *         listed on the servers page read
+     */
+    List<SFDCServerInstance> findListingAfter(String afterKey, int limit);
+
+    /**
+     * @return All server instances in <code>key</code> order, read off a mongo cursor one batch at a time, with only
+     *         the fields listed on the servers page read. Must be closed.
+     */
+    CloseableIterator<SFDCServerInstance> streamListing();
+}
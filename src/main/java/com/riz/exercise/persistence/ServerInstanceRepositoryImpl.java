@@ -0,0 +1,79 @@
+package com.riz.exercise.persistence;
+
+import com.mongodb.BulkWriteResult;
+import com.riz.exercise.model.SFDCServerInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.Collection;
+import java.util.List;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Mongo implementation of {@link ServerInstanceRepositoryCustom}. Picked up by Spring Data through its
+ * <code>Impl</code> suffix and mixed into {@link ServerInstanceRepository}.
+ */
+public class ServerInstanceRepositoryImpl implements ServerInstanceRepositoryCustom {
+
+    private static final Sort LISTING_ORDER = new Sort(Sort.Direction.ASC, "key");
+
+    @Autowired private MongoOperations mongoOperations;
+    @Autowired private ServerInstanceCache serverInstanceCache;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Override
+    public void bulkUpsertByKey(Collection<SFDCServerInstance> upserts, Collection<String> removedKeys) {
+        if (upserts.isEmpty() && removedKeys.isEmpty()) {
+            return;
+        }
+
+        BulkOperations bulkOperations = mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, SFDCServerInstance.class);
+        upserts.stream().forEach(si -> bulkOperations.upsert(query(where("key").is(si.getKey())),
+                new Update()
+                        .set("location", si.getLocation())
+                        .set("environment", si.getEnvironment())
+                        .set("releaseVersion", si.getReleaseVersion())
+                        .set("status", si.getStatus())));
+        removedKeys.stream().forEach(key -> bulkOperations.remove(query(where("key").is(key))));
+
+        BulkWriteResult result = bulkOperations.execute();
+        serverInstanceCache.putAll(upserts, removedKeys);
+        logger.debug("Bulk write of server instances: {} inserted, {} modified, {} removed",
+                result.getUpserts().size(), result.getModifiedCount(), result.getRemovedCount());
+    }
+
+    @Override
+    public Page<SFDCServerInstance> findListingPage(Pageable pageable) {
+        List<SFDCServerInstance> content = mongoOperations.find(listingQuery(new Query()).with(pageable).with(LISTING_ORDER), SFDCServerInstance.class);
+        return new PageImpl<>(content, pageable, mongoOperations.count(new Query(), SFDCServerInstance.class));
+    }
+
+    @Override
+    public List<SFDCServerInstance> findListingAfter(String afterKey, int limit) {
+        Query query = afterKey != null ? query(where("key").gt(afterKey)) : new Query();
+        return mongoOperations.find(listingQuery(query).with(LISTING_ORDER).limit(limit), SFDCServerInstance.class);
+    }
+
+    @Override
+    public CloseableIterator<SFDCServerInstance> streamListing() {
+        return mongoOperations.stream(listingQuery(new Query()).with(LISTING_ORDER), SFDCServerInstance.class);
+    }
+
+    private static Query listingQuery(Query query) {
+        query.fields().include("key").include("location").include("environment").include("releaseVersion").include("status").exclude("_id");
+        return query;
+    }
+}
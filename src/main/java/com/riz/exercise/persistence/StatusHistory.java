@@ -0,0 +1,280 @@
+package com.riz.exercise.persistence;
+
+import com.riz.exercise.model.StatusChangeEvent;
+import com.riz.exercise.model.StatusHistoryBucket;
+import com.riz.exercise.model.StatusPeriod;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Clock;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * The status history of every server instance, recorded from the change journal into monthly
+ * {@link StatusHistoryBucket}s (see there for their encoding), and the queries over it: the timeline of an instance,
+ * its outages, and the availability of all instances over a range of time.
+ * <p>
+ * A server instance is available while in one of <code>history.availableStatuses</code> (<code>OK</code> by default),
+ * and in an outage while listed in any other status. Time an instance spent not listed (before it first appeared, or
+ * once removed) counts for neither.
+ * <p>
+ * Availability over long ranges is computed from the months' totals, so a month wholly within the range is read
+ * without its transitions and never decoded: a year of all instances is read as a dozen small documents per instance,
+ * plus the first and last month in full.
+ */
+@Component
+public class StatusHistory {
+
+    @Autowired private MongoOperations mongoOperations;
+
+    @Value("${com.riz.exercise.application.history.enabled:true}")
+    private boolean enabled = true;
+    @Value("${com.riz.exercise.application.history.availableStatuses:OK}")
+    private String[] availableStatuses = {"OK"};
+
+    private Set<String> available;
+    private Clock clock = Clock.systemUTC();
+
+    @PostConstruct
+    public void start() {
+        available = new HashSet<>(Arrays.asList(availableStatuses));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records journaled status changes. Events already recorded (e.g.: read again after a crash before the journal
+     * cursor was saved) are skipped.
+     *
+     * @param events Events in sequence order
+     */
+    public void record(List<StatusChangeEvent> events) {
+        Map<String, List<StatusChangeEvent>> byBucket = new LinkedHashMap<>();
+        events.stream().forEach(e -> byBucket.computeIfAbsent(StatusHistoryBucket.idOf(e.getKey(), monthOf(e.getTimestamp().getTime())), id -> new ArrayList<>()).add(e));
+        Map<String, StatusHistoryBucket> existing = mongoOperations.find(query(where("_id").in(byBucket.keySet())), StatusHistoryBucket.class).stream()
+                .collect(Collectors.toMap(StatusHistoryBucket::getId, bucket -> bucket));
+
+        // The status each instance was left in by its latest bucket recorded in this batch: events are in time order,
+        // so an instance's buckets come in month order
+        Map<String, String> carried = new HashMap<>();
+        for (List<StatusChangeEvent> bucketEvents : byBucket.values()) {
+            StatusChangeEvent first = bucketEvents.get(0);
+            YearMonth month = monthOf(first.getTimestamp().getTime());
+            StatusHistoryBucket bucket = existing.get(StatusHistoryBucket.idOf(first.getKey(), month));
+            if (bucket == null) {
+                String initialStatus;
+                if (carried.containsKey(first.getKey())) {
+                    initialStatus = carried.get(first.getKey());
+                } else {
+                    StatusHistoryBucket previous = latestBefore(first.getKey(), startOf(month));
+                    // Without any history yet, the status the instance had before its first recorded change
+                    initialStatus = previous != null ? previous.getLastStatus() : first.getOldStatus();
+                }
+                bucket = new StatusHistoryBucket(first.getKey(), month, initialStatus);
+            }
+            long lastSequence = bucket.getLastSequence();
+            for (StatusChangeEvent e : bucketEvents) {
+                if (e.getSequence() > lastSequence) {
+                    bucket.append(e.getTimestamp().getTime(), e.getType() == StatusChangeEvent.Type.REMOVED ? null : e.getNewStatus(), e.getSequence());
+                }
+            }
+            carried.put(first.getKey(), bucket.getLastStatus());
+            if (bucket.getLastSequence() > lastSequence) {
+                mongoOperations.save(bucket);
+            }
+        }
+    }
+
+    /**
+     * @return The statuses a server instance went through between two times (epoch millis), clipped to them and to
+     *         now, leaving out the time it wasn't listed
+     */
+    public List<StatusPeriod> timeline(String key, long from, long to) {
+        long until = Math.min(to, clock.millis());
+        List<StatusPeriod> timeline = new ArrayList<>();
+        if (until <= from) {
+            return timeline;
+        }
+        StatusHistoryBucket previous = latestBefore(key, from);
+        List<StatusHistoryBucket> buckets = mongoOperations.find(query(where("key").is(key).and("start").lt(new Date(until)).and("end").gt(new Date(from)))
+                .with(new Sort(Sort.Direction.ASC, "start")), StatusHistoryBucket.class);
+        walk(previous == null ? null : previous.getLastStatus(), buckets, from, until, false, (status, start, end) -> {
+            if (status == null) {
+                return;
+            }
+            StatusPeriod last = timeline.isEmpty() ? null : timeline.get(timeline.size() - 1);
+            if (last != null && last.getStatus().equals(status) && last.getTo().getTime() == start) {
+                timeline.set(timeline.size() - 1, new StatusPeriod(status, last.getFrom(), new Date(end)));
+            } else {
+                timeline.add(new StatusPeriod(status, new Date(start), new Date(end)));
+            }
+        });
+        return timeline;
+    }
+
+    /**
+     * @return The outages of a server instance between two times (epoch millis): each uninterrupted stretch of time it
+     *         was listed in statuses other than the available ones, with those statuses in the order it went through
+     *         them, comma separated
+     */
+    public List<StatusPeriod> outages(String key, long from, long to) {
+        List<StatusPeriod> outages = new ArrayList<>();
+        StatusPeriod open = null;
+        for (StatusPeriod period : timeline(key, from, to)) {
+            if (available.contains(period.getStatus())) {
+                continue;
+            }
+            if (open != null && open.getTo().equals(period.getFrom())) {
+                open = new StatusPeriod(open.getStatus() + "," + period.getStatus(), open.getFrom(), period.getTo());
+                outages.set(outages.size() - 1, open);
+            } else {
+                open = period;
+                outages.add(open);
+            }
+        }
+        return outages;
+    }
+
+    /**
+     * @return The percentage of the time each server instance was available between two times (epoch millis), of the
+     *         time it was listed, by key. Instances not listed at all in that time are left out.
+     */
+    public SortedMap<String, Double> availability(long from, long to) {
+        long until = Math.min(to, clock.millis());
+        SortedMap<String, Double> availability = new TreeMap<>();
+        if (until <= from) {
+            return availability;
+        }
+        Date fromDate = new Date(from);
+        Date untilDate = new Date(until);
+
+        Map<String, List<StatusHistoryBucket>> bucketsByKey = new HashMap<>();
+        // Months wholly within the range are summed up from their totals, and read without their transitions
+        Query interior = query(where("start").gte(fromDate).and("end").lte(untilDate));
+        interior.fields().exclude("transitions");
+        Query edges = query(new Criteria().andOperator(where("start").lt(untilDate), where("end").gt(fromDate),
+                new Criteria().orOperator(where("start").lt(fromDate), where("end").gt(untilDate))));
+        for (Query buckets : Arrays.asList(interior, edges)) {
+            mongoOperations.find(buckets, StatusHistoryBucket.class).stream()
+                    .forEach(bucket -> bucketsByKey.computeIfAbsent(bucket.getKey(), key -> new ArrayList<>()).add(bucket));
+        }
+        // The status each instance was in when the range starts, for those whose latest month before it has a bucket
+        Map<String, String> carried = new HashMap<>();
+        mongoOperations.aggregate(newAggregation(
+                match(where("start").lt(fromDate)),
+                project("key", "start", "lastStatus"),
+                sort(new Sort(Sort.Direction.ASC, "key").and(new Sort(Sort.Direction.DESC, "start"))),
+                group("key").first("lastStatus").as("lastStatus")), StatusHistoryBucket.class, LastStatus.class)
+                .getMappedResults().stream()
+                .forEach(last -> carried.put(last.key, last.lastStatus));
+
+        Set<String> keys = new HashSet<>(bucketsByKey.keySet());
+        keys.addAll(carried.keySet());
+        for (String key : keys) {
+            List<StatusHistoryBucket> buckets = bucketsByKey.getOrDefault(key, Collections.emptyList());
+            buckets.sort(Comparator.comparing(StatusHistoryBucket::getStart));
+            long[] listedAndAvailable = new long[2];
+            walk(carried.get(key), buckets, from, until, true, (status, start, end) -> {
+                if (status != null) {
+                    listedAndAvailable[0] += end - start;
+                    if (available.contains(status)) {
+                        listedAndAvailable[1] += end - start;
+                    }
+                }
+            });
+            if (listedAndAvailable[0] > 0) {
+                availability.put(key, 100.0 * listedAndAvailable[1] / listedAndAvailable[0]);
+            }
+        }
+        return availability;
+    }
+
+    /**
+     * Receives the time a server instance spent in a status
+     */
+    @FunctionalInterface
+    private interface PeriodConsumer {
+        void accept(String status, long start, long end);
+    }
+
+    /**
+     * Walks through the statuses of a server instance between two times, from the status it was in before the first
+     * bucket and through each bucket in turn.
+     *
+     * @param summarize Whether to sum up buckets wholly within the range from their totals instead of decoding them: the
+     *        time spent in each status is then given as if it was spent in one go from the start of the bucket
+     */
+    private static void walk(String status, List<StatusHistoryBucket> buckets, long from, long until, boolean summarize, PeriodConsumer consumer) {
+        PeriodConsumer clipped = (s, start, end) -> {
+            start = Math.max(start, from);
+            end = Math.min(end, until);
+            if (end > start) {
+                consumer.accept(s, start, end);
+            }
+        };
+        // The status the instance is in, and since when
+        String[] current = {status};
+        long[] since = {from};
+        for (StatusHistoryBucket bucket : buckets) {
+            long start = bucket.getStart().getTime();
+            // Up to the start of the bucket, after months without any transitions
+            clipped.accept(current[0], since[0], start);
+            current[0] = bucket.getInitialStatus();
+            since[0] = start;
+            if (summarize && start >= from && bucket.getEnd().getTime() <= until) {
+                for (int i = 0; i < bucket.getStatuses().size(); i++) {
+                    consumer.accept(bucket.getStatuses().get(i), start, start + bucket.getMillisByStatus().get(i));
+                }
+                current[0] = bucket.getLastStatus();
+                since[0] = bucket.getLastAt();
+            } else {
+                bucket.forEachTransition((at, next) -> {
+                    clipped.accept(current[0], since[0], at);
+                    current[0] = next;
+                    since[0] = at;
+                });
+            }
+        }
+        clipped.accept(current[0], since[0], until);
+    }
+
+    private StatusHistoryBucket latestBefore(String key, long time) {
+        Query latest = query(where("key").is(key).and("start").lt(new Date(time))).with(new Sort(Sort.Direction.DESC, "start"));
+        latest.fields().exclude("transitions");
+        return mongoOperations.findOne(latest, StatusHistoryBucket.class);
+    }
+
+    private static YearMonth monthOf(long time) {
+        return YearMonth.from(new Date(time).toInstant().atZone(ZoneOffset.UTC));
+    }
+
+    private static long startOf(YearMonth month) {
+        return month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    /**
+     * An instance's last status as of its latest bucket before a time
+     */
+    static class LastStatus {
+
+        @Id
+        private String key;
+        private String lastStatus;
+    }
+}
@@ -2,13 +2,29 @@ package com.riz.exercise.persistence;
 
 import com.riz.exercise.model.Subscriber;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 
+import java.util.Date;
 import java.util.List;
 
 /**
  * Created by rizjoj on 12/1/16.
  */
-public interface SubscriberRepository extends MongoRepository<Subscriber, String> {
+public interface SubscriberRepository extends MongoRepository<Subscriber, String>, SubscriberRepositoryCustom {
     List<Subscriber> findByServers(String server);
     List<Subscriber> findByEmail(String email);
+
+    /**
+     * @return The subscribers saved at or after the given time
+     */
+    List<Subscriber> findByModifiedAtGreaterThanEqual(Date since);
+
+    /**
+     * Covered by the <code>email, _id</code> index (see {@link IndexProvisioner}): answered without reading any
+     * subscriber document
+     *
+     * @return The subscribers with the given email, with their id only
+     */
+    @Query(value = "{ 'email' : ?0 }", fields = "{ '_id' : 1 }")
+    List<Subscriber> findIdByEmail(String email);
 }
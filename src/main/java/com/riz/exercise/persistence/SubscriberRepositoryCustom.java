@@ -0,0 +1,43 @@
+package com.riz.exercise.persistence;
+
+import com.riz.exercise.model.Subscriber;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.List;
+
+/**
+ * Subscriber data access that goes beyond derived queries. Implemented by {@link SubscriberRepositoryImpl}.
+ */
+public interface SubscriberRepositoryCustom {
+
+    /**
+     * Most server instances a listed subscriber's <code>servers</code> are read up to
+     */
+    int LISTED_SERVERS = 20;
+
+    /**
+     * @param pageable Page number and size. Subscribers are ordered by id, i.e.: by when they were first added
+     * @return A page of subscribers, with only the fields listed on the subscribers page read, and at most
+     *         {@link #LISTED_SERVERS} of each subscriber's servers
+     */
+    Page<Subscriber> findListingPage(Pageable pageable);
+
+    /**
+     * Keyset pagination: unlike {@link #findListingPage(Pageable)}, the cost of a page does not grow with how far into
+     * the collection it is.
+     *
+     * @param afterId Id of the last subscriber of the previous page, or null for the first page
+     * @param limit Maximum number of subscribers returned
+     * @return The subscribers following <code>afterId</code> in id order, with only the fields listed on the
+     *         subscribers page read, and at most {@link #LISTED_SERVERS} of each subscriber's servers
+     */
+    List<Subscriber> findListingAfter(String afterId, int limit);
+
+    /**
+     * @return All subscribers in id order, with all their servers, read off a mongo cursor one batch at a time. Must
+     *         be closed.
+     */
+    CloseableIterator<Subscriber> streamListing();
+}
@@ -0,0 +1,53 @@
+package com.riz.exercise.persistence;
+
+import com.riz.exercise.model.Subscriber;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.List;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Mongo implementation of {@link SubscriberRepositoryCustom}. Picked up by Spring Data through its <code>Impl</code>
+ * suffix and mixed into {@link SubscriberRepository}.
+ */
+public class SubscriberRepositoryImpl implements SubscriberRepositoryCustom {
+
+    // Ids are ObjectIds, which sort in insertion order and are always indexed
+    private static final Sort LISTING_ORDER = new Sort(Sort.Direction.ASC, "_id");
+
+    @Autowired private MongoOperations mongoOperations;
+
+    @Override
+    public Page<Subscriber> findListingPage(Pageable pageable) {
+        List<Subscriber> content = mongoOperations.find(listingQuery(new Query(), LISTED_SERVERS).with(pageable).with(LISTING_ORDER), Subscriber.class);
+        return new PageImpl<>(content, pageable, mongoOperations.count(new Query(), Subscriber.class));
+    }
+
+    @Override
+    public List<Subscriber> findListingAfter(String afterId, int limit) {
+        Query query = afterId != null ? query(where("id").gt(afterId)) : new Query();
+        return mongoOperations.find(listingQuery(query, LISTED_SERVERS).with(LISTING_ORDER).limit(limit), Subscriber.class);
+    }
+
+    @Override
+    public CloseableIterator<Subscriber> streamListing() {
+        Query query = new Query().with(LISTING_ORDER);
+        query.fields().include("firstname").include("lastname").include("email").include("servers").include("webhooks").include("channels");
+        return mongoOperations.stream(query, Subscriber.class);
+    }
+
+    private static Query listingQuery(Query query, int servers) {
+        // The id is read too: it is the cursor of the next page
+        query.fields().include("firstname").include("lastname").include("email").slice("servers", servers).include("webhooks").include("channels");
+        return query;
+    }
+}
@@ -0,0 +1,302 @@
+package com.riz.exercise.persistence;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.riz.exercise.model.Subscriber;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory inverted index of subscriptions: server instance key (e.g.: <code>NA16</code>) to the subscribers
+ * subscribing to it.
+ * <p>
+ * The index is built from the <code>subscribers</code> collection at startup and kept up to date incrementally by
+ * {@link #put(Subscriber)} whenever a subscriber is written, so that fan-out for a changed server instance is a single
+ * in-process lookup rather than a <code>findByServers</code> round trip to mongo. Subscribers written through another
+ * node are picked up by {@link #refresh()}, from their <code>modifiedAt</code>.
+ * <p>
+ * Each subscriber is given an ordinal (an int, kept for as long as the subscriber is in the data store), and the
+ * subscribers of each server instance are held as a compressed bitmap of ordinals, so that millions of subscriptions
+ * take a few bytes each rather than a hash entry each, and the subscribers of a set of changed server instances are a
+ * bitmap union (see {@link #getSubscriberOrdinals(Collection)}). The index holds its own copy of each subscriber, whose server instance
+ * keys are interned, so that subscribers to the same server instance share its key.
+ * <p>
+ * Every <code>checkMillis</code> the index is {@link #checkConsistency() checked} against the data store, and rebuilt if
+ * it has drifted from it, which is counted in <code>counter.subscriptions.index.inconsistent</code>.
+ */
+@Component
+public class SubscriptionIndex {
+
+    @Autowired private SubscriberRepository subscriberRepository;
+    @Autowired private CounterService counterService;
+
+    @Value("${com.riz.exercise.application.subscriptions.clockSkewMillis:60000}")
+    private long clockSkewMillis = 60000;
+
+    // Subscriber ordinals by subscriber id, and subscribers by ordinal
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    // Subscriber ordinals by server instance key, each key interned
+    private final Map<String, RoaringBitmap> subscribersByServer = new HashMap<>();
+    private final Map<String, String> serverKeys = new HashMap<>();
+    // Ordinals of subscribers gone from the data store: released by the latest rebuild, and free to be given out again
+    private final RoaringBitmap released = new RoaringBitmap();
+    private final RoaringBitmap free = new RoaringBitmap();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // The latest modifiedAt of the subscribers indexed, null if none has one
+    private Date lastModified;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Discards the current index and rebuilds it from all subscribers in the data store. Subscribers keep the ordinals
+     * they were given, so that ordinals read before a rebuild still refer to the same subscribers. The ordinals of
+     * subscribers no longer in the data store are released, and only given out again from the next rebuild on.
+     */
+    @PostConstruct
+    public void rebuild() {
+        List<Subscriber> subscribers = subscriberRepository.findAll();
+        lock.writeLock().lock();
+        try {
+            subscribersByServer.clear();
+            serverKeys.clear();
+            lastModified = null;
+            free.or(released);
+            released.clear();
+            Set<String> ids = subscribers.stream().map(Subscriber::getId).collect(Collectors.toSet());
+            new ArrayList<>(ordinals.keySet()).stream().filter(id -> !ids.contains(id)).forEach(this::release);
+            subscribers.stream().forEach(this::index);
+            // Bitmaps built in bulk are worth run-length encoding where that's smaller
+            subscribersByServer.values().stream().forEach(RoaringBitmap::runOptimize);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Indexed {} subscribers across {} server instances", subscribers.size(), subscribersByServer.size());
+    }
+
+    /**
+     * Adds or replaces a subscriber in the index. Any server instances the subscriber previously subscribed to but no
+     * longer does are unlinked.
+     *
+     * @param subscriber A subscriber as saved in the data store (i.e.: with its mongo id set)
+     */
+    public void put(Subscriber subscriber) {
+        if (subscriber == null || subscriber.getId() == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            unindex(subscriber.getId());
+            index(subscriber);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes the subscribers saved since the latest one indexed, less <code>clockSkewMillis</code>: those saved
+     * through other nodes, whose clocks may lag this one's by up to that much. A subscriber saved by a node lagging
+     * further behind is only picked up by the next {@link #verify() consistency check}.
+     */
+    public void refresh() {
+        Date since;
+        lock.readLock().lock();
+        try {
+            since = new Date(lastModified == null ? 0 : lastModified.getTime() - clockSkewMillis);
+        } finally {
+            lock.readLock().unlock();
+        }
+        subscriberRepository.findByModifiedAtGreaterThanEqual(since).stream().forEach(this::put);
+    }
+
+    /**
+     * @param server Server instance key
+     * @return The ids of all subscribers subscribing to the given server instance
+     */
+    public Set<String> getSubscriberIds(String server) {
+        return ImmutableSet.copyOf(getSubscribers(server).stream().map(Subscriber::getId).iterator());
+    }
+
+    /**
+     * @param server Server instance key
+     * @return All subscribers subscribing to the given server instance
+     */
+    public List<Subscriber> getSubscribers(String server) {
+        return getSubscribers(getSubscriberOrdinals(Collections.singleton(server)));
+    }
+
+    /**
+     * @param servers Server instance keys
+     * @return The ordinals of all subscribers subscribing to any of the given server instances: the union of their
+     *         subscribers. The bitmap is the caller's own.
+     */
+    public RoaringBitmap getSubscriberOrdinals(Collection<String> servers) {
+        lock.readLock().lock();
+        try {
+            List<RoaringBitmap> bitmaps = servers.stream()
+                    .map(subscribersByServer::get)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+            if (bitmaps.isEmpty()) {
+                return new RoaringBitmap();
+            }
+            return bitmaps.size() == 1 ? bitmaps.get(0).clone() : FastAggregation.or(bitmaps.iterator());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param ordinals Subscriber ordinals, as returned by {@link #getSubscriberOrdinals(Collection)}
+     * @return The subscribers with the given ordinals, in order of ordinal, less those released by a rebuild since
+     */
+    public List<Subscriber> getSubscribers(RoaringBitmap ordinals) {
+        List<Subscriber> found = new ArrayList<>(ordinals.getCardinality());
+        lock.readLock().lock();
+        try {
+            ordinals.forEach((int ordinal) -> {
+                Subscriber subscriber = subscribers.get(ordinal);
+                if (subscriber != null) {
+                    found.add(subscriber);
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    /**
+     * @return Number of subscribers in the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ordinals.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compares the index against the <code>subscribers</code> collection in the data store.
+     *
+     * @return The server instance keys whose subscriber ids differ between the index and the data store. Empty if the
+     *         index is consistent.
+     */
+    public Set<String> checkConsistency() {
+        SetMultimap<String, String> expected = HashMultimap.create();
+        subscriberRepository.findAll().stream()
+                .filter(s -> s.getServers() != null)
+                .forEach(s -> s.getServers().stream().forEach(server -> expected.put(server, s.getId())));
+
+        Set<String> indexedServers;
+        lock.readLock().lock();
+        try {
+            indexedServers = new HashSet<>(subscribersByServer.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Set<String> inconsistentServers = new TreeSet<>();
+        Sets.union(expected.keySet(), indexedServers).stream()
+                .filter(server -> !expected.get(server).equals(getSubscriberIds(server)))
+                .forEach(inconsistentServers::add);
+
+        if (!inconsistentServers.isEmpty()) {
+            logger.warn("Subscription index is inconsistent with the data store for server instances {}", inconsistentServers);
+        }
+        return inconsistentServers;
+    }
+
+    /**
+     * Rebuilds the index if it is inconsistent with the data store
+     */
+    @Scheduled(initialDelayString = "${com.riz.exercise.application.subscriptions.checkMillis:3600000}",
+            fixedDelayString = "${com.riz.exercise.application.subscriptions.checkMillis:3600000}")
+    public void verify() {
+        if (!checkConsistency().isEmpty()) {
+            counterService.increment("subscriptions.index.inconsistent");
+            rebuild();
+        }
+    }
+
+    // Callers must hold the write lock
+    private void index(Subscriber subscriber) {
+        Subscriber indexed = new Subscriber();
+        BeanUtils.copyProperties(subscriber, indexed);
+        Integer ordinal = ordinals.get(subscriber.getId());
+        if (ordinal == null) {
+            if (free.isEmpty()) {
+                ordinal = subscribers.size();
+                subscribers.add(indexed);
+            } else {
+                ordinal = free.first();
+                free.remove(ordinal);
+                subscribers.set(ordinal, indexed);
+            }
+            ordinals.put(subscriber.getId(), ordinal);
+        } else {
+            subscribers.set(ordinal, indexed);
+        }
+        if (subscriber.getModifiedAt() != null && (lastModified == null || subscriber.getModifiedAt().after(lastModified))) {
+            lastModified = subscriber.getModifiedAt();
+        }
+        if (subscriber.getServers() != null) {
+            List<String> servers = new ArrayList<>(subscriber.getServers().size());
+            for (String server : subscriber.getServers()) {
+                String key = serverKeys.computeIfAbsent(server, k -> k);
+                subscribersByServer.computeIfAbsent(key, k -> new RoaringBitmap()).add(ordinal);
+                servers.add(key);
+            }
+            indexed.setServers(servers);
+        }
+    }
+
+    // Callers must hold the write lock
+    private void release(String subscriberId) {
+        unindex(subscriberId);
+        int ordinal = ordinals.remove(subscriberId);
+        subscribers.set(ordinal, null);
+        released.add(ordinal);
+    }
+
+    // Callers must hold the write lock
+    private void unindex(String subscriberId) {
+        Integer ordinal = ordinals.get(subscriberId);
+        if (ordinal == null) {
+            return;
+        }
+        Subscriber previous = subscribers.get(ordinal);
+        if (previous.getServers() != null) {
+            previous.getServers().stream().forEach(server -> {
+                RoaringBitmap bitmap = subscribersByServer.get(server);
+                // Already unlinked if listed twice
+                if (bitmap == null) {
+                    return;
+                }
+                bitmap.remove(ordinal);
+                if (bitmap.isEmpty()) {
+                    subscribersByServer.remove(server);
+                    serverKeys.remove(server);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package groovy.com.riz.exercise.integration
+
+import com.mongodb.MongoClient
+import com.riz.exercise.cluster.JobLockService
+import com.riz.exercise.cluster.LeaseLostException
+import de.flapdoodle.embed.mongo.MongodExecutable
+import de.flapdoodle.embed.mongo.MongodProcess
+import de.flapdoodle.embed.mongo.MongodStarter
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder
+import de.flapdoodle.embed.mongo.config.Net
+import de.flapdoodle.embed.mongo.distribution.Version
+import de.flapdoodle.embed.process.runtime.Network
+import org.springframework.data.mongodb.core.MongoTemplate
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+
+/**
+ * Several nodes contending for the same leases in one embedded mongo
+ */
+class JobLockIntegrationSpec extends Specification {
+    private static final MongodStarter starter = MongodStarter.getDefaultInstance()
+    @Shared private MongodExecutable mongodExe
+    @Shared private MongodProcess mongod
+    @Shared MongoClient mongoClient
+    @Shared MongoTemplate mongoTemplate
+
+    def setupSpec() {
+        int port = Network.getFreeServerPort()
+        mongodExe = starter.prepare(new MongodConfigBuilder()
+                .version(Version.Main.PRODUCTION)
+                .net(new Net(port, Network.localhostIsIPv6()))
+                .build())
+        mongod = mongodExe.start()
+        mongoClient = new MongoClient("localhost", port)
+        mongoTemplate = new MongoTemplate(mongoClient, "test")
+    }
+
+    def cleanupSpec() {
+        mongoClient.close()
+        mongod.stop()
+        mongodExe.stop()
+    }
+
+    def setup() {
+        mongoClient.getDatabase("test").getCollection("jobLocks").drop()
+    }
+
+    def node(String id, long leaseMillis = 60000) {
+        def node = new JobLockService(mongoOperations: mongoTemplate, nodeId: id, leaseMillis: leaseMillis)
+        node.start()
+        node
+    }
+
+    def "only one node holds a lease, and keeps renewing it"() {
+        setup:
+        def a = node('a'), b = node('b')
+
+        when:
+        def first = a.tryAcquire('poll')
+        then: "the first lease is a takeover: no state to trust yet"
+        first.token == 1
+        first.takeover
+
+        expect:
+        b.tryAcquire('poll') == null
+
+        when:
+        def renewed = a.tryAcquire('poll')
+        then:
+        renewed.token == 2
+        !renewed.takeover
+        a.checkValid(renewed)
+    }
+
+    def "an expired lease is taken over with a greater fencing token"() {
+        setup:
+        def a = node('a', 200), b = node('b')
+        def stale = a.tryAcquire('poll')
+
+        when:
+        Thread.sleep(300)
+        def taken = b.tryAcquire('poll')
+        then:
+        taken.token == stale.token + 1
+        taken.takeover
+
+        when: "the stalled node tries to write under its old lease"
+        a.checkValid(stale)
+        then:
+        thrown(LeaseLostException)
+
+        when: "and to take the lease back"
+        def back = a.tryAcquire('poll')
+        then:
+        back == null
+    }
+
+    def "a released lease can be acquired straight away"() {
+        setup:
+        def a = node('a'), b = node('b')
+        def lease = a.tryAcquire('notify-0')
+
+        when:
+        a.release(lease)
+        def taken = b.tryAcquire('notify-0')
+        then:
+        taken.token == 2
+        taken.takeover
+
+        when: "releasing a lease that was taken over does nothing"
+        a.release(lease)
+        then:
+        b.checkValid(taken)
+    }
+
+    def "exactly one of many nodes contending at once gets the lease"() {
+        setup:
+        def nodes = (1..8).collect { node("node-$it") }
+        def start = new CountDownLatch(1)
+        def executor = Executors.newFixedThreadPool(nodes.size())
+
+        when:
+        def futures = nodes.collect { n -> executor.submit({ start.await(); n.tryAcquire('poll') } as Callable) }
+        start.countDown()
+        def leases = futures*.get().findAll { it != null }
+        then:
+        leases.size() == 1
+        leases[0].token == 1
+
+        cleanup:
+        executor.shutdown()
+    }
+}
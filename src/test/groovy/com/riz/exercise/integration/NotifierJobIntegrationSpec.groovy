@@ -1,11 +1,18 @@
 package groovy.com.riz.exercise.integration
 
+import com.fasterxml.jackson.databind.ObjectMapper
 import com.mongodb.BasicDBObject
+import com.riz.exercise.client.TrustApiClient
 import com.mongodb.MongoClient
 import com.riz.exercise.jobs.NotifierJob
+import com.riz.exercise.jobs.ServerInstanceDiffEngine
 import com.riz.exercise.TestApplication
 import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.model.Subscriber
+import com.riz.exercise.persistence.IndexProvisioner
 import com.riz.exercise.persistence.ServerInstanceRepository
+import com.riz.exercise.persistence.SubscriberRepository
+import com.sun.net.httpserver.HttpServer
 import de.flapdoodle.embed.mongo.MongodExecutable
 import de.flapdoodle.embed.mongo.MongodProcess
 import de.flapdoodle.embed.mongo.MongodStarter
@@ -16,7 +23,6 @@ import de.flapdoodle.embed.process.runtime.Network
 import org.bson.Document
 import org.springframework.boot.SpringApplication
 import org.springframework.context.ConfigurableApplicationContext
-import org.springframework.web.client.RestTemplate
 import spock.lang.Shared
 import spock.lang.Specification
 
@@ -34,13 +40,27 @@ class NotifierJobIntegrationSpec extends Specification {
     @Shared private MongodExecutable mongodExe
     @Shared private MongodProcess mongod
     @Shared private ConfigurableApplicationContext context
+    @Shared private HttpServer trustApiStub
+    @Shared private String trustApiStubUrl
 
-    def instances =
+    @Shared def instances =
             [new SFDCServerInstance(key:'CS62', location:'NA', environment:'sandbox', releaseVersion:'Winter \'17 Patch 15', status:'OK'),
              new SFDCServerInstance(key:'CS85', location:'EU', environment:'sandbox', releaseVersion:'Winter \'17 Patch 15',  status:'OK'),
              new SFDCServerInstance(key:'NA19', location:'NA', environment:'production',releaseVersion:'Winter \'17 Patch 14.5',status:'OK'),
              new SFDCServerInstance(key:'EU7', location:'EU', environment:'production',releaseVersion:'Winter \'17 Patch 14.5',status:'OK')]
 
+    def startTrustApiStub() {
+        trustApiStub = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+        trustApiStub.createContext("/v1/instances") { exchange ->
+            def body = new ObjectMapper().writeValueAsBytes(instances)
+            exchange.responseHeaders.add("Content-Type", "application/json")
+            exchange.sendResponseHeaders(200, body.length)
+            exchange.responseBody.withStream { it.write(body) }
+        }
+        trustApiStub.start()
+        trustApiStubUrl = "http://localhost:${trustApiStub.address.port}/v1/instances"
+    }
+
     def startMongoEmbeddedMemory() {
         mongodExe = starter.prepare(new MongodConfigBuilder()
                 .version(Version.Main.PRODUCTION)
@@ -53,6 +73,7 @@ class NotifierJobIntegrationSpec extends Specification {
         System.setProperty("spring.profile.active", "test")
 
         startMongoEmbeddedMemory()
+        startTrustApiStub()
         mongoClient = new MongoClient("localhost", 27017)
 
         Future future = Executors.newSingleThreadExecutor().submit(
@@ -74,6 +95,7 @@ class NotifierJobIntegrationSpec extends Specification {
     }
 
     def cleanupSpec() {
+        trustApiStub.stop(0)
         context.close()
         stopMongoEmbedded()
     }
@@ -81,6 +103,13 @@ class NotifierJobIntegrationSpec extends Specification {
     def setup() {
         mongoClient.getDatabase("test").getCollection("serverInstances").drop()
         mongoClient.getDatabase("test").getCollection("subscribers").drop()
+        mongoClient.getDatabase("test").getCollection("statusChangeEvents").drop()
+        mongoClient.getDatabase("test").getCollection("journalCursors").drop()
+        mongoClient.getDatabase("test").getCollection("journalSequences").drop()
+        mongoClient.getDatabase("test").getCollection("jobLocks").drop()
+        // Collections were dropped behind the diff engine's back
+        context.getBean(ServerInstanceDiffEngine.class).reload()
+        context.getBean(TrustApiClient.class).reset()
     }
 
 
@@ -130,8 +159,7 @@ class NotifierJobIntegrationSpec extends Specification {
     def "Test notifier with mock remote service"() {
         setup:
         def service = context.getBean(NotifierJob.class)
-        service.restTemplate = Mock(RestTemplate)
-        service.restTemplate.getForObject(_, _) >> (SFDCServerInstance[])instances
+        service.serviceEndPointUrl = trustApiStubUrl
 
         when: "Notfier's execute is invoked"
         def db = mongoClient.getDatabase("test")
@@ -155,8 +183,7 @@ class NotifierJobIntegrationSpec extends Specification {
         serverInstanceRepository.save(new SFDCServerInstance(id:"2", key:"CS62", status:"OK"))
 
         def service = context.getBean(NotifierJob.class)
-        service.restTemplate = Mock(RestTemplate)
-        service.restTemplate.getForObject(_, _) >> (SFDCServerInstance[])instances
+        service.serviceEndPointUrl = trustApiStubUrl
 
         when: "local server instance has status MINOR_INCIDENT_CORE"
         def db = mongoClient.getDatabase("test")
@@ -170,7 +197,77 @@ class NotifierJobIntegrationSpec extends Specification {
         then: "mongo status field is updated with value from remote call"
         collection.count() == 4
         collection.find(new BasicDBObject('key', 'EU7')).first().get('status') == 'OK'
+        collection.find(new BasicDBObject('key', 'EU7')).first().get('_id') == '1'
+    }
+
+
+    def "Test notifier removes decommissioned instances"() {
+        setup: "Add a server instance no longer reported remotely"
+        def serverInstanceRepository = context.getBean(ServerInstanceRepository.class)
+        serverInstanceRepository.save(new SFDCServerInstance(key:"NA0", status:"OK"))
+
+        def service = context.getBean(NotifierJob.class)
+        service.serviceEndPointUrl = trustApiStubUrl
+
+        when: "notifier's execute method is called"
+        def collection = mongoClient.getDatabase("test").getCollection("serverInstances")
+        service.execute()
+        then: "the decommissioned instance is removed and the remote ones added"
+        collection.count() == 4
+        collection.count(new BasicDBObject('key', 'NA0')) == 0
     }
 
 
-}
\ No newline at end of file
+    def "Test notifier skips an unchanged remote payload"() {
+        setup:
+        def service = context.getBean(NotifierJob.class)
+        service.serviceEndPointUrl = trustApiStubUrl
+        service.execute()
+
+        when: "a local instance is removed behind the job's back and the same payload is polled again"
+        def collection = mongoClient.getDatabase("test").getCollection("serverInstances")
+        collection.deleteOne(new BasicDBObject('key', 'CS62'))
+        service.execute()
+        then: "the poll is skipped and nothing is written"
+        collection.count() == 3
+    }
+
+
+    def "Test notifier journals status changes and moves its cursor"() {
+        setup:
+        def serverInstanceRepository = context.getBean(ServerInstanceRepository.class)
+        serverInstanceRepository.save(new SFDCServerInstance(key:"EU7", status:"MINOR_INCIDENT_CORE"))
+        def service = context.getBean(NotifierJob.class)
+        service.serviceEndPointUrl = trustApiStubUrl
+
+        when:
+        service.execute()
+        def db = mongoClient.getDatabase("test")
+        def events = db.getCollection("statusChangeEvents")
+        then: "3 inserts and 1 status change are journaled, and all are processed"
+        events.count() == 4
+        events.count(new BasicDBObject('type', 'INSERTED')) == 3
+        events.find(new BasicDBObject('type', 'CHANGED')).first().get('key') == 'EU7'
+        events.find(new BasicDBObject('type', 'CHANGED')).first().get('oldStatus') == 'MINOR_INCIDENT_CORE'
+        db.getCollection("journalCursors").find(new BasicDBObject('_id', 'notifier')).first().get('sequence') == 4
+    }
+
+    def "Test indexes are provisioned and lookups use them"() {
+        setup: "collections were dropped by setup, and their indexes with them"
+        def provisioner = context.getBean(IndexProvisioner.class)
+        provisioner.provision()
+        context.getBean(SubscriberRepository.class).save(new Subscriber(firstname:'A', email:'a@b.com', servers:['NA16']))
+
+        when:
+        def plans = provisioner.report()
+        then:
+        plans.values().every { !it.collectionScan }
+        plans['subscribers.findIdByEmail'].covered
+        context.getBean(SubscriberRepository.class).findIdByEmail('a@b.com').size() == 1
+
+        when: "a second subscriber with the same email is saved"
+        context.getBean(SubscriberRepository.class).save(new Subscriber(firstname:'B', email:'a@b.com', servers:['NA16']))
+        then:
+        thrown(org.springframework.dao.DuplicateKeyException)
+    }
+}
@@ -0,0 +1,106 @@
+package groovy.com.riz.exercise.tdd
+
+import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.model.Subscriber
+import com.riz.exercise.notification.DigestCoalescer
+import org.springframework.boot.actuate.metrics.CounterService
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+class DigestCoalescerSpec extends Specification {
+
+    def alice = new Subscriber(id: '1', firstname: 'Alice', lastname: 'Andrews', email: 'alice@andrews.com', servers: ['CS62', 'NA16'])
+    def delivered = []
+    def delivery = { subscriber, servers, detectedAt -> delivered << [subscriber.email, servers*.status, detectedAt] } as DigestCoalescer.Delivery
+
+    def coalescer
+
+    def cleanup() {
+        coalescer?.stop()
+    }
+
+    def "test changes are delivered as offered without a window"() {
+        setup:
+        coalescer = new DigestCoalescer(counterService: Mock(CounterService))
+        coalescer.start()
+
+        when:
+        coalescer.offer(alice, [new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE')], [CS62: 'OK'], [CS62: 1000L], delivery)
+        coalescer.offer(alice, [new SFDCServerInstance(key: 'CS62', status: 'OK')], [CS62: 'MINOR_INCIDENT_CORE'], [CS62: 2000L], delivery)
+
+        then:
+        delivered == [['alice@andrews.com', ['MINOR_INCIDENT_CORE'], 1000L], ['alice@andrews.com', ['OK'], 2000L]]
+        coalescer.size() == 0
+    }
+
+    def "test repeat changes within a window collapse into one digest of the latest status"() {
+        setup:
+        coalescer = new DigestCoalescer(counterService: Mock(CounterService), windowMillis: 200)
+        coalescer.start()
+
+        when:
+        coalescer.offer(alice, [new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE')], [CS62: 'OK'], [CS62: 1000L], delivery)
+        coalescer.offer(alice, [new SFDCServerInstance(key: 'CS62', status: 'MAJOR_INCIDENT_CORE'),
+                                new SFDCServerInstance(key: 'NA16', status: 'MINOR_INCIDENT_CORE')], [CS62: 'MINOR_INCIDENT_CORE', NA16: 'OK'], [CS62: 2000L, NA16: 3000L], delivery)
+
+        then: "nothing is delivered until the window closes"
+        delivered.isEmpty()
+        coalescer.size() == 1
+        1 * coalescer.counterService.increment('email.digest.collapsed')
+
+        and:
+        new PollingConditions(timeout: 5).eventually {
+            assert delivered == [['alice@andrews.com', ['MAJOR_INCIDENT_CORE', 'MINOR_INCIDENT_CORE'], 1000L]]
+        }
+        coalescer.size() == 0
+    }
+
+    def "test instances back to their status are left out of the digest"() {
+        setup:
+        coalescer = new DigestCoalescer(counterService: Mock(CounterService), windowMillis: 60000)
+        coalescer.start()
+
+        when:
+        coalescer.offer(alice, [new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE')], [CS62: 'OK'], [CS62: 1000L], delivery)
+        coalescer.offer(alice, [new SFDCServerInstance(key: 'CS62', status: 'OK')], [CS62: 'MINOR_INCIDENT_CORE'], [CS62: 2000L], delivery)
+        coalescer.flushAll()
+
+        then:
+        delivered.isEmpty()
+        1 * coalescer.counterService.increment('email.digest.suppressed')
+    }
+
+    def "test a full digest is delivered without waiting for the window"() {
+        setup:
+        coalescer = new DigestCoalescer(counterService: Mock(CounterService), windowMillis: 60000, maxChanges: 2)
+        coalescer.start()
+
+        when:
+        coalescer.offer(alice, [new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE')], [CS62: 'OK'], [:], delivery)
+        coalescer.offer(alice, [new SFDCServerInstance(key: 'CS62', status: 'MAJOR_INCIDENT_CORE')], [CS62: 'MINOR_INCIDENT_CORE'], [:], delivery)
+
+        then: "the same instance changing again doesn't fill it"
+        delivered.isEmpty()
+
+        when:
+        coalescer.offer(alice, [new SFDCServerInstance(key: 'NA16', status: 'MINOR_INCIDENT_CORE')], [NA16: 'OK'], [:], delivery)
+
+        then:
+        delivered == [['alice@andrews.com', ['MAJOR_INCIDENT_CORE', 'MINOR_INCIDENT_CORE'], 0L]]
+        coalescer.size() == 0
+        1 * coalescer.counterService.increment('email.digest.delivered')
+    }
+
+    def "test open digests are delivered on shutdown"() {
+        setup:
+        coalescer = new DigestCoalescer(counterService: Mock(CounterService), windowMillis: 60000)
+        coalescer.start()
+
+        when:
+        coalescer.offer(alice, [new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE')], [CS62: 'OK'], [CS62: 1000L], delivery)
+        coalescer.stop()
+
+        then:
+        delivered == [['alice@andrews.com', ['MINOR_INCIDENT_CORE'], 1000L]]
+    }
+}
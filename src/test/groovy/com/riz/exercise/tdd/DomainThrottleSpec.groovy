@@ -0,0 +1,160 @@
+package groovy.com.riz.exercise.tdd
+
+import com.riz.exercise.notification.DomainThrottle
+import org.springframework.boot.actuate.metrics.CounterService
+import org.springframework.boot.actuate.metrics.GaugeService
+import org.springframework.mail.javamail.JavaMailSenderImpl
+import org.springframework.mail.javamail.MimeMessageHelper
+import org.springframework.mock.env.MockEnvironment
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static com.riz.exercise.notification.DomainThrottle.Feedback.ACCEPTED
+import static com.riz.exercise.notification.DomainThrottle.Feedback.FAILED
+import static com.riz.exercise.notification.DomainThrottle.Feedback.THROTTLED
+
+class DomainThrottleSpec extends Specification {
+
+    def environment = new MockEnvironment()
+    def throttle
+
+    def setup() {
+        throttle = new DomainThrottle(permitsPerSecond: 100, minPermitsPerSecond: 10, initialConcurrency: 4, maxConcurrency: 4)
+        throttle.environment = environment
+        throttle.counterService = Mock(CounterService)
+        throttle.gaugeService = Mock(GaugeService)
+    }
+
+    def limits(String domain) {
+        throttle.limits.find { it.domain == domain }
+    }
+
+    def "test the domain is read from the first recipient"() {
+        setup:
+        def mail = new JavaMailSenderImpl().createMimeMessage()
+        if (to) {
+            new MimeMessageHelper(mail).setTo(to as String[])
+        }
+
+        expect:
+        DomainThrottle.domainOf(mail) == domain
+
+        where:
+        to                                     | domain
+        ['alice@Andrews.COM']                  | 'andrews.com'
+        ['bob@baker.com', 'alice@andrews.com'] | 'baker.com'
+        null                                   | ''
+    }
+
+    def "test a throttled send halves the domain's limits, and accepted sends ramp them back up"() {
+        setup:
+        throttle.start()
+
+        when:
+        throttle.acquire('andrews.com', 1).release(THROTTLED)
+        then:
+        1 * throttle.counterService.increment('email.throttled')
+        limits('andrews.com').permitsPerSecond == 50
+        limits('andrews.com').concurrency == 2
+        limits('andrews.com').backedOff
+
+        when: "another throttled send halves them again, down to the minimum rate"
+        throttle.acquire('andrews.com', 1).release(THROTTLED)
+        throttle.acquire('andrews.com', 1).release(THROTTLED)
+        throttle.acquire('andrews.com', 1).release(THROTTLED)
+        then:
+        limits('andrews.com').permitsPerSecond == 10
+        limits('andrews.com').concurrency == 1
+        throttle.maxBurst('andrews.com') == 10
+
+        when: "failures other than throttling leave them be"
+        throttle.acquire('andrews.com', 1).release(FAILED)
+        then:
+        limits('andrews.com').permitsPerSecond == 10
+
+        when:
+        10.times { throttle.acquire('andrews.com', 1).release(ACCEPTED) }
+        then:
+        limits('andrews.com').permitsPerSecond == 100
+        limits('andrews.com').concurrency == 4
+        !limits('andrews.com').backedOff
+
+        and: "other domains were never affected"
+        throttle.acquire('baker.com', 1).release(ACCEPTED)
+        limits('baker.com').permitsPerSecond == 100
+    }
+
+    def "test sends throttled together halve the limits once"() {
+        setup:
+        throttle.start()
+
+        when:
+        def permits = (1..4).collect { throttle.acquire('andrews.com', 1) }
+        permits.each { it.release(THROTTLED) }
+        then:
+        limits('andrews.com').permitsPerSecond == 50
+        limits('andrews.com').concurrency == 2
+    }
+
+    def "test sends to a domain wait for a place in flight"() {
+        setup:
+        throttle.initialConcurrency = 1
+        throttle.start()
+        def first = throttle.acquire('andrews.com', 1)
+        def acquired = new CountDownLatch(1)
+
+        when:
+        def sender = Thread.start { throttle.acquire('andrews.com', 1); acquired.countDown() }
+        then:
+        !acquired.await(200, TimeUnit.MILLISECONDS)
+        limits('andrews.com').inFlight == 1
+
+        when:
+        first.release(ACCEPTED)
+        then:
+        acquired.await(5, TimeUnit.SECONDS)
+
+        cleanup:
+        sender.join()
+    }
+
+    def "test a send to a domain at its limits is turned down rather than waited for"() {
+        setup:
+        environment.setProperty('com.riz.exercise.application.email.throttle.domains.andrews.com.permitsPerSecond', '10')
+        throttle.initialConcurrency = 1
+        throttle.start()
+
+        when: "its only place in flight is taken"
+        def first = throttle.tryAcquire('andrews.com', 5)
+        then:
+        first
+        !throttle.tryAcquire('andrews.com', 5)
+
+        when: "its place is free again, but its rate limit has yet to earn the permits"
+        first.release(ACCEPTED)
+        then:
+        !throttle.tryAcquire('andrews.com', 5)
+        limits('andrews.com').inFlight == 0
+        throttle.retryAfterMillis('andrews.com', 5) == 500
+
+        when:
+        Thread.sleep(600)
+        then:
+        throttle.tryAcquire('andrews.com', 5)
+    }
+
+    def "test sends to a domain are held to its rate"() {
+        setup:
+        environment.setProperty('com.riz.exercise.application.email.throttle.domains.andrews.com.permitsPerSecond', '10')
+        throttle.start()
+
+        when:
+        long start = System.nanoTime()
+        4.times { throttle.acquire('andrews.com', 5).release(ACCEPTED) }
+        then: "20 emails at 10 a second, the first 5 straight away"
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1400
+        throttle.maxBurst('baker.com') == 100
+    }
+}
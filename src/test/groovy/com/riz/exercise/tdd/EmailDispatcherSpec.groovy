@@ -0,0 +1,366 @@
+package groovy.com.riz.exercise.tdd
+
+import com.icegreen.greenmail.util.GreenMail
+import com.icegreen.greenmail.util.ServerSetupTest
+import com.riz.exercise.notification.DomainThrottle
+import com.riz.exercise.notification.EmailDispatcher
+import com.sun.mail.smtp.SMTPSendFailedException
+import org.springframework.boot.actuate.metrics.CounterService
+import org.springframework.boot.actuate.metrics.GaugeService
+import org.springframework.mail.MailAuthenticationException
+import org.springframework.mail.MailSendException
+import org.springframework.mail.javamail.JavaMailSender
+import org.springframework.mail.javamail.JavaMailSenderImpl
+import org.springframework.mail.javamail.MimeMessageHelper
+import org.springframework.mock.env.MockEnvironment
+import spock.lang.Specification
+
+import javax.mail.internet.MimeMessage
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class EmailDispatcherSpec extends Specification {
+
+    def greenMail, mailSender, dispatcher
+
+    def setup() {
+        greenMail = new GreenMail(ServerSetupTest.SMTP)
+        greenMail.start()
+        mailSender = new JavaMailSenderImpl(host: 'localhost', port: ServerSetupTest.SMTP.port)
+
+        dispatcher = new EmailDispatcher()
+        dispatcher.javaMailSender = mailSender
+        dispatcher.counterService = Mock(CounterService)
+        dispatcher.gaugeService = Mock(GaugeService)
+        dispatcher.domainThrottle = new DomainThrottle(enabled: false)
+        dispatcher.workers = 2
+        dispatcher.queueCapacity = 10
+        dispatcher.batchSize = 5
+        dispatcher.initialBackoffMillis = 10
+    }
+
+    def cleanup() {
+        if (dispatcher.workerPool) {
+            dispatcher.stop()
+        }
+        greenMail.stop()
+    }
+
+    def mail(String to) {
+        MimeMessage mail = mailSender.createMimeMessage()
+        def helper = new MimeMessageHelper(mail)
+        helper.setFrom('notifier@trust.com')
+        helper.setTo(to)
+        helper.setSubject('subject')
+        helper.setText('text')
+        mail
+    }
+
+    def "queued emails are delivered to the smtp server"() {
+        setup:
+        dispatcher.start()
+
+        when:
+        (1..25).each { dispatcher.submit(mail("user$it@b.com")) }
+
+        then:
+        greenMail.waitForIncomingEmail(5000, 25)
+        greenMail.receivedMessages*.allRecipients.flatten()*.toString().toSet() == (1..25).collect { "user$it@b.com" }.toSet()
+    }
+
+    def "pending emails are still sent when the dispatcher stops"() {
+        setup:
+        dispatcher.start()
+
+        when:
+        (1..10).each { dispatcher.submit(mail("user$it@b.com")) }
+        dispatcher.stop()
+
+        then:
+        greenMail.receivedMessages.length == 10
+    }
+
+    def "transient failures are retried"() {
+        setup:
+        def failing = Mock(JavaMailSender)
+        dispatcher.javaMailSender = failing
+        dispatcher.workers = 1
+        def sent = new CountDownLatch(1)
+        dispatcher.start()
+
+        when:
+        dispatcher.submit(mail('a@b.com'))
+        sent.await(5, TimeUnit.SECONDS)
+
+        then:
+        1 * failing.send(_ as MimeMessage[]) >> { throw new MailSendException('Mail server connection failed') }
+        1 * failing.send(_ as MimeMessage[]) >> { sent.countDown() }
+    }
+
+    def "retries give up after the maximum number of attempts"() {
+        setup:
+        def failing = Mock(JavaMailSender)
+        dispatcher.javaMailSender = failing
+        dispatcher.workers = 1
+        dispatcher.maxAttempts = 3
+        dispatcher.start()
+
+        when:
+        dispatcher.submit(mail('a@b.com'))
+        Thread.sleep(500)
+
+        then:
+        3 * failing.send(_ as MimeMessage[]) >> { throw new MailSendException('Mail server connection failed') }
+    }
+
+    def "emails submitted for a single attempt are not retried"() {
+        setup:
+        def failing = Mock(JavaMailSender)
+        dispatcher.javaMailSender = failing
+        dispatcher.workers = 1
+        dispatcher.maxAttempts = 3
+        def outcome = new CompletableFuture()
+        dispatcher.start()
+
+        when:
+        dispatcher.submit(mail('a@b.com'), 0, 1) { failure -> outcome.complete(failure) }
+        def failure = outcome.get(5, TimeUnit.SECONDS)
+        Thread.sleep(100)
+
+        then:
+        1 * failing.send(_ as MimeMessage[]) >> { throw new MailSendException('Mail server connection failed') }
+        failure instanceof MailSendException
+        0 * dispatcher.counterService.increment('email.retried')
+        1 * dispatcher.counterService.increment('email.dropped')
+    }
+
+    def "retries still waiting when the dispatcher stops are given up on"() {
+        setup:
+        def failing = Mock(JavaMailSender)
+        dispatcher.javaMailSender = failing
+        dispatcher.workers = 1
+        dispatcher.initialBackoffMillis = 60000
+        def tried = new CountDownLatch(1)
+        def outcome = new CompletableFuture()
+        dispatcher.start()
+
+        when:
+        dispatcher.submit(mail('a@b.com'), 0) { failure -> outcome.complete(failure) }
+        tried.await(5, TimeUnit.SECONDS)
+        Thread.sleep(100)
+        dispatcher.stop()
+        def failure = outcome.get(5, TimeUnit.SECONDS)
+
+        then:
+        1 * failing.send(_ as MimeMessage[]) >> { tried.countDown(); throw new MailSendException('Mail server connection failed') }
+        failure instanceof MailSendException
+        1 * dispatcher.counterService.increment('email.retried')
+        1 * dispatcher.counterService.increment('email.dropped')
+
+        cleanup:
+        dispatcher.workerPool = null
+    }
+
+    def "submit blocks while the queue is full"() {
+        setup:
+        def blocked = Mock(JavaMailSender)
+        def release = new CountDownLatch(1)
+        blocked.send(_ as MimeMessage[]) >> { release.await() }
+        dispatcher.javaMailSender = blocked
+        dispatcher.workers = 1
+        dispatcher.batchSize = 1
+        dispatcher.queueCapacity = 1
+        dispatcher.start()
+
+        when: "the single worker is busy and the queue holds one email"
+        def producer = Thread.start { 3.times { dispatcher.submit(mail('a@b.com')) } }
+        producer.join(500)
+        then: "the producer is held back"
+        producer.alive
+
+        when: "the worker is released"
+        release.countDown()
+        producer.join(5000)
+        then:
+        !producer.alive
+    }
+
+    def "delivery is timed from the detection of the status change"() {
+        setup:
+        def recorded = new CountDownLatch(1)
+        def latency = null
+        dispatcher.gaugeService = Mock(GaugeService) {
+            submit('histogram.email.detectionToDelivery', _) >> { String name, double value -> latency = value; recorded.countDown() }
+        }
+        dispatcher.start()
+        def detectedAt = System.currentTimeMillis() - 60000
+
+        when:
+        dispatcher.submit(mail('a@b.com'), detectedAt)
+        recorded.await(5, TimeUnit.SECONDS)
+
+        then:
+        latency >= 60000
+        latency < 70000
+    }
+
+    def "emails without a detection time are not timed"() {
+        setup:
+        dispatcher.start()
+
+        when:
+        dispatcher.submit(mail('a@b.com'))
+        greenMail.waitForIncomingEmail(5000, 1)
+        dispatcher.stop()
+
+        then:
+        1 * dispatcher.counterService.increment('email.sent')
+        0 * dispatcher.gaugeService.submit('histogram.email.detectionToDelivery', _)
+        (1.._) * dispatcher.gaugeService.submit('timer.email.send', _)
+    }
+
+    def "failures are classified as transient or permanent"() {
+        expect:
+        EmailDispatcher.isTransient(new MailSendException('Mail server connection failed'))
+        EmailDispatcher.isTransient(new SMTPSendFailedException('DATA', 421, 'Service not available', null, null, null, null))
+        !EmailDispatcher.isTransient(new SMTPSendFailedException('DATA', 554, 'Transaction failed', null, null, null, null))
+        !EmailDispatcher.isTransient(new MailAuthenticationException('Bad credentials'))
+    }
+
+    def "only temporary smtp replies are taken for throttling"() {
+        expect:
+        EmailDispatcher.isThrottled(new MailSendException('Send failed', new SMTPSendFailedException('DATA', 421, 'Too many messages', null, null, null, null)))
+        EmailDispatcher.isThrottled(new SMTPSendFailedException('DATA', 450, 'Rate limited', null, null, null, null))
+        !EmailDispatcher.isThrottled(new SMTPSendFailedException('DATA', 554, 'Transaction failed', null, null, null, null))
+        !EmailDispatcher.isThrottled(new MailSendException('Mail server connection failed'))
+    }
+
+    def throttle() {
+        def throttle = new DomainThrottle(environment: new MockEnvironment(), counterService: Mock(CounterService), gaugeService: Mock(GaugeService))
+        throttle.start()
+        throttle
+    }
+
+    def "emails are sent a recipient domain at a time"() {
+        setup:
+        def sender = Mock(JavaMailSender)
+        def release = new CountDownLatch(1)
+        def sent = new CountDownLatch(7)
+        def sends = [].asSynchronized()
+        sender.send(_ as MimeMessage[]) >> { arguments ->
+            def messages = arguments[0]
+            release.await()
+            sends << messages*.allRecipients.flatten()*.toString()
+            messages.each { sent.countDown() }
+        }
+        dispatcher.javaMailSender = sender
+        dispatcher.domainThrottle = throttle()
+        dispatcher.workers = 1
+        dispatcher.batchSize = 6
+        dispatcher.start()
+
+        when: "emails to three domains are queued while the worker is busy"
+        dispatcher.submit(mail('x@x.com'))
+        Thread.sleep(100)
+        ['a1@a.com', 'b1@b.com', 'a2@a.com', 'b2@b.com', 'a3@a.com', 'c1@c.com'].each { dispatcher.submit(mail(it)) }
+        release.countDown()
+        sent.await(5, TimeUnit.SECONDS)
+
+        then: "they are taken as one batch, and sent a domain at a time"
+        sends == [['x@x.com'], ['a1@a.com', 'a2@a.com', 'a3@a.com'], ['b1@b.com', 'b2@b.com'], ['c1@c.com']]
+    }
+
+    def "a domain at its limits is deferred while the rest of the batch is sent"() {
+        setup:
+        def sender = Mock(JavaMailSender)
+        def release = new CountDownLatch(1)
+        def sent = new CountDownLatch(4)
+        def sends = [].asSynchronized()
+        sender.send(_ as MimeMessage[]) >> { arguments ->
+            def messages = arguments[0]
+            release.await()
+            sends << messages*.allRecipients.flatten()*.toString()
+            messages.each { sent.countDown() }
+        }
+        def environment = new MockEnvironment()
+        environment.setProperty('com.riz.exercise.application.email.throttle.domains.a.com.permitsPerSecond', '1')
+        dispatcher.javaMailSender = sender
+        dispatcher.domainThrottle = new DomainThrottle(environment: environment, counterService: Mock(CounterService), gaugeService: Mock(GaugeService))
+        dispatcher.domainThrottle.start()
+        dispatcher.workers = 1
+        dispatcher.start()
+
+        when: "a batch holds more emails to a.com than its rate allows at once"
+        dispatcher.submit(mail('x@x.com'))
+        Thread.sleep(100)
+        ['a1@a.com', 'a2@a.com', 'b1@b.com'].each { dispatcher.submit(mail(it)) }
+        release.countDown()
+        sent.await(5, TimeUnit.SECONDS)
+
+        then: "b.com isn't held up by it, and a.com's second email follows once its rate allows"
+        sends == [['x@x.com'], ['a1@a.com'], ['b1@b.com'], ['a2@a.com']]
+        1 * dispatcher.counterService.increment('email.deferred')
+        1 * dispatcher.gaugeService.submit('histogram.email.throttle.waitMillis', { it >= 500 })
+    }
+
+    def "emails waiting on a domain's limits when the worker is interrupted are given up on"() {
+        setup:
+        dispatcher.domainThrottle = throttle()
+        def held = dispatcher.domainThrottle.acquire('a.com', 1)
+        def outcomes = [new CompletableFuture(), new CompletableFuture()]
+        def batch = [mail('a1@a.com'), mail('a2@a.com')].withIndex().collect { mail, i ->
+            new EmailDispatcher.PendingEmail(mail, 0, 3, { failure -> outcomes[i].complete(failure) } as EmailDispatcher.Outcome)
+        }
+
+        when: "a stopping worker waits on a.com, which has no place in flight free"
+        def worker = Thread.start {
+            try {
+                dispatcher.dispatch(null, batch)
+            } catch (InterruptedException ignored) {
+            }
+        }
+        Thread.sleep(200)
+        worker.interrupt()
+        worker.join(5000)
+
+        then:
+        outcomes*.get(5, TimeUnit.SECONDS).every { it instanceof MailSendException }
+        2 * dispatcher.counterService.increment('email.dropped')
+
+        cleanup:
+        held.release(DomainThrottle.Feedback.ACCEPTED)
+    }
+
+    def "a domain replying 421 is backed off while others are not"() {
+        setup:
+        def sender = Mock(JavaMailSender)
+        def tried = new CountDownLatch(2)
+        sender.send(_ as MimeMessage[]) >> { arguments ->
+            def messages = arguments[0]
+            tried.countDown()
+            if (messages[0].allRecipients[0].toString().endsWith('@a.com')) {
+                throw new MailSendException([(messages[0]): new SMTPSendFailedException('DATA', 421, 'Too many messages, slow down', null, null, null, null)])
+            }
+        }
+        dispatcher.javaMailSender = sender
+        dispatcher.domainThrottle = throttle()
+        dispatcher.workers = 1
+        dispatcher.initialBackoffMillis = 60000
+        dispatcher.start()
+
+        when:
+        dispatcher.submit(mail('a@a.com'))
+        dispatcher.submit(mail('b@b.com'))
+        tried.await(5, TimeUnit.SECONDS)
+        dispatcher.stop()
+
+        then:
+        1 * dispatcher.domainThrottle.counterService.increment('email.throttled')
+        with(dispatcher.domainThrottle.limits.find { it.domain == 'a.com' }) {
+            backedOff
+            permitsPerSecond == 10
+        }
+        !dispatcher.domainThrottle.limits.find { it.domain == 'b.com' }.backedOff
+    }
+}
@@ -0,0 +1,103 @@
+package groovy.com.riz.exercise.tdd
+
+import com.mongodb.BasicDBObject
+import com.riz.exercise.model.OutboxNotification
+import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.model.StatusHistoryBucket
+import com.riz.exercise.model.Subscriber
+import com.riz.exercise.persistence.IndexProvisioner
+import org.springframework.dao.DuplicateKeyException
+import org.springframework.data.mongodb.core.IndexOperations
+import org.springframework.data.mongodb.core.MongoOperations
+import spock.lang.Specification
+
+class IndexProvisionerSpec extends Specification {
+
+    def provisioner, serverInstanceIndexes, subscriberIndexes, outboxIndexes, historyIndexes
+
+    def setup() {
+        serverInstanceIndexes = Mock(IndexOperations)
+        subscriberIndexes = Mock(IndexOperations)
+        outboxIndexes = Mock(IndexOperations)
+        historyIndexes = Mock(IndexOperations)
+        provisioner = new IndexProvisioner(explainReport: false)
+        provisioner.mongoOperations = Mock(MongoOperations)
+        provisioner.mongoOperations.indexOps(SFDCServerInstance) >> serverInstanceIndexes
+        provisioner.mongoOperations.indexOps(Subscriber) >> subscriberIndexes
+        provisioner.mongoOperations.indexOps(OutboxNotification) >> outboxIndexes
+        provisioner.mongoOperations.indexOps(StatusHistoryBucket) >> historyIndexes
+    }
+
+    def "indexes are created for the key, email, servers and modifiedAt lookups"() {
+        when:
+        provisioner.provision()
+
+        then:
+        1 * serverInstanceIndexes.ensureIndex({ it.indexKeys.toMap() == [key: 1] && it.indexOptions.get('unique') })
+        1 * subscriberIndexes.ensureIndex({ it.indexKeys.toMap() == [email: 1] && it.indexOptions.get('unique') })
+        1 * subscriberIndexes.ensureIndex({ it.indexKeys.toMap() == [email: 1, _id: 1] && !it.indexOptions.get('unique') })
+        1 * subscriberIndexes.ensureIndex({ it.indexKeys.toMap() == [servers: 1] })
+        1 * subscriberIndexes.ensureIndex({ it.indexKeys.toMap() == [modifiedAt: 1] })
+    }
+
+    def "indexes are created for claiming, coalescing and deduplicating outbox notifications"() {
+        when:
+        provisioner.provision()
+
+        then:
+        1 * outboxIndexes.ensureIndex({ it.indexKeys.toMap() == [status: 1, dueAt: 1] })
+        1 * outboxIndexes.ensureIndex({ it.indexKeys.toMap() == [status: 1, createdAt: 1] })
+        1 * outboxIndexes.ensureIndex({ it.indexKeys.toMap() == [subscriberId: 1, status: 1] })
+        1 * outboxIndexes.ensureIndex({ it.indexKeys.toMap() == [batches: 1] })
+        1 * outboxIndexes.ensureIndex({ it.indexKeys.toMap() == [deliveredAt: 1] && it.indexOptions.get('expireAfterSeconds') == 168 * 3600 })
+    }
+
+    def "indexes are created for status history timelines and ranges"() {
+        when:
+        provisioner.provision()
+
+        then:
+        1 * historyIndexes.ensureIndex({ it.indexKeys.toMap() == [key: 1, start: -1] })
+        1 * historyIndexes.ensureIndex({ it.indexKeys.toMap() == [start: 1, end: 1] })
+    }
+
+    def "an index that can't be created doesn't fail startup"() {
+        when:
+        provisioner.provision()
+
+        then:
+        1 * serverInstanceIndexes.ensureIndex(_) >> { throw new DuplicateKeyException('E11000 duplicate key error') }
+        4 * subscriberIndexes.ensureIndex(_)
+        noExceptionThrown()
+    }
+
+    def "query plans are summarized from explain output"() {
+        expect:
+        def plan = IndexProvisioner.QueryPlan.of(explain(winningPlan))
+        plan.stages == stages
+        plan.collectionScan == collectionScan
+        plan.covered == covered
+
+        where:
+        winningPlan                                                                               | stages                | collectionScan | covered
+        [stage: 'COLLSCAN']                                                                       | ['COLLSCAN']          | true           | false
+        [stage: 'FETCH', inputStage: [stage: 'IXSCAN']]                                           | ['FETCH', 'IXSCAN']   | false          | false
+        [stage: 'PROJECTION', inputStage: [stage: 'IXSCAN']]                                      | ['PROJECTION', 'IXSCAN'] | false       | true
+        [stage: 'SORT', inputStage: [stage: 'OR', inputStages: [[stage: 'IXSCAN'], [stage: 'COLLSCAN']]]] | ['SORT', 'OR', 'IXSCAN', 'COLLSCAN'] | true | false
+    }
+
+    def "a plan that can't be read is unknown"() {
+        expect:
+        IndexProvisioner.QueryPlan.of(new BasicDBObject()).toString() == 'unknown'
+    }
+
+    def explain(Map winningPlan) {
+        new BasicDBObject(queryPlanner: new BasicDBObject(winningPlan: toDBObject(winningPlan)))
+    }
+
+    def toDBObject(Map map) {
+        new BasicDBObject(map.collectEntries { k, v ->
+            [k, v instanceof Map ? toDBObject(v) : v instanceof List ? v.collect { toDBObject(it) } : v]
+        })
+    }
+}
@@ -0,0 +1,74 @@
+package groovy.com.riz.exercise.tdd
+
+import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.model.Subscriber
+import com.riz.exercise.persistence.ServerInstanceRepositoryImpl
+import com.riz.exercise.persistence.SubscriberRepositoryImpl
+import org.springframework.data.domain.PageRequest
+import org.springframework.data.mongodb.core.MongoOperations
+import org.springframework.data.mongodb.core.query.Query
+import spock.lang.Specification
+
+/**
+ * The listing queries read only the listed fields, in a stable order, a bounded number of documents at a time
+ */
+class ListingRepositorySpec extends Specification {
+
+    def mongoOperations = Mock(MongoOperations)
+
+    def "server instance pages read the listed fields only, in key order"() {
+        setup:
+        def repository = new ServerInstanceRepositoryImpl(mongoOperations: mongoOperations)
+
+        when:
+        def page = repository.findListingPage(new PageRequest(2, 10))
+
+        then:
+        1 * mongoOperations.find({ Query q ->
+            q.fieldsObject.toMap() == [key: 1, location: 1, environment: 1, releaseVersion: 1, status: 1, _id: 0] &&
+            q.sortObject.toMap() == [key: 1] && q.skip == 20 && q.limit == 10
+        }, SFDCServerInstance) >> [new SFDCServerInstance(key: 'NA1')]
+        1 * mongoOperations.count(_, SFDCServerInstance) >> 21
+        page.content*.key == ['NA1']
+        page.totalPages == 3
+    }
+
+    def "server instances are listed after a key"() {
+        setup:
+        def repository = new ServerInstanceRepositoryImpl(mongoOperations: mongoOperations)
+
+        when:
+        repository.findListingAfter('CS62', 50)
+
+        then:
+        1 * mongoOperations.find({ Query q ->
+            q.queryObject.toMap() == [key: ['$gt': 'CS62']] && q.sortObject.toMap() == [key: 1] && q.limit == 50 && q.skip == 0
+        }, SFDCServerInstance) >> []
+    }
+
+    def "subscriber pages read a bounded slice of each subscriber's servers"() {
+        setup:
+        def repository = new SubscriberRepositoryImpl(mongoOperations: mongoOperations)
+
+        when:
+        repository.findListingAfter(null, 50)
+
+        then:
+        1 * mongoOperations.find({ Query q ->
+            q.queryObject.toMap() == [:] &&
+            q.fieldsObject.toMap() == [firstname: 1, lastname: 1, email: 1, servers: ['$slice': 20], webhooks: 1, channels: 1] &&
+            q.sortObject.toMap() == [_id: 1] && q.limit == 50
+        }, Subscriber) >> []
+    }
+
+    def "subscribers are streamed off a cursor in id order"() {
+        setup:
+        def repository = new SubscriberRepositoryImpl(mongoOperations: mongoOperations)
+
+        when:
+        repository.streamListing()
+
+        then:
+        1 * mongoOperations.stream({ Query q -> q.sortObject.toMap() == [_id: 1] && q.limit == 0 }, Subscriber)
+    }
+}
@@ -0,0 +1,130 @@
+package groovy.com.riz.exercise.tdd
+
+import com.google.common.collect.Range
+import com.riz.exercise.model.StatusChangeEvent
+import com.riz.exercise.persistence.MappedFileChangeJournal
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+class MappedFileChangeJournalSpec extends Specification {
+
+    def directory, path, journal
+
+    def setup() {
+        directory = Files.createTempDirectory('journal')
+        path = directory.resolve('journal.dat')
+        journal = new MappedFileChangeJournal(path, 256)
+    }
+
+    def cleanup() {
+        journal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def event(String key, String oldStatus, String newStatus) {
+        new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, key, oldStatus, newStatus, 'Winter \'17', new Date(1480550400000L))
+    }
+
+    def "appended events are numbered and read back in order"() {
+        when:
+        journal.append([event('CS62', 'OK', 'MINOR_INCIDENT_CORE'), event('NA16', 'OK', 'MAJOR_INCIDENT_CORE')])
+        journal.append([event('CS62', 'MINOR_INCIDENT_CORE', 'OK')])
+
+        then:
+        journal.readAfter(0, 10)*.sequence == [1, 2, 3]
+        journal.readAfter(1, 10)*.key == ['NA16', 'CS62']
+        journal.readAfter(0, 2)*.sequence == [1, 2]
+        journal.readAfter(3, 10).isEmpty()
+
+        def last = journal.readAfter(2, 1)[0]
+        last.type == StatusChangeEvent.Type.CHANGED
+        last.oldStatus == 'MINOR_INCIDENT_CORE'
+        last.newStatus == 'OK'
+        last.releaseVersion == 'Winter \'17'
+        last.timestamp == new Date(1480550400000L)
+    }
+
+    def "null statuses survive the round trip"() {
+        when:
+        journal.append([new StatusChangeEvent(StatusChangeEvent.Type.INSERTED, 'CS62', null, 'OK', null, new Date())])
+
+        then:
+        def read = journal.readAfter(0, 1)[0]
+        read.oldStatus == null
+        read.releaseVersion == null
+        read.newStatus == 'OK'
+    }
+
+    def "every type of event survives the round trip"() {
+        when:
+        journal.append(StatusChangeEvent.Type.values().collect { new StatusChangeEvent(it, 'CS62', null, 'OK', null, new Date()) })
+
+        then:
+        journal.readAfter(0, 10)*.type == StatusChangeEvent.Type.values() as List
+    }
+
+    def "the journal grows past its initial capacity"() {
+        when:
+        (1..100).each { journal.append([event("NA$it", 'OK', 'MINOR_INCIDENT_CORE')]) }
+
+        then:
+        journal.readAfter(0, 1000).size() == 100
+        journal.readAfter(99, 1)[0].key == 'NA100'
+    }
+
+    def "events and cursors survive reopening the journal"() {
+        setup:
+        journal.append([event('CS62', 'OK', 'MINOR_INCIDENT_CORE'), event('NA16', 'OK', 'MAJOR_INCIDENT_CORE')])
+        journal.saveCursor('notifier', 1)
+        journal.close()
+
+        when:
+        journal = new MappedFileChangeJournal(path, 256)
+        journal.append([event('EU7', 'OK', 'MINOR_INCIDENT_CORE')])
+
+        then:
+        journal.getCursor('notifier') == 1
+        journal.readAfter(journal.getCursor('notifier'), 10)*.key == ['NA16', 'EU7']
+        journal.readAfter(0, 10)*.sequence == [1, 2, 3]
+    }
+
+    def "an unknown consumer starts from the beginning"() {
+        expect:
+        journal.getCursor('unknown') == 0
+        journal.getBatch('unknown') == null
+    }
+
+    def "cursors are listed by consumer, and deleted with their batch"() {
+        setup:
+        journal.saveCursor('notifier', 4)
+        journal.saveBatch('notifier', 5, 9)
+        journal.saveCursor('history', 7)
+
+        expect:
+        journal.cursors == [notifier: 4L, history: 7L]
+
+        when:
+        journal.deleteCursor('notifier')
+        journal.close()
+        journal = new MappedFileChangeJournal(path, 256)
+
+        then:
+        journal.cursors == [history: 7L]
+        journal.getBatch('notifier') == null
+    }
+
+    def "the batch a consumer last started survives reopening the journal"() {
+        setup:
+        journal.saveCursor('notifier', 4)
+        journal.saveBatch('notifier', 5, 9)
+        journal.close()
+
+        when:
+        journal = new MappedFileChangeJournal(path, 256)
+
+        then:
+        journal.getBatch('notifier') == Range.closed(5L, 9L)
+        journal.getCursor('notifier') == 4
+    }
+}
@@ -0,0 +1,53 @@
+package groovy.com.riz.exercise.tdd
+
+import com.riz.exercise.model.StatusChangeEvent
+import com.riz.exercise.persistence.MongoChangeJournal
+import org.springframework.data.mongodb.core.MongoOperations
+import spock.lang.Specification
+
+class MongoChangeJournalSpec extends Specification {
+
+    def mongoOperations = Mock(MongoOperations)
+    def journal = new MongoChangeJournal(mongoOperations: mongoOperations, gapTimeoutMillis: 200)
+
+    def events(long... sequences) {
+        sequences.collect { new StatusChangeEvent(sequence: it, type: StatusChangeEvent.Type.CHANGED, key: "NA$it") }
+    }
+
+    def "reads stop before a sequence number an append in flight has yet to write"() {
+        when: "an append of 4 is still being written while one of 5 and 6 has completed"
+        def read = journal.readAfter(2, 10)
+        then:
+        1 * mongoOperations.find(_, StatusChangeEvent) >> events(3, 5, 6)
+        read*.sequence == [3]
+
+        when: "it completes"
+        read = journal.readAfter(3, 10)
+        then:
+        1 * mongoOperations.find(_, StatusChangeEvent) >> events(4, 5, 6)
+        read*.sequence == [4, 5, 6]
+    }
+
+    def "a gap at the cursor is waited on too"() {
+        when:
+        def read = journal.readAfter(0, 10)
+        then:
+        1 * mongoOperations.find(_, StatusChangeEvent) >> events(2, 3)
+        read.isEmpty()
+    }
+
+    def "a sequence number missing for longer than the timeout is read past"() {
+        when:
+        def read = journal.readAfter(2, 10)
+        then:
+        1 * mongoOperations.find(_, StatusChangeEvent) >> events(3, 5, 6)
+        read*.sequence == [3]
+
+        when: "the append that reserved 4 never writes it"
+        Thread.sleep(300)
+        read = journal.readAfter(3, 10)
+        then:
+        1 * mongoOperations.find(_, StatusChangeEvent) >> events(5, 6)
+        read*.sequence == [5, 6]
+    }
+}
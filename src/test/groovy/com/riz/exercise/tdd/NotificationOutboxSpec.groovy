@@ -0,0 +1,265 @@
+package groovy.com.riz.exercise.tdd
+
+import com.mongodb.WriteResult
+import com.riz.exercise.model.OutboxNotification
+import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.model.Subscriber
+import com.riz.exercise.notification.EmailComposer
+import com.riz.exercise.notification.EmailDispatcher
+import com.riz.exercise.notification.NotificationOutbox
+import com.riz.exercise.notification.WebhookDispatcher
+import com.riz.exercise.notification.WebhookRejectedException
+import org.springframework.boot.actuate.metrics.CounterService
+import org.springframework.boot.actuate.metrics.GaugeService
+import org.springframework.dao.DuplicateKeyException
+import org.springframework.data.mongodb.core.MongoOperations
+import org.springframework.data.mongodb.core.query.Query
+import org.springframework.data.mongodb.core.query.Update
+import org.springframework.mail.MailParseException
+import org.springframework.mail.MailSendException
+import spock.lang.Specification
+
+import javax.mail.internet.AddressException
+import javax.mail.internet.MimeMessage
+
+class NotificationOutboxSpec extends Specification {
+
+    def alice = new Subscriber(id: '1', firstname: 'Alice', lastname: 'Andrews', email: 'alice@andrews.com', servers: ['CS62', 'NA16'])
+
+    def outbox
+
+    def setup() {
+        outbox = new NotificationOutbox(enabled: false, initialBackoffMillis: 1000, maxBackoffMillis: 4000, maxAttempts: 3)
+        outbox.mongoOperations = Mock(MongoOperations)
+        outbox.emailComposer = Mock(EmailComposer)
+        outbox.emailDispatcher = Mock(EmailDispatcher)
+        outbox.webhookDispatcher = Mock(WebhookDispatcher)
+        outbox.counterService = Mock(CounterService)
+        outbox.gaugeService = Mock(GaugeService)
+    }
+
+    def pending(Map changes, Map properties = [:]) {
+        new OutboxNotification([id: '1@7', subscriberId: '1', name: 'Alice Andrews', email: 'alice@andrews.com',
+                                changes: changes.collect { key, statuses -> new OutboxNotification.Change(statuses[0], new SFDCServerInstance(key: key, status: statuses[1]), 1000L) },
+                                batches: ['1@7'], status: OutboxNotification.Status.SENDING, attempts: 1, createdAt: new Date(), version: 1] + properties)
+    }
+
+    def "test a batch is enqueued once per subscriber"() {
+        when:
+        outbox.enqueue(alice, [new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE')], [CS62: 'OK'], [CS62: 1000L], '7')
+        then:
+        1 * outbox.mongoOperations.exists({ Query q -> q.queryObject.get('batches') == '1@7' }, OutboxNotification) >> false
+        1 * outbox.mongoOperations.insert({ OutboxNotification n ->
+            n.id == '1@7' && n.batches == ['1@7'] && n.status == OutboxNotification.Status.PENDING && n.email == 'alice@andrews.com' &&
+                    n.changes*.statusBefore == ['OK'] && n.changes*.server*.status == ['MINOR_INCIDENT_CORE'] && n.changes*.detectedAt == [1000L]
+        })
+        1 * outbox.counterService.increment('outbox.enqueued')
+
+        when: "the batch is processed again"
+        outbox.enqueue(alice, [new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE')], [CS62: 'OK'], [CS62: 1000L], '7')
+        then:
+        1 * outbox.mongoOperations.exists(_, OutboxNotification) >> true
+        0 * outbox.mongoOperations.insert(_)
+        1 * outbox.counterService.increment('outbox.duplicate')
+    }
+
+    def "test a batch enqueued concurrently is told apart by its id"() {
+        when:
+        outbox.enqueue(alice, [new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE')], [CS62: 'OK'], [:], '7')
+        then:
+        1 * outbox.mongoOperations.insert(_) >> { throw new DuplicateKeyException('E11000 duplicate key error') }
+        1 * outbox.counterService.increment('outbox.duplicate')
+        noExceptionThrown()
+    }
+
+    def "test changes are merged into the subscriber's open digest"() {
+        setup:
+        outbox.windowMillis = 60000
+        def open = pending([CS62: ['OK', 'MINOR_INCIDENT_CORE']], [status: OutboxNotification.Status.PENDING, attempts: 0])
+
+        when:
+        outbox.enqueue(alice, [new SFDCServerInstance(key: 'CS62', status: 'MAJOR_INCIDENT_CORE'),
+                               new SFDCServerInstance(key: 'NA16', status: 'MINOR_INCIDENT_CORE')], [CS62: 'MINOR_INCIDENT_CORE', NA16: 'OK'], [CS62: 2000L, NA16: 3000L], '8')
+        then:
+        1 * outbox.mongoOperations.findOne(_, OutboxNotification) >> open
+        1 * outbox.mongoOperations.updateFirst({ Query q -> q.queryObject.get('_id') == '1@7' && q.queryObject.get('version') == 1L }, { Update u ->
+            def set = u.updateObject.get('$set')
+            set.get('changes')*.server*.status == ['MAJOR_INCIDENT_CORE', 'MINOR_INCIDENT_CORE'] &&
+                    // The status before the first change stands
+                    set.get('changes')*.statusBefore == ['OK', 'OK'] && set.get('changes')*.detectedAt == [1000L, 3000L] &&
+                    u.updateObject.get('$push').get('batches') == '1@8' && !set.containsField('dueAt')
+        }, OutboxNotification) >> new WriteResult(1, true, null)
+        1 * outbox.counterService.increment('email.digest.collapsed')
+        1 * outbox.counterService.increment('outbox.merged')
+        0 * outbox.mongoOperations.insert(_)
+    }
+
+    def "test a digest claimed before it could be merged into is left alone"() {
+        setup:
+        outbox.windowMillis = 60000
+
+        when:
+        outbox.enqueue(alice, [new SFDCServerInstance(key: 'NA16', status: 'MINOR_INCIDENT_CORE')], [NA16: 'OK'], [:], '8')
+        then: "the merge loses the race against the relay"
+        2 * outbox.mongoOperations.findOne(_, OutboxNotification) >>> [pending([CS62: ['OK', 'MINOR_INCIDENT_CORE']], [status: OutboxNotification.Status.PENDING, attempts: 0]), null]
+        1 * outbox.mongoOperations.updateFirst(_, _, OutboxNotification) >> new WriteResult(0, false, null)
+        1 * outbox.mongoOperations.insert({ OutboxNotification n -> n.id == '1@8' && n.dueAt.time > System.currentTimeMillis() })
+    }
+
+    def "test a due notification is claimed, sent and recorded as delivered"() {
+        setup:
+        def mail = Mock(MimeMessage)
+
+        when:
+        def relayed = outbox.relay()
+        then:
+        relayed == 1
+        2 * outbox.mongoOperations.findAndModify(_, { Update u -> u.updateObject.get('$set').get('status') == OutboxNotification.Status.SENDING },
+                _, OutboxNotification) >>> [pending([CS62: ['OK', 'MINOR_INCIDENT_CORE']]), null]
+        1 * outbox.emailComposer.compose('Alice Andrews', 'alice@andrews.com', { it*.key == ['CS62'] }, '1@7') >> mail
+        // A single attempt: the outbox retries it
+        1 * outbox.emailDispatcher.submit(mail, 1000L, 1, _) >> { m, detectedAt, attempts, outcome -> outcome.completed(null) }
+        1 * outbox.mongoOperations.updateFirst({ Query q -> q.queryObject.get('_id') == '1@7' && q.queryObject.get('version') == 1L },
+                { Update u -> u.updateObject.get('$set').get('status') == OutboxNotification.Status.DELIVERED }, OutboxNotification) >> new WriteResult(1, true, null)
+        1 * outbox.counterService.increment('outbox.delivered')
+        1 * outbox.gaugeService.submit('histogram.outbox.deliveryLag', _)
+    }
+
+    def "test the outcome of a notification claimed again meanwhile is not recorded"() {
+        when:
+        outbox.relay()
+        then:
+        2 * outbox.mongoOperations.findAndModify(*_) >>> [pending([CS62: ['OK', 'MINOR_INCIDENT_CORE']]), null]
+        1 * outbox.emailComposer.compose(*_) >> Mock(MimeMessage)
+        1 * outbox.emailDispatcher.submit(_, _, 1, _) >> { m, detectedAt, maxAttempts, outcome -> outcome.completed(failure) }
+        // Another relay claimed it, bumping its version
+        1 * outbox.mongoOperations.updateFirst({ Query q -> q.queryObject.get('version') == 1L }, _, OutboxNotification) >> new WriteResult(0, false, null)
+        1 * outbox.counterService.increment('outbox.claimLost')
+        0 * outbox.counterService.increment({ it in ['outbox.delivered', 'outbox.retried', 'outbox.failed'] })
+        0 * outbox.gaugeService.submit(*_)
+
+        where:
+        failure << [null, new MailSendException('Connection refused'), new MailParseException('Malformed message')]
+    }
+
+    def "test a transient failure is retried with backoff"() {
+        when:
+        outbox.relay()
+        then:
+        2 * outbox.mongoOperations.findAndModify(*_) >>> [pending([CS62: ['OK', 'MINOR_INCIDENT_CORE']], [attempts: attempts]), null]
+        1 * outbox.emailComposer.compose(*_) >> Mock(MimeMessage)
+        1 * outbox.emailDispatcher.submit(_, _, 1, _) >> { m, detectedAt, maxAttempts, outcome -> outcome.completed(new MailSendException('Connection refused')) }
+        1 * outbox.mongoOperations.updateFirst(_, { Update u ->
+            def set = u.updateObject.get('$set')
+            set.get('status') == OutboxNotification.Status.PENDING && set.get('lastError') == 'Connection refused' &&
+                    Math.abs(set.get('dueAt').time - System.currentTimeMillis() - backoffMillis) < 500
+        }, OutboxNotification) >> new WriteResult(1, true, null)
+        1 * outbox.counterService.increment('outbox.retried')
+
+        where:
+        attempts | backoffMillis
+        1        | 1000
+        2        | 2000
+    }
+
+    def "test a notification is given up on after its last attempt, or one that can never succeed"() {
+        when:
+        outbox.relay()
+        then:
+        2 * outbox.mongoOperations.findAndModify(*_) >>> [pending([CS62: ['OK', 'MINOR_INCIDENT_CORE']], [attempts: attempts]), null]
+        1 * outbox.emailComposer.compose(*_) >> Mock(MimeMessage)
+        1 * outbox.emailDispatcher.submit(_, _, 1, _) >> { m, detectedAt, maxAttempts, outcome -> outcome.completed(failure) }
+        1 * outbox.mongoOperations.updateFirst(_, { Update u -> u.updateObject.get('$set').get('status') == OutboxNotification.Status.FAILED }, OutboxNotification) >> new WriteResult(1, true, null)
+        1 * outbox.counterService.increment('outbox.failed')
+
+        where:
+        attempts | failure
+        3        | new MailSendException('Connection refused')
+        1        | new MailParseException('Malformed message')
+    }
+
+    def "test a notification that can't be composed is given up on straight away"() {
+        when:
+        outbox.relay()
+        then:
+        2 * outbox.mongoOperations.findAndModify(*_) >>> [pending([CS62: ['OK', 'MINOR_INCIDENT_CORE']], [email: 'alice@']), null]
+        1 * outbox.emailComposer.compose(*_) >> { throw new AddressException('Missing domain', 'alice@') }
+        0 * outbox.emailDispatcher.submit(*_)
+        1 * outbox.mongoOperations.updateFirst(_, { Update u -> u.updateObject.get('$set').get('status') == OutboxNotification.Status.FAILED }, OutboxNotification) >> new WriteResult(1, true, null)
+    }
+
+    def "test a digest of instances all back to their status is not sent"() {
+        when:
+        outbox.relay()
+        then:
+        2 * outbox.mongoOperations.findAndModify(*_) >>> [pending([CS62: ['OK', 'OK']]), null]
+        0 * outbox.emailComposer.compose(*_)
+        1 * outbox.counterService.increment('email.digest.suppressed')
+        1 * outbox.mongoOperations.updateFirst(_, { Update u -> u.updateObject.get('$set').get('status') == OutboxNotification.Status.DELIVERED }, OutboxNotification) >> new WriteResult(1, true, null)
+    }
+
+    def "test a subscriber is enqueued a notification for each of their channels"() {
+        setup:
+        outbox.windowMillis = 60000
+        def bob = new Subscriber(id: '2', firstname: 'Bob', lastname: 'Baker', email: 'bob@baker.com', servers: ['CS62'],
+                webhooks: ['https://hooks.baker.com/a', 'https://hooks.baker.com/b', 'https://hooks.baker.com/a'])
+        def inserted = []
+
+        when:
+        outbox.enqueue(bob, [new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE')], [CS62: 'OK'], [CS62: 1000L], '7')
+        then:
+        3 * outbox.mongoOperations.exists(_, OutboxNotification) >> false
+        // Only the email looks for a digest to merge into
+        1 * outbox.mongoOperations.findOne({ Query q -> q.queryObject.get('channel') == ['$ne': Subscriber.Channel.WEBHOOK] }, OutboxNotification) >> null
+        3 * outbox.mongoOperations.insert(_) >> { OutboxNotification n -> inserted << n }
+        inserted*.channel == [Subscriber.Channel.EMAIL, Subscriber.Channel.WEBHOOK, Subscriber.Channel.WEBHOOK]
+        inserted*.webhook == [null, 'https://hooks.baker.com/a', 'https://hooks.baker.com/b']
+        inserted[0].id == '2@7'
+        inserted[1].id.startsWith('2@7#') && inserted[1].id != inserted[2].id
+        // Webhooks aren't held back for a digest
+        inserted[0].dueAt.time - inserted[0].createdAt.time == 60000
+        inserted[1].dueAt == inserted[1].createdAt
+
+        when: "the subscriber is only notified through webhooks"
+        bob.channels = [Subscriber.Channel.WEBHOOK] as Set
+        outbox.enqueue(bob, [new SFDCServerInstance(key: 'CS62', status: 'OK')], [CS62: 'MINOR_INCIDENT_CORE'], [:], '8')
+        then:
+        2 * outbox.mongoOperations.insert({ OutboxNotification n -> n.channel == Subscriber.Channel.WEBHOOK })
+        0 * outbox.mongoOperations.insert(_)
+    }
+
+    def "test a webhook notification is posted, and retried on failure"() {
+        when:
+        outbox.relay()
+        then:
+        2 * outbox.mongoOperations.findAndModify(*_) >>> [pending([CS62: ['OK', 'MINOR_INCIDENT_CORE']],
+                [id: '1@7#5d41402a', channel: Subscriber.Channel.WEBHOOK, webhook: 'https://hooks.andrews.com/trust']), null]
+        0 * outbox.emailComposer.compose(*_)
+        1 * outbox.webhookDispatcher.submit('https://hooks.andrews.com/trust', { it.id == '1@7#5d41402a' && it.subscriberId == '1' && it.servers*.key == ['CS62'] && it.detectedAt == 1000L }, 1, _) >> { url, notification, maxAttempts, outcome ->
+            outcome.completed(new WebhookRejectedException(url, 503))
+        }
+        1 * outbox.mongoOperations.updateFirst(_, { Update u -> u.updateObject.get('$set').get('status') == OutboxNotification.Status.PENDING }, OutboxNotification) >> new WriteResult(1, true, null)
+        1 * outbox.counterService.increment('outbox.retried')
+
+        when:
+        outbox.relay()
+        then:
+        2 * outbox.mongoOperations.findAndModify(*_) >>> [pending([CS62: ['OK', 'MINOR_INCIDENT_CORE']],
+                [id: '1@7#5d41402a', channel: Subscriber.Channel.WEBHOOK, webhook: 'https://hooks.andrews.com/trust', attempts: 2]), null]
+        1 * outbox.webhookDispatcher.submit(*_) >> { url, notification, maxAttempts, outcome -> outcome.completed(null) }
+        1 * outbox.mongoOperations.updateFirst(_, { Update u -> u.updateObject.get('$set').get('status') == OutboxNotification.Status.DELIVERED }, OutboxNotification) >> new WriteResult(1, true, null)
+        1 * outbox.counterService.increment('outbox.delivered')
+    }
+
+    def "test the relay takes at most a batch at a time"() {
+        setup:
+        outbox.batchSize = 2
+
+        when:
+        def relayed = outbox.relay()
+        then:
+        relayed == 2
+        2 * outbox.mongoOperations.findAndModify(*_) >> pending([CS62: ['OK', 'OK']])
+        2 * outbox.mongoOperations.updateFirst(*_) >> new WriteResult(1, true, null)
+    }
+}
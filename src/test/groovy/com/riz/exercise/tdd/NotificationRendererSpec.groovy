@@ -0,0 +1,80 @@
+package groovy.com.riz.exercise.tdd
+
+import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.notification.NotificationRenderer
+import com.riz.exercise.notification.NotificationTemplate
+import spock.lang.Specification
+
+class NotificationRendererSpec extends Specification {
+
+    def renderer, instances
+
+    def setup() {
+        renderer = new NotificationRenderer()
+        renderer.start()
+
+        instances = [new SFDCServerInstance(key: 'CS85', status: 'OK'),
+                     new SFDCServerInstance(key: 'CS62', status: 'OK'),
+                     new SFDCServerInstance(key: 'NA16', status: 'OK'),
+                     new SFDCServerInstance(key: 'NA01', status: 'OK')]
+    }
+
+    def "test email message body string"() {
+        when: "email message for a user with name Riz Mappillai and 4 instances is requested"
+        String message = renderer.render("Riz Mappillai", instances).text
+
+        then: "return a string informing that user that 4 instances status' have changed"
+        message == """Hello Riz Mappillai,\r
+\r
+There has been a change of status in 4 SFDC server instances you are subscribing to.\r
+\r
+Here are the current statuses of those servers that have changed:\r
+\r
+CS85 -> OK\r
+CS62 -> OK\r
+NA16 -> OK\r
+NA01 -> OK\r
+\r
+Thank you."""
+    }
+
+    def "test email message body html"() {
+        when:
+        String html = renderer.render("Tom & Jerry", [new SFDCServerInstance(key: 'EU5', status: '<b>OK</b>')]).html
+
+        then: "values are escaped"
+        html.contains('<p>Hello Tom &amp; Jerry,</p>')
+        html.contains('<tr><td>EU5</td><td>&lt;b&gt;OK&lt;/b&gt;</td></tr>')
+        html.contains('There has been a change of status in 1 SFDC server instances')
+    }
+
+    def "status changes are rendered once per distinct set of changed instances"() {
+        when: "two subscribers to the same changes are rendered"
+        def alice = renderer.render("Alice Andrews", instances)
+        def bob = renderer.render("Bob Baker", instances.collect { new SFDCServerInstance(key: it.key, status: it.status) })
+        then: "only the greeting differs and the status block is shared"
+        renderer.cachedStatusChanges == 1
+        alice.text.startsWith('Hello Alice Andrews,')
+        bob.text.startsWith('Hello Bob Baker,')
+        alice.text.substring(alice.text.indexOf('There')) == bob.text.substring(bob.text.indexOf('There'))
+
+        when: "a different set of changes is rendered"
+        def carol = renderer.render("Carol Cook", [new SFDCServerInstance(key: 'CS85', status: 'MAJOR_INCIDENT_CORE')])
+        then:
+        renderer.cachedStatusChanges == 2
+        carol.text.contains('CS85 -> MAJOR_INCIDENT_CORE')
+    }
+
+    def "templates are parsed into literals and placeholders"() {
+        setup:
+        def template = NotificationTemplate.parse('test', 'Hello ${name}, ${count} changes${end}')
+
+        expect:
+        template.render([name: 'Bob', count: '2', end: '!']) == 'Hello Bob, 2 changes!'
+
+        when:
+        template.render([name: 'Bob'])
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
@@ -5,15 +5,48 @@
 package groovy.com.riz.exercise.tdd
 
 import com.google.common.collect.ArrayListMultimap
+import com.riz.exercise.client.FetchResult
+import com.riz.exercise.client.StatusSources
+import com.riz.exercise.client.TrustApiClient
+import com.riz.exercise.cluster.JobLease
+import com.riz.exercise.cluster.JobLockService
+import com.riz.exercise.cluster.LeaseLostException
+import com.riz.exercise.controllers.SubscriberController
 import com.riz.exercise.jobs.NotifierJob
+import com.riz.exercise.jobs.PipelineExecutor
+import com.riz.exercise.jobs.ServerInstanceDiffEngine
 import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.model.StatusChangeEvent
 import com.riz.exercise.model.Subscriber
+import com.riz.exercise.notification.DigestCoalescer
+import com.riz.exercise.notification.EmailComposer
+import com.riz.exercise.notification.EmailDispatcher
+import com.riz.exercise.notification.NotificationOutbox
+import com.riz.exercise.notification.NotificationRenderer
+import com.riz.exercise.notification.WebhookDispatcher
+import com.riz.exercise.persistence.ChangeJournal
+import com.riz.exercise.persistence.MappedFileChangeJournal
+import com.riz.exercise.persistence.ServerInstanceCache
 import com.riz.exercise.persistence.ServerInstanceRepository
+import com.riz.exercise.persistence.StatusHistory
 import com.riz.exercise.persistence.SubscriberRepository
+import com.riz.exercise.persistence.SubscriptionIndex
+import com.sun.net.httpserver.HttpServer
+import org.roaringbitmap.RoaringBitmap
+import org.springframework.boot.actuate.metrics.CounterService
+import org.springframework.boot.actuate.metrics.GaugeService
+import org.springframework.data.mongodb.core.MongoOperations
 import org.springframework.mail.javamail.JavaMailSender
+import org.springframework.mock.env.MockEnvironment
 import spock.lang.Specification
 
 import javax.mail.internet.MimeMessage
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.TimeUnit
+import java.util.function.Consumer
 
 class NotifierJobSpec extends Specification {
 
@@ -30,92 +63,73 @@ class NotifierJobSpec extends Specification {
         subscribers = [new Subscriber(id: '1', firstname: 'Alice', lastname: 'Andrews', email: 'alice@andrews.com', servers: ['CS62', 'NA16']),
                        new Subscriber(id: '2', firstname: 'Bob', lastname: 'Baker', email: 'bob@baker.com', servers: ['NA16', 'CS85'])]
 
+        service.gaugeService = Mock(GaugeService)
+        // No digest window: emails are queued as changes are processed
+        service.digestCoalescer = new DigestCoalescer()
+        // No outbox: emails are handed straight to the dispatcher
+        service.notificationOutbox = new NotificationOutbox(enabled: false)
+        service.statusHistory = new StatusHistory(enabled: false)
+        service.pipelineExecutor = new PipelineExecutor()
+        // Only the Trust api's instances are polled
+        service.statusSources = new StatusSources()
+        // A single node: every lease is granted
+        service.jobLockService = Mock(JobLockService)
+        service.jobLockService.tryAcquire(_) >> { String name -> new JobLease(name, 'node', 1, false) }
     }
 
-
-    def "test getting existing server instances from data store"() {
-        setup:
-        service.serverInstanceRepository = Mock(ServerInstanceRepository)
-        service.serverInstanceRepository.findAll() >> instances
-
-        when: "getExistingServerInstances is called"
-        def result = service.getExistingServerInstances()
-
-        then: "return a map of instances by their instance name"
-        result == ["CS85": instances[0], "CS62": instances[1], "NA16": instances[2], "NA01": instances[3]]
-    }
-
-
-    def "test remote dataset updates local dataset"() {
-        def remoteServerInstances = [instances[0], instances[1]]
-        def localServerInstances = ["CS62": new SFDCServerInstance(id: '1', key: 'CS62', status: 'MINOR_INCIDENT_CORE'),
-                                    "CS85": new SFDCServerInstance(id: '2', key: 'CS85', status: 'OK')]
-
-        setup:
-        service.serverInstanceRepository = Mock(ServerInstanceRepository)
-        service.serverInstanceRepository.save(_) >> _
-
-        when:
-        def updatedServerInstances = service.upsertChangedInstances(remoteServerInstances, localServerInstances)
-
-        then:
-        updatedServerInstances.size() == 1
-        updatedServerInstances[0] == new SFDCServerInstance(id: '1', key: 'CS62', status: 'OK')
+    def indexOf(List<Subscriber> indexed, SubscriptionIndex index = new SubscriptionIndex()) {
+        def repository = Stub(SubscriberRepository)
+        repository.findAll() >> indexed
+        // Set reflectively, as Groovy won't set a superclass's private field on a subclass
+        SubscriptionIndex.getDeclaredField('subscriberRepository').with { accessible = true; set(index, repository) }
+        index.rebuild()
+        index
     }
 
-
-    def "test remote dataset doesn't updates local dataset for brand new instances"() {
-        def remoteServerInstances = [new SFDCServerInstance(key: 'CS62', location: 'NA', status: 'OK')]
-        def localServerInstances = ["CS85": new SFDCServerInstance(id: '2', key: 'CS85', status: 'OK')]
-
-        setup:
-        service.serverInstanceRepository = Mock(ServerInstanceRepository)
-        service.serverInstanceRepository.save(_) >> _
-
-        when:
-        def updatedServerInstances = service.upsertChangedInstances(remoteServerInstances, localServerInstances)
-
-        then:
-        updatedServerInstances.size() == 0
+    def composer() {
+        def renderer = new NotificationRenderer()
+        renderer.start()
+        def javaMailSender = Mock(JavaMailSender)
+        javaMailSender.createMimeMessage() >> Mock(MimeMessage)
+        new EmailComposer(javaMailSender: javaMailSender, notificationRenderer: renderer, emailSender: 'a.b.com', emailSubject: 'subject')
     }
 
 
     def "test fetch subscribers based on server instance names"() {
         setup:
-        service.subscriberRepository = Mock(SubscriberRepository)
-        service.subscriberRepository.findByServers('NA16') >> [subscribers[0], subscribers[1]]
-        service.subscriberRepository.findByServers('CS62') >> [subscribers[0]]
-        service.subscriberRepository.findByServers('CS85') >> [subscribers[1]]
-        service.subscriberRepository.findByServers('NA01') >> []
+        service.subscriptionIndex = new SubscriptionIndex()
+        service.subscriptionIndex.subscriberRepository = Mock(SubscriberRepository)
+        service.subscriptionIndex.subscriberRepository.findAll() >> subscribers
+        service.subscriptionIndex.rebuild()
 
         when: "subscribers for instance0/CS85 is sought"
-        def map = service.getSubscriberServerMap([instances[0]])
+        def map = service.getSubscriberServerMap([instances[0]], 0)
         then: "return only subscriber1/Bob"
         map.keySet().size() == 1
         map.get(subscribers[1]) == [instances[0]]
 
         when: "subscribers for instance1/CS62 is sought"
-        map = service.getSubscriberServerMap([instances[1]])
+        map = service.getSubscriberServerMap([instances[1]], 0)
         then: "return only subscriber0/Alice"
         map.keySet().size() == 1
         map.get(subscribers[0]) == [instances[1]]
 
         when: "subscribers for instance2/NA16 is sought"
-        map = service.getSubscriberServerMap([instances[2]])
+        map = service.getSubscriberServerMap([instances[2]], 0)
         then: "return subscriber0/Alice as well as subscriber1/Bob"
         map.keySet().size() == 2
         map.get(subscribers[0]) == [instances[2]]
         map.get(subscribers[1]) == [instances[2]]
 
         when: "subscribers for multiple instances (instance0,1,2) is sought"
-        map = service.getSubscriberServerMap([instances[0], instances[1], instances[2]])
+        map = service.getSubscriberServerMap([instances[0], instances[1], instances[2]], 0)
         then: "ensure that corresponding subscribers and their instances match"
         map.keySet().size() == 2
         map.get(subscribers[0]).sort() == [instances[1], instances[2]]
         map.get(subscribers[1]).sort() == [instances[0], instances[2]]
 
         when: "subscribers for instance3/NA01 is sought"
-        map = service.getSubscriberServerMap([instances[3]])
+        map = service.getSubscriberServerMap([instances[3]], 0)
         then: "return no subscribers"
         map.keySet().size() == 0
     }
@@ -129,35 +143,595 @@ class NotifierJobSpec extends Specification {
         multimap.put(subscribers[1], instances[3])
 
         setup:
-        service.javaMailSender = Mock(JavaMailSender)
-        service.javaMailSender.createMimeMessage() >> Mock(MimeMessage)
-        service.emailSender = "a.b.com"
-        service.emailSubject = "subject"
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
 
         when:
-        service.sendEmails(multimap)
+        service.sendNotifications(multimap, [:], [:], '1')
         then:
-        2 * service.javaMailSender.send(_)
+        2 * service.emailDispatcher.submit(_, _)
+        0 * service.emailComposer.javaMailSender.send(_)
+    }
+
+    def "test subscribers are notified through the channels they chose"() {
+        def multimap = ArrayListMultimap.create()
+        def carol = new Subscriber(id: '3', firstname: 'Carol', lastname: 'Clark', email: 'carol@clark.com', servers: ['CS85', 'NA16'],
+                webhooks: ['https://hooks.clark.com/trust'], channels: [Subscriber.Channel.WEBHOOK] as Set)
+        def dave = new Subscriber(id: '4', firstname: 'Dave', lastname: 'Davis', email: 'dave@davis.com', servers: ['NA16'],
+                webhooks: ['https://hooks.davis.com/a', 'https://hooks.davis.com/b'])
+        multimap.put(subscribers[0], instances[2])
+        multimap.putAll(carol, [instances[0], instances[2]])
+        multimap.put(dave, instances[2])
+
+        setup:
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+        service.webhookDispatcher = Mock(WebhookDispatcher)
+
+        when:
+        service.sendNotifications(multimap, [CS85: 2000L, NA16: 1000L], [:], '1')
+        then: "Alice by email, Carol through her webhook only, Dave both ways"
+        2 * service.emailDispatcher.submit(_, 1000L)
+        1 * service.webhookDispatcher.submit('https://hooks.clark.com/trust', { it.subscriberId == '3' && it.servers*.key == ['CS85', 'NA16'] && it.detectedAt == 1000L })
+        1 * service.webhookDispatcher.submit('https://hooks.davis.com/a', { it.subscriberId == '4' })
+        1 * service.webhookDispatcher.submit('https://hooks.davis.com/b', { it.subscriberId == '4' })
     }
 
-    def "test email message body string"() {
-        when: "email message for a user with name Riz Mappillai and 2 instances is requested"
-        String message = service.generateEmailMessage("Riz Mappillai", instances)
+    def "test journaled status changes are notified once and the cursor advanced"() {
+        def directory = Files.createTempDirectory('journal')
 
-        then: "return a string informing that user that 2 instances status' have changed"
-        message == """Hello Riz Mappillai,\r
-\r
-There has been a change of status in 4 SFDC server instances you are subscribing to.\r
-\r
-Here are the current statuses of those servers that have changed:\r
-\r
-CS85 -> OK\r
-CS62 -> OK\r
-NA16 -> OK\r
-NA01 -> OK\r
-\r
-Thank you."""
+        setup:
+        service.changeJournal = new MappedFileChangeJournal(directory.resolve('journal.dat'), 4096)
+        service.changeJournal.append([
+                new StatusChangeEvent(StatusChangeEvent.Type.INSERTED, 'NA01', null, 'OK', null, new Date()),
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS85', 'OK', 'MINOR_INCIDENT_CORE', null, new Date()),
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS85', 'MINOR_INCIDENT_CORE', 'OK', null, new Date())])
+        service.subscriptionIndex = new SubscriptionIndex()
+        service.subscriptionIndex.subscriberRepository = Stub(SubscriberRepository)
+        service.subscriptionIndex.subscriberRepository.findAll() >> subscribers
+        service.subscriptionIndex.rebuild()
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+
+        when: "the journal is processed"
+        service.processJournal()
+        then: "only Bob subscribes to CS85, and is notified once, of its latest status"
+        1 * service.emailDispatcher.submit(_, _)
+        service.changeJournal.getCursor('notifier') == 3
+
+        when: "the journal is processed again"
+        service.processJournal()
+        then: "nothing is notified twice"
+        0 * service.emailDispatcher.submit(_, _)
+
+        cleanup:
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
     }
 
+    def "test journaled status changes are recorded in the status history under its own cursor"() {
+        def directory = Files.createTempDirectory('journal')
+
+        setup:
+        service.changeJournal = new MappedFileChangeJournal(directory.resolve('journal.dat'), 4096)
+        service.changeJournal.append([
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS85', 'OK', 'MINOR_INCIDENT_CORE', null, new Date()),
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS85', 'MINOR_INCIDENT_CORE', 'OK', null, new Date())])
+        service.statusHistory = Mock(StatusHistory)
 
-}
\ No newline at end of file
+        when:
+        service.recordHistory()
+        then:
+        1 * service.statusHistory.record({ it*.sequence == [1L, 2L] })
+        service.changeJournal.getCursor('history') == 2
+        service.changeJournal.getCursor('notifier') == 0
+
+        when: "the history is recorded again"
+        service.recordHistory()
+        then:
+        0 * service.statusHistory.record(_)
+
+        cleanup:
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def "test journaled status changes are enqueued in the outbox by batch rather than sent"() {
+        def directory = Files.createTempDirectory('journal')
+
+        setup:
+        service.changeJournal = new MappedFileChangeJournal(directory.resolve('journal.dat'), 4096)
+        service.changeJournal.append([
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS85', 'OK', 'MINOR_INCIDENT_CORE', null, new Date(1000)),
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'NA16', 'OK', 'MAJOR_INCIDENT_CORE', null, new Date(2000))])
+        service.subscriptionIndex = indexOf(subscribers)
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+        service.notificationOutbox = Mock(NotificationOutbox)
+        service.notificationOutbox.isEnabled() >> true
+
+        when:
+        service.processJournal()
+        then: "each subscriber's changes are enqueued under the sequence of the batch's last event"
+        1 * service.notificationOutbox.enqueue(subscribers[0], { it*.key == ['NA16'] }, [CS85: 'OK', NA16: 'OK'], [CS85: 1000L, NA16: 2000L], '2')
+        1 * service.notificationOutbox.enqueue(subscribers[1], { it*.key as Set == ['CS85', 'NA16'] as Set }, _, _, '2')
+        0 * service.emailDispatcher.submit(*_)
+        service.changeJournal.getCursor('notifier') == 2
+
+        cleanup:
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def "test a batch left unfinished is notified again as the same batch, not with the events appended since"() {
+        def directory = Files.createTempDirectory('journal')
+
+        setup:
+        service.changeJournal = new MappedFileChangeJournal(directory.resolve('journal.dat'), 4096)
+        service.changeJournal.append([
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS85', 'OK', 'MINOR_INCIDENT_CORE', null, new Date(1000)),
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'NA16', 'OK', 'MAJOR_INCIDENT_CORE', null, new Date(2000))])
+        service.subscriptionIndex = indexOf(subscribers)
+        service.emailComposer = composer()
+        service.notificationOutbox = Mock(NotificationOutbox)
+        service.notificationOutbox.isEnabled() >> true
+
+        when: "the run stops after enqueueing part of the batch"
+        service.processJournal()
+        then:
+        1 * service.notificationOutbox.enqueue(subscribers[0], *_)
+        1 * service.notificationOutbox.enqueue(subscribers[1], *_) >> { throw new IllegalStateException('boom') }
+        thrown(IllegalStateException)
+        service.changeJournal.getCursor('notifier') == 0
+
+        when: "it resumes after another change was journaled"
+        service.changeJournal.append([new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS62', 'OK', 'MINOR_INCIDENT_CORE', null, new Date(3000))])
+        service.processJournal()
+        then: "the unfinished batch is enqueued again under the same key, for the outbox to recognise"
+        1 * service.notificationOutbox.enqueue(subscribers[0], { it*.key == ['NA16'] }, _, _, '2')
+        1 * service.notificationOutbox.enqueue(subscribers[1], { it*.key as Set == ['CS85', 'NA16'] as Set }, _, _, '2')
+        then: "the new change follows as a batch of its own"
+        1 * service.notificationOutbox.enqueue(subscribers[0], { it*.key == ['CS62'] }, _, _, '3')
+        service.changeJournal.getCursor('notifier') == 3
+
+        cleanup:
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def "test a failed run resumes from the last processed event"() {
+        def directory = Files.createTempDirectory('journal')
+
+        setup:
+        service.changeJournal = new MappedFileChangeJournal(directory.resolve('journal.dat'), 4096)
+        service.changeJournal.append([new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS62', 'OK', 'MINOR_INCIDENT_CORE', null, new Date())])
+        service.journalBatchSize = 1
+        service.subscriptionIndex = Mock(SubscriptionIndex)
+        def recovered = indexOf([subscribers[0]])
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+
+        when: "the run fails part way through"
+        service.processJournal()
+        then:
+        1 * service.subscriptionIndex.getSubscriberOrdinals(_) >> { throw new IllegalStateException('boom') }
+        thrown(IllegalStateException)
+        service.changeJournal.getCursor('notifier') == 0
+
+        when: "the next run succeeds"
+        service.subscriptionIndex = recovered
+        service.processJournal()
+        then: "the failed event is processed again"
+        1 * service.emailDispatcher.submit(_, _)
+        service.changeJournal.getCursor('notifier') == 1
+
+        cleanup:
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def "test a node without the poll lease does not poll but still notifies, and keeps its cached instances"() {
+        setup:
+        service.trustApiClient = Mock(TrustApiClient)
+        service.serverInstanceDiffEngine = Mock(ServerInstanceDiffEngine)
+        service.changeJournal = Mock(ChangeJournal) { getCursors() >> [:] }
+        service.jobLockService = Mock(JobLockService)
+
+        when:
+        service.execute()
+        then:
+        1 * service.jobLockService.tryAcquire('notifier-poll') >> null
+        1 * service.jobLockService.tryAcquire('notifier-notify-0') >> new JobLease('notifier-notify-0', 'node', 1, false)
+        0 * service.trustApiClient._
+        0 * service.serverInstanceDiffEngine.reload()
+        0 * service.serverInstanceDiffEngine.newSession()
+        1 * service.changeJournal.readAfter(0, _) >> []
+        1 * service.jobLockService.release({ it.name == 'notifier-notify-0' })
+    }
+
+    def "test a node taking over the poll lease reloads its state before polling"() {
+        setup:
+        service.trustApiClient = Mock(TrustApiClient)
+        service.serverInstanceDiffEngine = Mock(ServerInstanceDiffEngine)
+        service.changeJournal = Mock(ChangeJournal) { getCursors() >> [:] }
+        service.counterService = Mock(CounterService)
+        service.jobLockService = Mock(JobLockService)
+        service.jobLockService.tryAcquire('notifier-notify-0') >> null
+
+        when:
+        service.execute()
+        then:
+        1 * service.jobLockService.tryAcquire('notifier-poll') >> new JobLease('notifier-poll', 'node', 7, true)
+        1 * service.serverInstanceDiffEngine.reload()
+        1 * service.trustApiClient.reset()
+
+        then:
+        1 * service.trustApiClient.fetchServerInstances(_, _) >> new FetchResult(FetchResult.Outcome.NOT_MODIFIED, 0, null, null, null)
+        0 * service.changeJournal._
+    }
+
+    def "test a subscriber saved through one node is notified by another"() {
+        def directory = Files.createTempDirectory('journal')
+        // Both nodes' data store
+        def saved = []
+        def repository = Stub(SubscriberRepository)
+        repository.findAll() >> { saved.collect() }
+        repository.findIdByEmail(_) >> []
+        repository.save(_) >> { Subscriber s -> s.id = s.id ?: String.valueOf(saved.size() + 1); saved << s; s }
+        repository.findByModifiedAtGreaterThanEqual(_) >> { Date since -> saved.findAll { !it.modifiedAt.before(since) } }
+
+        setup: "node A takes subscriptions, node B notifies"
+        def nodeA = new SubscriberController(subscriberRepository: repository, subscriptionIndex: new SubscriptionIndex(subscriberRepository: repository))
+        nodeA.subscriptionIndex.rebuild()
+        service.subscriptionIndex = new SubscriptionIndex(subscriberRepository: repository)
+        service.subscriptionIndex.rebuild()
+        service.changeJournal = new MappedFileChangeJournal(directory.resolve('journal.dat'), 4096)
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+
+        when: "a subscriber is added on node A after node B built its index"
+        nodeA.addSubscriber(new Subscriber(firstname: 'Carol', lastname: 'Clark', email: 'carol@clark.com', servers: ['CS85']))
+        service.changeJournal.append([new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS85', 'OK', 'MAJOR_INCIDENT_CORE', null, new Date())])
+        service.processJournal()
+
+        then: "node B notifies them"
+        1 * service.emailDispatcher.submit(_, _)
+        service.subscriptionIndex.getSubscriberIds('CS85') == ['1'] as Set
+
+        cleanup:
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def "test notification is sharded by subscriber"() {
+        def directory = Files.createTempDirectory('journal')
+
+        setup:
+        service.notificationShards = 2
+        def aliceShard = NotifierJob.shardOf(subscribers[0], 2)
+        def shardSubscribers = subscribers.count { NotifierJob.shardOf(it, 2) == aliceShard }
+        service.changeJournal = new MappedFileChangeJournal(directory.resolve('journal.dat'), 4096)
+        service.changeJournal.append([new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'NA16', 'OK', 'MINOR_INCIDENT_CORE', null, new Date())])
+        service.subscriptionIndex = indexOf(subscribers)
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+        service.jobLockService = Mock(JobLockService)
+        // Another node holds the lease on the other shard
+        service.jobLockService.tryAcquire("notifier-notify-$aliceShard") >> new JobLease("notifier-notify-$aliceShard", 'node', 1, false)
+
+        when:
+        service.processJournal()
+        then: "only the subscribers of this node's shard are notified"
+        shardSubscribers * service.emailDispatcher.submit(_, _)
+        service.changeJournal.getCursor("notifier-$aliceShard-of-2") == 1
+        service.changeJournal.getCursor("notifier-${1 - aliceShard}-of-2") == 0
+
+        cleanup:
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def "test shards resume from the unsharded cursor"() {
+        setup:
+        service.notificationShards = 2
+        service.changeJournal = Mock(ChangeJournal) { getCursors() >> [notifier: 42L] }
+
+        when:
+        service.processJournal()
+        then:
+        1 * service.changeJournal.saveCursor('notifier-0-of-2', 42)
+        1 * service.changeJournal.saveCursor('notifier-1-of-2', 42)
+        2 * service.changeJournal.readAfter(42, _) >> []
+    }
+
+    def reshardedJournal(Path directory, Map<String, Long> cursors) {
+        def journal = new MappedFileChangeJournal(directory.resolve('journal.dat'), 4096)
+        // Alice follows CS62, Bob CS85
+        journal.append(['CS62', 'CS85', 'NA01', 'CS62', 'CS85'].collect {
+            new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, it, 'OK', 'MINOR_INCIDENT_CORE', null, new Date())
+        })
+        cursors.each { consumer, sequence -> journal.saveCursor(consumer, sequence) }
+        journal
+    }
+
+    def "test resharding resumes every new shard from the slowest cursor of the previous sharding, then retires those"() {
+        def directory = Files.createTempDirectory('journal')
+
+        setup: "2 shards had notified up to events 3 and 5"
+        service.changeJournal = reshardedJournal(directory, ['notifier-0-of-2': 3L, 'notifier-1-of-2': 5L, history: 5L])
+        service.notificationShards = 4
+        service.journalBatchSize = 1
+        service.subscriptionIndex = indexOf(subscribers)
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+
+        when:
+        service.processJournal()
+
+        then: "the changes after event 3 are notified again, those before it aren't"
+        2 * service.emailDispatcher.submit(_, _)
+        service.changeJournal.cursors == ['notifier-0-of-4': 5L, 'notifier-1-of-4': 5L, 'notifier-2-of-4': 5L, 'notifier-3-of-4': 5L, history: 5L]
+
+        cleanup:
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def "test a cursor left from an earlier time with as many shards is moved up to the retired cursors"() {
+        def directory = Files.createTempDirectory('journal')
+
+        setup: "the unsharded notifier had got to event 1 before 2 shards took over"
+        service.changeJournal = reshardedJournal(directory, [notifier: 1L, 'notifier-0-of-2': 4L, 'notifier-1-of-2': 5L])
+        service.journalBatchSize = 1
+        service.subscriptionIndex = indexOf(subscribers)
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+
+        when: "it takes over again"
+        service.processJournal()
+
+        then: "it resumes from event 4"
+        1 * service.emailDispatcher.submit(_, _)
+        service.changeJournal.cursors == [notifier: 5L]
+
+        cleanup:
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def "test a node that lost its lease stops notifying"() {
+        setup:
+        service.changeJournal = Mock(ChangeJournal) { getCursors() >> [:] }
+        service.changeJournal.readAfter(0, _) >> [new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS62', 'OK', 'MINOR_INCIDENT_CORE', null, new Date())]
+        service.subscriptionIndex = indexOf([subscribers[0]])
+        service.emailDispatcher = Mock(EmailDispatcher)
+
+        when:
+        service.processJournal()
+        then:
+        1 * service.jobLockService.checkValid(_) >> { JobLease lease -> throw new LeaseLostException(lease) }
+        0 * service.emailDispatcher.submit(_, _)
+        0 * service.changeJournal.saveCursor(_, _)
+        1 * service.jobLockService.release(_)
+    }
+
+    def "test each stage of a poll is timed"() {
+        setup:
+        service.trustApiClient = Mock(TrustApiClient)
+        service.serverInstanceDiffEngine = Mock(ServerInstanceDiffEngine)
+        service.changeJournal = Mock(ChangeJournal) { getCursors() >> [:] }
+        service.counterService = Mock(CounterService)
+        service.trustApiClient.fetchServerInstances(_, _) >> new FetchResult(FetchResult.Outcome.NOT_MODIFIED, 0, null, null, null)
+        service.changeJournal.readAfter(0, _) >> []
+
+        when:
+        service.execute()
+        then:
+        1 * service.gaugeService.submit('timer.notifier.stage.localFetch', { it >= 0 })
+        1 * service.gaugeService.submit('timer.notifier.stage.remoteFetch', { it >= 0 })
+        0 * service.gaugeService.submit('timer.notifier.stage.diff', _)
+        1 * service.gaugeService.submit('timer.notifier.execute', { it >= 0 })
+        1 * service.counterService.increment('notifier.poll.skipped.notModified')
+    }
+
+    def "test emails carry the time their earliest status change was detected"() {
+        setup:
+        service.changeJournal = Mock(ChangeJournal) { getCursors() >> [:] }
+        service.changeJournal.readAfter(0, _) >> [
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS62', 'OK', 'MINOR_INCIDENT_CORE', null, new Date(2000)),
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'NA16', 'OK', 'MINOR_INCIDENT_CORE', null, new Date(1000)),
+                new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS62', 'MINOR_INCIDENT_CORE', 'OK', null, new Date(3000))].each { it.sequence = 1 }
+        service.subscriptionIndex = new SubscriptionIndex()
+        service.subscriptionIndex.subscriberRepository = Stub(SubscriberRepository)
+        service.subscriptionIndex.subscriberRepository.findAll() >> [subscribers[0]]
+        service.subscriptionIndex.rebuild()
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+
+        when:
+        service.processJournal()
+        then:
+        1 * service.emailDispatcher.submit(_, 1000)
+        1 * service.gaugeService.submit('timer.notifier.stage.fanOut', _)
+        1 * service.gaugeService.submit('timer.notifier.stage.emailQueue', _)
+        _ * service.changeJournal.readAfter(1, _) >> []
+    }
+
+    def "test an instance flapping across runs within a digest window is not notified"() {
+        def directory = Files.createTempDirectory('journal')
+
+        setup:
+        service.changeJournal = new MappedFileChangeJournal(directory.resolve('journal.dat'), 4096)
+        service.subscriptionIndex = new SubscriptionIndex()
+        service.subscriptionIndex.subscriberRepository = Stub(SubscriberRepository)
+        service.subscriptionIndex.subscriberRepository.findAll() >> subscribers
+        service.subscriptionIndex.rebuild()
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+        service.digestCoalescer = new DigestCoalescer(counterService: Mock(CounterService), windowMillis: 60000)
+        service.digestCoalescer.start()
+
+        when: "CS85 goes down and back up again over two runs, and NA16 goes down"
+        service.changeJournal.append([new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS85', 'OK', 'MINOR_INCIDENT_CORE', null, new Date())])
+        service.processJournal()
+        service.changeJournal.append([new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'CS85', 'MINOR_INCIDENT_CORE', 'OK', null, new Date()),
+                                      new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'NA16', 'OK', 'MAJOR_INCIDENT_CORE', null, new Date())])
+        service.processJournal()
+        then: "nothing is sent until the window closes"
+        0 * service.emailDispatcher.submit(_, _)
+
+        when:
+        service.digestCoalescer.flushAll()
+        then: "Alice and Bob are each sent one email, about NA16 only"
+        2 * service.emailDispatcher.submit(_, _)
+
+        cleanup:
+        service.digestCoalescer.stop()
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def "test in concurrent mode the local instances are read while the remote ones are requested"() {
+        def requested = new CountDownLatch(1)
+        // Stubs rather than mocks, whose invocations Spock serializes: the data store would never return if the remote
+        // request waited for it
+        def mongoOperations = [findAll: { Class type ->
+            assert requested.await(5, TimeUnit.SECONDS)
+            [new SFDCServerInstance(key: 'CS62', status: 'OK')]
+        }, findById: { Object... args -> null }, findAndModify: { Object... args -> null }] as MongoOperations
+        def cache = new ServerInstanceCache(mongoOperations: mongoOperations)
+        cache.start()
+
+        setup:
+        service.pipelineExecutor = new PipelineExecutor(concurrent: true, parallelism: 2)
+        service.pipelineExecutor.start()
+        service.serverInstanceDiffEngine = new ServerInstanceDiffEngine(serverInstanceRepository: Mock(ServerInstanceRepository),
+                serverInstanceCache: cache, changeJournal: Mock(ChangeJournal))
+        service.trustApiClient = new TrustApiClient() {
+            @Override
+            FetchResult fetchServerInstances(String endPointUrl, Consumer<SFDCServerInstance> consumer) {
+                requested.countDown()
+                consumer.accept(new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE'))
+                new FetchResult(FetchResult.Outcome.MODIFIED, 1, null, null, 'hash')
+            }
+        }
+        service.counterService = Mock(CounterService)
+        service.changeJournal = Mock(ChangeJournal) { getCursors() >> [:] }
+        service.changeJournal.readAfter(0, _) >> []
+
+        when:
+        service.execute()
+        then: "the remote instance is diffed against the local one"
+        1 * service.serverInstanceDiffEngine.changeJournal.append({ it*.key == ['CS62'] && it*.newStatus == ['MINOR_INCIDENT_CORE'] })
+
+        cleanup:
+        service.pipelineExecutor.stop()
+    }
+
+    def "test in concurrent mode notification shards are processed side by side"() {
+        def directory = Files.createTempDirectory('journal')
+        def bothShards = new CyclicBarrier(2)
+
+        setup:
+        service.notificationShards = 2
+        service.pipelineExecutor = new PipelineExecutor(concurrent: true, parallelism: 2)
+        service.pipelineExecutor.start()
+        service.changeJournal = new MappedFileChangeJournal(directory.resolve('journal.dat'), 4096)
+        service.changeJournal.append([new StatusChangeEvent(StatusChangeEvent.Type.CHANGED, 'NA16', 'OK', 'MINOR_INCIDENT_CORE', null, new Date())])
+        // Times out unless both shards fan out at the same time
+        service.subscriptionIndex = indexOf(subscribers, new SubscriptionIndex() {
+            @Override
+            RoaringBitmap getSubscriberOrdinals(Collection<String> servers) {
+                bothShards.await(5, TimeUnit.SECONDS)
+                super.getSubscriberOrdinals(servers)
+            }
+        })
+        service.emailComposer = composer()
+        service.emailDispatcher = Mock(EmailDispatcher)
+
+        when:
+        service.processJournal()
+        then: "every subscriber is notified by its own shard"
+        2 * service.emailDispatcher.submit(_, _)
+        service.changeJournal.getCursor('notifier-0-of-2') == 1
+        service.changeJournal.getCursor('notifier-1-of-2') == 1
+
+        cleanup:
+        service.pipelineExecutor.stop()
+        service.changeJournal.close()
+        directory.toFile().deleteDir()
+    }
+
+    def "test all status sources are diffed and journaled together, and a failing source doesn't hold back the others"() {
+        def server = HttpServer.create(new InetSocketAddress('localhost', 0), 0)
+        [
+                '/v1/instances': '[{"key": "NA16", "status": "MAJOR_INCIDENT_CORE"}, {"key": "CS62", "status": "OK"}]',
+                '/v1/incidents': '[{"id": 1, "instanceKeys": ["NA16"], "IncidentImpacts": [{"severity": "major", "startTime": "2017-01-10T02:00:00.000Z"}]}]'
+        ].each { path, body ->
+            server.createContext(path) { exchange ->
+                exchange.responseHeaders.add('Content-Type', 'application/json')
+                exchange.sendResponseHeaders(200, body.bytes.length)
+                exchange.responseBody.withStream { it.write(body.bytes) }
+            }
+        }
+        server.createContext('/slow') { exchange ->
+            Thread.sleep(2000)
+            exchange.sendResponseHeaders(500, -1)
+            exchange.close()
+        }
+        server.start()
+        def baseUrl = "http://localhost:${server.address.port}"
+
+        def mongoOperations = [findAll: { Class type ->
+            [new SFDCServerInstance(key: 'NA16', status: 'OK'),
+             new SFDCServerInstance(key: 'CS62', status: 'OK'),
+             new SFDCServerInstance(key: 'incidents:9', status: 'MINOR_INCIDENT')]
+        }, findById: { Object... args -> null }, findAndModify: { Object... args -> null }] as MongoOperations
+        def cache = new ServerInstanceCache(mongoOperations: mongoOperations)
+        cache.start()
+
+        setup:
+        service.serviceEndPointUrl = baseUrl + '/v1/instances'
+        service.trustApiClient = new TrustApiClient()
+        service.statusSources = new StatusSources(trustApiClient: service.trustApiClient, names: ['incidents', 'slow'] as String[],
+                environment: new MockEnvironment()
+                        .withProperty('com.riz.exercise.application.sources.incidents.url', baseUrl + '/v1/incidents')
+                        .withProperty('com.riz.exercise.application.sources.slow.url', baseUrl + '/slow')
+                        .withProperty('com.riz.exercise.application.sources.slow.parser', 'incidents')
+                        .withProperty('com.riz.exercise.application.sources.slow.timeoutMillis', '200'))
+        service.statusSources.start()
+        service.pipelineExecutor.start()
+        service.serverInstanceDiffEngine = new ServerInstanceDiffEngine(serverInstanceRepository: Mock(ServerInstanceRepository),
+                serverInstanceCache: cache, changeJournal: Mock(ChangeJournal))
+        service.counterService = Mock(CounterService)
+        service.changeJournal = Mock(ChangeJournal) { getCursors() >> [:] }
+        service.changeJournal.readAfter(0, _) >> []
+
+        when:
+        service.execute()
+        then: "the slow source times out on its own"
+        1 * service.counterService.increment('notifier.poll.failed')
+        then: "the others are diffed in one go, each removing only its own entries"
+        1 * service.serverInstanceDiffEngine.changeJournal.append({
+            it*.key == ['incidents:1', 'NA16', 'incidents:9'] &&
+                    it*.type == [StatusChangeEvent.Type.INSERTED, StatusChangeEvent.Type.CHANGED, StatusChangeEvent.Type.REMOVED]
+        })
+        1 * service.serverInstanceDiffEngine.serverInstanceRepository.bulkUpsertByKey({ it*.key == ['NA16', 'incidents:1'] }, ['incidents:9'])
+
+        cleanup:
+        service.pipelineExecutor.stop()
+        server.stop(0)
+    }
+
+    def "test entries appearing in a status source are notified to the subscribers of the source"() {
+        setup:
+        def incidentWatcher = new Subscriber(id: '3', firstname: 'Carol', lastname: 'Cole', email: 'carol@cole.com', servers: ['incidents:*'])
+        service.subscriptionIndex = indexOf(subscribers + [incidentWatcher])
+
+        expect:
+        NotifierJob.isNotified(new StatusChangeEvent(StatusChangeEvent.Type.INSERTED, 'incidents:1', null, 'MINOR_INCIDENT', null, new Date()))
+        !NotifierJob.isNotified(new StatusChangeEvent(StatusChangeEvent.Type.INSERTED, 'NA99', null, 'OK', null, new Date()))
+        !NotifierJob.isNotified(new StatusChangeEvent(StatusChangeEvent.Type.LISTED, 'incidents:2', null, 'MINOR_INCIDENT', null, new Date()))
+        service.getSubscriberServerMap([new SFDCServerInstance(key: 'incidents:1', status: 'MINOR_INCIDENT')], 0).keySet() as List == [incidentWatcher]
+    }
+}
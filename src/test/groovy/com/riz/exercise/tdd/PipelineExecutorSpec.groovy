@@ -0,0 +1,79 @@
+package groovy.com.riz.exercise.tdd
+
+import com.riz.exercise.jobs.PipelineExecutor
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+class PipelineExecutorSpec extends Specification {
+
+    def executor
+
+    def cleanup() {
+        executor.stop()
+    }
+
+    def "test stages run in turn on the calling thread by default"() {
+        def threads = [] as Set
+
+        setup:
+        executor = new PipelineExecutor()
+        executor.start()
+
+        when:
+        def forked = executor.fork { threads << Thread.currentThread(); 'local' }
+        executor.forEach(1..10) { threads << Thread.currentThread() }
+        executor.forEachShard([0, 1]) { threads << Thread.currentThread() }
+
+        then:
+        !executor.concurrent
+        forked.get() == 'local'
+        threads == [Thread.currentThread()] as Set
+    }
+
+    def "test work is split across at most parallelism workers when concurrent"() {
+        def threads = ConcurrentHashMap.newKeySet()
+        def items = new CopyOnWriteArrayList()
+
+        setup:
+        executor = new PipelineExecutor(concurrent: true, parallelism: 3)
+        executor.start()
+
+        when:
+        executor.forEach(1..10) { threads << Thread.currentThread(); items << it }
+
+        then:
+        items.sort() == (1..10).toList()
+        threads.size() <= 3
+        !threads.contains(Thread.currentThread())
+    }
+
+    def "test the first exception is rethrown once all work is done"() {
+        def items = new CopyOnWriteArrayList()
+
+        setup:
+        executor = new PipelineExecutor(concurrent: true, parallelism: 2)
+        executor.start()
+
+        when:
+        executor.forEachShard([0, 1]) {
+            if (it == 0) {
+                throw new IllegalStateException('shard 0 failed')
+            }
+            Thread.sleep(100)
+            items << it
+        }
+
+        then:
+        def e = thrown(IllegalStateException)
+        e.message == 'shard 0 failed'
+        items == [1]
+
+        when:
+        executor.fork { throw new IllegalArgumentException('local fetch failed') }.get()
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,174 @@
+package groovy.com.riz.exercise.tdd
+
+import com.mongodb.BasicDBObject
+import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.persistence.ServerInstanceCache
+import com.riz.exercise.persistence.ServerInstanceCacheListener
+import org.springframework.data.mongodb.core.MongoOperations
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent
+import spock.lang.Specification
+
+class ServerInstanceCacheSpec extends Specification {
+
+    def mongoOperations = Mock(MongoOperations)
+    def cache = new ServerInstanceCache(mongoOperations: mongoOperations, checkMillis: 0)
+    // The version stamp in mongo, bumped by every write
+    def version = 0
+
+    def setup() {
+        mongoOperations.findById('serverInstances', BasicDBObject, 'cacheVersions') >> { new BasicDBObject('version', version) }
+        mongoOperations.findAndModify(_, _, _, BasicDBObject, 'cacheVersions') >> { new BasicDBObject('version', ++version) }
+        cache.start()
+    }
+
+    def "test the collection is read once, and writes go through"() {
+        when:
+        def first = cache.getAll()
+        cache.putAll([new SFDCServerInstance(key: 'NA16', status: 'OK'), new SFDCServerInstance(key: 'CS62', status: 'MAJOR_INCIDENT_CORE')], ['CS85'])
+        def second = cache.getAll()
+
+        then:
+        1 * mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(key: 'CS62', status: 'OK'), new SFDCServerInstance(key: 'CS85', status: 'OK')]
+        first.keySet() == ['CS62', 'CS85'] as Set
+        second.keySet() == ['CS62', 'NA16'] as Set
+        second.CS62.status == 'MAJOR_INCIDENT_CORE'
+        cache.complete
+        cache.size() == 2
+    }
+
+    def "test reads are copies"() {
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(key: 'CS62', status: 'OK')]
+
+        when:
+        cache.getAll().clear()
+
+        then:
+        cache.get('CS62').status == 'OK'
+    }
+
+    def "test an invalidated cache is read again"() {
+        when:
+        cache.getAll()
+        cache.invalidateAll()
+        def complete = cache.complete
+        def serverInstances = cache.getAll()
+
+        then:
+        !complete
+        2 * mongoOperations.findAll(SFDCServerInstance) >>> [[], [new SFDCServerInstance(key: 'CS62', status: 'OK')]]
+        serverInstances.keySet() == ['CS62'] as Set
+    }
+
+    def "test a collection outgrowing the cache is read whole every time, and loaded one key at a time"() {
+        setup:
+        cache = new ServerInstanceCache(mongoOperations: mongoOperations, checkMillis: 0, maxSize: 2)
+        cache.start()
+
+        when:
+        def serverInstances = cache.getAll()
+        cache.getAll()
+        def first = cache.get('NA16')
+        def second = cache.get('NA16')
+        def missing = [cache.get('AP1'), cache.get('AP1')]
+
+        then:
+        2 * mongoOperations.findAll(SFDCServerInstance) >> ['CS62', 'CS85', 'NA16'].collect { new SFDCServerInstance(key: it, status: 'OK') }
+        1 * mongoOperations.findOne({ it.queryObject.key == 'NA16' }, SFDCServerInstance) >> new SFDCServerInstance(key: 'NA16', status: 'OK')
+        1 * mongoOperations.findOne({ it.queryObject.key == 'AP1' }, SFDCServerInstance) >> null
+        serverInstances.size() == 3
+        first.is(second)
+        missing == [null, null]
+        !cache.complete
+        cache.size() == 2
+    }
+
+    def "test the cache is dropped when another node writes"() {
+        when:
+        def first = cache.getAll()
+        version++
+        def second = cache.getAll()
+
+        then:
+        2 * mongoOperations.findAll(SFDCServerInstance) >>> [[new SFDCServerInstance(key: 'CS62', status: 'OK')], [new SFDCServerInstance(key: 'CS62', status: 'NOT_OK')]]
+        first.CS62.status == 'OK'
+        second.CS62.status == 'NOT_OK'
+        cache.complete
+    }
+
+    def "test the version stamp is checked at most every checkMillis"() {
+        setup:
+        cache = new ServerInstanceCache(mongoOperations: mongoOperations, checkMillis: 60000)
+        cache.start()
+
+        when:
+        cache.getAll()
+        version++
+        cache.getAll()
+
+        then:
+        1 * mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(key: 'CS62', status: 'OK')]
+    }
+
+    def "test the cache is dropped when another node wrote in between this node's writes"() {
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(key: 'CS62', status: 'OK')]
+        cache.getAll()
+
+        when:
+        cache.put(new SFDCServerInstance(key: 'CS62', status: 'NOT_OK'))
+        then:
+        cache.complete
+
+        when:
+        version++
+        cache.put(new SFDCServerInstance(key: 'CS62', status: 'OK'))
+        then:
+        !cache.complete
+    }
+
+    def "test a cache outgrown by writes is cached again once the collection fits"() {
+        setup:
+        cache = new ServerInstanceCache(mongoOperations: mongoOperations, checkMillis: 0, maxSize: 2)
+        cache.start()
+
+        when: "the collection fills the cache"
+        cache.getAll()
+        then:
+        1 * mongoOperations.findAll(SFDCServerInstance) >> ['CS62', 'CS85'].collect { new SFDCServerInstance(key: it, status: 'OK') }
+        cache.complete
+        cache.size() == 2
+
+        when: "it outgrows the cache"
+        cache.putAll([new SFDCServerInstance(key: 'NA16', status: 'OK')], [])
+        then:
+        !cache.complete
+
+        when: "it fits again"
+        cache.putAll([], ['NA16'])
+        cache.getAll()
+        cache.getAll()
+        then: "it is read once more, then served from the cache"
+        1 * mongoOperations.findAll(SFDCServerInstance) >> ['CS62', 'CS85'].collect { new SFDCServerInstance(key: it, status: 'OK') }
+        cache.complete
+    }
+
+    def "test saves and deletes through the repository reach the cache"() {
+        def listener = new ServerInstanceCacheListener(serverInstanceCache: cache)
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(key: 'CS62', status: 'OK')]
+        cache.getAll()
+
+        when:
+        listener.onAfterSave(new AfterSaveEvent(new SFDCServerInstance(key: 'CS62', status: 'NOT_OK'), null, 'serverInstances'))
+
+        then:
+        cache.get('CS62').status == 'NOT_OK'
+
+        when:
+        listener.onAfterDelete(new AfterDeleteEvent(new BasicDBObject('_id', '1'), SFDCServerInstance, 'serverInstances'))
+
+        then:
+        !cache.complete
+    }
+}
@@ -1,8 +1,15 @@
 package groovy.com.riz.exercise.tdd
 
+import com.fasterxml.jackson.databind.ObjectMapper
 import com.riz.exercise.controllers.ServerInstanceController
+import com.riz.exercise.events.ServerInstanceUpdatedEvent
 import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.persistence.ServerInstanceCache
 import com.riz.exercise.persistence.ServerInstanceRepository
+import org.springframework.context.ApplicationEventPublisher
+import org.springframework.data.domain.PageImpl
+import org.springframework.data.domain.PageRequest
+import org.springframework.data.util.CloseableIterator
 import org.springframework.ui.ExtendedModelMap
 import spock.lang.Specification
 
@@ -16,15 +23,91 @@ class ServerInstanceControllerSpec extends Specification {
     def setup() {
         controller = new ServerInstanceController()
         controller.serverInstanceRepository = Mock(ServerInstanceRepository.class)
+        controller.serverInstanceCache = Mock(ServerInstanceCache.class)
+        controller.eventPublisher = Mock(ApplicationEventPublisher.class)
     }
 
     def "tdd: create /servers GET request"() {
         when:
-        controller.serverInstanceRepository.findAll() >> _
-        def result = controller.servers(new ExtendedModelMap())
+        def model = new ExtendedModelMap()
+        def result = controller.servers(null, 0, 50, model)
 
         then:
         result == "servers"
+        1 * controller.serverInstanceRepository.findListingPage(new PageRequest(0, 50)) >> new PageImpl([new SFDCServerInstance(key:'EU5')], new PageRequest(0, 50), 1)
+        0 * controller.serverInstanceRepository.findAll()
+        model.serverList*.key == ['EU5']
+        model.page.totalElements == 1
+    }
+
+    def "tdd: page size is bounded"() {
+        when:
+        controller.servers(null, -1, size, new ExtendedModelMap())
+
+        then:
+        1 * controller.serverInstanceRepository.findListingPage(new PageRequest(0, read)) >> new PageImpl([])
+
+        where:
+        size    | read
+        1000000 | 500
+        0       | 1
+    }
+
+    def "tdd: servers are listed after a given key"() {
+        when:
+        def model = new ExtendedModelMap()
+        controller.servers('CS62', 0, 2, model)
+
+        then: "a full page links to the next one"
+        1 * controller.serverInstanceRepository.findListingAfter('CS62', 2) >> [new SFDCServerInstance(key:'CS85'), new SFDCServerInstance(key:'EU5')]
+        model.serverList*.key == ['CS85', 'EU5']
+        model.nextAfter == 'EU5'
+
+        when:
+        model = new ExtendedModelMap()
+        controller.servers('', 0, 2, model)
+
+        then: "an empty key is the first page, and a partial page is the last"
+        1 * controller.serverInstanceRepository.findListingAfter(null, 2) >> [new SFDCServerInstance(key:'CS62')]
+        model.nextAfter == null
+    }
+
+    def "tdd: servers are listed from the cache when it holds them all"() {
+        setup:
+        controller.serverInstanceCache.isComplete() >> true
+        controller.serverInstanceCache.getAll() >> ['NA16', 'CS62', 'EU5', 'CS85'].collectEntries { [(it): new SFDCServerInstance(key: it)] }
+
+        when:
+        def model = new ExtendedModelMap()
+        controller.servers(null, 1, 3, model)
+
+        then:
+        model.serverList*.key == ['NA16']
+        model.page.totalElements == 4
+
+        when:
+        model = new ExtendedModelMap()
+        controller.servers('CS85', 0, 2, model)
+
+        then:
+        model.serverList*.key == ['EU5', 'NA16']
+        model.nextAfter == 'NA16'
+        0 * controller.serverInstanceRepository._
+    }
+
+    def "tdd: servers are streamed as a JSON array and the cursor closed"() {
+        def cursor = Mock(CloseableIterator)
+        def out = new ByteArrayOutputStream()
+
+        when:
+        controller.streamServers().writeTo(out)
+
+        then:
+        1 * controller.serverInstanceRepository.streamListing() >> cursor
+        3 * cursor.hasNext() >>> [true, true, false]
+        2 * cursor.next() >>> [new SFDCServerInstance(key:'CS62', status:'OK'), new SFDCServerInstance(key:'EU5', status:'OK')]
+        1 * cursor.close()
+        new ObjectMapper().readValue(out.toByteArray(), List) == [[key:'CS62', status:'OK'], [key:'EU5', status:'OK']]
     }
 
     def "tdd: create /updateServerStatus POST endpoint"() {
@@ -35,6 +118,7 @@ class ServerInstanceControllerSpec extends Specification {
         then:
         result == "redirect:servers"
         1 * controller.serverInstanceRepository.save(_)
+        1 * controller.eventPublisher.publishEvent({ ServerInstanceUpdatedEvent e -> e.serverInstance.key == 'EU5' && e.serverInstance.status == 'NOT_OK' })
     }
 
     def "tdd: do not post if server key doesn't match"() {
@@ -44,6 +128,7 @@ class ServerInstanceControllerSpec extends Specification {
 
         then:
         0 * controller.serverInstanceRepository.save(_)
+        0 * controller.eventPublisher.publishEvent(_)
     }
 
     def "tdd: do not post if server key not supplied"() {
@@ -0,0 +1,239 @@
+package groovy.com.riz.exercise.tdd
+
+import com.mongodb.BasicDBObject
+import com.riz.exercise.jobs.ServerInstanceDiffEngine
+import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.model.StatusChangeEvent
+import com.riz.exercise.persistence.ChangeJournal
+import com.riz.exercise.persistence.ServerInstanceCache
+import com.riz.exercise.persistence.ServerInstanceRepository
+import org.springframework.data.mongodb.core.MongoOperations
+import spock.lang.Specification
+
+class ServerInstanceDiffEngineSpec extends Specification {
+
+    def engine
+    def mongoOperations = Mock(MongoOperations)
+    def cache = new ServerInstanceCache(mongoOperations: mongoOperations)
+
+    def setup() {
+        // The cache's version stamp, bumped by its own writes only
+        def version = 0
+        mongoOperations.findById(*_) >> { new BasicDBObject('version', version) }
+        mongoOperations.findAndModify(*_) >> { new BasicDBObject('version', ++version) }
+        cache.start()
+        engine = new ServerInstanceDiffEngine()
+        engine.serverInstanceRepository = Mock(ServerInstanceRepository)
+        engine.serverInstanceCache = cache
+        engine.changeJournal = Mock(ChangeJournal)
+        // As ServerInstanceRepositoryImpl, writing through to the cache
+        engine.serverInstanceRepository.bulkUpsertByKey(_, _) >> { upserts, removedKeys -> cache.putAll(upserts, removedKeys) }
+    }
+
+    def "test remote dataset updates local dataset"() {
+        def remoteServerInstances = [new SFDCServerInstance(key: 'CS85', status: 'OK'), new SFDCServerInstance(key: 'CS62', status: 'OK')]
+
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(id: '1', key: 'CS62', status: 'MINOR_INCIDENT_CORE'),
+                                                       new SFDCServerInstance(id: '2', key: 'CS85', status: 'OK')]
+
+        when:
+        def diff = engine.apply(remoteServerInstances)
+
+        then:
+        diff.changed == [new SFDCServerInstance(key: 'CS62', status: 'OK')]
+        diff.inserted.isEmpty()
+        diff.removed.isEmpty()
+        1 * engine.serverInstanceRepository.bulkUpsertByKey([remoteServerInstances[1]], [])
+    }
+
+    def "test remote dataset doesn't report brand new instances as changed"() {
+        def remoteServerInstances = [new SFDCServerInstance(key: 'CS62', location: 'NA', status: 'OK'),
+                                     new SFDCServerInstance(key: 'CS85', status: 'OK')]
+
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(id: '2', key: 'CS85', status: 'OK')]
+
+        when:
+        def diff = engine.apply(remoteServerInstances)
+
+        then:
+        diff.changed.isEmpty()
+        diff.inserted == [remoteServerInstances[0]]
+        1 * engine.serverInstanceRepository.bulkUpsertByKey([remoteServerInstances[0]], [])
+    }
+
+    def "test decommissioned instances are removed"() {
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(id: '1', key: 'CS62', status: 'OK'),
+                                                       new SFDCServerInstance(id: '2', key: 'CS85', status: 'OK')]
+
+        when:
+        def diff = engine.apply([new SFDCServerInstance(key: 'CS85', status: 'OK')])
+
+        then:
+        diff.removed*.key == ['CS62']
+        1 * engine.serverInstanceRepository.bulkUpsertByKey([], ['CS62'])
+    }
+
+    def "test an empty remote dataset removes nothing"() {
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(id: '1', key: 'CS62', status: 'OK')]
+
+        when:
+        def diff = engine.apply([])
+
+        then:
+        diff.isEmpty()
+        1 * engine.serverInstanceRepository.bulkUpsertByKey([], [])
+    }
+
+    def "test release version changes are written but not reported as changed"() {
+        def remote = new SFDCServerInstance(key: 'CS62', releaseVersion: 'Spring \'17', status: 'OK')
+
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(id: '1', key: 'CS62', releaseVersion: 'Winter \'17', status: 'OK')]
+
+        when:
+        def diff = engine.apply([remote])
+
+        then:
+        diff.isEmpty()
+        1 * engine.serverInstanceRepository.bulkUpsertByKey([remote], [])
+    }
+
+    def "test local dataset is only fetched once"() {
+        def remoteServerInstances = [new SFDCServerInstance(key: 'CS62', status: 'OK')]
+
+        when:
+        engine.apply(remoteServerInstances)
+        def diff = engine.apply([new SFDCServerInstance(key: 'CS62', status: 'MAJOR_INCIDENT_CORE')])
+
+        then: "the second diff is made against the cache, as written through by the first"
+        1 * mongoOperations.findAll(SFDCServerInstance) >> []
+        diff.changed*.key == ['CS62']
+    }
+
+    def "test cache picks up server instances updated elsewhere"() {
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(id: '1', key: 'CS62', status: 'OK')]
+        engine.apply([new SFDCServerInstance(key: 'CS62', status: 'OK')])
+
+        when: "the status is updated by hand"
+        cache.put(new SFDCServerInstance(id: '1', key: 'CS62', status: 'NOT_OK'))
+        def diff = engine.apply([new SFDCServerInstance(key: 'CS62', status: 'OK')])
+
+        then: "the next poll restores it and reports the change"
+        diff.changed*.key == ['CS62']
+    }
+
+    def "test changes are journaled before they are written"() {
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(id: '1', key: 'CS62', status: 'OK', releaseVersion: 'Winter \'17'),
+                                                       new SFDCServerInstance(id: '2', key: 'CS85', status: 'OK')]
+
+        when:
+        engine.apply([new SFDCServerInstance(key: 'CS62', status: 'MINOR_INCIDENT_CORE', releaseVersion: 'Winter \'17'),
+                      new SFDCServerInstance(key: 'NA16', status: 'OK')])
+
+        then:
+        1 * engine.changeJournal.append({ List<StatusChangeEvent> events ->
+            events*.type == [StatusChangeEvent.Type.INSERTED, StatusChangeEvent.Type.CHANGED, StatusChangeEvent.Type.REMOVED] &&
+            events*.key == ['NA16', 'CS62', 'CS85'] &&
+            events*.oldStatus == [null, 'OK', 'OK'] &&
+            events*.newStatus == ['OK', 'MINOR_INCIDENT_CORE', null] &&
+            events[1].releaseVersion == 'Winter \'17' &&
+            events.every { it.timestamp != null }
+        })
+
+        then:
+        1 * engine.serverInstanceRepository.bulkUpsertByKey(_, _)
+    }
+
+    def "test nothing is written if journaling fails"() {
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> []
+        engine.changeJournal.append(_) >> { throw new IllegalStateException('journal unavailable') }
+
+        when:
+        engine.apply([new SFDCServerInstance(key: 'NA16', status: 'OK')])
+
+        then:
+        thrown(IllegalStateException)
+        0 * engine.serverInstanceRepository.bulkUpsertByKey(_, _)
+    }
+
+    def "test a reload reads the local dataset again"() {
+        when:
+        engine.apply([new SFDCServerInstance(key: 'CS62', status: 'OK')])
+        engine.reload()
+        def diff = engine.apply([new SFDCServerInstance(key: 'CS62', status: 'OK')])
+
+        then: "the second diff is made against what another node may have written since"
+        2 * mongoOperations.findAll(SFDCServerInstance) >>> [[], [new SFDCServerInstance(id: '1', key: 'CS62', status: 'MINOR_INCIDENT_CORE')]]
+        diff.changed*.key == ['CS62']
+    }
+
+    def "test a part removes only the local instances in its scope"() {
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(id: '1', key: 'CS62', status: 'OK'),
+                                                       new SFDCServerInstance(id: '2', key: 'incidents:1', status: 'MINOR_INCIDENT'),
+                                                       new SFDCServerInstance(id: '3', key: 'incidents:2', status: 'MINOR_INCIDENT')]
+        def session = engine.newSession()
+        def incidents = session.newPart({ it.startsWith('incidents:') })
+
+        when:
+        incidents.accept(new SFDCServerInstance(key: 'incidents:2', status: 'RESOLVED'))
+        incidents.commit()
+        def diff = session.complete()
+
+        then:
+        diff.changed*.key == ['incidents:2']
+        diff.removed*.key == ['incidents:1']
+        1 * engine.serverInstanceRepository.bulkUpsertByKey({ it*.key == ['incidents:2'] }, ['incidents:1'])
+    }
+
+    def "test a part left uncommitted is not written"() {
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(id: '1', key: 'CS62', status: 'OK')]
+        def session = engine.newSession()
+        def instances = session.newPart({ !it.contains(':') })
+        def incidents = session.newPart({ it.startsWith('incidents:') })
+
+        when:
+        instances.accept(new SFDCServerInstance(key: 'CS62', status: 'MAJOR_INCIDENT_CORE'))
+        instances.commit()
+        incidents.accept(new SFDCServerInstance(key: 'incidents:1', status: 'MINOR_INCIDENT'))
+        def diff = session.complete()
+
+        then:
+        diff.changed*.key == ['CS62']
+        diff.inserted.isEmpty()
+        1 * engine.changeJournal.append({ it*.key == ['CS62'] })
+        1 * engine.serverInstanceRepository.bulkUpsertByKey({ it*.key == ['CS62'] }, [])
+    }
+
+    def "test the entries of a source's first poll are journaled as listed, and those appearing after as inserted"() {
+        setup:
+        mongoOperations.findAll(SFDCServerInstance) >> [new SFDCServerInstance(id: '1', key: 'CS62', status: 'OK')]
+        def session = engine.newSession()
+        def incidents = session.newPart({ it.startsWith('incidents:') })
+
+        when: "nothing of the source is stored yet"
+        incidents.accept(new SFDCServerInstance(key: 'incidents:1', status: 'MINOR_INCIDENT'))
+        incidents.accept(new SFDCServerInstance(key: 'incidents:2', status: 'MINOR_INCIDENT'))
+        incidents.commit()
+        session.complete()
+        then:
+        1 * engine.changeJournal.append({ it*.type == [StatusChangeEvent.Type.LISTED] * 2 })
+
+        when:
+        session = engine.newSession()
+        incidents = session.newPart({ it.startsWith('incidents:') })
+        ['incidents:1', 'incidents:2', 'incidents:3'].each { incidents.accept(new SFDCServerInstance(key: it, status: 'MINOR_INCIDENT')) }
+        incidents.commit()
+        session.complete()
+        then:
+        1 * engine.changeJournal.append({ it*.key == ['incidents:3'] && it*.type == [StatusChangeEvent.Type.INSERTED] })
+    }
+}
@@ -0,0 +1,167 @@
+package groovy.com.riz.exercise.tdd
+
+import com.icegreen.greenmail.util.GreenMail
+import com.icegreen.greenmail.util.ServerSetupTest
+import com.riz.exercise.notification.SmtpConnection
+import org.springframework.mail.MailAuthenticationException
+import org.springframework.mail.MailSendException
+import org.springframework.mail.javamail.JavaMailSenderImpl
+import org.springframework.mail.javamail.MimeMessageHelper
+import spock.lang.Specification
+
+import javax.mail.Address
+import javax.mail.Message
+import javax.mail.Provider
+import javax.mail.Session
+import javax.mail.Transport
+import javax.mail.URLName
+import javax.mail.internet.MimeMessage
+
+class SmtpConnectionSpec extends Specification {
+
+    def greenMail, mailSender
+
+    def setup() {
+        greenMail = new GreenMail(ServerSetupTest.SMTP)
+        greenMail.start()
+        mailSender = new JavaMailSenderImpl(host: 'localhost', port: ServerSetupTest.SMTP.port)
+    }
+
+    def cleanup() {
+        greenMail.stop()
+    }
+
+    def mails(int count) {
+        (1..count).collect {
+            MimeMessage mail = mailSender.createMimeMessage()
+            def helper = new MimeMessageHelper(mail)
+            helper.setFrom('notifier@trust.com')
+            helper.setTo("user$it@b.com")
+            helper.setSubject('subject')
+            helper.setText('text')
+            mail
+        } as MimeMessage[]
+    }
+
+    def "the connection is reused across sends"() {
+        setup:
+        def connection = new SmtpConnection(mailSender, 100)
+
+        when:
+        connection.send(mails(10))
+        connection.send(mails(10))
+        connection.close()
+
+        then:
+        greenMail.receivedMessages.length == 20
+        connection.connectCount == 1
+    }
+
+    def "the connection is recycled after the maximum number of messages"() {
+        setup:
+        def connection = new SmtpConnection(mailSender, 10)
+
+        when:
+        connection.send(mails(25))
+        connection.close()
+
+        then:
+        greenMail.receivedMessages.length == 25
+        connection.connectCount == 3
+    }
+
+    def "a closed connection is reopened on the next send"() {
+        setup:
+        def connection = new SmtpConnection(mailSender, 100)
+
+        when:
+        connection.send(mails(1))
+        connection.close()
+        connection.send(mails(1))
+        connection.close()
+
+        then:
+        greenMail.receivedMessages.length == 2
+        connection.connectCount == 2
+    }
+
+    def "every message is reported failed if the server can't be reached"() {
+        setup:
+        def connection = new SmtpConnection(mailSender, 100)
+        def messages = mails(3)
+        greenMail.stop()
+
+        when:
+        connection.send(messages)
+
+        then:
+        def e = thrown(MailSendException)
+        e.failedMessages.keySet() as List == messages as List
+    }
+
+    def "messages left unsent by the credentials being rejected on reconnecting are reported failed, not the others"() {
+        setup:
+        AuthenticatingTransport.sent.clear()
+        mailSender.javaMailProperties = ['mail.smtp.class': AuthenticatingTransport.name] as Properties
+        mailSender.session.addProvider(new Provider(Provider.Type.TRANSPORT, 'smtp', AuthenticatingTransport.name, 'test', '1'))
+        mailSender.password = AuthenticatingTransport.PASSWORD
+        def connection = new SmtpConnection(mailSender, 2)
+        def messages = mails(4)
+        // The credentials are changed as the second message, the last on the first connection, is sent
+        messages[1] = new MimeMessage(messages[1]) {
+            @Override
+            void saveChanges() {
+                mailSender.password = 'changed'
+                super.saveChanges()
+            }
+        }
+
+        when:
+        connection.send(messages)
+
+        then:
+        def e = thrown(MailSendException)
+        e.failedMessages.keySet() as List == messages[2..3]
+        e.failedMessages.values().every { it instanceof MailAuthenticationException }
+        AuthenticatingTransport.sent == messages[0..1]
+    }
+
+    def "no message is sent if the credentials are rejected"() {
+        setup:
+        AuthenticatingTransport.sent.clear()
+        mailSender.javaMailProperties = ['mail.smtp.class': AuthenticatingTransport.name] as Properties
+        mailSender.session.addProvider(new Provider(Provider.Type.TRANSPORT, 'smtp', AuthenticatingTransport.name, 'test', '1'))
+        mailSender.password = 'wrong'
+        def connection = new SmtpConnection(mailSender, 2)
+
+        when:
+        connection.send(mails(2))
+
+        then:
+        thrown(MailAuthenticationException)
+        AuthenticatingTransport.sent.empty
+    }
+
+    /**
+     * An SMTP transport that only accepts one password, which GreenMail can't be set up to require
+     */
+    static class AuthenticatingTransport extends Transport {
+
+        static final String PASSWORD = 'secret'
+        static final List<Message> sent = [].asSynchronized()
+
+        AuthenticatingTransport(Session session, URLName urlName) {
+            super(session, urlName)
+        }
+
+        @Override
+        protected boolean protocolConnect(String host, int port, String user, String password) {
+            password == PASSWORD
+        }
+
+        @Override
+        void sendMessage(Message message, Address[] addresses) {
+            sent << message
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package groovy.com.riz.exercise.tdd
+
+import com.mongodb.BasicDBObject
+import com.mongodb.DBObject
+import com.riz.exercise.model.StatusChangeEvent
+import com.riz.exercise.model.StatusHistoryBucket
+import com.riz.exercise.persistence.StatusHistory
+import org.springframework.data.mongodb.core.MongoOperations
+import org.springframework.data.mongodb.core.aggregation.Aggregation
+import org.springframework.data.mongodb.core.aggregation.AggregationResults
+import org.springframework.data.mongodb.core.query.Query
+import spock.lang.Specification
+
+import java.time.Clock
+import java.time.Instant
+import java.time.YearMonth
+import java.time.ZoneOffset
+
+class StatusHistorySpec extends Specification {
+
+    static final long HOUR = 3600 * 1000L
+
+    // Bucket documents by id, with a stand-in for the few mongo queries the history runs
+    def documents = [:]
+    def sequence = 0
+    def history
+
+    def setup() {
+        history = new StatusHistory()
+        history.mongoOperations = [
+                save     : { StatusHistoryBucket bucket -> documents[bucket.id] = bucket },
+                find     : { Query q, Class type -> find(q) },
+                findOne  : { Query q, Class type -> find(q).max { it.start } },
+                aggregate: { aggregation, Class type, Class output ->
+                    // Each instance's latest month before the range: the only aggregation the history runs
+                    def before = aggregation.toDbObject('statusHistory', Aggregation.DEFAULT_CONTEXT).pipeline[0].'$match'.start.'$lt'
+                    def latest = documents.values().findAll { it.start < before }.groupBy { it.key }.collect { key, buckets ->
+                        new StatusHistory.LastStatus(key: key, lastStatus: buckets.max { it.start }.lastStatus)
+                    }
+                    new AggregationResults(latest, new BasicDBObject())
+                }] as MongoOperations
+        history.clock = Clock.fixed(Instant.parse('2017-06-01T00:00:00Z'), ZoneOffset.UTC)
+        history.start()
+    }
+
+    def find(Query q) {
+        def excluded = q.fieldsObject?.get('transitions') == 0
+        documents.values().findAll { matches(it, q.queryObject) }.collect { bucket ->
+            // Read without its transitions, as mongo would: decoding it would fail
+            excluded ? new StatusHistoryBucket(id: bucket.id, key: bucket.key, start: bucket.start, end: bucket.end,
+                    initialStatus: bucket.initialStatus, statuses: bucket.statuses, millisByStatus: bucket.millisByStatus,
+                    count: bucket.count, lastAt: bucket.lastAt, lastStatus: bucket.lastStatus) : bucket
+        }.sort { it.start }
+    }
+
+    def matches(StatusHistoryBucket bucket, DBObject criteria) {
+        criteria.keySet().every { field ->
+            def condition = criteria.get(field)
+            switch (field) {
+                case '$and': return condition.every { matches(bucket, it) }
+                case '$or': return condition.any { matches(bucket, it) }
+            }
+            def value = bucket."${field == '_id' ? 'id' : field}"
+            if (!(condition instanceof DBObject)) {
+                return value == condition
+            }
+            condition.keySet().every { operator ->
+                def operand = condition.get(operator)
+                switch (operator) {
+                    case '$in': return value in operand
+                    case '$lt': return value < operand
+                    case '$lte': return value <= operand
+                    case '$gt': return value > operand
+                    case '$gte': return value >= operand
+                }
+                throw new IllegalArgumentException(operator)
+            }
+        }
+    }
+
+    static long at(String time) {
+        Instant.parse(time).toEpochMilli()
+    }
+
+    def event(String key, String oldStatus, String newStatus, String time) {
+        def type = oldStatus == null ? StatusChangeEvent.Type.INSERTED : newStatus == null ? StatusChangeEvent.Type.REMOVED : StatusChangeEvent.Type.CHANGED
+        def event = new StatusChangeEvent(type, key, oldStatus, newStatus, null, new Date(at(time)))
+        event.sequence = ++sequence
+        event
+    }
+
+    def "test transitions are dictionary and delta encoded"() {
+        setup:
+        def bucket = new StatusHistoryBucket('NA16', YearMonth.of(2017, 1), 'OK')
+
+        when:
+        bucket.append(at('2017-01-10T00:00:00Z'), 'MINOR_INCIDENT_CORE', 1)
+        bucket.append(at('2017-01-10T02:00:00Z'), 'OK', 2)
+        bucket.append(at('2017-01-20T00:00:00Z'), 'MINOR_INCIDENT_CORE', 3)
+        bucket.append(at('2017-01-20T00:30:00Z'), null, 4)
+        def decoded = []
+        bucket.forEachTransition { time, status -> decoded << [Instant.ofEpochMilli(time).toString(), status] }
+
+        then:
+        decoded == [['2017-01-10T00:00:00Z', 'MINOR_INCIDENT_CORE'], ['2017-01-10T02:00:00Z', 'OK'],
+                    ['2017-01-20T00:00:00Z', 'MINOR_INCIDENT_CORE'], ['2017-01-20T00:30:00Z', null]]
+        bucket.statuses == ['OK', 'MINOR_INCIDENT_CORE', null]
+        bucket.transitions.length <= 4 * 6
+        bucket.millisByStatus == [9 * 24 * HOUR + (10 * 24 - 2) * HOUR, (long) (2.5 * HOUR), 0]
+        bucket.lastSequence == 4
+    }
+
+    def "test journaled changes are recorded by instance and month, carrying the status over"() {
+        when:
+        history.record([event('NA16', null, 'OK', '2017-01-01T12:00:00Z'),
+                        event('NA16', 'OK', 'MINOR_INCIDENT_CORE', '2017-01-10T00:00:00Z'),
+                        event('CS62', 'OK', 'MAJOR_INCIDENT_CORE', '2017-01-15T00:00:00Z'),
+                        event('NA16', 'MINOR_INCIDENT_CORE', 'OK', '2017-03-05T00:00:00Z')])
+        history.record([event('CS62', 'MAJOR_INCIDENT_CORE', 'OK', '2017-03-01T00:00:00Z')])
+
+        then:
+        documents.keySet() == ['NA16@2017-01', 'CS62@2017-01', 'NA16@2017-03', 'CS62@2017-03'] as Set
+        documents['NA16@2017-01'].initialStatus == null
+        documents['NA16@2017-03'].initialStatus == 'MINOR_INCIDENT_CORE'
+        // Without any history, the status before the first change
+        documents['CS62@2017-01'].initialStatus == 'OK'
+        // Carried over from a bucket recorded by an earlier batch
+        documents['CS62@2017-03'].initialStatus == 'MAJOR_INCIDENT_CORE'
+    }
+
+    def "test changes read again are not recorded twice"() {
+        setup:
+        def events = [event('NA16', 'OK', 'MINOR_INCIDENT_CORE', '2017-01-10T00:00:00Z'),
+                      event('NA16', 'MINOR_INCIDENT_CORE', 'OK', '2017-01-10T02:00:00Z')]
+
+        when:
+        history.record(events)
+        history.record(events)
+
+        then:
+        documents['NA16@2017-01'].count == 2
+    }
+
+    def "test an instance's timeline spans months, clipped to the range and to now"() {
+        setup:
+        history.record([event('NA16', 'OK', 'MINOR_INCIDENT_CORE', '2017-01-10T00:00:00Z'),
+                        event('NA16', 'MINOR_INCIDENT_CORE', 'OK', '2017-01-10T02:00:00Z'),
+                        event('NA16', 'OK', 'MAJOR_INCIDENT_CORE', '2017-03-05T00:00:00Z'),
+                        event('NA16', 'MAJOR_INCIDENT_CORE', 'MINOR_INCIDENT_CORE', '2017-03-05T01:00:00Z'),
+                        event('NA16', 'MINOR_INCIDENT_CORE', 'OK', '2017-03-05T02:00:00Z')])
+
+        when:
+        def timeline = history.timeline('NA16', at('2017-01-10T01:00:00Z'), at('2018-01-01T00:00:00Z'))
+
+        then:
+        timeline.collect { [it.status, it.from.toInstant().toString(), it.to.toInstant().toString()] } == [
+                ['MINOR_INCIDENT_CORE', '2017-01-10T01:00:00Z', '2017-01-10T02:00:00Z'],
+                ['OK', '2017-01-10T02:00:00Z', '2017-03-05T00:00:00Z'],
+                ['MAJOR_INCIDENT_CORE', '2017-03-05T00:00:00Z', '2017-03-05T01:00:00Z'],
+                ['MINOR_INCIDENT_CORE', '2017-03-05T01:00:00Z', '2017-03-05T02:00:00Z'],
+                ['OK', '2017-03-05T02:00:00Z', '2017-06-01T00:00:00Z']]
+
+        when: "the range starts after the last month recorded"
+        timeline = history.timeline('NA16', at('2017-04-01T00:00:00Z'), at('2017-05-01T00:00:00Z'))
+        then:
+        timeline*.status == ['OK']
+        timeline[0].durationMillis == 30 * 24 * HOUR
+
+        when:
+        def outages = history.outages('NA16', at('2017-01-01T00:00:00Z'), at('2017-06-01T00:00:00Z'))
+        then: "consecutive unavailable statuses make one outage"
+        outages.collect { [it.status, it.durationMillis] } == [['MINOR_INCIDENT_CORE', 2 * HOUR], ['MAJOR_INCIDENT_CORE,MINOR_INCIDENT_CORE', 2 * HOUR]]
+    }
+
+    def "test availability sums whole months up without decoding them"() {
+        setup:
+        history.record([event('NA16', null, 'OK', '2017-01-01T00:00:00Z'),
+                        event('CS62', null, 'OK', '2017-01-01T00:00:00Z'),
+                        event('EU5', null, 'OK', '2017-01-01T00:00:00Z'),
+                        event('NA16', 'OK', 'MINOR_INCIDENT_CORE', '2017-02-10T00:00:00Z'),
+                        event('NA16', 'MINOR_INCIDENT_CORE', 'OK', '2017-02-10T12:00:00Z'),
+                        event('CS62', 'OK', 'MAJOR_INCIDENT_CORE', '2017-03-31T00:00:00Z'),
+                        event('CS62', 'MAJOR_INCIDENT_CORE', 'OK', '2017-04-02T00:00:00Z'),
+                        event('EU5', 'OK', null, '2017-04-15T00:00:00Z')])
+
+        when: "from the middle of January to the middle of May"
+        def from = at('2017-01-15T00:00:00Z')
+        def to = at('2017-05-15T00:00:00Z')
+        def availability = history.availability(from, to)
+        def range = (to - from) as double
+
+        then:
+        availability.keySet() as List == ['CS62', 'EU5', 'NA16']
+        Math.abs(availability.NA16 - 100 * (range - 12 * HOUR) / range) < 1e-9
+        Math.abs(availability.CS62 - 100 * (range - 48 * HOUR) / range) < 1e-9
+        // Not listed once removed
+        availability.EU5 == 100
+
+        and: "the same as decoding every month"
+        availability.every { key, percentage ->
+            def timeline = history.timeline(key, from, to)
+            Math.abs(percentage - 100 * timeline.findAll { it.status == 'OK' }*.durationMillis.sum() / timeline*.durationMillis.sum()) < 1e-9
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package groovy.com.riz.exercise.tdd
+
+import com.riz.exercise.client.FetchResult
+import com.riz.exercise.client.HttpStatusSource
+import com.riz.exercise.client.StatusParsers
+import com.riz.exercise.client.StatusSources
+import com.riz.exercise.client.TrustApiClient
+import com.sun.net.httpserver.HttpServer
+import org.springframework.mock.env.MockEnvironment
+import org.springframework.web.client.ResourceAccessException
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+
+class StatusSourcesSpec extends Specification {
+
+    static final String INCIDENTS = '''[
+        {"id": 1, "instanceKeys": ["NA16", "CS62"], "IncidentImpacts": [
+            {"type": "performanceDegradation", "severity": "minor", "startTime": "2017-01-10T01:00:00.000Z", "endTime": "2017-01-10T02:00:00.000Z"},
+            {"type": "serviceDisruption", "severity": "major", "startTime": "2017-01-10T02:00:00.000Z"}]},
+        {"id": 2, "instanceKeys": ["EU5"], "IncidentImpacts": [
+            {"type": "serviceDisruption", "severity": "major", "startTime": "2017-01-09T01:00:00.000Z", "endTime": "2017-01-09T02:00:00.000Z"}]}]'''
+    static final String MAINTENANCES = '''[
+        {"id": 10, "instanceKeys": ["NA16"], "plannedStartTime": "2017-01-10T02:00:00.000Z", "plannedEndTime": "2017-01-10T04:00:00.000Z"},
+        {"id": 11, "instanceKeys": ["NA16"], "plannedStartTime": "2017-01-11T02:00:00.000Z", "plannedEndTime": "2017-01-11T04:00:00.000Z"},
+        {"id": 12, "instanceKeys": ["CS62"], "plannedStartTime": "2017-01-09T02:00:00.000Z", "plannedEndTime": "2017-01-09T04:00:00.000Z"},
+        {"id": 13, "instanceKeys": [], "message": {"eventStatus": "canceled"}}]'''
+    static final String COMPONENTS = '''{"page": {"id": "p1"}, "components": [
+        {"id": "c1", "name": "API", "status": "operational"},
+        {"id": "c2", "name": "Dashboard", "status": "degraded_performance"}]}'''
+
+    @Shared HttpServer server
+    @Shared String baseUrl
+    @Shared int requests
+
+    def clock = Clock.fixed(Instant.parse('2017-01-10T03:00:00Z'), ZoneOffset.UTC)
+    def trustApiClient = new TrustApiClient()
+
+    def setupSpec() {
+        server = HttpServer.create(new InetSocketAddress('localhost', 0), 0)
+        serve('/v1/incidents', INCIDENTS)
+        serve('/v1/maintenances', MAINTENANCES)
+        serve('/api/v2/components.json', COMPONENTS)
+        server.createContext('/slow') { exchange ->
+            Thread.sleep(2000)
+            exchange.sendResponseHeaders(200, 2)
+            exchange.responseBody.withStream { it.write('[]'.bytes) }
+        }
+        server.start()
+        baseUrl = "http://localhost:${server.address.port}"
+    }
+
+    def serve(String path, String body) {
+        server.createContext(path) { exchange ->
+            requests++
+            exchange.responseHeaders.add('ETag', '"' + body.hashCode() + '"')
+            if (exchange.requestHeaders.getFirst('If-None-Match') == '"' + body.hashCode() + '"') {
+                exchange.sendResponseHeaders(304, -1)
+                exchange.close()
+                return
+            }
+            exchange.responseHeaders.add('Content-Type', 'application/json')
+            exchange.sendResponseHeaders(200, body.bytes.length)
+            exchange.responseBody.withStream { it.write(body.bytes) }
+        }
+    }
+
+    def cleanupSpec() {
+        server.stop(0)
+    }
+
+    def fetch(String name, String path, String parser) {
+        def entries = []
+        def source = new HttpStatusSource(name, baseUrl + path, StatusParsers.named(parser, clock), 0, 1000, trustApiClient)
+        def result = source.fetch { entries << it }
+        [entries, result, source]
+    }
+
+    def "incidents are keyed by source and id, and resolved once all their impacts ended"() {
+        when:
+        def (entries, result) = fetch('incidents', '/v1/incidents', 'incidents')
+
+        then:
+        result.outcome == FetchResult.Outcome.MODIFIED
+        result.count == 2
+        entries*.key == ['incidents:1', 'incidents:2']
+        entries*.status == ['MAJOR_INCIDENT', 'RESOLVED']
+        entries*.location == ['NA16,CS62', 'EU5']
+    }
+
+    def "maintenances are scheduled, in progress or completed by their planned times"() {
+        when:
+        def (entries) = fetch('maintenances', '/v1/maintenances', 'maintenances')
+
+        then:
+        entries*.key == ['maintenances:10', 'maintenances:11', 'maintenances:12', 'maintenances:13']
+        entries*.status == ['IN_PROGRESS', 'SCHEDULED', 'COMPLETED', 'CANCELED']
+    }
+
+    def "status page components are read"() {
+        when:
+        def (entries) = fetch('vendor', '/api/v2/components.json', 'statuspage')
+
+        then:
+        entries*.key == ['vendor:c1', 'vendor:c2']
+        entries*.location == ['API', 'Dashboard']
+        entries*.status == ['OPERATIONAL', 'DEGRADED_PERFORMANCE']
+    }
+
+    def "polls are conditional once acknowledged, until reset"() {
+        setup:
+        def (entries, first, source) = fetch('incidents', '/v1/incidents', 'incidents')
+
+        when:
+        source.acknowledge(first)
+        def second = source.fetch {}
+        source.reset()
+        def third = source.fetch {}
+
+        then:
+        second.outcome == FetchResult.Outcome.NOT_MODIFIED
+        third.outcome == FetchResult.Outcome.MODIFIED
+    }
+
+    def "a source times out on its own timeout"() {
+        setup:
+        def source = new HttpStatusSource('slow', baseUrl + '/slow', StatusParsers.named('incidents', clock), 0, 200, trustApiClient)
+
+        when:
+        source.fetch {}
+
+        then:
+        thrown(ResourceAccessException)
+    }
+
+    def "sources are configured by name and polled at their own interval"() {
+        setup:
+        def environment = new MockEnvironment()
+                .withProperty('com.riz.exercise.application.sources.incidents.url', baseUrl + '/v1/incidents')
+                .withProperty('com.riz.exercise.application.sources.incidents.intervalMillis', '60000')
+                .withProperty('com.riz.exercise.application.sources.vendor.url', baseUrl + '/api/v2/components.json')
+                .withProperty('com.riz.exercise.application.sources.vendor.parser', 'statuspage')
+        def sources = new StatusSources(environment: environment, trustApiClient: trustApiClient, names: ['incidents', 'vendor'] as String[])
+        sources.start()
+
+        when:
+        def due = sources.due()
+        due.each { sources.polled(it) }
+
+        then: "all are due at first"
+        due*.name == ['incidents', 'vendor']
+
+        and: "then only the one polled on every run"
+        sources.due()*.name == ['vendor']
+    }
+
+    def "a misconfigured source stops startup"() {
+        setup:
+        def sources = new StatusSources(environment: new MockEnvironment().withProperty('com.riz.exercise.application.sources.x.url', 'http://localhost'),
+                trustApiClient: trustApiClient, names: [name] as String[])
+
+        when:
+        sources.start()
+
+        then:
+        thrown(IllegalStateException)
+
+        where:
+        name << ['x', 'in:valid', 'instances']
+    }
+}
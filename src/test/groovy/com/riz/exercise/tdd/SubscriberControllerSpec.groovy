@@ -1,10 +1,16 @@
 package groovy.com.riz.exercise.tdd
 
+import com.fasterxml.jackson.databind.ObjectMapper
 import com.riz.exercise.controllers.SubscriberController
 import com.riz.exercise.model.SFDCServerInstance
 import com.riz.exercise.model.Subscriber
+import com.riz.exercise.notification.WebhookDispatcher
 import com.riz.exercise.persistence.ServerInstanceRepository
 import com.riz.exercise.persistence.SubscriberRepository
+import com.riz.exercise.persistence.SubscriptionIndex
+import org.springframework.data.domain.PageImpl
+import org.springframework.data.domain.PageRequest
+import org.springframework.data.util.CloseableIterator
 import org.springframework.ui.ExtendedModelMap
 import spock.lang.Specification
 
@@ -18,26 +24,86 @@ class SubscriberControllerSpec extends Specification {
     def setup() {
         controller = new SubscriberController()
         controller.subscriberRepository = Mock(SubscriberRepository.class)
+        controller.subscriptionIndex = Mock(SubscriptionIndex.class)
+        controller.webhookDispatcher = Mock(WebhookDispatcher.class)
+        // Without resolving hosts: any http(s) url but the metadata service's
+        controller.webhookDispatcher.isAllowedEndpoint(_) >> { String url -> WebhookDispatcher.isValidEndpoint(url) && !url.contains('169.254.169.254') }
     }
 
     def "tdd: create /servers GET request"() {
         when:
-        controller.subscriberRepository.findAll() >> _
-        def result = controller.subscribers(new ExtendedModelMap())
+        def model = new ExtendedModelMap()
+        def result = controller.subscribers(null, 1, 10, model)
 
         then:
         result == "subscribers"
+        1 * controller.subscriberRepository.findListingPage(new PageRequest(1, 10)) >> new PageImpl([new Subscriber(id:'11')], new PageRequest(1, 10), 11)
+        0 * controller.subscriberRepository.findAll()
+        model.subscriberList*.id == ['11']
+        model.page.hasPrevious()
+        !model.page.hasNext()
+    }
+
+    def "tdd: subscribers are listed after a given id"() {
+        when:
+        def model = new ExtendedModelMap()
+        controller.subscribers('5', 0, 1, model)
+
+        then:
+        1 * controller.subscriberRepository.findListingAfter('5', 1) >> [new Subscriber(id:'6')]
+        model.subscriberList*.id == ['6']
+        model.nextAfter == '6'
+    }
+
+    def "tdd: subscribers are streamed as a JSON array"() {
+        def cursor = Mock(CloseableIterator)
+        def out = new ByteArrayOutputStream()
+
+        when:
+        controller.streamSubscribers().writeTo(out)
+
+        then:
+        1 * controller.subscriberRepository.streamListing() >> cursor
+        2 * cursor.hasNext() >>> [true, false]
+        1 * cursor.next() >> new Subscriber(firstname:'A', email:'a@b.com', servers:['NA16', 'CS85'])
+        1 * cursor.close()
+        new ObjectMapper().readValue(out.toByteArray(), List) == [[firstname:'A', email:'a@b.com', servers:['NA16', 'CS85']]]
+    }
+
+    def "tdd: streamed subscribers are flushed in batches, not one by one"() {
+        def written = (1..250).collect { new Subscriber(id: "$it", email: "$it@b.com") }
+        def flushes = 0
+        def out = new ByteArrayOutputStream() {
+            @Override
+            void flush() {
+                flushes++
+            }
+        }
+
+        when:
+        controller.streamSubscribers().writeTo(out)
+
+        then:
+        1 * controller.subscriberRepository.streamListing() >> new CloseableIterator() {
+            def iterator = written.iterator()
+            boolean hasNext() { iterator.hasNext() }
+            Object next() { iterator.next() }
+            void close() {}
+        }
+        // After the 100th and 200th: the rest are written out as the stream is closed
+        flushes == 2
+        new ObjectMapper().readValue(out.toByteArray(), List).size() == 250
     }
 
 
     def "tdd: create /addSubscriber POST endpoint"() {
         when:
-        controller.subscriberRepository.findByEmail('a@b.com') >> []
+        controller.subscriberRepository.findIdByEmail('a@b.com') >> []
         def result = controller.addSubscriber(new Subscriber(firstname:'A', lastname:'B', email:'a@b.com', servers:['NA16']))
 
         then:
         result == "redirect:subscribers"
-        1 * controller.subscriberRepository.save(_)
+        1 * controller.subscriberRepository.save({ it.modifiedAt != null })
     }
 
     def "tdd: do not post if first and lastnames aren't provided"() {
@@ -50,7 +116,7 @@ class SubscriberControllerSpec extends Specification {
 
     def "tdd: post if firstname is provided but lastname is not"() {
         when:
-        controller.subscriberRepository.findByEmail('a@b.com') >> []
+        controller.subscriberRepository.findIdByEmail('a@b.com') >> []
         controller.addSubscriber(new Subscriber(firstname:'A', email:'a@b.com', servers:['NA16']))
 
         then:
@@ -59,7 +125,7 @@ class SubscriberControllerSpec extends Specification {
 
     def "tdd: post if lastname is provided but firstname is not"() {
         when:
-        controller.subscriberRepository.findByEmail('a@b.com') >> []
+        controller.subscriberRepository.findIdByEmail('a@b.com') >> []
         controller.addSubscriber(new Subscriber(lastname:'B', email:'a@b.com', servers:['NA16']))
 
         then:
@@ -82,9 +148,27 @@ class SubscriberControllerSpec extends Specification {
         0 * controller.subscriberRepository.save(_)
     }
 
+    def "tdd: post only public http webhooks, and webhooks to notify through"() {
+        when:
+        controller.subscriberRepository.findIdByEmail('a@b.com') >> []
+        controller.addSubscriber(new Subscriber(firstname:'A', lastname:'B', email:'a@b.com', servers:['NA16'], webhooks:webhooks, channels:channels as Set))
+
+        then:
+        saved * controller.subscriberRepository.save(_)
+
+        where:
+        webhooks                  | channels                        | saved
+        ['https://hooks.b.com/a'] | null                            | 1
+        ['https://hooks.b.com/a'] | [Subscriber.Channel.WEBHOOK]    | 1
+        ['ftp://hooks.b.com/a']   | null                            | 0
+        ['http://169.254.169.254/latest/meta-data'] | null          | 0
+        null                      | [Subscriber.Channel.WEBHOOK]    | 0
+        []                        | [Subscriber.Channel.EMAIL]      | 1
+    }
+
     def "tdd: set mongo id if subscriber already exists"() {
         when:
-        controller.subscriberRepository.findByEmail('a@b.com') >> [new Subscriber(id:'1', firstname:'A', lastname:'B', email:'a@b.com', servers:['NA16'])]
+        controller.subscriberRepository.findIdByEmail('a@b.com') >> [new Subscriber(id:'1', firstname:'A', lastname:'B', email:'a@b.com', servers:['NA16'])]
         def subscriber = new Subscriber(firstname:'A', lastname:'B', email:'a@b.com', servers:['NA16'])
         controller.addSubscriber(subscriber)
 
@@ -92,4 +176,24 @@ class SubscriberControllerSpec extends Specification {
         subscriber.getId() == '1'
     }
 
+    def "tdd: saved subscriber is added to the subscription index"() {
+        def saved = new Subscriber(id:'1', firstname:'A', lastname:'B', email:'a@b.com', servers:['NA16'])
+
+        when:
+        controller.subscriberRepository.findIdByEmail('a@b.com') >> []
+        controller.subscriberRepository.save(_) >> saved
+        controller.addSubscriber(new Subscriber(firstname:'A', lastname:'B', email:'a@b.com', servers:['NA16']))
+
+        then:
+        1 * controller.subscriptionIndex.put(saved)
+    }
+
+    def "tdd: subscription index is untouched if validation fails"() {
+        when:
+        controller.addSubscriber(new Subscriber(firstname:'A', lastname:'B', servers:['NA16']))
+
+        then:
+        0 * controller.subscriptionIndex.put(_)
+    }
+
 }
@@ -0,0 +1,204 @@
+package groovy.com.riz.exercise.tdd
+
+import com.riz.exercise.model.Subscriber
+import com.riz.exercise.persistence.SubscriberRepository
+import com.riz.exercise.persistence.SubscriptionIndex
+import org.springframework.boot.actuate.metrics.CounterService
+import spock.lang.Specification
+
+class SubscriptionIndexSpec extends Specification {
+
+    def index, subscribers
+
+    def setup() {
+        subscribers = [new Subscriber(id: '1', firstname: 'Alice', lastname: 'Andrews', email: 'alice@andrews.com', servers: ['CS62', 'NA16']),
+                       new Subscriber(id: '2', firstname: 'Bob', lastname: 'Baker', email: 'bob@baker.com', servers: ['NA16', 'CS85'])]
+
+        index = new SubscriptionIndex()
+        index.subscriberRepository = Mock(SubscriberRepository)
+        index.counterService = Mock(CounterService)
+    }
+
+    def "index is rebuilt from the data store"() {
+        setup:
+        index.subscriberRepository.findAll() >> subscribers
+
+        when:
+        index.rebuild()
+
+        then:
+        index.size() == 2
+        index.getSubscriberIds('NA16') == ['1', '2'] as Set
+        index.getSubscriberIds('CS62') == ['1'] as Set
+        index.getSubscriberIds('CS85') == ['2'] as Set
+        index.getSubscriberIds('NA01').isEmpty()
+        index.getSubscribers('CS85') == [subscribers[1]]
+    }
+
+    def "put adds new subscribers and relinks updated ones"() {
+        setup:
+        index.subscriberRepository.findAll() >> subscribers
+        index.rebuild()
+
+        when: "a new subscriber is added"
+        index.put(new Subscriber(id: '3', email: 'carol@cook.com', servers: ['NA01']))
+        then:
+        index.size() == 3
+        index.getSubscriberIds('NA01') == ['3'] as Set
+
+        when: "an existing subscriber changes their servers"
+        index.put(new Subscriber(id: '1', email: 'alice@andrews.com', servers: ['NA01']))
+        then:
+        index.size() == 3
+        index.getSubscriberIds('NA01') == ['1', '3'] as Set
+        index.getSubscriberIds('NA16') == ['2'] as Set
+        index.getSubscriberIds('CS62').isEmpty()
+    }
+
+    def "put ignores unsaved subscribers"() {
+        when:
+        index.put(new Subscriber(email: 'dan@dale.com', servers: ['NA16']))
+        index.put(null)
+
+        then:
+        index.size() == 0
+        index.getSubscriberIds('NA16').isEmpty()
+    }
+
+    def "consistency check reports servers that differ from the data store"() {
+        setup:
+        index.subscriberRepository.findAll() >>> [subscribers, subscribers,
+                                                  subscribers + [new Subscriber(id: '3', servers: ['EU7'])]]
+        index.rebuild()
+
+        expect: "index matches the data store"
+        index.checkConsistency().isEmpty()
+
+        and: "a subscriber written behind the index's back is detected"
+        index.checkConsistency() == ['EU7'] as Set
+    }
+
+    def "refresh picks up subscribers saved since the latest indexed, allowing for clock skew"() {
+        setup:
+        subscribers[0].modifiedAt = new Date(100000)
+        subscribers[1].modifiedAt = new Date(160000)
+        index.subscriberRepository.findAll() >> subscribers
+        index.rebuild()
+
+        when: "a subscriber was saved through another node"
+        index.refresh()
+        then:
+        1 * index.subscriberRepository.findByModifiedAtGreaterThanEqual(new Date(100000)) >>
+                [subscribers[1], new Subscriber(id: '3', servers: ['EU7'], modifiedAt: new Date(170000))]
+        index.size() == 3
+        index.getSubscriberIds('EU7') == ['3'] as Set
+
+        when:
+        index.refresh()
+        then:
+        1 * index.subscriberRepository.findByModifiedAtGreaterThanEqual(new Date(110000)) >> []
+    }
+
+    def "the periodic check rebuilds an index that drifted from the data store"() {
+        setup:
+        def added = subscribers + [new Subscriber(id: '3', servers: ['EU7'])]
+        index.subscriberRepository.findAll() >>> [subscribers, subscribers, added, added]
+        index.rebuild()
+
+        when: "the index matches the data store"
+        index.verify()
+        then:
+        0 * index.counterService.increment(_)
+        index.getSubscriberIds('EU7').isEmpty()
+
+        when: "a subscriber was written behind the index's back"
+        index.verify()
+        then:
+        1 * index.counterService.increment('subscriptions.index.inconsistent')
+        index.getSubscriberIds('EU7') == ['3'] as Set
+    }
+
+    def "the subscribers of several servers are the union of their subscribers"() {
+        setup:
+        index.subscriberRepository.findAll() >> subscribers + [new Subscriber(id: '3', email: 'carol@cook.com', servers: ['EU7'])]
+        index.rebuild()
+
+        when:
+        def ordinals = index.getSubscriberOrdinals(['CS62', 'CS85', 'NA01'])
+
+        then:
+        ordinals.cardinality == 2
+        index.getSubscribers(ordinals) == subscribers
+        index.getSubscriberOrdinals(['NA01']).isEmpty()
+
+        when: "the union is changed by the caller"
+        ordinals.add(2)
+        then: "the index is not"
+        index.getSubscriberIds('CS62') == ['1'] as Set
+    }
+
+    def "subscribers keep their ordinal when updated, and share server keys"() {
+        setup:
+        index.subscriberRepository.findAll() >> subscribers
+        index.rebuild()
+        def ordinal = index.getSubscriberOrdinals(['CS62']).first()
+
+        when:
+        index.put(new Subscriber(id: '1', email: 'alice@andrews.com', servers: [new String('CS85'), 'CS85']))
+
+        then:
+        index.getSubscriberOrdinals(['CS85']).toArray() as List == [ordinal, index.getSubscriberOrdinals(['NA16']).first()].sort()
+        def keys = index.getSubscribers(index.getSubscriberOrdinals(['CS85'])).collectMany { it.servers }.findAll { it == 'CS85' }
+        keys.size() == 3
+        keys.every { it.is(keys[0]) }
+
+        when: "a server listed twice is unlinked once"
+        index.put(new Subscriber(id: '1', email: 'alice@andrews.com', servers: []))
+        then:
+        index.getSubscriberIds('CS85') == ['2'] as Set
+    }
+
+    def "the index keeps its own copy of the subscribers put"() {
+        setup:
+        def servers = [new String('NA16')]
+        def subscriber = new Subscriber(id: '3', email: 'carol@cook.com', servers: servers)
+
+        when:
+        index.put(subscriber)
+
+        then:
+        subscriber.servers.is(servers)
+        !subscriber.servers[0].is('NA16')
+        !index.getSubscribers('NA16')[0].is(subscriber)
+        index.getSubscribers('NA16')[0].email == 'carol@cook.com'
+    }
+
+    def "a rebuild releases the subscribers gone from the data store, whose ordinals are reused after the next one"() {
+        setup:
+        def carol = new Subscriber(id: '3', email: 'carol@cook.com', servers: ['EU7'])
+        index.subscriberRepository.findAll() >>> [subscribers, [subscribers[1]]]
+        index.rebuild()
+        def ordinals = index.getSubscriberOrdinals(['CS62', 'CS85'])
+
+        when: "a subscriber was deleted"
+        index.rebuild()
+        then:
+        index.size() == 1
+        index.getSubscriberIds('CS62').isEmpty()
+        index.getSubscribers(ordinals) == [subscribers[1]]
+
+        when: "a subscriber is added before the next rebuild"
+        index.put(carol)
+        then: "it doesn't take the released ordinal"
+        index.getSubscriberOrdinals(['EU7']).toArray() as List == [2]
+        index.getSubscribers(ordinals) == [subscribers[1]]
+
+        when: "one is added after it"
+        index.put(new Subscriber(id: '3', servers: []))
+        index.rebuild()
+        index.put(new Subscriber(id: '4', email: 'dan@dale.com', servers: ['NA01']))
+        then: "it does"
+        index.size() == 2
+        index.getSubscriberOrdinals(['NA01']).toArray() as List == [0]
+    }
+}
@@ -0,0 +1,180 @@
+package groovy.com.riz.exercise.tdd
+
+import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.riz.exercise.client.FetchResult
+import com.riz.exercise.client.TrustApiClient
+import com.riz.exercise.events.ServerInstanceUpdatedEvent
+import com.riz.exercise.model.SFDCServerInstance
+import com.sun.net.httpserver.HttpServer
+import spock.lang.Shared
+import spock.lang.Specification
+
+class TrustApiClientSpec extends Specification {
+
+    static final int LARGE_PAYLOAD_SIZE = 50000
+
+    @Shared HttpServer server
+    @Shared String baseUrl
+    @Shared List<String> ifNoneMatchHeaders = []
+
+    def client
+
+    def setupSpec() {
+        def sample = getClass().getResourceAsStream('/trust-instances.json').bytes
+        // Blow the sample payload up to a large one with unique instance keys
+        def mapper = new ObjectMapper()
+        def instances = mapper.readValue(sample, List)
+        def large = (0..<LARGE_PAYLOAD_SIZE).collect { i -> instances[i % instances.size()] + [key: 'XX' + i] }
+        def largeBytes = mapper.writeValueAsBytes(large)
+
+        server = HttpServer.create(new InetSocketAddress('localhost', 0), 0)
+        serve('/v1/instances', sample)
+        serve('/v1/instances/large', largeBytes)
+        serve('/v1/instances/malformed', '{"key": "NA1"}'.bytes)
+        server.createContext('/v1/instances/etag') { exchange ->
+            def ifNoneMatch = exchange.requestHeaders.getFirst('If-None-Match')
+            ifNoneMatchHeaders << ifNoneMatch
+            exchange.responseHeaders.add('ETag', '"v1"')
+            if (ifNoneMatch == '"v1"') {
+                exchange.sendResponseHeaders(304, -1)
+                exchange.close()
+                return
+            }
+            exchange.responseHeaders.add('Content-Type', 'application/json')
+            exchange.sendResponseHeaders(200, sample.length)
+            exchange.responseBody.withStream { it.write(sample) }
+        }
+        server.start()
+        baseUrl = "http://localhost:${server.address.port}"
+    }
+
+    def serve(String path, byte[] body) {
+        server.createContext(path) { exchange ->
+            exchange.responseHeaders.add('Content-Type', 'application/json')
+            exchange.sendResponseHeaders(200, body.length)
+            exchange.responseBody.withStream { it.write(body) }
+        }
+    }
+
+    def cleanupSpec() {
+        server.stop(0)
+    }
+
+    def setup() {
+        client = new TrustApiClient()
+    }
+
+    def "instances are streamed with only the persisted fields read"() {
+        def received = []
+
+        when:
+        def result = client.fetchServerInstances("$baseUrl/v1/instances", { received << it })
+
+        then:
+        result.outcome == FetchResult.Outcome.MODIFIED
+        result.count == 3
+        received*.key == ['CS62', 'EU5', 'NA19']
+        received[1].location == 'EU'
+        received[1].environment == 'production'
+        received[1].releaseVersion == 'Winter \'17 Patch 14.5'
+        received[1].status == 'MINOR_INCIDENT_CORE'
+        received[2].releaseVersion == null
+    }
+
+    def "streaming and non streaming modes read the same instances"() {
+        def streamed = [], buffered = []
+
+        when:
+        client.fetchServerInstances("$baseUrl/v1/instances", { streamed << it })
+        client.streaming = false
+        client.fetchServerInstances("$baseUrl/v1/instances", { buffered << it })
+
+        then:
+        streamed == buffered
+        streamed*.location == buffered*.location
+        streamed*.environment == buffered*.environment
+        streamed*.releaseVersion == buffered*.releaseVersion
+    }
+
+    def "a large payload is handed over one instance at a time"() {
+        int count = 0
+        SFDCServerInstance last = null
+
+        when:
+        def fetched = client.fetchServerInstances("$baseUrl/v1/instances/large", { count++; last = it })
+
+        then:
+        fetched.count == LARGE_PAYLOAD_SIZE
+        count == LARGE_PAYLOAD_SIZE
+        last.key == 'XX' + (LARGE_PAYLOAD_SIZE - 1)
+    }
+
+    def "an unchanged body is detected by its hash once acknowledged"() {
+        def received = []
+
+        when: "the first fetch is acknowledged"
+        client.acknowledge(client.fetchServerInstances("$baseUrl/v1/instances", {}))
+        def result = client.fetchServerInstances("$baseUrl/v1/instances", {})
+        then: "the same body fetched again is unchanged"
+        result.outcome == FetchResult.Outcome.UNCHANGED
+
+        when: "not streaming"
+        client.streaming = false
+        result = client.fetchServerInstances("$baseUrl/v1/instances", { received << it })
+        then: "an unchanged body is not even deserialized"
+        result.outcome == FetchResult.Outcome.UNCHANGED
+        received.isEmpty()
+
+        when: "a different body is fetched"
+        result = client.fetchServerInstances("$baseUrl/v1/instances/large", {})
+        then:
+        result.outcome == FetchResult.Outcome.MODIFIED
+    }
+
+    def "an unacknowledged fetch is never skipped"() {
+        when:
+        client.fetchServerInstances("$baseUrl/v1/instances", {})
+        def result = client.fetchServerInstances("$baseUrl/v1/instances", {})
+
+        then:
+        result.outcome == FetchResult.Outcome.MODIFIED
+    }
+
+    def "the etag is sent back and a 304 is reported as not modified"() {
+        setup:
+        ifNoneMatchHeaders.clear()
+
+        when:
+        def first = client.fetchServerInstances("$baseUrl/v1/instances/etag", {})
+        client.acknowledge(first)
+        def second = client.fetchServerInstances("$baseUrl/v1/instances/etag", {})
+
+        then:
+        first.outcome == FetchResult.Outcome.MODIFIED
+        first.etag == '"v1"'
+        second.outcome == FetchResult.Outcome.NOT_MODIFIED
+        second.count == 0
+        ifNoneMatchHeaders == [null, '"v1"']
+    }
+
+    def "a local server instance update forces the next poll to be processed in full"() {
+        setup:
+        client.acknowledge(client.fetchServerInstances("$baseUrl/v1/instances/etag", {}))
+
+        when:
+        client.onServerInstanceUpdated(new ServerInstanceUpdatedEvent(new SFDCServerInstance(key: 'EU5', status: 'OK')))
+        def result = client.fetchServerInstances("$baseUrl/v1/instances/etag", {})
+
+        then:
+        result.outcome == FetchResult.Outcome.MODIFIED
+    }
+
+    def "a payload that isn't an array of instances is rejected"() {
+        when:
+        client.parseServerInstances(new ByteArrayInputStream('{"key": "NA1"}'.bytes), {})
+
+        then:
+        thrown(JsonParseException)
+    }
+}
@@ -0,0 +1,303 @@
+package groovy.com.riz.exercise.tdd
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.riz.exercise.model.SFDCServerInstance
+import com.riz.exercise.notification.WebhookDispatcher
+import com.riz.exercise.notification.WebhookNotification
+import com.riz.exercise.notification.WebhookRejectedException
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import org.springframework.boot.actuate.metrics.CounterService
+import org.springframework.boot.actuate.metrics.GaugeService
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class WebhookDispatcherSpec extends Specification {
+
+    def receiver, dispatcher
+    def outcomes = new ConcurrentHashMap()
+    def conditions = new PollingConditions(timeout: 5)
+
+    def setup() {
+        receiver = new StubReceiver().start()
+
+        dispatcher = new WebhookDispatcher()
+        dispatcher.counterService = Mock(CounterService)
+        dispatcher.gaugeService = Mock(GaugeService)
+        dispatcher.workers = 1
+        dispatcher.queueCapacity = 10
+        dispatcher.batchSize = 10
+        dispatcher.initialBackoffMillis = 10
+        dispatcher.timeoutMillis = 2000
+        // The stub receivers are local
+        dispatcher.allowPrivateTargets = true
+    }
+
+    def cleanup() {
+        if (dispatcher.workerPool) {
+            dispatcher.stop()
+        }
+        receiver.stop()
+    }
+
+    def notification(String id) {
+        new WebhookNotification(id, '1', [new SFDCServerInstance(key: 'NA16', status: 'MINOR_INCIDENT_CORE')], System.currentTimeMillis())
+    }
+
+    /**
+     * Submits a notification, recording its outcome: 'delivered' or the failure it was given up on with
+     */
+    def submit(String url, String id, CountDownLatch done = null) {
+        dispatcher.submit(url, notification(id)) { failure ->
+            outcomes[id] = failure ?: 'delivered'
+            done?.countDown()
+        }
+    }
+
+    def "notifications for the same webhook are posted together as one JSON batch, over kept alive connections"() {
+        setup:
+        def first = new CountDownLatch(1)
+        def done = new CountDownLatch(6)
+        receiver.respond = { request ->
+            // Hold the first post until the others are queued
+            first.await(5, TimeUnit.SECONDS)
+            200
+        }
+        dispatcher.start()
+
+        when:
+        submit(receiver.url('/a'), 'n1', done)
+        conditions.eventually { assert receiver.inFlight.get() == 1 }
+        ['n2', 'n3', 'n4'].each { submit(receiver.url('/a'), it, done) }
+        ['n5', 'n6'].each { submit(receiver.url('/b'), it, done) }
+        first.countDown()
+        done.await(5, TimeUnit.SECONDS)
+
+        then:
+        receiver.requests.collect { [it.path, it.body.notifications*.id] } == [['/a', ['n1']], ['/a', ['n2', 'n3', 'n4']], ['/b', ['n5', 'n6']]]
+        receiver.requests*.contentType.every { it.startsWith('application/json') }
+        receiver.requests[2].body.notifications[0].servers == [[key: 'NA16', status: 'MINOR_INCIDENT_CORE']]
+        outcomes.values().every { it == 'delivered' }
+        6 * dispatcher.counterService.increment('webhook.sent')
+        6 * dispatcher.gaugeService.submit('histogram.webhook.detectionToDelivery', _)
+        3 * dispatcher.gaugeService.submit('timer.webhook.post', _)
+        // One connection, reused for every post
+        receiver.connections.size() == 1
+        conditions.eventually { assert dispatcher.connectionStats.available == 1 }
+    }
+
+    def "transient failures are retried, and other statuses given up on"() {
+        setup:
+        def done = new CountDownLatch(2)
+        def attempts = new AtomicInteger()
+        receiver.respond = { request -> request.path == '/gone' ? 410 : attempts.incrementAndGet() == 1 ? 503 : 200 }
+        dispatcher.start()
+
+        when:
+        submit(receiver.url('/flaky'), 'n1', done)
+        submit(receiver.url('/gone'), 'n2', done)
+        done.await(5, TimeUnit.SECONDS)
+
+        then:
+        outcomes.n1 == 'delivered'
+        outcomes.n2 instanceof WebhookRejectedException
+        outcomes.n2.statusCode == 410
+        !WebhookDispatcher.isTransient(outcomes.n2)
+        WebhookDispatcher.isTransient(new WebhookRejectedException('http://a', 429))
+        receiver.requests*.path.count('/gone') == 1
+        1 * dispatcher.counterService.increment('webhook.retried')
+        1 * dispatcher.counterService.increment('webhook.dropped')
+    }
+
+    def "notifications submitted for a single attempt are not retried"() {
+        setup:
+        def done = new CountDownLatch(1)
+        receiver.respond = { request -> 503 }
+        dispatcher.start()
+
+        when:
+        dispatcher.submit(receiver.url('/flaky'), notification('n1'), 1) { failure ->
+            outcomes.n1 = failure
+            done.countDown()
+        }
+        done.await(5, TimeUnit.SECONDS)
+
+        then:
+        outcomes.n1.statusCode == 503
+        receiver.requests.size() == 1
+        0 * dispatcher.counterService.increment('webhook.retried')
+        1 * dispatcher.counterService.increment('webhook.dropped')
+    }
+
+    def "posts to a webhook are limited per target, while other targets are posted to side by side"() {
+        setup:
+        def other = new StubReceiver().start()
+        def release = new CountDownLatch(1)
+        def done = new CountDownLatch(4)
+        receiver.respond = { request ->
+            release.await(5, TimeUnit.SECONDS)
+            200
+        }
+        dispatcher.workers = 4
+        dispatcher.batchSize = 1
+        dispatcher.maxConnectionsPerTarget = 1
+        dispatcher.start()
+
+        when: "a slow target is posted to several times"
+        ['n1', 'n2', 'n3'].each { submit(receiver.url('/a'), it, done) }
+        submit(other.url('/a'), 'n4', done)
+
+        then: "the other target isn't held up"
+        conditions.eventually {
+            assert outcomes.n4 == 'delivered'
+            // The other two wait for the slow target's connection
+            assert dispatcher.connectionStats.pending == 2
+        }
+        receiver.inFlight.get() == 1
+
+        when:
+        release.countDown()
+        done.await(5, TimeUnit.SECONDS)
+
+        then:
+        outcomes.values().every { it == 'delivered' }
+        receiver.maxInFlight.get() == 1
+
+        cleanup:
+        other.stop()
+    }
+
+    def "a webhook that doesn't answer in time is given up on once out of attempts"() {
+        setup:
+        def done = new CountDownLatch(1)
+        receiver.respond = { request ->
+            Thread.sleep(1000)
+            200
+        }
+        dispatcher.timeoutMillis = 100
+        dispatcher.maxAttempts = 2
+        dispatcher.start()
+
+        when:
+        submit(receiver.url('/slow'), 'n1', done)
+        done.await(5, TimeUnit.SECONDS)
+
+        then:
+        outcomes.n1 instanceof SocketTimeoutException
+        WebhookDispatcher.isTransient(outcomes.n1)
+        1 * dispatcher.counterService.increment('webhook.retried')
+        1 * dispatcher.counterService.increment('webhook.dropped')
+    }
+
+    def "only absolute http urls are webhooks"() {
+        expect:
+        WebhookDispatcher.isValidEndpoint(url) == valid
+
+        where:
+        url                              | valid
+        'https://hooks.example.com/trust' | true
+        'http://localhost:8081/a?b=c'    | true
+        'ftp://example.com/trust'        | false
+        '/trust'                         | false
+        'not a url'                      | false
+    }
+
+    def "webhooks on non-public addresses are refused, when registered and when posted to"() {
+        setup:
+        def done = new CountDownLatch(1)
+        dispatcher.allowPrivateTargets = false
+        dispatcher.start()
+
+        when:
+        submit(receiver.url('/a'), 'n1', done)
+        done.await(5, TimeUnit.SECONDS)
+
+        then: "given up on straight away, without connecting"
+        outcomes.n1 instanceof UnknownHostException
+        !WebhookDispatcher.isTransient(outcomes.n1)
+        receiver.requests.isEmpty()
+        0 * dispatcher.counterService.increment('webhook.retried')
+        1 * dispatcher.counterService.increment('webhook.dropped')
+
+        and:
+        !dispatcher.isAllowedEndpoint(receiver.url('/a'))
+        ['http://127.0.0.1/a', 'http://10.1.2.3/a', 'http://172.16.0.1/a', 'http://192.168.1.1/a', 'http://169.254.169.254/latest/meta-data',
+         'http://0.0.0.0/a', 'http://[::1]/a', 'http://[fe80::1]/a', 'http://[fd00::1]/a', 'http://[::ffff:127.0.0.1]/a', 'ftp://93.184.216.34/a'].every { !dispatcher.isAllowedEndpoint(it) }
+        ['http://93.184.216.34/a', 'https://[2606:2800:220:1::1]/a'].every { dispatcher.isAllowedEndpoint(it) }
+    }
+
+    def "retries still waiting when the dispatcher stops are given up on"() {
+        setup:
+        def done = new CountDownLatch(1)
+        receiver.respond = { request -> 503 }
+        dispatcher.initialBackoffMillis = 60000
+        dispatcher.start()
+
+        when:
+        submit(receiver.url('/a'), 'n1', done)
+        conditions.eventually { assert receiver.requests.size() == 1 }
+        dispatcher.stop()
+        done.await(5, TimeUnit.SECONDS)
+
+        then:
+        outcomes.n1 instanceof WebhookRejectedException
+        1 * dispatcher.counterService.increment('webhook.retried')
+        1 * dispatcher.counterService.increment('webhook.dropped')
+
+        cleanup:
+        dispatcher.workerPool = null
+    }
+
+    /**
+     * A local HTTP server standing in for webhook endpoints: records each request, and answers with the status
+     * <code>respond</code> returns for it
+     */
+    static class StubReceiver {
+
+        final HttpServer server = HttpServer.create(new InetSocketAddress('localhost', 0), 0)
+        final requests = new CopyOnWriteArrayList()
+        // Remote addresses requests came from, one per connection
+        final connections = ConcurrentHashMap.newKeySet()
+        final inFlight = new AtomicInteger()
+        final maxInFlight = new AtomicInteger()
+        volatile Closure<Integer> respond = { request -> 200 }
+
+        StubReceiver start() {
+            server.executor = Executors.newCachedThreadPool()
+            server.createContext('/') { HttpExchange exchange ->
+                int current = inFlight.incrementAndGet()
+                maxInFlight.getAndUpdate { Math.max(it, current) }
+                try {
+                    def request = [path: exchange.requestURI.path, contentType: exchange.requestHeaders.getFirst('Content-Type'),
+                                   body: new ObjectMapper().readValue(exchange.requestBody, Map)]
+                    requests << request
+                    connections << exchange.remoteAddress
+                    int status = respond(request)
+                    // Done before answering, so that the next request is never counted alongside this one
+                    inFlight.decrementAndGet()
+                    exchange.sendResponseHeaders(status, -1)
+                } finally {
+                    exchange.close()
+                }
+            }
+            server.start()
+            this
+        }
+
+        String url(String path) {
+            "http://localhost:${server.address.port}$path"
+        }
+
+        void stop() {
+            server.stop(0)
+            server.executor.shutdownNow()
+        }
+    }
+}